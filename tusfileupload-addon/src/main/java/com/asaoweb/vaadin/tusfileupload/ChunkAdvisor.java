@@ -0,0 +1,127 @@
+package com.asaoweb.vaadin.tusfileupload;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+Recommends a chunk size to each client from the throughput and the failure
+rate of its recent PATCH requests, advertised in the Upload-Chunk-Hint header.
+
+The chunk is sized to take about chunkTargetDuration to send: large on fast
+links, where the per request overhead would dominate, small on slow ones. It
+is shrunk further when requests fail, so that a failure loses less, and
+bounded by maxRequest. Clients are identified by their user name, or by their
+address when anonymous. Beyond MAX_CLIENTS, the clients not seen for an hour
+are forgotten, then the least recently seen down to PRUNED_CLIENTS, so that
+pruning runs once in a while rather than on every request.
+*/
+public class ChunkAdvisor implements Serializable {
+	private static final Logger log = LoggerFactory.getLogger(ChunkAdvisor.class.getName());
+
+	public static final String CHUNK_HINT_HEADER = "Upload-Chunk-Hint";
+
+	protected static final long MIN_CHUNK_SIZE = 256L * 1024;
+	protected static final long MAX_CHUNK_SIZE = 512L * 1024 * 1024;
+	// requests shorter than this are dominated by their overhead: not a throughput sample
+	protected static final long MIN_SAMPLE_SIZE = 64L * 1024;
+	protected static final double ALPHA = 0.3;
+	protected static final int MAX_CLIENTS = 10000;
+	protected static final int PRUNED_CLIENTS = MAX_CLIENTS * 3 / 4;
+	protected static final long CLIENT_EXPIRY = 3600L * 1000;
+
+	protected static class Stats {
+		// bytes per millisecond
+		double throughput = 0.0;
+		double failureRate = 0.0;
+		volatile long lastSeen;
+	}
+
+	protected final long targetDuration;
+	protected final long maxRequest;
+	protected final Map<String, Stats> clients = new ConcurrentHashMap<>();
+	protected final AtomicBoolean pruning = new AtomicBoolean();
+
+	public ChunkAdvisor(Config config) {
+		this.targetDuration = config.chunkTargetDuration;
+		this.maxRequest = config.maxRequest;
+	}
+
+	public boolean isEnabled() {
+		return targetDuration > 0;
+	}
+
+	/*
+	 * Records a PATCH request of client which wrote bytes in elapsed
+	 * milliseconds, or failed.
+	 */
+	public void record(String client, long bytes, long elapsed, boolean failed) {
+		if (!isEnabled() || client == null) {
+			return;
+		}
+		Stats stats = clients.computeIfAbsent(client, k -> new Stats());
+		synchronized (stats) {
+			stats.lastSeen = System.currentTimeMillis();
+			stats.failureRate = stats.failureRate * (1 - ALPHA) + (failed ? ALPHA : 0.0);
+			if (!failed && bytes >= MIN_SAMPLE_SIZE) {
+				double throughput = (double) bytes / Math.max(1L, elapsed);
+				stats.throughput = stats.throughput > 0 ? stats.throughput * (1 - ALPHA) + throughput * ALPHA : throughput;
+			}
+		}
+		if (clients.size() > MAX_CLIENTS) {
+			prune();
+		}
+	}
+
+	/*
+	 * Forgets the expired clients, then the least recently seen ones down to
+	 * PRUNED_CLIENTS. A single thread prunes, the others go on.
+	 */
+	protected void prune() {
+		if (!pruning.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			long limit = System.currentTimeMillis() - CLIENT_EXPIRY;
+			clients.values().removeIf(s -> s.lastSeen < limit);
+			int excess = clients.size() - PRUNED_CLIENTS;
+			if (excess > 0) {
+				long[] seen = clients.values().stream().mapToLong(s -> s.lastSeen).sorted().toArray();
+				if (seen.length > 0) {
+					long cutoff = seen[Math.min(excess, seen.length) - 1];
+					clients.values().removeIf(s -> s.lastSeen <= cutoff);
+				}
+			}
+			log.debug("Chunk advisor pruned to {} clients", clients.size());
+		} finally {
+			pruning.set(false);
+		}
+	}
+
+	/*
+	 * Returns the recommended chunk size for client, or 0 if unknown yet.
+	 */
+	public long getChunkHint(String client) {
+		Stats stats = client != null && isEnabled() ? clients.get(client) : null;
+		if (stats == null) {
+			return 0L;
+		}
+		double size;
+		synchronized (stats) {
+			if (stats.throughput <= 0) {
+				return 0L;
+			}
+			// one failure in ten requests halves the chunks, down to a quarter
+			size = stats.throughput * targetDuration * Math.max(0.25, 1 - 5 * stats.failureRate);
+		}
+		long max = maxRequest > 0 ? Math.min(maxRequest, MAX_CHUNK_SIZE) : MAX_CHUNK_SIZE;
+		long hint = Math.max(MIN_CHUNK_SIZE, (long) size / MIN_CHUNK_SIZE * MIN_CHUNK_SIZE);
+		hint = Math.min(hint, max);
+		log.debug("Chunk hint for {}: {}", client, hint);
+		return hint;
+	}
+}
@@ -5,6 +5,8 @@ import org.slf4j.LoggerFactory;
 
 import com.asaoweb.vaadin.tusfileupload.data.Datastore;
 import com.asaoweb.vaadin.tusfileupload.data.Store;
+import com.asaoweb.vaadin.tusfileupload.metrics.UploadActivity;
+import com.asaoweb.vaadin.tusfileupload.metrics.UploadTracer;
 
 import java.io.Serializable;
 
@@ -15,6 +17,9 @@ public class Composer implements Serializable {
 	protected final Config config;
 	protected final Datastore datastore;
 	protected final Locker locker;
+	protected final ChunkAdvisor chunkAdvisor;
+	protected transient UploadTracer tracer;
+	protected transient UploadActivity activity;
 
 
 	public Composer(Config config) throws Exception
@@ -22,6 +27,7 @@ public class Composer implements Serializable {
 		this.config = config;
 
 		locker = new SingleProcessLocker();
+		chunkAdvisor = new ChunkAdvisor(config);
 
 		if (config.datastoreProvider != null)
 		{
@@ -47,4 +53,32 @@ public class Composer implements Serializable {
 	public Locker getLocker() {
 		return locker;
 	}
+
+
+	public ChunkAdvisor getChunkAdvisor() {
+		return chunkAdvisor;
+	}
+
+
+	/*
+	 * Shared by every composer on the same folder, see UploadTracer.
+	 */
+	public UploadTracer getTracer() {
+		if (tracer == null) {
+			tracer = UploadTracer.forFolder(config.uploadFolder);
+			tracer.configure(config.traceBufferSize, config.traceExportFolder);
+		}
+		return tracer;
+	}
+
+
+	/*
+	 * Shared by every composer on the same folder, see UploadActivity.
+	 */
+	public UploadActivity getActivity() {
+		if (activity == null) {
+			activity = UploadActivity.forFolder(config.uploadFolder);
+		}
+		return activity;
+	}
 }
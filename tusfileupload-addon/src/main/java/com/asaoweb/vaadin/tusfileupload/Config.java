@@ -7,6 +7,7 @@ import java.util.Properties;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.asaoweb.vaadin.tusfileupload.data.DestinationResolver;
 import com.asaoweb.vaadin.tusfileupload.exceptions.TusException;
 
 public class Config implements Serializable
@@ -23,6 +24,12 @@ public class Config implements Serializable
 	//Maximum total storage space to use.  0 means unlimited (or different policy in use). 
 	long MAX_STORAGE = 0L;
 
+	//Maximum storage space a single user may hold (reserved by pending and completed uploads).  0 means unlimited.
+	long MAX_USER_STORAGE = 0L;
+
+	//Free space to keep on the upload folder's file system, counting bytes still expected by pending uploads.  0 disables the check.
+	long MIN_FREE_SPACE = 0L;
+
 	//Server can limit number of bytes it will accept in a single patch request.  0 means unlimited.
 	long MAX_REQUEST = 0L;
 
@@ -32,13 +39,56 @@ public class Config implements Serializable
 	
 	// Default value. If set to true, we will check owner of the fileinfo and enforce security for it
 	boolean ENFORCE_SECURITY = true;
+
+	// Default value. If set to true, uploads announcing the SHA-256 of their content complete instantly
+	// when the same user already uploaded that content.
+	boolean DEDUPLICATE = false;
+
+	// Content kept for deduplication is deleted when not used for this many milliseconds (30 days), on startup.
+	// It isn't counted by maxStorage and maxUserStorage, see ContentIndex.
+	long DEDUP_MAX_AGE = 30L * 24 * 3600 * 1000;
+
+	// Default value. Chunk size advertised to the clients: what they send in this many milliseconds.  0 disables the hint.
+	long CHUNK_TARGET_DURATION = 5000L;
+
+	// Default value. Validity of the tokens authorizing the uploads on TusUploadServlet, in milliseconds (24 hours).
+	long TOKEN_TTL = 24L * 3600 * 1000;
+
+	// Default value. PATCH requests whose body comes slower than this many bytes per second for stallGracePeriod
+	// are aborted, see StallWatchdog.  0 disables the watchdog.
+	long MIN_THROUGHPUT = 1L;
+
+	// Default value. How long, in milliseconds, a PATCH request may stay below minThroughput.
+	long STALL_GRACE_PERIOD = 60L * 1000;
+
+	// Default value. Number of spans kept by the UploadTracer, for all uploads.  0 disables tracing.
+	long TRACE_BUFFER_SIZE = 4096L;
+
+	// Default value. Number of uploads a batch creation request may create, see BatchPostHandler.  0 disables batch creation.
+	long MAX_CREATE_BATCH = 100L;
 	
 	public long maxSize;
 	public long maxStorage;
+	public long maxUserStorage;
+	public long minFreeSpace;
 	public long maxRequest;
 	public String uploadFolder;
 	public String datastoreProvider;
 	public boolean enforceAuthSecurity;
+	public boolean deduplicate;
+	public long dedupMaxAge;
+	public long chunkTargetDuration;
+	// Shared by the components and TusUploadServlet of a JVM, see UploadTokens.
+	public String tokenSecret;
+	public long tokenTtl;
+	public long minThroughput;
+	public long stallGracePeriod;
+	public int traceBufferSize;
+	public int maxCreateBatch;
+	// Optional, where the traces of the completed uploads are written.
+	public String traceExportFolder;
+	// Optional, chooses at creation where the bytes of an upload are written.
+	public DestinationResolver destinationResolver;
 
 	// Derived classes may need additional configuration.
 	public Properties allProperties = new Properties(); 
@@ -50,8 +100,11 @@ public class Config implements Serializable
 		properties.setProperty("uploadFolder", "/tmp");
         properties.setProperty("maxFileSize", "0");
 		properties.setProperty("maxStorage", "0");
+		properties.setProperty("maxUserStorage", "0");
+		properties.setProperty("minFreeSpace", "0");
 		properties.setProperty("maxRequest", "0");
 		properties.setProperty("enforceAuthSecurity", "true");
+		properties.setProperty("deduplicate", "false");
 		//properties.setProperty("datastoreProvider", null);
 		
 		init(properties);
@@ -80,15 +133,70 @@ public class Config implements Serializable
 		l = getLongValue("maxStorage");
 		maxStorage = (l == null) ? MAX_STORAGE : l;
 
+		l = getLongValue("maxUserStorage");
+		maxUserStorage = (l == null) ? MAX_USER_STORAGE : l;
+
+		l = getLongValue("minFreeSpace");
+		minFreeSpace = (l == null) ? MIN_FREE_SPACE : l;
+
 		l = getLongValue("maxRequest");
 		maxRequest = (l == null) ? MAX_REQUEST : l;
 
 		b = getBooleanValue("enforceAuthSecurity");
 		enforceAuthSecurity = (b == null) ? ENFORCE_SECURITY : b;
+
+		b = getBooleanValue("deduplicate");
+		deduplicate = (b == null) ? DEDUPLICATE : b;
+
+		l = getLongValue("dedupMaxAge");
+		dedupMaxAge = (l == null) ? DEDUP_MAX_AGE : l;
+
+		l = getLongValue("chunkTargetDuration");
+		chunkTargetDuration = (l == null) ? CHUNK_TARGET_DURATION : l;
+
+		tokenSecret = properties.getProperty("tokenSecret");
+
+		l = getLongValue("tokenTtl");
+		tokenTtl = (l == null) ? TOKEN_TTL : l;
+
+		l = getLongValue("minThroughput");
+		minThroughput = (l == null) ? MIN_THROUGHPUT : l;
+
+		l = getLongValue("stallGracePeriod");
+		stallGracePeriod = (l == null) ? STALL_GRACE_PERIOD : l;
+
+		l = getLongValue("traceBufferSize");
+		traceBufferSize = (int) ((l == null) ? TRACE_BUFFER_SIZE : l);
+
+		l = getLongValue("maxCreateBatch");
+		maxCreateBatch = (int) ((l == null) ? MAX_CREATE_BATCH : l);
+
+		traceExportFolder = properties.getProperty("traceExportFolder");
 		
 		datastoreProvider = properties.getProperty("datastoreProvider");
+
+		tmp = properties.getProperty("destinationResolver");
+		if (tmp != null)
+		{
+			try
+			{
+				destinationResolver = (DestinationResolver)Class.forName(tmp).getConstructor().newInstance();
+			}
+			catch(Exception e)
+			{
+				tmp = "Unable to instantiate destinationResolver " + tmp + ": " + e;
+				log.error(tmp);
+				throw new TusException.ConfigError(tmp);
+			}
+		}
 		log.info("uploadFolder=" + uploadFolder + ", maxFileSize=" + maxSize + ", maxStorage=" + maxStorage +
+			", maxUserStorage=" + maxUserStorage + ", minFreeSpace=" + minFreeSpace +
 			", maxRequest=" + maxRequest + ", enforceAuthSecurity=" + enforceAuthSecurity + 
+			", deduplicate=" + deduplicate + ", dedupMaxAge=" + dedupMaxAge +
+			", chunkTargetDuration=" + chunkTargetDuration + ", tokenTtl=" + tokenTtl +
+			", minThroughput=" + minThroughput + ", stallGracePeriod=" + stallGracePeriod +
+			", traceBufferSize=" + traceBufferSize + ", traceExportFolder=" + traceExportFolder +
+			", maxCreateBatch=" + maxCreateBatch +
 			", datastoreProvider=" + datastoreProvider);
 	}
 
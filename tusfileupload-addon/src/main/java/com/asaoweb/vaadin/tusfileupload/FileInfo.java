@@ -32,6 +32,12 @@ public class FileInfo implements Serializable {
 	public String suggestedFiletype;
 	public String username;
 	public Map<String, String> decodedMetadata;
+	// Where the bytes are stored when not in the upload folder, see DestinationResolver.
+	public String binPath;
+	// Created ahead of its turn by a BatchPostHandler: streamingStarted is sent by its first PATCH.
+	public boolean deferredStart;
+	// Registered by Datastore.addDeltaBase: binPath is a file of the application, never written nor deleted.
+	public boolean deltaBase;
 	
 	@JsonIgnore
 	public String queueId;
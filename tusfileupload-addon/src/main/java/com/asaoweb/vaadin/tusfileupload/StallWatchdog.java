@@ -0,0 +1,246 @@
+package com.asaoweb.vaadin.tusfileupload;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.asaoweb.vaadin.tusfileupload.metrics.UploadMetrics;
+
+/*
+Aborts the writes of the PATCH requests whose body stops coming: a client
+which goes silent without closing its connection would otherwise block
+Store.write, hence a request thread and the lock of the upload, for as long
+as the TCP connection lives.
+
+Each write registers a Watch, to which its channel reports the bytes read.
+The watches are checked a few times per grace period by a single daemon
+thread, from a hashed timing wheel: registering, rescheduling and cancelling
+are O(1) whatever the number of writes in progress. A write whose throughput
+stays below minThroughput for longer than the grace period is aborted: its
+stream is closed and its thread interrupted, which makes the blocked read
+fail. The bytes already written stay, the offset of the upload being the
+length of its file, so the client resumes it after a HEAD.
+*/
+public class StallWatchdog {
+	private static final Logger log = LoggerFactory.getLogger(StallWatchdog.class.getName());
+
+	protected static final long TICK = 1000L;
+	protected static final int WHEEL_SIZE = 64;
+	// checks per grace period
+	protected static final int CHECKS = 4;
+
+	private static StallWatchdog shared;
+
+	protected final List<Set<Watch>> wheel = new ArrayList<>(WHEEL_SIZE);
+	// number of ticks elapsed, guarded by this
+	protected long ticks = 0L;
+	protected Thread thread;
+
+	protected StallWatchdog() {
+		for (int i = 0; i < WHEEL_SIZE; i++) {
+			wheel.add(new HashSet<>());
+		}
+	}
+
+	/*
+	 * Returns the watchdog of the JVM, whose thread is started with the first
+	 * watch.
+	 */
+	public static synchronized StallWatchdog getShared() {
+		if (shared == null) {
+			shared = new StallWatchdog();
+		}
+		return shared;
+	}
+
+	public class Watch implements Closeable {
+		protected final String id;
+		protected final long minThroughput;
+		protected final long gracePeriod;
+		protected final Closeable stream;
+		protected final Thread writer;
+		protected final UploadMetrics metrics;
+		// written by the writer only
+		protected volatile long bytes = 0L;
+		// the fields below are guarded by the watchdog
+		protected long checkedBytes = 0L;
+		protected long checkedAt;
+		protected long slowSince = -1L;
+		protected int rounds;
+		protected int slot = -1;
+		// guarded by this watch
+		protected boolean closed = false;
+		protected boolean aborted = false;
+
+		protected Watch(String id, long minThroughput, long gracePeriod, Closeable stream, UploadMetrics metrics) {
+			this.id = id;
+			this.minThroughput = minThroughput;
+			this.gracePeriod = gracePeriod;
+			this.stream = stream;
+			this.metrics = metrics;
+			this.writer = Thread.currentThread();
+			this.checkedAt = System.currentTimeMillis();
+		}
+
+		/*
+		 * Called by the writer for the bytes it read.
+		 */
+		public void progress(long n) {
+			if (n > 0) {
+				bytes += n;
+			}
+		}
+
+		public synchronized boolean isAborted() {
+			return aborted;
+		}
+
+		/*
+		 * Stops watching, once the write is over. Clears the interrupt status of
+		 * the writer if it was aborted: no abort can happen afterwards.
+		 */
+		@Override
+		public void close() {
+			synchronized (this) {
+				closed = true;
+				if (aborted) {
+					Thread.interrupted();
+				}
+			}
+			cancel(this);
+		}
+
+		protected void abort() {
+			synchronized (this) {
+				if (closed || aborted) {
+					return;
+				}
+				aborted = true;
+				log.warn("Write of {} stalled below {} bytes/s for {} ms, aborted after {} bytes", id, minThroughput,
+						gracePeriod, bytes);
+				if (metrics != null) {
+					metrics.stalled();
+				}
+				writer.interrupt();
+			}
+			try {
+				stream.close();
+			} catch (IOException e) {
+				log.debug("Closing the stream of {}: {}", id, e.toString());
+			}
+		}
+
+		/*
+		 * Returns true if the write has to be aborted.
+		 */
+		protected boolean isStalled(long now) {
+			long elapsed = Math.max(1L, now - checkedAt);
+			long throughput = (bytes - checkedBytes) * 1000L / elapsed;
+			if (throughput >= minThroughput) {
+				slowSince = -1L;
+			} else if (slowSince < 0) {
+				slowSince = checkedAt;
+			}
+			checkedBytes = bytes;
+			checkedAt = now;
+			return slowSince >= 0 && now - slowSince >= gracePeriod;
+		}
+
+		protected long getInterval() {
+			return Math.max(1L, gracePeriod / CHECKS / TICK);
+		}
+	}
+
+	/*
+	 * Watches the write of upload id by the current thread, reading stream.
+	 * The returned watch must be closed once the write is over.
+	 */
+	public Watch watch(String id, long minThroughput, long gracePeriod, Closeable stream, UploadMetrics metrics) {
+		Watch watch = new Watch(id, minThroughput, gracePeriod, stream, metrics);
+		synchronized (this) {
+			schedule(watch, watch.getInterval());
+			if (thread == null) {
+				thread = new Thread(this::run, "tus-stall-watchdog");
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+		return watch;
+	}
+
+	// guarded by this
+	protected void schedule(Watch watch, long delay) {
+		watch.rounds = (int) ((delay - 1) / WHEEL_SIZE);
+		watch.slot = (int) ((ticks + delay) % WHEEL_SIZE);
+		wheel.get(watch.slot).add(watch);
+	}
+
+	protected synchronized void cancel(Watch watch) {
+		if (watch.slot >= 0) {
+			wheel.get(watch.slot).remove(watch);
+			watch.slot = -1;
+		}
+	}
+
+	protected void run() {
+		long next = System.currentTimeMillis() + TICK;
+		while (true) {
+			try {
+				long wait = next - System.currentTimeMillis();
+				if (wait > 0) {
+					Thread.sleep(wait);
+				}
+				next += TICK;
+				tick(System.currentTimeMillis());
+			} catch (InterruptedException e) {
+				log.debug("Stall watchdog stopped");
+				return;
+			} catch (RuntimeException e) {
+				log.error("", e);
+			}
+		}
+	}
+
+	protected void tick(long now) {
+		List<Watch> due = new ArrayList<>();
+		synchronized (this) {
+			ticks++;
+			Iterator<Watch> bucket = wheel.get((int) (ticks % WHEEL_SIZE)).iterator();
+			while (bucket.hasNext()) {
+				Watch watch = bucket.next();
+				if (watch.rounds > 0) {
+					watch.rounds--;
+				} else {
+					bucket.remove();
+					watch.slot = -1;
+					due.add(watch);
+				}
+			}
+		}
+		for (Watch watch : due) {
+			boolean stalled;
+			synchronized (this) {
+				stalled = watch.isStalled(now);
+			}
+			if (stalled) {
+				// outside of the lock: closing the stream may block
+				watch.abort();
+				continue;
+			}
+			synchronized (this) {
+				synchronized (watch) {
+					if (!watch.closed) {
+						schedule(watch, watch.getInterval());
+					}
+				}
+			}
+		}
+	}
+}
@@ -10,12 +10,16 @@ import org.slf4j.LoggerFactory;
 import com.asaoweb.vaadin.tusfileupload.exceptions.TusException;
 import com.asaoweb.vaadin.tusfileupload.exceptions.TusException.ConfigError;
 import com.asaoweb.vaadin.tusfileupload.handlers.BaseHandler;
+import com.asaoweb.vaadin.tusfileupload.handlers.BatchPostHandler;
 import com.asaoweb.vaadin.tusfileupload.handlers.DeleteHandler;
 import com.asaoweb.vaadin.tusfileupload.handlers.HeadHandler;
 import com.asaoweb.vaadin.tusfileupload.handlers.OptionsHandler;
 import com.asaoweb.vaadin.tusfileupload.handlers.PatchHandler;
 import com.asaoweb.vaadin.tusfileupload.handlers.PostHandler;
+import com.asaoweb.vaadin.tusfileupload.handlers.RequestContext;
 import com.asaoweb.vaadin.tusfileupload.handlers.Response;
+import com.asaoweb.vaadin.tusfileupload.handlers.SignatureHandler;
+import com.asaoweb.vaadin.tusfileupload.metrics.JfrEvents;
 import com.vaadin.server.ClientConnector;
 import com.vaadin.server.StreamVariable;
 import com.vaadin.server.UploadException;
@@ -31,11 +35,18 @@ public class TUSFileUploadHandler extends FileUploadHandler {
 	
 	public static final String UPLOAD_URL_PREFIX = "APP/TUS-UPLOAD/";
 	public static final int UPLOAD_URL_FILE_ID_POSITION = 4;
+
+	protected static final String ALLOW_METHODS = "POST, GET, HEAD, PATCH, DELETE, OPTIONS";
+	protected static final String ALLOW_HEADERS = "Origin, X-Requested-With, Content-Type, Upload-Length, "
+			+ "Upload-Offset, Tus-Resumable, Upload-Metadata, Content-Encoding, " + PatchHandler.DELTA_HEADER + ", "
+			+ BatchPostHandler.BATCH_HEADER;
+	protected static final String EXPOSE_HEADERS = "Upload-Offset, Location, Upload-Length, Tus-Version, "
+			+ "Tus-Resumable, Tus-Max-Size, Tus-Extension, Upload-Metadata, " + PostHandler.DEDUP_HEADER + ", "
+			+ ChunkAdvisor.CHUNK_HINT_HEADER;
+	protected static final String MAX_AGE = "86400";
 	
 	private Config config;
 	private Composer composer;
-	private boolean doTermination;
-	private boolean doCreation;
 	private boolean shouldSetDestroyListener = true;
 	
 	public TUSFileUploadHandler() throws ConfigError {
@@ -48,8 +59,6 @@ public class TUSFileUploadHandler extends FileUploadHandler {
 		{
 			this.config = config;
 			composer = new Composer(config);
-			doTermination = composer.datastore.getExtensions().contains("termination");
-			doCreation = composer.datastore.getExtensions().contains("creation");
 		}
 		catch(TusException.ConfigError se)
 		{
@@ -63,6 +72,7 @@ public class TUSFileUploadHandler extends FileUploadHandler {
     public boolean handleRequest(VaadinSession session, VaadinRequest vaadinRequest,
             VaadinResponse vaadinResponse) throws IOException {
 		if (shouldSetDestroyListener) {
+			shouldSetDestroyListener = false;
 			vaadinRequest.getService().addServiceDestroyListener((e)->destroy());
 		}
 		
@@ -75,62 +85,56 @@ public class TUSFileUploadHandler extends FileUploadHandler {
          * URI pattern: APP/UPLOAD/[UIID]/[PID]/[NAME]/[SECKEY] See
          * #createReceiverUrl
          */
-        // strip away part until the data we are interested starts
-        String uppUri = getUppURI(vaadinRequest);
-        // 0= UIid, 1= cid, 2= name, 3= sec key
-        String[] parts = uppUri.split("/");
-        String uiId = parts[0];
-        String connectorId = parts[1];
-        String variableName = parts[2];
+        // parsed once for the handlers
+        RequestContext context = RequestContext.parse(vaadinRequest);
+        Object event = JfrEvents.begin(JfrEvents.REQUEST);
+        String variableName = context.variableName;
 
         // These are retrieved while session is locked
-        ClientConnector source;
-        StreamVariable streamVariable;
+        ClientConnector source = null;
+        StreamVariable streamVariable = null;
 
+        long waitStart = System.nanoTime();
         session.lock();
+        context.setSessionLockWait(System.nanoTime() - waitStart);
         try {
-            UI uI = session.getUIById(Integer.parseInt(uiId));
+            UI uI = session.getUIById(context.uiId);
             UI.setCurrent(uI);
 
-            streamVariable = uI.getConnectorTracker()
-                    .getStreamVariable(connectorId, variableName);
-            String secKey = uI.getConnectorTracker().getSeckey(streamVariable);
-            if (secKey == null || !secKey.equals(parts[3])) {
-				log.error("Method " + vaadinRequest.getMethod() + " not allowed: bad secret key");
-                // TODO Should rethink error handling
-                return true;
+            if (uI != null && context.connectorId != null && variableName != null) {
+	            streamVariable = uI.getConnectorTracker()
+	                    .getStreamVariable(context.connectorId, variableName);
+	            String secKey = streamVariable != null ? uI.getConnectorTracker().getSeckey(streamVariable) : null;
+	            if (secKey != null && secKey.equals(context.secKey)) {
+	            	source = uI.getConnectorTracker().getConnector(context.connectorId);
+	            }
             }
-
-            source = uI.getConnectorTracker().getConnector(connectorId);
-        
         } finally {
             session.unlock();
         }
 
         Response response = new Response(vaadinResponse);
+        if (source == null) {
+        	// e.g. a URL of an expired session or of a closed UI: a tus client creates a new upload,
+        	// which TusMultiUpload resumes from the partial upload it left if any (see ResumeIndex)
+        	log.info("Method {} not allowed: unknown UI or bad secret key", context.method);
+        	TusException notFound = new TusException.NotFound();
+        	response.setStatus(notFound.getStatus()).setText(notFound.getText());
+        	send(config, vaadinRequest, response);
+        	JfrEvents.request(event, context.method, context.id, response.getStatus());
+        	return true;
+        }
 		try
 		{
-			log.debug("TUS UPLOAD SERVLET " + vaadinRequest.getMethod() + " " + vaadinRequest.getPathInfo() + ". User = " +
-				getAuthenticatedUser(vaadinRequest));
+			if (log.isDebugEnabled()) {
+				log.debug("TUS UPLOAD SERVLET {} {}. User = {}", context.method, vaadinRequest.getPathInfo(),
+					getAuthenticatedUser(vaadinRequest));
+			}
 
-			checkVersion(vaadinRequest, response);
+			checkVersion(config, vaadinRequest);
 			handleFileUploadSecurity(session, streamVariable, variableName, variableName, source, variableName);
 			
-			String method = vaadinRequest.getMethod();
-			if (method.equals("OPTIONS")) {
-				new OptionsHandler(composer, vaadinRequest, response, streamVariable).go();
-			} else if (method.equals("HEAD")) {
-				new HeadHandler(composer, vaadinRequest, response, streamVariable).go();
-			} else if (method.equals("PATCH")) {
-				new PatchHandler(composer, vaadinRequest, response, streamVariable).go();
-			} else if (method.equals("POST") && doCreation) {
-				new PostHandler(composer, vaadinRequest, response, streamVariable).go();
-			} else if (method.equals("DELETE") && doTermination) {
-				new DeleteHandler(composer, vaadinRequest, response, streamVariable).go();
-			} else {
-				log.info("Method " + vaadinRequest.getMethod() + " not allowed.");
-				throw new TusException.MethodNotAllowed();
-			}
+			dispatch(composer, vaadinRequest, response, streamVariable, context);
 		}
 		catch (TusException texc)
 		{
@@ -142,11 +146,41 @@ public class TUSFileUploadHandler extends FileUploadHandler {
 			response.setStatus(500).setText((e.getMessage()  == null) ? 
 				"Server Error" : "Server Error: " + e.getMessage());
 		}
-		send(vaadinRequest, response);
+		send(config, vaadinRequest, response);
+		JfrEvents.request(event, context.method, context.id, response.getStatus());
         
         return true;
     }        
 
+	/*
+	 * Runs the handler of the request method.
+	 */
+	static void dispatch(Composer composer, VaadinRequest vaadinRequest, Response response,
+			StreamVariable streamVariable, RequestContext context) throws Exception
+	{
+		String extensions = composer.getDatastore().getExtensions();
+		String method = context.method;
+		if (method.equals("OPTIONS")) {
+			new OptionsHandler(composer, vaadinRequest, response, streamVariable, context).handle();
+		} else if (method.equals("HEAD")) {
+			new HeadHandler(composer, vaadinRequest, response, streamVariable, context).handle();
+		} else if (method.equals("PATCH")) {
+			new PatchHandler(composer, vaadinRequest, response, streamVariable, context).handle();
+		} else if (method.equals("POST") && extensions.contains("creation")
+				&& vaadinRequest.getHeader(BatchPostHandler.BATCH_HEADER) != null) {
+			new BatchPostHandler(composer, vaadinRequest, response, streamVariable, context).handle();
+		} else if (method.equals("POST") && extensions.contains("creation")) {
+			new PostHandler(composer, vaadinRequest, response, streamVariable, context).handle();
+		} else if (method.equals("GET")) {
+			new SignatureHandler(composer, vaadinRequest, response, streamVariable, context).handle();
+		} else if (method.equals("DELETE") && extensions.contains("termination")) {
+			new DeleteHandler(composer, vaadinRequest, response, streamVariable, context).handle();
+		} else {
+			log.info("Method {} not allowed.", method);
+			throw new TusException.MethodNotAllowed();
+		}
+	}
+
 	public void destroy()
 	{
 		try
@@ -185,7 +219,7 @@ public class TUSFileUploadHandler extends FileUploadHandler {
 		return uppUri;
 	}
 	
-	private void checkVersion(VaadinRequest request, Response response)
+	static void checkVersion(Config config, VaadinRequest request)
 			throws Exception
 		{
 			String clientVersion = request.getHeader("tus-resumable");
@@ -196,7 +230,7 @@ public class TUSFileUploadHandler extends FileUploadHandler {
 			}
 		}
 	
-	private void addAccessHeaders(VaadinRequest request, Response response)
+	private static void addAccessHeaders(VaadinRequest request, Response response)
 	{
 		String origin = request.getHeader("Origin");
 		if (origin != null && origin.length() > 0)
@@ -204,34 +238,18 @@ public class TUSFileUploadHandler extends FileUploadHandler {
 			response.setHeader("Access-Control-Allow-Origin", origin);
 			if (request.getMethod().equals("OPTIONS"))
 			{
-				response.setHeader("Access-Control-Allow-Methods", 
-					"POST, GET, HEAD, PATCH, DELETE, OPTIONS");
-				response.setHeader("Access-Control-Allow-Headers", 
-						"Origin, " +
-						"X-Requested-With, " +
-						"Content-Type, " +
-						"Upload-Length, " +
-						"Upload-Offset, " +
-						"Tus-Resumable, " +
-						"Upload-Metadata");
-				response.setHeader("Access-Control-Max-Age", "86400");
+				response.setHeader("Access-Control-Allow-Methods", ALLOW_METHODS);
+				response.setHeader("Access-Control-Allow-Headers", ALLOW_HEADERS);
+				response.setHeader("Access-Control-Max-Age", MAX_AGE);
 
 			} else
 			{
-				response.setHeader("Access-Control-Expose-Headers", 
-						"Upload-Offset, " +
-						"Location, " +
-						"Upload-Length, " +
-						"Tus-Version, " +
-						"Tus-Resumable, " +
-						"Tus-Max-Size, " +
-						"Tus-Extension, " +
-						"Upload-Metadata");
+				response.setHeader("Access-Control-Expose-Headers", EXPOSE_HEADERS);
 			}
 		}
 	}
 	
-	private void send(VaadinRequest request, Response response)
+	static void send(Config config, VaadinRequest request, Response response)
 			throws IOException
 		{
 			response.setHeader("Tus-Resumable", config.tusApiVersionSupported);
@@ -245,8 +263,11 @@ public class TUSFileUploadHandler extends FileUploadHandler {
 			if (body.length() > 0)
 			{
 				body += "\n";
-				response.setHeader("Content-Type", "text/plain; charset=utf-8");
-				response.setHeader("Content-Length", Long.toString(body.length()));
+				if (response.getHeader("Content-Type") == null)
+				{
+					response.setHeader("Content-Type", "text/plain; charset=utf-8");
+				}
+				response.setHeader("Content-Length", Integer.toString(body.length()));
 			}
 			response.setText(body);
 			response.write();
@@ -0,0 +1,113 @@
+package com.asaoweb.vaadin.tusfileupload;
+
+import java.io.IOException;
+import java.security.Principal;
+import java.util.Enumeration;
+import java.util.Properties;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.asaoweb.vaadin.tusfileupload.exceptions.TusException;
+import com.asaoweb.vaadin.tusfileupload.handlers.RequestContext;
+import com.asaoweb.vaadin.tusfileupload.handlers.Response;
+import com.asaoweb.vaadin.tusfileupload.metrics.JfrEvents;
+import com.vaadin.server.StreamVariable;
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinServletRequest;
+import com.vaadin.server.VaadinServletResponse;
+
+/*
+tus endpoint independent of the Vaadin session, see
+TusMultiUpload.setUploadServlet. Upload URLs are <servlet>/<token>[/<id>],
+the token (see UploadTokens) standing for the uiId/connectorId/seckey of the
+Vaadin upload URLs: requests are authorized without locking any session, and
+the lifecycle events are delivered to the owning UI by UI.access.
+
+The init parameters are the configuration properties (see Config): the
+upload folder and the tokenSecret must be the ones of the components, which
+must run in the same JVM (see UploadTokens).
+*/
+public class TusUploadServlet extends HttpServlet {
+	private static final Logger log = LoggerFactory.getLogger(TusUploadServlet.class.getName());
+
+	protected Config config;
+	protected Composer composer;
+	protected UploadTokens tokens;
+
+	@Override
+	public void init() throws ServletException {
+		try {
+			Properties properties = new Properties();
+			Enumeration<String> names = getInitParameterNames();
+			while (names.hasMoreElements()) {
+				String name = names.nextElement();
+				properties.setProperty(name, getInitParameter(name));
+			}
+			config = properties.isEmpty() ? new Config() : new Config(properties);
+			composer = new Composer(config);
+			tokens = new UploadTokens(config);
+		} catch (Exception e) {
+			throw new ServletException(e);
+		}
+	}
+
+	@Override
+	protected void service(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+		Object event = JfrEvents.begin(JfrEvents.REQUEST);
+		// "/<token>" or "/<token>/<id>"
+		String path = req.getPathInfo() != null ? req.getPathInfo() : "";
+		int slash = path.indexOf('/', 1);
+		String token = path.length() > 1 ? path.substring(1, slash > 0 ? slash : path.length()) : "";
+		String id = null;
+		if (slash > 0) {
+			int end = path.indexOf('/', slash + 1);
+			id = path.substring(slash + 1, end > 0 ? end : path.length());
+			id = RequestContext.isWord(id) ? id : null;
+		}
+		UploadTokens.Token t = tokens.verify(token);
+		StreamVariable streamVariable = t != null ? UploadTokens.getStreamVariable(t.key) : null;
+		String username = t != null ? t.username : null;
+
+		VaadinRequest vaadinRequest = new VaadinServletRequest(req, null) {
+			@Override
+			public Principal getUserPrincipal() {
+				// the user the token was issued to
+				return username != null ? () -> username : null;
+			}
+		};
+		Response response = new Response(new VaadinServletResponse(resp, null));
+		try {
+			if (streamVariable == null && !req.getMethod().equals("OPTIONS")) {
+				log.info("Method {} not allowed: invalid or expired token", req.getMethod());
+				throw new TusException.NotFound();
+			}
+			TUSFileUploadHandler.checkVersion(config, vaadinRequest);
+			String endpoint = req.getContextPath() + req.getServletPath() + "/" + token;
+			TUSFileUploadHandler.dispatch(composer, vaadinRequest, response, streamVariable,
+					new RequestContext(req.getMethod(), endpoint, id));
+		} catch (TusException texc) {
+			response.setStatus(texc.getStatus()).setText(texc.getText());
+		} catch (Exception e) {
+			log.error("", e);
+			response.setStatus(500).setText((e.getMessage() == null) ?
+				"Server Error" : "Server Error: " + e.getMessage());
+		}
+		TUSFileUploadHandler.send(config, vaadinRequest, response);
+		JfrEvents.request(event, req.getMethod(), id, response.getStatus());
+	}
+
+	@Override
+	public void destroy() {
+		try {
+			composer.getDatastore().destroy();
+		} catch (Exception e) {
+			log.error("", e);
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package com.asaoweb.vaadin.tusfileupload;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vaadin.server.StreamVariable;
+
+/*
+Signed, expiring tokens authorizing the uploads of a TusMultiUpload on the
+standalone TusUploadServlet, which doesn't go through the Vaadin session.
+
+A component registers its stream variable under a random key, and gets a token
+made of that key, an expiry date and its user, signed by HMAC-SHA256. The
+token is the last segment of its endpoint URL.
+
+The registry of the stream variables is static: a token only works on the JVM
+(and class loader) its component registered in, the servlet and the
+components have to run there, behind a load balancer with sticky sessions.
+The secret is the "tokenSecret" configuration property, or a random one drawn
+at startup: sharing it doesn't make a token valid on another node.
+*/
+public class UploadTokens {
+	private static final Logger log = LoggerFactory.getLogger(UploadTokens.class.getName());
+
+	private static final SecureRandom random = new SecureRandom();
+	private static final byte[] DEFAULT_SECRET = new byte[32];
+	private static final ConcurrentHashMap<String, StreamVariable> endpoints = new ConcurrentHashMap<>();
+
+	protected static final String ALGORITHM = "HmacSHA256";
+
+	static {
+		random.nextBytes(DEFAULT_SECRET);
+	}
+
+	public static class Token {
+		public final String key;
+		public final String username;
+		public final long expiry;
+
+		Token(String key, String username, long expiry) {
+			this.key = key;
+			this.username = username;
+			this.expiry = expiry;
+		}
+	}
+
+	protected final byte[] secret;
+	protected final long ttl;
+
+	public UploadTokens(Config config) {
+		this.secret = config.tokenSecret != null ? config.tokenSecret.getBytes(StandardCharsets.UTF_8) : DEFAULT_SECRET;
+		this.ttl = config.tokenTtl;
+	}
+
+	/*
+	 * Registers the stream variable receiving the events of the uploads sent
+	 * with the tokens issued for the returned key.
+	 */
+	public static String register(StreamVariable streamVariable) {
+		byte[] bytes = new byte[16];
+		random.nextBytes(bytes);
+		String key = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+		endpoints.put(key, streamVariable);
+		return key;
+	}
+
+	public static void unregister(String key) {
+		if (key != null) {
+			endpoints.remove(key);
+		}
+	}
+
+	public static StreamVariable getStreamVariable(String key) {
+		return endpoints.get(key);
+	}
+
+	/*
+	 * Returns a token for the stream variable registered as key, valid for
+	 * tokenTtl milliseconds.
+	 */
+	public String issue(String key, String username) {
+		String payload = key + ":" + (System.currentTimeMillis() + ttl) + ":"
+				+ (username != null ? encode(username.getBytes(StandardCharsets.UTF_8)) : "");
+		return encode(payload.getBytes(StandardCharsets.UTF_8)) + "." + encode(sign(payload));
+	}
+
+	/*
+	 * Returns the content of token, or null if it is invalid or expired.
+	 */
+	public Token verify(String token) {
+		try {
+			int dot = token.indexOf('.');
+			if (dot < 0) {
+				return null;
+			}
+			String payload = new String(Base64.getUrlDecoder().decode(token.substring(0, dot)), StandardCharsets.UTF_8);
+			byte[] signature = Base64.getUrlDecoder().decode(token.substring(dot + 1));
+			if (!MessageDigest.isEqual(signature, sign(payload))) {
+				log.debug("Bad token signature");
+				return null;
+			}
+			String[] parts = payload.split(":", -1);
+			if (parts.length != 3 || Long.parseLong(parts[1]) < System.currentTimeMillis()) {
+				log.debug("Expired token");
+				return null;
+			}
+			String username = parts[2].isEmpty() ? null
+					: new String(Base64.getUrlDecoder().decode(parts[2]), StandardCharsets.UTF_8);
+			return new Token(parts[0], username, Long.parseLong(parts[1]));
+		} catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+			log.debug("Malformed token: {}", e.toString());
+			return null;
+		}
+	}
+
+	protected byte[] sign(String payload) {
+		try {
+			Mac mac = Mac.getInstance(ALGORITHM);
+			mac.init(new SecretKeySpec(secret, ALGORITHM));
+			return mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	protected static String encode(byte[] bytes) {
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+	}
+}
@@ -1,6 +1,5 @@
 package com.asaoweb.vaadin.tusfileupload.component;
 
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.reflect.Method;
 import java.nio.file.Path;
@@ -8,6 +7,7 @@ import java.text.DecimalFormat;
 import java.text.MessageFormat;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -18,21 +18,34 @@ import com.asaoweb.vaadin.tusfileupload.Composer;
 import com.asaoweb.vaadin.tusfileupload.Config;
 import com.asaoweb.vaadin.tusfileupload.FileInfo;
 import com.asaoweb.vaadin.tusfileupload.TUSFileUploadHandler;
+import com.asaoweb.vaadin.tusfileupload.TusUploadServlet;
+import com.asaoweb.vaadin.tusfileupload.UploadTokens;
 import com.asaoweb.vaadin.tusfileupload.data.Datastore;
+import com.asaoweb.vaadin.tusfileupload.data.UploadHandle;
 import com.asaoweb.vaadin.tusfileupload.events.Events.FailedEvent;
 import com.asaoweb.vaadin.tusfileupload.events.Events.FailedListener;
+import com.asaoweb.vaadin.tusfileupload.events.Events.FileQueuedBatchEvent;
+import com.asaoweb.vaadin.tusfileupload.events.Events.FileQueuedBatchListener;
 import com.asaoweb.vaadin.tusfileupload.events.Events.FileQueuedEvent;
 import com.asaoweb.vaadin.tusfileupload.events.Events.FileQueuedListener;
 import com.asaoweb.vaadin.tusfileupload.events.Events.FinishedEvent;
 import com.asaoweb.vaadin.tusfileupload.events.Events.FinishedListener;
+import com.asaoweb.vaadin.tusfileupload.events.Events.PreviewEvent;
+import com.asaoweb.vaadin.tusfileupload.events.Events.PreviewListener;
 import com.asaoweb.vaadin.tusfileupload.events.Events.ProgressEvent;
 import com.asaoweb.vaadin.tusfileupload.events.Events.ProgressListener;
 import com.asaoweb.vaadin.tusfileupload.events.Events.StartedEvent;
 import com.asaoweb.vaadin.tusfileupload.events.Events.StartedListener;
 import com.asaoweb.vaadin.tusfileupload.events.Events.SucceededEvent;
 import com.asaoweb.vaadin.tusfileupload.events.Events.SucceededListener;
+import com.asaoweb.vaadin.tusfileupload.events.Events.UploadListener;
+import com.asaoweb.vaadin.tusfileupload.events.UploadEventRouter;
+import com.asaoweb.vaadin.tusfileupload.events.StreamingEvents.TusBatchStreamVariable;
 import com.asaoweb.vaadin.tusfileupload.events.StreamingEvents.TusStreamingEvent;
 import com.asaoweb.vaadin.tusfileupload.exceptions.TusException.ConfigError;
+import com.asaoweb.vaadin.tusfileupload.metrics.JfrEvents;
+import com.asaoweb.vaadin.tusfileupload.pipeline.ProcessingListener;
+import com.asaoweb.vaadin.tusfileupload.pipeline.UploadPipeline;
 import com.asaoweb.vaadin.tusfileupload.shared.TusMultiuploadClientRpc;
 import com.asaoweb.vaadin.tusfileupload.shared.TusMultiuploadServerRpc;
 import com.asaoweb.vaadin.tusfileupload.shared.TusMultiuploadState;
@@ -40,10 +53,14 @@ import com.vaadin.annotations.JavaScript;
 import com.vaadin.server.RequestHandler;
 import com.vaadin.server.ServletPortletHelper;
 import com.vaadin.server.StreamVariable;
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinService;
 import com.vaadin.shared.Registration;
 import com.vaadin.ui.AbstractJavaScriptComponent;
 import com.vaadin.ui.Notification;
 import com.vaadin.ui.Notification.Type;
+import com.vaadin.ui.UI;
+import com.vaadin.ui.UIDetachedException;
 import com.vaadin.ui.Upload;
 
 import elemental.json.JsonArray;
@@ -54,13 +71,16 @@ import elemental.json.JsonObject;
 @JavaScript(value = {
 		//"//rawgit.com/Emmenemoi/tus-js-client/master/dist/tus.js",
 		"vaadin://addons/tusfileupload/tus.min.js",
+		"vaadin://addons/tusfileupload/tusmultiupload-xhr-hooks.js",
 		"vaadin://addons/tusfileupload/tusmultiupload-connector.js"})
 public class TusMultiUpload extends AbstractJavaScriptComponent {
 	  private final static Method SUCCEEDED_METHOD;
 	  private final static Method STARTED_METHOD;
 	  private final static Method QUEUED_METHOD;
+	  private final static Method QUEUED_BATCH_METHOD;
 	  private final static Method PROGRESS_METHOD;
 	  private final static Method FINISHED_METHOD;
+	  private final static Method PREVIEW_METHOD;
 	  private final static Method FAILED_METHOD;
 
 	  static {
@@ -73,10 +93,14 @@ public class TusMultiUpload extends AbstractJavaScriptComponent {
 	          "uploadStarted", StartedEvent.class);
 	      QUEUED_METHOD = FileQueuedListener.class.getMethod(
 		      "uploadFileQueued", FileQueuedEvent.class);
+	      QUEUED_BATCH_METHOD = FileQueuedBatchListener.class.getMethod(
+		      "uploadFilesQueued", FileQueuedBatchEvent.class);
 	      PROGRESS_METHOD = ProgressListener.class.getMethod(
 		      "uploadProgress", ProgressEvent.class);
 	      FINISHED_METHOD = FinishedListener.class.getMethod(
 	          "uploadFinished", FinishedEvent.class);
+	      PREVIEW_METHOD = PreviewListener.class.getMethod(
+	          "uploadPreview", PreviewEvent.class);
 	    }
 	    catch (NoSuchMethodException | SecurityException ex) {
 	      throw new RuntimeException("Unable to find listener event method.", ex);
@@ -85,6 +109,9 @@ public class TusMultiUpload extends AbstractJavaScriptComponent {
 	  
 	  private static final Logger logger = LoggerFactory.getLogger(TusMultiUpload.class.getName());
 
+	  // larger previews are ignored (base64 characters)
+	  protected static final int MAX_PREVIEW_LENGTH = 128 * 1024;
+
 	 /**
 	   * The list of native progress listeners to be notified during the upload.
 	   */
@@ -96,6 +123,17 @@ public class TusMultiUpload extends AbstractJavaScriptComponent {
 	   */
 	  protected Datastore 	receiverDataStore;
 	  protected Config		receiverConfig;
+
+	  /**
+	   * The optional pipeline processing completed uploads before the succeeded
+	   * event is fired.
+	   */
+	  protected UploadPipeline uploadPipeline;
+
+	  /**
+	   * Routes the events of an upload to the listeners of that upload only.
+	   */
+	  protected final UploadEventRouter uploadEventRouter = new UploadEventRouter();
 	  
 	  private final TusMultiuploadServerRpc serverRpc = new ServerRpcImpl();
 	  private final TusMultiuploadClientRpc clientRpc;
@@ -103,6 +141,20 @@ public class TusMultiUpload extends AbstractJavaScriptComponent {
 	  private StreamVariable streamVariable;
 	  private String currentQueuedFileId = "";
 	  private boolean hasUploadInProgress = false;
+	  // the user the resumable uploads were offered to
+	  private String resumeOwner;
+	  // the key of the queue persisted by the browser, see setPersistentQueue
+	  private String persistentQueueKey;
+	  // the uploads of the persisted queue which may be resumed, see reconcileUpload
+	  private final Set<String> restoredUploads = Collections.synchronizedSet(new HashSet<>());
+	  // the URL of the TusUploadServlet receiving the uploads, or null for the Vaadin servlet
+	  private String uploadServletUrl;
+	  // the key of the stream variable for the TusUploadServlet, see UploadTokens
+	  private String uploadTokenKey;
+	  // when the token of the endpoint expires, see refreshUploadToken
+	  private long uploadTokenExpiry;
+	  // upload id -> queue id of the uploads created ahead and not sent yet, see releasePrecreated
+	  private final Map<String, String> precreated = new ConcurrentHashMap<>();
 
 	  protected Set<String> queue = Collections.synchronizedSet(new HashSet<>());
 	  
@@ -132,6 +184,7 @@ public class TusMultiUpload extends AbstractJavaScriptComponent {
 	    	receiverConfig = new Config();
 	    }
 	    setReceiverDatastore(receiverConfig);
+	    setDeduplicate(receiverConfig.deduplicate);
 	    setButtonCaption(buttonCaption);
 		this.addStyleName("tusmultiupload");
 	  }
@@ -152,8 +205,11 @@ public class TusMultiUpload extends AbstractJavaScriptComponent {
 	    url = url.replace(ServletPortletHelper.UPLOAD_URL_PREFIX,
 	    		TUSFileUploadHandler.UPLOAD_URL_PREFIX);
 
-	    getState().endpoint = url;
+	    getState().tokenRefreshInterval = 0L;
+	    getState().endpoint = uploadServletUrl != null ? issueUploadServletEndpoint() : url;
 	    getState().rebuild = true;
+	    refreshResumableUploads();
+	    refreshPersistentQueue();
 
 	    try {
 		    setMaxFileSize( receiverConfig.getLongValue("maxFileSize") );
@@ -163,8 +219,158 @@ public class TusMultiUpload extends AbstractJavaScriptComponent {
 		}
 	  }
 
+	  /**
+	   * Offers the partial uploads of the current user, left by a previous session
+	   * (expired, or lost by a reload), to be resumed: when the user selects the
+	   * same file again, only its missing bytes are sent. Called on attach; only
+	   * authenticated users can resume their uploads this way.
+	   */
+	  public void refreshResumableUploads() {
+		  VaadinRequest request = VaadinService.getCurrentRequest();
+		  String username = request != null ? TUSFileUploadHandler.getAuthenticatedUser(request) : null;
+		  Map<String, String> uploads = new HashMap<>();
+		  if (username != null && getState(false).resume && getReceiverDataStore() != null) {
+			  try {
+				  uploads = getReceiverDataStore().getResumableUploads(username);
+			  } catch (Exception e) {
+				  logger.warn("Unable to list the resumable uploads of {}", username, e);
+			  }
+		  }
+		  resumeOwner = username;
+		  getState().resumableUploads = uploads;
+	  }
+
+	  /**
+	   * Persists the queue of the browser in IndexedDB under key, so that it
+	   * survives a reload or a crash of the page: the next time a component with
+	   * the same key is attached for the same user, the files still waiting are
+	   * queued again (in a single {@link FileQueuedBatchEvent}), the
+	   * partial uploads resume from their offset and the completed ones are
+	   * skipped, see {@link #reconcileUpload(String)}. The browser keeps the
+	   * selected files themselves where it can store them; the others have to
+	   * be selected again, then resume like the uploads of a previous session.
+	   *
+	   * @param key identifies the queue among the components of the application, e.g. "attachments-" + the id of the edited entity; null to keep the queue in page memory only (default)
+	   */
+	  public void setPersistentQueue(String key) {
+		  this.persistentQueueKey = key;
+		  if (isAttached()) {
+			  refreshPersistentQueue();
+		  }
+	  }
+
+	  public String getPersistentQueue() {
+		  return persistentQueueKey;
+	  }
+
+	  /*
+	   * The queues of the users sharing a browser are kept apart.
+	   */
+	  private void refreshPersistentQueue() {
+		  if (persistentQueueKey == null) {
+			  getState().persistentQueue = null;
+			  return;
+		  }
+		  VaadinRequest request = VaadinService.getCurrentRequest();
+		  String username = request != null ? TUSFileUploadHandler.getAuthenticatedUser(request) : null;
+		  getState().persistentQueue = persistentQueueKey + "@" + (username != null ? username : "");
+	  }
+
+	  /**
+	   * Decides what becomes of an entry of the persisted queue, uploadId being
+	   * the upload created for it before the page was reloaded, if any.
+	   *
+	   * @return uploadId to resume it from its offset, "" to upload the file from scratch, null to skip it: the upload was completed, or is gone (completed and handed off, or terminated), and is never uploaded twice
+	   */
+	  protected String reconcileUpload(String uploadId) {
+		  if (uploadId == null || uploadId.isEmpty()) {
+			  return "";
+		  }
+		  if (!uploadId.matches("\\w+")) {
+			  return null;
+		  }
+		  VaadinRequest request = VaadinService.getCurrentRequest();
+		  String username = request != null ? TUSFileUploadHandler.getAuthenticatedUser(request) : null;
+		  FileInfo fi;
+		  try {
+			  fi = getReceiverDataStore().getFileInfo(uploadId);
+		  } catch (Exception e) {
+			  logger.warn("Unable to reconcile the persisted upload {}", uploadId, e);
+			  return "";
+		  }
+		  if (fi == null) {
+			  return null;
+		  }
+		  if (fi.username == null ? username != null : !fi.username.equals(username)) {
+			  return "";
+		  }
+		  if (fi.entityLength >= 0 && fi.offset >= fi.entityLength) {
+			  return null;
+		  }
+		  restoredUploads.add(uploadId);
+		  return uploadId;
+	  }
+
+	  /**
+	   * Sends the uploads to a {@link TusUploadServlet} instead of the Vaadin
+	   * servlet, so that they don't lock the session: the uploads of the tabs of
+	   * a user aren't serialized, and don't compete with the UI traffic. They are
+	   * authorized by a signed token issued on attach, valid for the "tokenTtl"
+	   * configuration property and renewed by the connector while the UI is
+	   * open; the events are delivered to the UI asynchronously. The servlet
+	   * must use the same configuration as this component (upload folder and
+	   * "tokenSecret"), and run in the same JVM: see {@link UploadTokens}.
+	   *
+	   * @param uploadServletUrl the URL the servlet is mapped at, e.g. the context path followed by "/tus" for a servlet mapped at "/tus/*"; null for the Vaadin servlet
+	   */
+	  public void setUploadServlet(String uploadServletUrl) {
+		  this.uploadServletUrl = uploadServletUrl != null && uploadServletUrl.endsWith("/")
+				  ? uploadServletUrl.substring(0, uploadServletUrl.length() - 1) : uploadServletUrl;
+		  if (isAttached() && this.uploadServletUrl != null) {
+			  UploadTokens.unregister(uploadTokenKey);
+			  uploadTokenKey = null;
+			  getState().endpoint = issueUploadServletEndpoint();
+			  getState().rebuild = true;
+		  }
+	  }
+
+	  /*
+	   * The uploads bypass the session: they are authorized by a signed token
+	   * instead of the seckey of the stream variable. A new token keeps the key
+	   * of the stream variable, so that the uploads in progress go on with it.
+	   */
+	  private String issueUploadServletEndpoint() {
+		  if (uploadTokenKey == null) {
+			  uploadTokenKey = UploadTokens.register(getStreamVariable());
+		  }
+		  VaadinRequest request = VaadinService.getCurrentRequest();
+		  uploadTokenExpiry = System.currentTimeMillis() + receiverConfig.tokenTtl;
+		  // asked a quarter of the validity apart, renewed once half of it passed
+		  getState().tokenRefreshInterval = receiverConfig.tokenTtl / 4;
+		  return uploadServletUrl + "/" + new UploadTokens(receiverConfig).issue(uploadTokenKey,
+				  request != null ? TUSFileUploadHandler.getAuthenticatedUser(request) : null);
+	  }
+
+	  /*
+	   * Renews the token of the endpoint once half of its validity passed, on the
+	   * RPCs of the connector: its timer asks for it while the UI is open, so
+	   * that an idle UI or a long upload never gets a token expired.
+	   */
+	  private void refreshUploadToken() {
+		  if (uploadServletUrl != null && uploadTokenKey != null
+				  && System.currentTimeMillis() > uploadTokenExpiry - receiverConfig.tokenTtl / 2) {
+			  getState().endpoint = issueUploadServletEndpoint();
+		  }
+	  }
+
+	  public String getUploadServlet() {
+		  return uploadServletUrl;
+	  }
+
 	  @Override
 	  public void detach() {
+		UploadTokens.unregister(uploadTokenKey);
+		uploadTokenKey = null;
 	  	try {
 			// Cleanup our stream variable.
 			getUI().getConnectorTracker().cleanStreamVariable(getConnectorId(), "tusmultiupload");
@@ -223,6 +429,7 @@ public class TusMultiUpload extends AbstractJavaScriptComponent {
 	   */
 	  protected void fireFailed(FailedEvent evt) {
 	    fireEvent(evt);
+	    uploadEventRouter.route(evt);
 	  }
 	  
 	  /**
@@ -232,6 +439,25 @@ public class TusMultiUpload extends AbstractJavaScriptComponent {
 	   */
 	  protected void fireUploadSuccess(SucceededEvent evt) {
 	    fireEvent(evt);
+	    uploadEventRouter.route(evt);
+	  }
+
+	  /**
+	   * Fires the upload success event for a reference counted upload, then gives
+	   * the dispatcher's reference back: the upload is terminated once the
+	   * listeners that retained it release it.
+	   *
+	   * @param fileInfo the completed upload
+	   * @param handle the handle of the upload, whose reference is consumed
+	   */
+	  protected void fireUploadSuccess(FileInfo fileInfo, UploadHandle handle) {
+		  SucceededEvent evt = new SucceededEvent(this, fileInfo, handle);
+		  try {
+			  fireUploadSuccess(evt);
+		  } finally {
+			  evt.dispose();
+			  handle.release();
+		  }
 	  }
 
 	  /**
@@ -242,6 +468,15 @@ public class TusMultiUpload extends AbstractJavaScriptComponent {
 	  protected void fireQueued(FileQueuedEvent evt) {
 	    fireEvent(evt);
 	  }
+
+	  /**
+	   * Fires the files queued together event to all registered listeners.
+	   *
+	   * @param evt the event details
+	   */
+	  protected void fireQueued(FileQueuedBatchEvent evt) {
+	    fireEvent(evt);
+	  }
 	  
 	  /**
 	   * Fires the legacy progress event to all registered listeners.
@@ -267,6 +502,7 @@ public class TusMultiUpload extends AbstractJavaScriptComponent {
 	   */
 	  protected void fireUpdateProgress(ProgressEvent evt) {
 	    fireEvent(evt);
+	    uploadEventRouter.route(evt);
 	  }
 	  
 	  /**
@@ -288,15 +524,40 @@ public class TusMultiUpload extends AbstractJavaScriptComponent {
 	  }
 	  
 	  /**
-	   * Adds the given listener for upload queued events.
+	   * Adds the given listener for upload queued events. Only the files queued
+	   * one at a time fire this event, the files queued together (dropped or
+	   * selected at once, restored from a persisted queue) only fire a
+	   * {@link FileQueuedBatchEvent}, see
+	   * {@link #addFileQueuedBatchListener(FileQueuedBatchListener)}.
 	   *
 	   * @param listener the listener to add
 	   */
 	  public Registration addFileQueuedListener(FileQueuedListener listener) {
 	    return addListener(FileQueuedEvent.class, listener, QUEUED_METHOD);
 	  }
+
+	  /**
+	   * Adds the given listener for the files queued together, preferred to
+	   * {@link #addFileQueuedListener(FileQueuedListener)} to update a view once
+	   * when thousands of files are dropped. Every queued file is reported to
+	   * this listener, the files queued one at a time in a batch of one.
+	   *
+	   * @param listener the listener to add
+	   */
+	  public Registration addFileQueuedBatchListener(FileQueuedBatchListener listener) {
+	    return addListener(FileQueuedBatchEvent.class, listener, QUEUED_BATCH_METHOD);
+	  }
 	  
 
+	  /**
+	   * Adds the given listener for the previews of the queued files.
+	   *
+	   * @param listener the listener to add
+	   */
+	  public Registration addPreviewListener(PreviewListener listener) {
+	    return addListener(PreviewEvent.class, listener, PREVIEW_METHOD);
+	  }
+
 	  /**
 	   * Adds the given legacy listener for native upload progress events.
 	   *
@@ -333,6 +594,19 @@ public class TusMultiUpload extends AbstractJavaScriptComponent {
 	    return addListener(SucceededEvent.class, listener, SUCCEEDED_METHOD);
 	  }
 	  
+	  /**
+	   * Adds a listener for the started, progress, succeeded and failed events of
+	   * a single upload. Unlike the other listeners, it is only called for the
+	   * events of that upload, after the listeners of all uploads, and is removed
+	   * once the upload succeeded or failed.
+	   *
+	   * @param queueId the queue id (or the upload id) of the upload
+	   * @param listener the listener to add
+	   */
+	  public Registration addUploadListener(String queueId, UploadListener listener) {
+	    return uploadEventRouter.register(queueId, listener);
+	  }
+
 	  /**
 	   * Fires the upload started event to all registered listeners.
 	   *
@@ -340,6 +614,7 @@ public class TusMultiUpload extends AbstractJavaScriptComponent {
 	   */
 	  protected void fireStarted(StartedEvent evt) {
 	    fireEvent(evt);
+	    uploadEventRouter.route(evt);
 	  }
 	  
 	  /**
@@ -374,6 +649,70 @@ public class TusMultiUpload extends AbstractJavaScriptComponent {
 		  this.receiverDataStore = receiverDataStore;
 	  }
 	  
+	  /**
+	   * Returns the pipeline processing completed uploads, or null if none.
+	   *
+	   * @return the upload pipeline
+	   */
+	  public UploadPipeline getUploadPipeline() {
+		  return uploadPipeline;
+	  }
+
+	  /**
+	   * Sets the pipeline processing completed uploads off the UI thread. When set,
+	   * the succeeded (or failed) event is fired only once every stage has run,
+	   * and a succeeded upload is terminated after the listeners. A failed upload
+	   * is kept in the datastore for the failed listeners to handle. The processing
+	   * happens even if the UI is closed in the meantime. The same pipeline is
+	   * expected to be shared by all the uploaders of the application.
+	   *
+	   * @param uploadPipeline the pipeline, or null to fire the succeeded event as soon as the upload completes
+	   */
+	  public void setUploadPipeline(UploadPipeline uploadPipeline) {
+		  this.uploadPipeline = uploadPipeline;
+	  }
+
+	  /**
+	   * Fires the outcome of the processing of an upload by the pipeline, in the UI
+	   * the upload was sent from when it is still open. If that UI is detached,
+	   * the upload goes to the default listener of the pipeline, or stays in the
+	   * datastore without one: it is never terminated here.
+	   *
+	   * @param ui the UI the upload was sent from, may be null
+	   * @param fileInfo the processed upload
+	   * @param failure the processing failure or null
+	   */
+	  protected void fireProcessed(UI ui, FileInfo fileInfo, Exception failure) {
+		  Datastore dataStore = getReceiverDataStore();
+		  Runnable notify = () -> {
+			  if (failure == null) {
+				  fireUploadSuccess(fileInfo, new UploadHandle(dataStore, fileInfo));
+			  } else {
+				  fireFailed(new FailedEvent(TusMultiUpload.this, fileInfo, failure));
+			  }
+		  };
+		  if (ui == null || ui.isClosing()) {
+			  notify.run();
+			  return;
+		  }
+		  try {
+			  if (ui.getSession() == null) {
+				  // isClosing() is false on a detached UI
+				  throw new UIDetachedException();
+			  }
+			  ui.access(notify);
+		  } catch (UIDetachedException e) {
+			  // the session expired while processing: the application gets the upload
+			  ProcessingListener fallback = uploadPipeline != null ? uploadPipeline.getDefaultListener() : null;
+			  if (fallback != null) {
+				  logger.info("UI detached before the processing of {} ended, handing it to the default listener", fileInfo);
+				  fallback.processingFinished(fileInfo, failure);
+			  } else {
+				  logger.warn("UI detached before the processing of {} ended, upload kept in the datastore", fileInfo);
+			  }
+		  }
+	  }
+
 	  @Override
 	  protected TusMultiuploadState getState() {
 	    return (TusMultiuploadState) super.getState();
@@ -447,6 +786,34 @@ public class TusMultiUpload extends AbstractJavaScriptComponent {
 		  getState().clientSideProgress = value;
 	  }
 	  
+	  /**
+	   * Renders the progress of the uploads in the browser only: the connector
+	   * updates the progress bar, percentage, speed and remaining time in the
+	   * element whose id is {@link #getProgressElementId(String)}, and the server
+	   * only receives the start, success and failure of each upload. No progress
+	   * event is fired in this mode.
+	   *
+	   * @param value true to render the progress client side
+	   */
+	  public void setClientRenderedProgress(boolean value) {
+		  getState().clientRenderedProgress = value;
+	  }
+
+	  public boolean isClientRenderedProgress() {
+		  return getState(false).clientRenderedProgress;
+	  }
+
+	  /**
+	   * Returns the DOM id of the element the connector renders the progress of
+	   * the given queued file in, see {@link #setClientRenderedProgress(boolean)}.
+	   *
+	   * @param queueId the queue id of the file
+	   * @return the element id
+	   */
+	  public String getProgressElementId(String queueId) {
+		  return "tusprogress-" + getConnectorId() + "-" + queueId;
+	  }
+
 	  /**
 	   * a number indicating the maximum size of a chunk uploaded 
 	   * in a single request. Note that if the server has hard limits 
@@ -463,6 +830,23 @@ public class TusMultiUpload extends AbstractJavaScriptComponent {
 	  public long getChunkSize() {
 		  return getState().chunkSize;
 	  }
+
+	  /**
+	   * Resizes the chunks of the uploads as recommended by the server from the
+	   * throughput and the failure rate of the client (see the "chunkTargetDuration"
+	   * configuration property), within its maxRequest limit. The chunk size is
+	   * then only used until the first recommendation. Has no effect when the
+	   * chunk size is 0 (no limit).
+	   *
+	   * @param adaptiveChunkSize true (the default) to follow the server recommendations
+	   */
+	  public void setAdaptiveChunkSize(boolean adaptiveChunkSize) {
+		  getState().adaptiveChunkSize = adaptiveChunkSize;
+	  }
+
+	  public boolean isAdaptiveChunkSize() {
+		  return getState(false).adaptiveChunkSize;
+	  }
 	  
 	  /**
 	   * withCredentials = false: a boolean which is be used as the value 
@@ -509,11 +893,243 @@ public class TusMultiUpload extends AbstractJavaScriptComponent {
 	  public boolean isMultiple() {
 		  return getState().multiple;
 	  }
+
+	  /**
+	   * Queues the files and the content of the folders dropped on the button,
+	   * in browsers supporting webkitGetAsEntry (all the current ones).
+	   *
+	   * @param dropEnabled true to accept drops, false by default
+	   */
+	  public void setDropEnabled(boolean dropEnabled) {
+		  getState().dropEnabled = dropEnabled;
+		  getState().rebuild = true;
+	  }
+
+	  public boolean isDropEnabled() {
+		  return getState(false).dropEnabled;
+	  }
 	  
 	  public void setClientSideDebug(boolean clientSideDebug) {
 		  getState().debug = clientSideDebug;
 	  }
 	  
+	  /**
+	   * Sets the minimal interval between two client side progress reports. The
+	   * progress of all the active uploads is sent in a single batch, and the
+	   * interval is stretched when the server is slow to answer.
+	   *
+	   * @param progressIntervalMs the interval in milliseconds
+	   */
+	  public void setProgressInterval(int progressIntervalMs) {
+		  getState().progressIntervalMs = progressIntervalMs;
+	  }
+
+	  public int getProgressInterval() {
+		  return getState(false).progressIntervalMs;
+	  }
+
+	  /**
+	   * Sets the fraction of the file size an upload must have moved by since its
+	   * last client side progress report to be reported again.
+	   *
+	   * @param progressMinDelta between 0 (report every move) and 1
+	   */
+	  public void setProgressMinDelta(double progressMinDelta) {
+		  getState().progressMinDelta = progressMinDelta;
+	  }
+
+	  public double getProgressMinDelta() {
+		  return getState(false).progressMinDelta;
+	  }
+
+	  /**
+	   * Compresses the chunks in the browser before sending them, which the
+	   * server inflates while writing them. Files whose type is already
+	   * compressed (images, videos, archives...) are sent as is, as well as all
+	   * the chunks of a file whose first chunk didn't shrink. Browsers without
+	   * CompressionStream send the chunks as is.
+	   *
+	   * @param compressChunks true to compress the chunks
+	   */
+	  public void setCompressChunks(boolean compressChunks) {
+		  getState().compressChunks = compressChunks;
+	  }
+
+	  public boolean isCompressChunks() {
+		  return getState(false).compressChunks;
+	  }
+
+	  /**
+	   * @param compressionFormat "gzip" (default) or "deflate"
+	   */
+	  public void setCompressionFormat(String compressionFormat) {
+		  if (!"gzip".equals(compressionFormat) && !"deflate".equals(compressionFormat)) {
+			  throw new IllegalArgumentException("Unsupported compression format " + compressionFormat);
+		  }
+		  getState().compressionFormat = compressionFormat;
+	  }
+
+	  public String getCompressionFormat() {
+		  return getState(false).compressionFormat;
+	  }
+
+	  /**
+	   * Hashes the files in the browser (in a Web Worker) before uploading them,
+	   * so that files whose content the user already uploaded complete without
+	   * being sent. Requires the "deduplicate" configuration property, and an
+	   * authenticated user: the content is only shared between the uploads of a
+	   * same user.
+	   *
+	   * @param deduplicate true to deduplicate the uploads
+	   */
+	  public void setDeduplicate(boolean deduplicate) {
+		  getState().deduplicate = deduplicate;
+	  }
+
+	  public boolean isDeduplicate() {
+		  return getState(false).deduplicate;
+	  }
+
+	  /**
+	   * Runs the uploads in a Web Worker: the files are sliced, compressed (see
+	   * compressChunks) and sent off the UI thread, which only gets the progress
+	   * and the outcome of each upload. Falls back to the UI thread when the
+	   * browser can't start the worker. The worker has no localStorage: the
+	   * uploads are resumed by the server offered resumable uploads and the
+	   * persisted queue only, not by the tus "resume" option.
+	   *
+	   * @param uploadInWorker true to upload in a worker
+	   */
+	  public void setUploadInWorker(boolean uploadInWorker) {
+		  getState().uploadInWorker = uploadInWorker;
+	  }
+
+	  public boolean isUploadInWorker() {
+		  return getState(false).uploadInWorker;
+	  }
+
+	  /**
+	   * Creates the uploads of the next queued files in one request (see
+	   * BatchPostHandler) while a file is sent, so that each file starts with
+	   * its first chunk instead of a creation request when its turn comes.
+	   * Files hashed, resized, sent as a delta or resumed first create their
+	   * upload in turn. The uploads created for files removed from the queue
+	   * are deleted.
+	   *
+	   * @param precreateUploads how many of the next queued files to create ahead, 0 for none (default)
+	   */
+	  public void setPrecreateUploads(int precreateUploads) {
+		  getState().precreateUploads = precreateUploads;
+	  }
+
+	  public int getPrecreateUploads() {
+		  return getState(false).precreateUploads;
+	  }
+
+	  /**
+	   * Renders a preview of the images and videos (a frame about one second
+	   * in) in the browser when they are queued, sent to the server ahead of
+	   * the file in a {@link PreviewEvent}. The layouts give them to their
+	   * {@link com.asaoweb.vaadin.tusfileupload.data.AsyncThumbProvider} which
+	   * shows them right away and keeps them as the thumbnail of the upload.
+	   * The previews are rendered one at a time, in queue order, in a worker.
+	   *
+	   * @param previewSize the maximal width and height of the previews, 0 for none (default)
+	   */
+	  public void setPreviewSize(int previewSize) {
+		  getState().previewSize = previewSize;
+	  }
+
+	  public int getPreviewSize() {
+		  return getState(false).previewSize;
+	  }
+
+	  /**
+	   * Downscales the images larger than imageMaxSize x imageMaxSize pixels in the
+	   * browser, before uploading them. The image is decoded, resized and
+	   * encoded again in a worker; it is uploaded as is when the browser can't
+	   * (no OffscreenCanvas, undecodable type) or when the result isn't smaller.
+	   * The name and type of the file are kept in the upload metadata, with its
+	   * original length in "originalLength"; its EXIF metadata are lost.
+	   * Animated GIFs are never resized. Resized images can't be resumed by a
+	   * later session.
+	   *
+	   * @param imageMaxSize the maximal width and height of the images, 0 to upload them as is (default)
+	   */
+	  public void setImageMaxSize(int imageMaxSize) {
+		  getState().imageMaxSize = imageMaxSize;
+	  }
+
+	  public int getImageMaxSize() {
+		  return getState(false).imageMaxSize;
+	  }
+
+	  /**
+	   * @param imageFormat the type the resized images are encoded to: "image/jpeg", "image/png", "image/webp" or null to keep their type (default)
+	   */
+	  public void setImageFormat(String imageFormat) {
+		  if (imageFormat != null && !imageFormat.matches("image/(jpeg|png|webp)")) {
+			  throw new IllegalArgumentException("Unsupported image format " + imageFormat);
+		  }
+		  getState().imageFormat = imageFormat;
+	  }
+
+	  public String getImageFormat() {
+		  return getState(false).imageFormat;
+	  }
+
+	  /**
+	   * @param imageQuality the quality of the resized JPEG and WebP images, between 0 and 1 (0.85 by default)
+	   */
+	  public void setImageQuality(double imageQuality) {
+		  if (imageQuality <= 0 || imageQuality > 1) {
+			  throw new IllegalArgumentException("Image quality must be in ]0, 1]: " + imageQuality);
+		  }
+		  getState().imageQuality = imageQuality;
+	  }
+
+	  public double getImageQuality() {
+		  return getState(false).imageQuality;
+	  }
+
+	  /**
+	   * Uploads the next files named fileName as new versions of the completed
+	   * upload baseId: the browser only sends the blocks which changed, the others
+	   * are copied from the previous version. The resulting upload is completed
+	   * like any other. Falls back to a full upload if the browser doesn't support
+	   * it or if the previous version isn't available anymore.
+	   *
+	   * @param fileName the name of the file, as selected by the user
+	   * @param baseId the id of a completed upload of the same user, see {@link #addDeltaBase(String, Path)}
+	   */
+	  public void setDeltaBase(String fileName, String baseId) {
+		  getState().deltaBases.put(fileName, baseId);
+	  }
+
+	  /**
+	   * Registers previousVersion, the stored version of fileName, as the base of
+	   * the delta uploads of its next versions (see {@link #setDeltaBase(String, String)}).
+	   * The returned id has to be terminated once no longer needed, which leaves
+	   * previousVersion in place. Delta uploads need an authenticated user: the
+	   * bases of anonymous users are refused.
+	   *
+	   * @param fileName the name of the file, as selected by the user
+	   * @param previousVersion the previous version of the file
+	   * @return the id of the delta base in the receiver datastore
+	   * @throws Exception if previousVersion can't be registered
+	   */
+	  public String addDeltaBase(String fileName, Path previousVersion) throws Exception {
+		  VaadinRequest request = VaadinService.getCurrentRequest();
+		  String baseId = getReceiverDataStore().addDeltaBase(previousVersion,
+				  request != null ? TUSFileUploadHandler.getAuthenticatedUser(request) : null);
+		  setDeltaBase(fileName, baseId);
+		  return baseId;
+	  }
+
+	  public void removeDeltaBase(String fileName) {
+		  getState().deltaBases.remove(fileName);
+	  }
+
 	  public void setRetryOnNetworkLoss(boolean retryOnNetworkLoss) {
 		  getState().retryOnNetworkLoss = retryOnNetworkLoss;
 	  }
@@ -521,6 +1137,7 @@ public class TusMultiUpload extends AbstractJavaScriptComponent {
 	  public void abortAll() {
 		  clientRpc.abortAllUploads();
 		  queue.clear();
+		  releasePrecreated(null);
 	  }
 	  
 	  public void removeFromQueue(String queueId) {
@@ -531,6 +1148,39 @@ public class TusMultiUpload extends AbstractJavaScriptComponent {
 				  clientRpc.removeFromQueue(queueId);
 			  }
 			  queue.remove(queueId);
+			  releasePrecreated(queueId);
+		  }
+	  }
+
+	  /**
+	   * Terminates the uploads created ahead (see {@link #setPrecreateUploads(int)})
+	   * for the cancelled files, which releases the storage they reserved. The browser deletes them as
+	   * well, but can't when the termination extension is disabled or when the
+	   * page is gone. An upload whose first PATCH came in the meantime is kept.
+	   *
+	   * @param queueId the queue id of the cancelled file, null for all of them
+	   */
+	  protected void releasePrecreated(String queueId) {
+		  Datastore dataStore = getReceiverDataStore();
+		  Iterator<Map.Entry<String, String>> it = precreated.entrySet().iterator();
+		  while (it.hasNext()) {
+			  Map.Entry<String, String> entry = it.next();
+			  if (queueId != null && !queueId.equals(entry.getValue())) {
+				  continue;
+			  }
+			  it.remove();
+			  if (dataStore == null) {
+				  continue;
+			  }
+			  try {
+				  FileInfo fi = dataStore.getFileInfo(entry.getKey());
+				  if (fi != null && fi.deferredStart) {
+					  logger.debug("Terminating the upload {} created ahead for {}", fi.id, entry.getValue());
+					  dataStore.terminate(fi.id);
+				  }
+			  } catch (Exception e) {
+				  logger.warn("Unable to terminate the upload {} created ahead", entry.getKey(), e);
+			  }
 		  }
 	  }
 	  
@@ -584,6 +1234,27 @@ public class TusMultiUpload extends AbstractJavaScriptComponent {
 
 		@Override
 		public void onQueuedFile(String queueId, String name, String contentType, long contentLength) {
+			FileInfo fi = queued(queueId, name, contentType, contentLength);
+			fireQueued(new FileQueuedEvent(TusMultiUpload.this, fi));
+			fireQueued(new FileQueuedBatchEvent(TusMultiUpload.this, Collections.singletonList(fi)));
+		}
+
+		@Override
+		public void onQueuedFiles(String[] queueIds, String[] names, String[] contentTypes, long[] contentLengths) {
+			try {
+				List<FileInfo> fis = new ArrayList<>(queueIds.length);
+				for (int i = 0; i < queueIds.length; i++) {
+					fis.add(queued(queueIds[i], names[i], contentTypes[i], contentLengths[i]));
+				}
+				logger.debug("onQueuedFiles(ui) for {} files", fis.size());
+				fireQueued(new FileQueuedBatchEvent(TusMultiUpload.this, fis));
+			} finally {
+				// lets the client send the next batch
+				clientRpc.queuedFilesAck();
+			}
+		}
+
+		private FileInfo queued(String queueId, String name, String contentType, long contentLength) {
 			FileInfo fi = new FileInfo();
 			fi.queueId = queueId;
 			fi.suggestedFilename = name;
@@ -591,7 +1262,7 @@ public class TusMultiUpload extends AbstractJavaScriptComponent {
 			fi.entityLength = contentLength;
 			queue.add(queueId);
 			logger.debug("onQueuedFile(ui) for file info {}", fi);
-			fireQueued(new FileQueuedEvent(TusMultiUpload.this, fi));				
+			return fi;
 		}
 
 		@Override
@@ -629,12 +1300,97 @@ public class TusMultiUpload extends AbstractJavaScriptComponent {
 			fireUpdateProgress(new ProgressEvent(TusMultiUpload.this, fi));				
 		}
 
+		@Override
+		public void onProgressBatch(String[] queueIds, long[] uploadedBytes, long[] totalBytes) {
+			try {
+				for (int i = 0; i < queueIds.length; i++) {
+					if (!queue.contains(queueIds[i])) {
+						// removed in the meantime
+						continue;
+					}
+					onProgress(queueIds[i], null, uploadedBytes[i], totalBytes[i]);
+				}
+			} finally {
+				// lets the client measure the round trip time and send the next batch
+				clientRpc.progressAck();
+			}
+		}
+
 		@Override
 		public void setNextQueuedFileIdAndStart(String queueId) {
 			currentQueuedFileId = queueId;
+			refreshUploadToken();
 			clientRpc.submitUpload();
 		}
 
+		@Override
+		public void refreshEndpoint() {
+			refreshUploadToken();
+		}
+
+		@Override
+		public void onPreview(String queueId, String image) {
+			if (!queue.contains(queueId) || image == null || image.length() > MAX_PREVIEW_LENGTH) {
+				return;
+			}
+			FileInfo fi = new FileInfo();
+			fi.queueId = queueId;
+			try {
+				fireEvent(new PreviewEvent(TusMultiUpload.this, fi, Base64.getDecoder().decode(image)));
+			} catch (IllegalArgumentException e) {
+				logger.debug("onPreview: invalid preview for {}", queueId);
+			}
+		}
+
+		@Override
+		public void onUploadResumed(String queueId, String uploadId) {
+			// only the uploads offered to this user or restored from the persisted queue, once each
+			boolean restored = restoredUploads.remove(uploadId);
+			if (!restored && (resumeOwner == null || !getState(false).resumableUploads.containsValue(uploadId))) {
+				logger.warn("onUploadResumed: {} wasn't offered to be resumed", uploadId);
+				return;
+			}
+			if (!restored) {
+				getState().resumableUploads.values().remove(uploadId);
+			}
+			try {
+				FileInfo fi = getReceiverDataStore().getFileInfo(uploadId);
+				if (fi == null || (!restored && !resumeOwner.equals(fi.username))) {
+					return;
+				}
+				fi.queueId = queueId;
+				logger.debug("onUploadResumed(ui) for file info {}", fi);
+				hasUploadInProgress = true;
+				fireStarted(new StartedEvent(TusMultiUpload.this, fi));
+			} catch (Exception e) {
+				logger.warn("onUploadResumed pb for upload {}", uploadId, e);
+			}
+		}
+
+		@Override
+		public void onPersistedQueue(String[] queueIds, String[] names, String[] contentTypes, long[] contentLengths,
+				String[] uploadIds) {
+			List<String> restoredIds = new ArrayList<>();
+			List<String> restoredUploadIds = new ArrayList<>();
+			List<FileInfo> fis = new ArrayList<>();
+			for (int i = 0; i < queueIds.length; i++) {
+				String uploadId = reconcileUpload(uploadIds[i]);
+				logger.debug("onPersistedQueue(ui) {} ({}): {}", queueIds[i], uploadIds[i],
+						uploadId == null ? "skipped" : uploadId.isEmpty() ? "queued" : "resumed");
+				if (uploadId == null) {
+					continue;
+				}
+				restoredIds.add(queueIds[i]);
+				restoredUploadIds.add(uploadId);
+				fis.add(queued(queueIds[i], names[i], contentTypes[i], contentLengths[i]));
+			}
+			if (!fis.isEmpty()) {
+				fireQueued(new FileQueuedBatchEvent(TusMultiUpload.this, fis));
+			}
+			// the files not listed are dropped from the persisted queue
+			clientRpc.restoreQueue(restoredIds.toArray(new String[0]), restoredUploadIds.toArray(new String[0]));
+		}
+
 		@Override
 		public void onFileCountError(int newlyAddedFiles) {
 			Notification.show(MessageFormat.format(fileCountErrorMessagePattern, TusMultiUpload.this.getMaxFileCount(), TusMultiUpload.this.getRemainingQueueSeats() ,newlyAddedFiles), Type.ERROR_MESSAGE);
@@ -659,8 +1415,7 @@ public class TusMultiUpload extends AbstractJavaScriptComponent {
 	   * The stream variable that maps the stream events to the upload component and
 	   * the configured data receiver.
 	   */
-	  private class StreamVariableImpl implements
-	      com.vaadin.server.StreamVariable {
+	  private class StreamVariableImpl implements TusBatchStreamVariable {
 		protected static final long THROTTLE_EVENTS_MS = 1000L;
 
 		long lastProgress = 0L;
@@ -673,13 +1428,15 @@ public class TusMultiUpload extends AbstractJavaScriptComponent {
 
 		@Override
 		public boolean listenProgress() {
-			return !getState().clientSideProgress;
+			return !getState(false).clientSideProgress && !getState(false).clientRenderedProgress;
 		}
 
 		@Override
 		public void streamingStarted(StreamingStartEvent event) {
 			TusStreamingEvent tevt = (TusStreamingEvent) event;
+			Object jfr = JfrEvents.begin(JfrEvents.LISTENER);
 			tevt.getFileInfo().queueId = currentQueuedFileId;
+			precreated.remove(tevt.getFileInfo().id);
 			lastProgress = 0;
 			logger.debug("streamingStarted(StreamingStartEvent) for file info {}", tevt.getFileInfo());
             if (TusMultiUpload.this.getUI() != null && !TusMultiUpload.this.getUI().isClosing()) {
@@ -688,12 +1445,14 @@ public class TusMultiUpload extends AbstractJavaScriptComponent {
 				fireStarted(new StartedEvent(TusMultiUpload.this, tevt.getFileInfo()));
 			}
 			hasUploadInProgress = true;
+			JfrEvents.listener(jfr, tevt.getFileInfo().id, "streamingStarted");
 		}
 		
 		@Override
 		public void onProgress(StreamingProgressEvent event) {
 			// throttle to speedup and avoid excessive session lock
 			if (System.currentTimeMillis() >= lastProgress + THROTTLE_EVENTS_MS) {
+				Object jfr = JfrEvents.begin(JfrEvents.LISTENER);
 				fireUpdateProgress(event.getBytesReceived(), event.getContentLength());
 				TusStreamingEvent tevt = (TusStreamingEvent) event;
 				tevt.getFileInfo().queueId = currentQueuedFileId;
@@ -704,35 +1463,48 @@ public class TusMultiUpload extends AbstractJavaScriptComponent {
 					fireUpdateProgress(new ProgressEvent(TusMultiUpload.this, tevt.getFileInfo()));
 				}
 				lastProgress = System.currentTimeMillis();
+				JfrEvents.listener(jfr, tevt.getFileInfo().id, "onProgress");
 			}
 		}
 
 		@Override
 		public void streamingFinished(StreamingEndEvent event) {
 			TusStreamingEvent tevt = (TusStreamingEvent) event;
+			Object jfr = JfrEvents.begin(JfrEvents.LISTENER);
+			try {
+				finished(tevt);
+			} finally {
+				JfrEvents.listener(jfr, tevt.getFileInfo().id, "streamingFinished");
+			}
+		}
+
+		private void finished(TusStreamingEvent tevt) {
 			Datastore dataStore = getReceiverDataStore();
 			lastProgress = 0;
 			if (dataStore != null) {
 				try {
-					// uses TUS calculated uuid;
-					String id = tevt.getFileInfo().id;
 					tevt.getFileInfo().queueId = currentQueuedFileId;
 					logger.debug("streamingFinished(StreamingEndEvent) for file info {}", tevt.getFileInfo());
-					InputStream is = dataStore.getInputStream(id);
-					Path path = dataStore.getInputStreamPath(id);
+					if (uploadPipeline != null) {
+						queue.remove(currentQueuedFileId);
+						UI ui = TusMultiUpload.this.getUI();
+						uploadPipeline.submit(tevt.getFileInfo(), (fi, failure) -> fireProcessed(ui, fi, failure));
+						hasUploadInProgress = false;
+						return;
+					}
+					UploadHandle handle = new UploadHandle(dataStore, tevt.getFileInfo());
 					queue.remove(currentQueuedFileId);
-					if (TusMultiUpload.this.getUI() != null && !TusMultiUpload.this.getUI().isClosing()) {
-                        TusMultiUpload.this.getUI().access(() -> {
-							fireUploadSuccess(new SucceededEvent(TusMultiUpload.this, tevt.getFileInfo(), is, path));
-							try {
-								dataStore.terminate(id);
-							} catch (Exception e) {
-								logger.warn("dataStore terminate pb for file info {}", tevt.getFileInfo(), e);
-							}
-						});
+					UI ui = TusMultiUpload.this.getUI();
+					if (ui != null && !ui.isClosing()) {
+						try {
+							ui.access(() -> fireUploadSuccess(tevt.getFileInfo(), handle));
+						} catch (UIDetachedException e) {
+							// the access never runs: give the dispatcher's reference back
+							logger.info("UI detached before the success of {} was fired, terminating the upload", tevt.getFileInfo());
+							handle.release();
+						}
 					} else {
-						fireUploadSuccess(new SucceededEvent(TusMultiUpload.this, tevt.getFileInfo(), is, path));
-						dataStore.terminate(id);
+						fireUploadSuccess(tevt.getFileInfo(), handle);
 					}
 				} catch (Exception e) {
 					logger.warn("streamingFinished pb for file info {}", tevt.getFileInfo(), e);
@@ -744,6 +1516,7 @@ public class TusMultiUpload extends AbstractJavaScriptComponent {
 		@Override
 		public void streamingFailed(StreamingErrorEvent event) {
 			TusStreamingEvent tevt = (TusStreamingEvent) event;
+			Object jfr = JfrEvents.begin(JfrEvents.LISTENER);
 			tevt.getFileInfo().queueId = currentQueuedFileId;
 			lastProgress = 0;
 			queue.remove(currentQueuedFileId);
@@ -755,6 +1528,7 @@ public class TusMultiUpload extends AbstractJavaScriptComponent {
 			}
 			
 			hasUploadInProgress = false;
+			JfrEvents.listener(jfr, tevt.getFileInfo().id, "streamingFailed");
 		}
 
 		@Override
@@ -762,6 +1536,16 @@ public class TusMultiUpload extends AbstractJavaScriptComponent {
 			return false;
 		}
 
+		@Override
+		public void uploadsCreated(List<FileInfo> fileInfos) {
+			for (FileInfo fi : fileInfos) {
+				String queueId = fi.decodedMetadata != null ? fi.decodedMetadata.get("queueId") : null;
+				if (queueId != null) {
+					precreated.put(fi.id, queueId);
+				}
+			}
+		}
+
 	  }
 
 	  public static String readableFileSize(long size) {
@@ -0,0 +1,522 @@
+package com.asaoweb.vaadin.tusfileupload.data;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.asaoweb.vaadin.tusfileupload.FileInfo;
+import com.vaadin.server.Resource;
+import com.vaadin.server.SerializableConsumer;
+import com.vaadin.server.SerializableFunction;
+import com.vaadin.server.StreamResource;
+import com.vaadin.shared.Registration;
+
+/*
+Thumbnail provider generating the thumbnails of images off the UI thread.
+
+getThumb() never decodes anything: it answers from a size-bounded in-memory
+LRU, or returns null (the caller renders its placeholder) and, when the source
+of the image is known, schedules its generation. Generated thumbnails are kept
+on disk as <upload id>-<version>.png, the version being a digest of the size
+and modification time of the source (of the bytes of the preview for
+previews), so that they survive restarts and are regenerated if the content of
+an id changes, without reading a large source to find out. The least recently
+used ones are deleted when the folder grows beyond maxDiskBytes, and the ones
+unused for maxDiskAge on startup. A source which can't be decoded isn't tried
+again by getThumb() for UNAVAILABLE_DELAY.
+
+Sources are decoded subsampled to about twice the thumbnail size, and refused
+beyond MAX_SOURCE_PIXELS, so that a decompression bomb or a batch of large
+photos doesn't exhaust the heap.
+
+Listeners registered with addThumbnailReadyListener() are notified, on a
+worker thread, once a thumbnail is available.
+
+The previews rendered by the browser (TusMultiUpload.setPreviewSize) are given
+to setPreview() by queue id: they are the thumbnail of the queued file until
+its upload completes, and then become the thumbnail of the upload instead of
+decoding its content. They are decoded and encoded again before being served,
+never trusted as is.
+*/
+public class AsyncThumbProvider implements FileInfoThumbProvider {
+	private static final Logger log = LoggerFactory.getLogger(AsyncThumbProvider.class.getName());
+
+	protected static final String THUMB_EXTENSION = ".png";
+	// larger previews are refused without being decoded
+	protected static final int MAX_PREVIEW_PIXELS = 4096 * 4096;
+	// larger uploaded images get no thumbnail, even subsampled they take too long to decode
+	protected static final long MAX_SOURCE_PIXELS = 16384L * 16384;
+	protected static final long UNAVAILABLE_DELAY = 3600L * 1000;
+	// beyond it, the failures are forgotten
+	protected static final int MAX_UNAVAILABLE = 10000;
+
+	protected final File cacheFolder;
+	protected final long maxMemoryBytes;
+	protected final int thumbSize;
+	protected long maxDiskBytes = 256L * 1024 * 1024;
+	protected long maxDiskAge = 30L * 24 * 3600 * 1000;
+	// size of the thumbnails on disk
+	protected final AtomicLong diskBytes = new AtomicLong();
+	// not this: getThumb() doesn't wait for a pruning
+	private final Object diskLock = new Object();
+
+	protected transient ExecutorService executor;
+	protected final Map<String, Thumb> memory = new LinkedHashMap<>(64, 0.75f, true);
+	protected long memoryBytes = 0L;
+	// version of the thumbnails stored on disk, by upload id
+	protected final Map<String, String> digests = new ConcurrentHashMap<>();
+	protected final Set<String> pending = ConcurrentHashMap.newKeySet();
+	// ids whose source couldn't be decoded, with the time of the failure
+	protected final Map<String, Long> unavailable = new ConcurrentHashMap<>();
+	protected final List<SerializableConsumer<FileInfo>> listeners = new CopyOnWriteArrayList<>();
+	protected SerializableFunction<FileInfo, Path> sourceResolver;
+
+	protected static class Thumb implements Serializable {
+		final byte[] bytes;
+		final Resource resource;
+
+		Thumb(String id, byte[] bytes) {
+			this.bytes = bytes;
+			this.resource = new StreamResource(() -> new ByteArrayInputStream(bytes), "thumb-" + id + THUMB_EXTENSION);
+		}
+	}
+
+	/*
+	 * Thumbnails fit in a thumbSize x thumbSize square, at most maxMemoryBytes of
+	 * them are kept in memory.
+	 */
+	public AsyncThumbProvider(File cacheFolder, long maxMemoryBytes, int thumbSize) {
+		this.cacheFolder = cacheFolder;
+		this.maxMemoryBytes = maxMemoryBytes;
+		this.thumbSize = thumbSize;
+		if (!cacheFolder.isDirectory() && !cacheFolder.mkdirs()) {
+			log.error("Unable to find or create thumbnail cache directory {}", cacheFolder);
+		}
+		File[] files = cacheFolder.listFiles((dir, name) -> name.endsWith(THUMB_EXTENSION));
+		if (files != null) {
+			long expired = System.currentTimeMillis() - maxDiskAge;
+			for (File file : files) {
+				if (file.lastModified() < expired) {
+					file.delete();
+					continue;
+				}
+				diskBytes.addAndGet(file.length());
+				String name = file.getName().substring(0, file.getName().length() - THUMB_EXTENSION.length());
+				int pos = name.lastIndexOf('-');
+				if (pos > 0) {
+					digests.put(name.substring(0, pos), name.substring(pos + 1));
+				}
+			}
+		}
+	}
+
+	/*
+	 * Bounds the size of the thumbnails kept on disk (256 MB by default): the
+	 * least recently used ones are deleted beyond it.
+	 */
+	public void setMaxDiskBytes(long maxDiskBytes) {
+		this.maxDiskBytes = maxDiskBytes;
+	}
+
+	/*
+	 * Thumbnails unused for this many milliseconds (30 days by default) are
+	 * deleted on startup.
+	 */
+	public void setMaxDiskAge(long maxDiskAge) {
+		this.maxDiskAge = maxDiskAge;
+	}
+
+	/*
+	 * Optional, gives the path of the image of files which weren't uploaded
+	 * through generate(), e.g. the existing files of a TusMultiUploadLayout.
+	 */
+	public void setSourceResolver(SerializableFunction<FileInfo, Path> sourceResolver) {
+		this.sourceResolver = sourceResolver;
+	}
+
+	public Registration addThumbnailReadyListener(SerializableConsumer<FileInfo> listener) {
+		listeners.add(listener);
+		return () -> listeners.remove(listener);
+	}
+
+	@Override
+	public Resource getThumb(FileInfo fileInfo) {
+		if (fileInfo == null) {
+			return null;
+		}
+		Thumb thumb = fileInfo.id != null ? getFromMemory(fileInfo.id) : null;
+		if (thumb == null) {
+			thumb = getPreview(fileInfo);
+		}
+		if (thumb != null) {
+			return thumb.resource;
+		}
+		if (fileInfo.id == null || isUnavailable(fileInfo.id)) {
+			return null;
+		}
+		if (digests.containsKey(fileInfo.id)) {
+			// on disk: load it off thread
+			schedule(fileInfo, null, null);
+		} else if (sourceResolver != null && isImage(fileInfo)) {
+			Path source = sourceResolver.apply(fileInfo);
+			if (source != null) {
+				schedule(fileInfo, source, null);
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * Generates the thumbnail of a completed upload off thread. The reference of
+	 * handle (see SucceededEvent.retain()) is released once done.
+	 */
+	public void generate(FileInfo fileInfo, UploadHandle handle) {
+		if (!isImage(fileInfo) && getPreview(fileInfo) == null) {
+			handle.release();
+			return;
+		}
+		unavailable.remove(fileInfo.id);
+		schedule(fileInfo, null, handle);
+	}
+
+	/*
+	 * Sets the preview of the queued file fileInfo (by queue id), rendered by
+	 * the browser. It is checked off thread, and the listeners are notified
+	 * once it is available.
+	 */
+	public void setPreview(FileInfo fileInfo, byte[] image) {
+		String queueId = fileInfo.queueId;
+		if (queueId == null) {
+			return;
+		}
+		try {
+			executor().execute(() -> {
+				try {
+					byte[] bytes = render(new ByteArrayInputStream(image), MAX_PREVIEW_PIXELS);
+					if (bytes != null) {
+						putInMemory(queueId, new Thumb(queueId, bytes));
+						listeners.forEach(l -> l.accept(fileInfo));
+					}
+				} catch (Exception e) {
+					log.debug("Invalid preview for {}: {}", queueId, e.toString());
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// too much work queued: the thumbnail is generated once uploaded
+		}
+	}
+
+	protected Thumb getPreview(FileInfo fileInfo) {
+		return fileInfo.queueId != null ? getFromMemory(fileInfo.queueId) : null;
+	}
+
+	/*
+	 * Number of thumbnails queued or being generated.
+	 */
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	public void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+
+	protected boolean isImage(FileInfo fileInfo) {
+		return fileInfo.suggestedFiletype != null && fileInfo.suggestedFiletype.toLowerCase().startsWith("image");
+	}
+
+	protected void schedule(FileInfo fileInfo, Path source, UploadHandle handle) {
+		if (!pending.add(fileInfo.id)) {
+			if (handle != null) {
+				handle.release();
+			}
+			return;
+		}
+		try {
+			executor().execute(() -> {
+				try {
+					Path path = source != null ? source : handle != null ? handle.getPath() : null;
+					if (load(fileInfo, path) != null) {
+						listeners.forEach(l -> l.accept(fileInfo));
+					} else {
+						setUnavailable(fileInfo.id);
+					}
+				} catch (Exception e) {
+					log.warn("Unable to generate the thumbnail of {}: {}", fileInfo, e.toString());
+					setUnavailable(fileInfo.id);
+				} finally {
+					pending.remove(fileInfo.id);
+					if (handle != null) {
+						handle.release();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// too much work queued: the placeholder stays until the next request
+			pending.remove(fileInfo.id);
+			if (handle != null) {
+				handle.release();
+			}
+		}
+	}
+
+	protected Thumb load(FileInfo fileInfo, Path source) throws Exception {
+		String id = fileInfo.id;
+		// an upload with a preview isn't read at all
+		Thumb preview = source != null ? getPreview(fileInfo) : null;
+		String digest = preview != null ? digest(preview.bytes) : source != null ? version(source) : digests.get(id);
+		if (digest == null) {
+			return null;
+		}
+		File cached = new File(cacheFolder, id + "-" + digest + THUMB_EXTENSION);
+		byte[] bytes;
+		if (cached.exists()) {
+			bytes = Files.readAllBytes(cached.toPath());
+			// the last modification time orders the evictions
+			cached.setLastModified(System.currentTimeMillis());
+		} else if (source != null) {
+			bytes = preview != null ? preview.bytes : render(source);
+			if (bytes == null) {
+				return null;
+			}
+			String previous = digests.get(id);
+			if (previous != null) {
+				deleteCached(new File(cacheFolder, id + "-" + previous + THUMB_EXTENSION));
+			}
+			File tmp = new File(cacheFolder, cached.getName() + ".tmp");
+			Files.write(tmp.toPath(), bytes);
+			Files.move(tmp.toPath(), cached.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			if (diskBytes.addAndGet(bytes.length) > maxDiskBytes) {
+				digests.put(id, digest);
+				pruneDisk();
+			}
+		} else {
+			digests.remove(id);
+			return null;
+		}
+		digests.put(id, digest);
+		Thumb thumb = new Thumb(id, bytes);
+		putInMemory(id, thumb);
+		return thumb;
+	}
+
+	/*
+	 * Deletes the least recently used thumbnails until the folder is back
+	 * below 90% of maxDiskBytes, they are generated again when requested.
+	 */
+	protected void pruneDisk() {
+		synchronized (diskLock) {
+			if (diskBytes.get() > maxDiskBytes) {
+				pruneDisk(maxDiskBytes / 10 * 9);
+			}
+		}
+	}
+
+	private void pruneDisk(long target) {
+		File[] files = cacheFolder.listFiles((dir, name) -> name.endsWith(THUMB_EXTENSION));
+		if (files == null) {
+			return;
+		}
+		long[] modified = new long[files.length];
+		Integer[] order = new Integer[files.length];
+		long total = 0L;
+		for (int i = 0; i < files.length; i++) {
+			modified[i] = files[i].lastModified();
+			order[i] = i;
+			total += files[i].length();
+		}
+		Arrays.sort(order, Comparator.comparingLong(i -> modified[i]));
+		for (int i = 0; i < order.length && total > target; i++) {
+			File file = files[order[i]];
+			long length = file.length();
+			if (file.delete()) {
+				total -= length;
+				String name = file.getName().substring(0, file.getName().length() - THUMB_EXTENSION.length());
+				int pos = name.lastIndexOf('-');
+				if (pos > 0) {
+					digests.remove(name.substring(0, pos), name.substring(pos + 1));
+				}
+			}
+		}
+		diskBytes.set(total);
+		log.debug("Thumbnail cache pruned to {} bytes", total);
+	}
+
+	private void deleteCached(File file) {
+		long length = file.length();
+		if (file.delete()) {
+			diskBytes.addAndGet(-length);
+		}
+	}
+
+	protected byte[] render(Path source) throws Exception {
+		try (InputStream is = Files.newInputStream(source)) {
+			return render(is, MAX_SOURCE_PIXELS);
+		}
+	}
+
+	/*
+	 * Returns null if the image can't be decoded, or has more than maxPixels.
+	 * Only every n-th pixel of large images is decoded, keeping about twice the
+	 * thumbnail size for the final smoothing.
+	 */
+	protected byte[] render(InputStream is, long maxPixels) throws Exception {
+		BufferedImage image;
+		try (ImageInputStream iis = ImageIO.createImageInputStream(is)) {
+			Iterator<ImageReader> readers = iis != null ? ImageIO.getImageReaders(iis) : null;
+			if (readers == null || !readers.hasNext()) {
+				return null;
+			}
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(iis, true, true);
+				int width = reader.getWidth(0);
+				int height = reader.getHeight(0);
+				if ((long) width * height > maxPixels) {
+					return null;
+				}
+				int subsampling = Math.max(1, Math.max(width, height) / (thumbSize * 2));
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+				image = reader.read(0, param);
+			} finally {
+				reader.dispose();
+			}
+		}
+		double scale = Math.min(1d, (double) thumbSize / Math.max(image.getWidth(), image.getHeight()));
+		int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+		int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+		BufferedImage thumb = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = thumb.createGraphics();
+		try {
+			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g.drawImage(image, 0, 0, width, height, null);
+		} finally {
+			g.dispose();
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(thumb, "png", out);
+		return out.toByteArray();
+	}
+
+	/*
+	 * Stands for the content of source without reading it: a multi-GB upload
+	 * would be read in full just to find its thumbnail.
+	 */
+	protected String version(Path source) throws Exception {
+		BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+		return digest((attributes.size() + ":" + attributes.lastModifiedTime().toMillis()).getBytes(StandardCharsets.US_ASCII));
+	}
+
+	protected String digest(byte[] bytes) throws Exception {
+		MessageDigest md = MessageDigest.getInstance("SHA-256");
+		md.update(bytes);
+		return hex(md);
+	}
+
+	private static String hex(MessageDigest md) {
+		StringBuilder sb = new StringBuilder();
+		byte[] hash = md.digest();
+		// 128 bits are enough to tell versions of the same upload apart
+		for (int i = 0; i < 16; i++) {
+			sb.append(String.format("%02x", hash[i]));
+		}
+		return sb.toString();
+	}
+
+	protected boolean isUnavailable(String id) {
+		Long failed = unavailable.get(id);
+		if (failed == null) {
+			return false;
+		}
+		if (failed < System.currentTimeMillis() - UNAVAILABLE_DELAY) {
+			unavailable.remove(id, failed);
+			return false;
+		}
+		return true;
+	}
+
+	protected void setUnavailable(String id) {
+		long now = System.currentTimeMillis();
+		if (unavailable.size() >= MAX_UNAVAILABLE) {
+			unavailable.values().removeIf(failed -> failed < now - UNAVAILABLE_DELAY);
+			if (unavailable.size() >= MAX_UNAVAILABLE) {
+				// they are tried again once each, rather than kept for the life of the JVM
+				unavailable.clear();
+			}
+		}
+		unavailable.put(id, now);
+	}
+
+	protected synchronized Thumb getFromMemory(String id) {
+		return memory.get(id);
+	}
+
+	protected synchronized void putInMemory(String id, Thumb thumb) {
+		Thumb previous = memory.put(id, thumb);
+		if (previous != null) {
+			memoryBytes -= previous.bytes.length;
+		}
+		memoryBytes += thumb.bytes.length;
+		Iterator<Thumb> it = memory.values().iterator();
+		while (memoryBytes > maxMemoryBytes && it.hasNext()) {
+			Thumb eldest = it.next();
+			if (eldest == thumb) {
+				break;
+			}
+			memoryBytes -= eldest.bytes.length;
+			it.remove();
+		}
+	}
+
+	protected synchronized ExecutorService executor() {
+		if (executor == null) {
+			int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<>(1000), r -> {
+						Thread t = new Thread(r, "tus-thumbnails");
+						t.setDaemon(true);
+						return t;
+					});
+			pool.allowCoreThreadTimeOut(true);
+			executor = pool;
+		}
+		return executor;
+	}
+}
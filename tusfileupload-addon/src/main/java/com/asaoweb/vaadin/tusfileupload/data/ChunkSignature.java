@@ -0,0 +1,174 @@
+package com.asaoweb.vaadin.tusfileupload.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.asaoweb.vaadin.tusfileupload.exceptions.TusException;
+
+/*
+Signature of a completed upload, for the delta uploads of its modified versions.
+
+The file is cut in content defined chunks with a gear rolling hash: a boundary
+is placed after a byte when the hash of the bytes before it has its MASK_BITS
+high bits cleared, so that an edit only moves the boundaries around it. Each
+chunk is identified by the first 128 bits of its SHA-256. The connector cuts the
+new version the same way (tusmultiupload-hash-worker.js, with the parameters
+sent along with the signature) and sends a recipe made of the ranges to copy
+from the previous version and of the literal bytes of the chunks it doesn't
+have.
+
+The gear table is generated by a xorshift32 from SEED on both sides: changing
+the algorithm or any parameter here must be done in the worker as well.
+*/
+public class ChunkSignature {
+	public static final int SEED = 0x2545F491;
+	public static final int MIN_SIZE = 16 * 1024;
+	public static final int MASK_BITS = 16;
+	public static final int MAX_SIZE = 256 * 1024;
+	protected static final int MASK = -1 << (32 - MASK_BITS);
+	protected static final int STRONG_HASH_LENGTH = 16;
+	protected static final int BUFFER_SIZE = 1024 * 1024;
+	protected static final int[] GEAR = new int[256];
+
+	static {
+		int x = SEED;
+		for (int i = 0; i < GEAR.length; i++) {
+			x ^= x << 13;
+			x ^= x >>> 17;
+			x ^= x << 5;
+			GEAR[i] = x;
+		}
+	}
+
+	protected final long length;
+	protected final List<Long> chunkLengths = new ArrayList<>();
+	protected final List<String> chunkHashes = new ArrayList<>();
+
+	protected ChunkSignature(long length) {
+		this.length = length;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public int getChunkCount() {
+		return chunkLengths.size();
+	}
+
+	/*
+	 * Cuts file in chunks and hashes them, in a single pass.
+	 */
+	public static ChunkSignature compute(Path file) throws IOException {
+		MessageDigest md = ContentIndex.newDigest();
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		byte[] bytes = buffer.array();
+		int h = 0;
+		long chunkLength = 0L;
+		ChunkSignature signature;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			signature = new ChunkSignature(channel.size());
+			while (channel.read(buffer) >= 0) {
+				int limit = buffer.position();
+				int start = 0;
+				for (int i = 0; i < limit; i++) {
+					h = (h << 1) + GEAR[bytes[i] & 0xFF];
+					chunkLength++;
+					if (chunkLength >= MAX_SIZE || (chunkLength >= MIN_SIZE && (h & MASK) == 0)) {
+						md.update(bytes, start, i + 1 - start);
+						signature.add(chunkLength, md.digest());
+						start = i + 1;
+						h = 0;
+						chunkLength = 0L;
+					}
+				}
+				md.update(bytes, start, limit - start);
+				buffer.clear();
+			}
+		}
+		if (chunkLength > 0) {
+			signature.add(chunkLength, md.digest());
+		}
+		return signature;
+	}
+
+	protected void add(long chunkLength, byte[] digest) {
+		chunkLengths.add(chunkLength);
+		chunkHashes.add(ContentIndex.hex(digest, STRONG_HASH_LENGTH));
+	}
+
+	/*
+	 * {"seed":..., "minSize":..., "maskBits":..., "maxSize":..., "length":...,
+	 * "chunks":[[length, "hash"], ...]}
+	 */
+	public String toJson() {
+		StringBuilder sb = new StringBuilder(64 + chunkLengths.size() * (STRONG_HASH_LENGTH * 2 + 12));
+		sb.append("{\"seed\":").append(SEED)
+			.append(",\"minSize\":").append(MIN_SIZE)
+			.append(",\"maskBits\":").append(MASK_BITS)
+			.append(",\"maxSize\":").append(MAX_SIZE)
+			.append(",\"length\":").append(length)
+			.append(",\"chunks\":[");
+		for (int i = 0; i < chunkLengths.size(); i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append('[').append(chunkLengths.get(i)).append(",\"").append(chunkHashes.get(i)).append("\"]");
+		}
+		return sb.append("]}").toString();
+	}
+
+	/*
+	 * Parses a recipe: one operation per line, "C <offset> <length>" to copy
+	 * length bytes of the previous version from offset, "L <length>" to read
+	 * length literal bytes from the request body. Returns the operations as
+	 * {offset, length} pairs, offset being -1 for literals. Throws unless the
+	 * copies are within baseLength and the operations add up to entityLength;
+	 * the lengths come from the client, the checks are written not to overflow.
+	 */
+	public static List<long[]> parseRecipe(byte[] recipe, long baseLength, long entityLength) throws TusException {
+		List<long[]> operations = new ArrayList<>();
+		long total = 0L;
+		try {
+			for (String line : new String(recipe, StandardCharsets.US_ASCII).split("\n")) {
+				if (line.isEmpty()) {
+					continue;
+				}
+				String[] parts = line.split(" ");
+				long[] operation;
+				if (parts.length == 3 && parts[0].equals("C")) {
+					operation = new long[] { Long.parseLong(parts[1]), Long.parseLong(parts[2]) };
+					if (operation[0] < 0 || operation[0] > baseLength
+							|| operation[1] > baseLength - operation[0]) {
+						throw new TusException.InvalidDelta("copy out of the previous version: " + line);
+					}
+				} else if (parts.length == 2 && parts[0].equals("L")) {
+					operation = new long[] { -1L, Long.parseLong(parts[1]) };
+				} else {
+					throw new TusException.InvalidDelta("unknown operation: " + line);
+				}
+				if (operation[1] <= 0) {
+					throw new TusException.InvalidDelta("invalid length: " + line);
+				}
+				total = Math.addExact(total, operation[1]);
+				if (total > entityLength) {
+					throw new TusException.InvalidDelta("recipe longer than the upload of " + entityLength + " bytes");
+				}
+				operations.add(operation);
+			}
+		} catch (NumberFormatException | ArithmeticException e) {
+			throw new TusException.InvalidDelta(e.getMessage());
+		}
+		if (total != entityLength) {
+			throw new TusException.InvalidDelta("recipe of " + total + " bytes for an upload of " + entityLength);
+		}
+		return operations;
+	}
+}
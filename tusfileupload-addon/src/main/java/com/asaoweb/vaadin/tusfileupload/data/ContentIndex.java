@@ -0,0 +1,221 @@
+package com.asaoweb.vaadin.tusfileupload.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+Content addressed index of the completed uploads, used to deduplicate uploads
+announcing the SHA-256 of their content (metadata "sha256", lowercase hex).
+
+The content is kept as <upload folder>/cas/<user>/<sha256>, a hard link to (or,
+across file systems, a copy of) the bytes of the first completed upload: new
+uploads of the same content are linked to it instead of being sent. The bytes
+are shared: Store.commit copies them rather than handing the shared inode to
+the application. Content is only shared between the uploads of the same user, and
+published once its digest was verified, so that a client can neither read nor
+poison the content of others by announcing a digest.
+
+The content isn't charged to the StorageAccounting: maxStorage and
+maxUserStorage count the announced length of every upload, a deduplicated one
+included, whatever it shares on disk. What the cas folder holds beyond the
+live uploads, the content of the terminated ones, is only bounded by
+dedupMaxAge (pruned on startup) and by minFreeSpace, checked against the free
+space of the disk.
+
+While an upload of a given content is being written, the following uploads of
+the same content don't write anything: they wait for the first one, and are
+linked to its content once published, or write their own bytes if it failed.
+*/
+public class ContentIndex {
+	private static final Logger log = LoggerFactory.getLogger(ContentIndex.class.getName());
+
+	private static final FolderRegistry<ContentIndex> folders = new FolderRegistry<>(folder -> new ContentIndex(new File(folder, "cas")));
+
+	public static final String DIGEST_METADATA = "sha256";
+	protected static final Pattern DIGEST_PATTERN = Pattern.compile("[0-9a-f]{64}");
+
+	public enum Status {
+		// not waiting for another upload
+		NONE,
+		// waiting for another upload of the same content
+		PENDING,
+		// linked to the content of another upload
+		COMPLETED
+	}
+
+	protected final File casFolder;
+	protected boolean pruned = false;
+
+	// key of the content being written -> id of the upload writing it
+	protected final Map<String, String> writers = new HashMap<>();
+	// id of the upload writing a content -> key
+	protected final Map<String, String> writing = new HashMap<>();
+	// id of the uploads waiting for a content -> key
+	protected final Map<String, String> followers = new HashMap<>();
+
+	protected ContentIndex(File casFolder) {
+		this.casFolder = casFolder;
+	}
+
+	/*
+	 * Returns the index shared by all the stores using folder.
+	 */
+	public static ContentIndex forFolder(String folder) {
+		return folders.forFolder(folder);
+	}
+
+	/*
+	 * Returns the key of the content announced by username, or null if it can't
+	 * be deduplicated (anonymous upload or invalid digest).
+	 */
+	public static String key(String username, String digest) {
+		if (username == null || digest == null || !DIGEST_PATTERN.matcher(digest).matches()) {
+			return null;
+		}
+		return hex(sha256(username.getBytes(StandardCharsets.UTF_8)), 16) + File.separator + digest;
+	}
+
+	public static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static String hex(byte[] bytes, int length) {
+		StringBuilder sb = new StringBuilder(length * 2);
+		for (int i = 0; i < length; i++) {
+			sb.append(Character.forDigit((bytes[i] >> 4) & 0xF, 16)).append(Character.forDigit(bytes[i] & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+	protected static byte[] sha256(byte[] bytes) {
+		return newDigest().digest(bytes);
+	}
+
+	public Path getContentPath(String key) {
+		return new File(casFolder, key).toPath();
+	}
+
+	/*
+	 * Returns the published content of key, or null.
+	 */
+	public synchronized Path getContent(String key) {
+		Path path = getContentPath(key);
+		return Files.isRegularFile(path) ? path : null;
+	}
+
+	/*
+	 * Registers the upload id of content key: returns true if it has to write the
+	 * bytes, false if it waits for another upload writing the same content.
+	 */
+	public synchronized boolean register(String id, String key) {
+		if (writers.containsKey(key)) {
+			followers.put(id, key);
+			log.debug("Upload {} waits for {} writing the same content", id, writers.get(key));
+			return false;
+		}
+		writers.put(key, id);
+		writing.put(id, key);
+		return true;
+	}
+
+	public synchronized String getWritingKey(String id) {
+		return writing.get(id);
+	}
+
+	public synchronized String getFollowedKey(String id) {
+		return followers.get(id);
+	}
+
+	public synchronized boolean isWritten(String key) {
+		return writers.containsKey(key);
+	}
+
+	/*
+	 * Forgets the upload id, e.g. once terminated. Uploads waiting for the
+	 * content it was writing will have to write it themselves.
+	 */
+	public synchronized void unregister(String id) {
+		String key = writing.remove(id);
+		if (key != null && id.equals(writers.get(key))) {
+			writers.remove(key);
+		}
+		followers.remove(id);
+	}
+
+	/*
+	 * Publishes the verified content written by upload id to bin.
+	 */
+	public synchronized Path publish(String id, Path bin) throws IOException {
+		String key = writing.get(id);
+		if (key == null) {
+			return null;
+		}
+		unregister(id);
+		Path content = getContentPath(key);
+		Files.createDirectories(content.getParent());
+		Path tmp = content.resolveSibling(content.getFileName() + "." + id + ".tmp");
+		try {
+			Files.createLink(tmp, bin);
+		} catch (IOException | UnsupportedOperationException e) {
+			Files.copy(bin, tmp, StandardCopyOption.REPLACE_EXISTING);
+		}
+		Files.move(tmp, content, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		log.debug("Content of {} published as {}", id, content);
+		return content;
+	}
+
+	/*
+	 * Marks content as used now, so that it isn't pruned.
+	 */
+	public void touch(Path content) {
+		try {
+			Files.setLastModifiedTime(content, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch (IOException e) {
+			log.debug("Unable to touch {}: {}", content, e.toString());
+		}
+	}
+
+	/*
+	 * Deletes the content unused for maxAge milliseconds, once per folder.
+	 */
+	public synchronized void pruneOnce(long maxAge) {
+		if (pruned) {
+			return;
+		}
+		pruned = true;
+		File[] users = casFolder.listFiles(File::isDirectory);
+		if (users == null || maxAge <= 0) {
+			return;
+		}
+		long limit = System.currentTimeMillis() - maxAge;
+		int count = 0;
+		for (File user : users) {
+			File[] contents = user.listFiles();
+			if (contents == null) {
+				continue;
+			}
+			for (File content : contents) {
+				if (content.lastModified() < limit && content.delete()) {
+					count++;
+				}
+			}
+		}
+		log.info("Content index of {} pruned: {} contents deleted", casFolder, count);
+	}
+}
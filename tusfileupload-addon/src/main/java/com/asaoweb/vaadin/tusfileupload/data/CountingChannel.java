@@ -0,0 +1,69 @@
+package com.asaoweb.vaadin.tusfileupload.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import com.asaoweb.vaadin.tusfileupload.StallWatchdog;
+import com.asaoweb.vaadin.tusfileupload.metrics.UploadActivity;
+
+/*
+Counts the bytes read from a request body, and the time spent waiting for
+them, for the trace of the write (see UploadTracer). Reports them to the
+StallWatchdog watching the write, if any, and to the UploadActivity.
+*/
+public class CountingChannel implements ReadableByteChannel {
+	protected final ReadableByteChannel channel;
+	protected final StallWatchdog.Watch watch;
+	protected final UploadActivity.Upload upload;
+	protected long bytes = 0L;
+	protected long readTime = 0L;
+
+	public CountingChannel(ReadableByteChannel channel, StallWatchdog.Watch watch) {
+		this(channel, watch, null);
+	}
+
+	public CountingChannel(ReadableByteChannel channel, StallWatchdog.Watch watch, UploadActivity.Upload upload) {
+		this.channel = channel;
+		this.watch = watch;
+		this.upload = upload;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		long start = System.nanoTime();
+		int n = channel.read(dst);
+		readTime += System.nanoTime() - start;
+		if (n > 0) {
+			bytes += n;
+			if (watch != null) {
+				watch.progress(n);
+			}
+			if (upload != null) {
+				upload.progress(n);
+			}
+		}
+		return n;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	/*
+	 * Returns the time spent in read, in nanoseconds.
+	 */
+	public long getReadTime() {
+		return readTime;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -8,6 +8,7 @@ import com.vaadin.server.VaadinRequest;
 import java.io.InputStream;
 import java.io.Serializable;
 import java.nio.file.Path;
+import java.util.Map;
 
 /*
 A single instance of the  datastore will be created.
@@ -28,12 +29,57 @@ public interface Datastore extends Serializable {
 	 */
 	public void create(FileInfo fi) throws Exception;
 
+	/*
+	 * Called once an upload announcing the digest of its content is created.
+	 * Returns true if the upload was completed from identical content already
+	 * stored; otherwise it has to be written, or waits for an upload of the same
+	 * content (see resolveDuplicate).
+	 */
+	public boolean deduplicate(FileInfo fi) throws Exception;
+
+	/*
+	 * For an upload waiting for another upload of the same content: returns
+	 * PENDING while the other one is written, COMPLETED (once) when the upload
+	 * was completed from its content, NONE if it has to be written.
+	 */
+	public ContentIndex.Status resolveDuplicate(String id) throws Exception;
+
 	/*
 	 * Writes up to max bytes, starting at offset, to id's storage, from request.
 	 * Returns the number of bytes written.
 	 */
 	public long write(VaadinRequest request, String id, long offset, long max) throws Exception;
 
+	/*
+	 * Writes upload id, announcing a previous version (metadata "deltaBase"),
+	 * from a recipe of recipeLength bytes followed by the literal bytes, read from
+	 * request (see ChunkSignature.parseRecipe). Returns the number of bytes
+	 * written: what was assembled before a failure is kept, as a normal partial
+	 * upload.
+	 */
+	public long writeDelta(VaadinRequest request, String id, long recipeLength) throws Exception;
+
+	/*
+	 * Returns the chunk signature of the completed upload baseId, for the delta
+	 * uploads of username. Throws NotFound if it isn't a completed upload of
+	 * username, or if it has no owner.
+	 */
+	public ChunkSignature getSignature(String baseId, String username) throws Exception;
+
+	/*
+	 * Returns the ids of the partial uploads of username, by client fingerprint
+	 * (see ResumeIndex), to be resumed by another session.
+	 */
+	public Map<String, String> getResumableUploads(String username) throws Exception;
+
+	/*
+	 * Registers previousVersion, a file kept by the application, as a completed
+	 * upload of username: its id can then be used as the base of delta uploads
+	 * of username, never of anonymous ones.
+	 * Terminating it leaves the file in place.
+	 */
+	public String addDeltaBase(Path previousVersion, String username) throws Exception;
+
 	/*
 	 * Retrieve FileInfo describing the upload identified by filename. Returns null
 	 * if info or bin file for filename doesn't exist.
@@ -53,6 +99,14 @@ public interface Datastore extends Serializable {
 	public Path getInputStreamPath(String id);
 
 
+	/*
+	 * Hands a completed upload off to target: by atomic rename when keepSource is
+	 * false, else (or if renaming isn't possible) by hard link, falling back to a
+	 * copy with FileChannel.transferTo. Returns the path of the committed bytes.
+	 * The upload must still be terminated once all its consumers are done.
+	 */
+	public Path commit(String id, Path target, boolean keepSource) throws Exception;
+
 	/*
 	 * Persist FileInfo
 	 */
@@ -0,0 +1,21 @@
+package com.asaoweb.vaadin.tusfileupload.data;
+
+import java.io.Serializable;
+import java.nio.file.Path;
+
+import com.asaoweb.vaadin.tusfileupload.FileInfo;
+
+/*
+Chooses, when an upload is created, where its bytes are written. Uploads
+written to their final destination don't need to be moved once completed:
+terminating a completed upload keeps them in place.
+*/
+@FunctionalInterface
+public interface DestinationResolver extends Serializable {
+	/*
+	 * Returns the final path for the bytes of the new upload described by fileInfo
+	 * (decoded metadata and owner are available), or null to use the upload folder.
+	 * The file must not already exist.
+	 */
+	public Path resolve(FileInfo fileInfo) throws Exception;
+}
@@ -0,0 +1,51 @@
+package com.asaoweb.vaadin.tusfileupload.data;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.stream.Stream;
+
+import com.asaoweb.vaadin.tusfileupload.FileInfo;
+
+/*
+Paged access to the files already attached, so that they don't have to be
+materialized as a single List<FileInfo>. Implementations typically run a
+paged query and its count/sum counterparts against the application backend.
+*/
+public interface FileInfoPageProvider extends Serializable {
+	/*
+	 * Returns at most limit files, starting at offset.
+	 */
+	public Stream<FileInfo> fetch(int offset, int limit);
+
+	/*
+	 * Returns the total number of files.
+	 */
+	public int count();
+
+	/*
+	 * Returns the total size in bytes of the files.
+	 */
+	public long totalSize();
+
+	/*
+	 * Adapts an in-memory list.
+	 */
+	public static FileInfoPageProvider ofList(List<FileInfo> files) {
+		return new FileInfoPageProvider() {
+			@Override
+			public Stream<FileInfo> fetch(int offset, int limit) {
+				return files.stream().skip(offset).limit(limit);
+			}
+
+			@Override
+			public int count() {
+				return files.size();
+			}
+
+			@Override
+			public long totalSize() {
+				return files.stream().mapToLong(fi -> fi.entityLength).sum();
+			}
+		};
+	}
+}
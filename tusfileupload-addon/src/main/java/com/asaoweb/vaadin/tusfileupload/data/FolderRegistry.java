@@ -0,0 +1,41 @@
+package com.asaoweb.vaadin.tusfileupload.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/*
+Instances shared per upload folder. The TUSFileUploadHandler and every
+TusMultiUpload build their own Composer, hence their own Store, on the same
+folder: the state of the folder (accounting, indexes, metrics...) is kept in a
+single instance that all of them get from forFolder(). Folders are told apart
+by canonical path.
+*/
+public class FolderRegistry<T> {
+	private final ConcurrentHashMap<String, T> folders = new ConcurrentHashMap<>();
+	private final Function<File, T> factory;
+
+	/*
+	 * factory builds the instance of a folder, given its canonical path.
+	 */
+	public FolderRegistry(Function<File, T> factory) {
+		this.factory = factory;
+	}
+
+	/*
+	 * Returns the instance shared by all the stores using folder.
+	 */
+	public T forFolder(String folder) {
+		return folders.computeIfAbsent(key(folder), k -> factory.apply(new File(k)));
+	}
+
+	protected static String key(String folder) {
+		File file = new File(folder);
+		try {
+			return file.getCanonicalPath();
+		} catch (IOException e) {
+			return file.getAbsolutePath();
+		}
+	}
+}
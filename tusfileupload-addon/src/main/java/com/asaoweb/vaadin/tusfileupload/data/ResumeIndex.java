@@ -0,0 +1,77 @@
+package com.asaoweb.vaadin.tusfileupload.data;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.asaoweb.vaadin.tusfileupload.FileInfo;
+
+/*
+Index of the partial uploads of each authenticated user by client fingerprint
+(metadata "fingerprint": name, type, size and modification date of the file),
+so that an upload interrupted by the end of its Vaadin session or by a reload
+can be resumed by the next TusMultiUpload of its owner: only the missing bytes
+are then sent.
+
+Anonymous uploads aren't indexed, as nothing ties them to their next session.
+The index is rebuilt from the uploads left on disk at startup.
+*/
+public class ResumeIndex {
+	private static final FolderRegistry<ResumeIndex> folders = new FolderRegistry<>(folder -> new ResumeIndex());
+
+	public static final String FINGERPRINT_METADATA = "fingerprint";
+
+	// username -> fingerprint -> id
+	protected final Map<String, Map<String, String>> users = new HashMap<>();
+	// id -> username, to forget an upload
+	protected final Map<String, String> owners = new HashMap<>();
+
+	/*
+	 * Returns the index shared by all the stores using folder.
+	 */
+	public static ResumeIndex forFolder(String folder) {
+		return folders.forFolder(folder);
+	}
+
+	/*
+	 * Indexes a partial upload, if it has an owner and a fingerprint.
+	 */
+	public synchronized void add(FileInfo fi) {
+		String fingerprint = fi.decodedMetadata != null ? fi.decodedMetadata.get(FINGERPRINT_METADATA) : null;
+		if (fi.username == null || fingerprint == null || fingerprint.isEmpty() || fi.offset >= fi.entityLength) {
+			return;
+		}
+		String previous = users.computeIfAbsent(fi.username, k -> new HashMap<>()).put(fingerprint, fi.id);
+		if (previous != null && !previous.equals(fi.id)) {
+			// the most recent upload of the file is resumed
+			owners.remove(previous);
+		}
+		owners.put(fi.id, fi.username);
+	}
+
+	/*
+	 * Forgets upload id, once completed or terminated.
+	 */
+	public synchronized void remove(String id) {
+		String username = owners.remove(id);
+		Map<String, String> uploads = username != null ? users.get(username) : null;
+		if (uploads == null) {
+			return;
+		}
+		uploads.values().remove(id);
+		if (uploads.isEmpty()) {
+			users.remove(username);
+		}
+	}
+
+	/*
+	 * Returns the partial uploads of username, by fingerprint.
+	 */
+	public synchronized Map<String, String> getUploads(String username) {
+		Map<String, String> uploads = username != null ? users.get(username) : null;
+		return uploads != null ? new HashMap<>(uploads) : new HashMap<>();
+	}
+
+	public synchronized boolean isOwner(String id, String username) {
+		return username != null && username.equals(owners.get(id));
+	}
+}
@@ -0,0 +1,91 @@
+package com.asaoweb.vaadin.tusfileupload.data;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+Signatures of the delta bases (see ChunkSignature) by upload id, so that the
+base isn't read and hashed again by every GET of its signature. An entry holds
+while the path, size and modification time of the base are unchanged. The
+least recently used entries are dropped beyond MAX_ENTRIES, as a signature
+takes about 100 bytes per chunk of its base.
+*/
+public class SignatureCache {
+	private static final FolderRegistry<SignatureCache> folders = new FolderRegistry<>(folder -> new SignatureCache());
+
+	protected static final int MAX_ENTRIES = 64;
+
+	protected final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	protected static class Entry {
+		final Path path;
+		final long size;
+		final long modified;
+		final ChunkSignature signature;
+
+		Entry(Path path, BasicFileAttributes attributes, ChunkSignature signature) {
+			this.path = path;
+			this.size = attributes.size();
+			this.modified = attributes.lastModifiedTime().toMillis();
+			this.signature = signature;
+		}
+
+		boolean matches(Path path, BasicFileAttributes attributes) {
+			return this.path.equals(path) && size == attributes.size()
+					&& modified == attributes.lastModifiedTime().toMillis();
+		}
+	}
+
+	/*
+	 * Returns the cache shared by all the stores using folder.
+	 */
+	public static SignatureCache forFolder(String folder) {
+		return folders.forFolder(folder);
+	}
+
+	/*
+	 * Returns the signature of base, the bytes of upload id, computed unless
+	 * cached for the current version of base. Concurrent misses may both
+	 * compute it, the hashing is done outside the lock.
+	 */
+	public ChunkSignature get(String id, Path base) throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(base, BasicFileAttributes.class);
+		synchronized (this) {
+			Entry entry = entries.get(id);
+			if (entry != null && entry.matches(base, attributes)) {
+				return entry.signature;
+			}
+		}
+		ChunkSignature signature = ChunkSignature.compute(base);
+		if (signature.getLength() != attributes.size()) {
+			// changed while hashed, not cached
+			return signature;
+		}
+		synchronized (this) {
+			entries.put(id, new Entry(base, attributes, signature));
+		}
+		return signature;
+	}
+
+	/*
+	 * Forgets the signature of upload id, once terminated.
+	 */
+	public synchronized void remove(String id) {
+		entries.remove(id);
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+}
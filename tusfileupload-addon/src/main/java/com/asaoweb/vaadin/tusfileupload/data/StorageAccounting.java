@@ -0,0 +1,229 @@
+package com.asaoweb.vaadin.tusfileupload.data;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.asaoweb.vaadin.tusfileupload.FileInfo;
+import com.asaoweb.vaadin.tusfileupload.exceptions.TusException;
+
+/*
+Running totals of the bytes reserved (Upload-Length of every upload present in
+the folder) and written (size of the .bin files), globally and per user. The
+content kept for deduplication under cas/ is exempt, see ContentIndex.
+
+Shared per upload folder (see FolderRegistry), so that creation, writes and
+termination done through any Store are accounted in the same place. Every
+operation is O(1), the folder is only scanned once, by the first Store
+initialized on it.
+*/
+public class StorageAccounting {
+	private static final Logger log = LoggerFactory.getLogger(StorageAccounting.class.getName());
+
+	private static final FolderRegistry<StorageAccounting> folders = new FolderRegistry<>(folder -> new StorageAccounting(folder));
+
+	protected final File folder;
+	protected boolean rebuilt = false;
+
+	protected long reserved = 0L;
+	protected long written = 0L;
+	protected final Map<String, Usage> users = new HashMap<>();
+	protected final Map<String, Usage> uploads = new HashMap<>();
+
+	protected StorageAccounting(File folder) {
+		this.folder = folder;
+	}
+
+	/*
+	 * Returns the accounting shared by all the stores using folder.
+	 */
+	public static StorageAccounting forFolder(String folder) {
+		return folders.forFolder(folder);
+	}
+
+	public static class Usage {
+		protected final String username;
+		protected long reserved;
+		protected long written;
+
+		Usage(String username) {
+			this.username = username;
+		}
+
+		public String getUsername() { return username; }
+		public long getReserved() { return reserved; }
+		public long getWritten() { return written; }
+	}
+
+	public synchronized boolean isRebuilt() {
+		return rebuilt;
+	}
+
+	/*
+	 * Resets the totals, before they are rebuilt from the uploads found on disk.
+	 */
+	public synchronized void clear() {
+		reserved = 0L;
+		written = 0L;
+		users.clear();
+		uploads.clear();
+		rebuilt = true;
+	}
+
+	/*
+	 * Accounts an upload found on disk at startup, without any limit check.
+	 */
+	public synchronized void add(FileInfo fi) {
+		if (uploads.containsKey(fi.id)) {
+			return;
+		}
+		Usage upload = new Usage(fi.username);
+		upload.reserved = Math.max(0L, fi.entityLength);
+		upload.written = Math.max(0L, fi.offset);
+		uploads.put(fi.id, upload);
+		apply(upload.username, upload.reserved, upload.written);
+	}
+
+	/*
+	 * Reserves the announced length of a new upload, or throws if it would exceed
+	 * the global storage limit, the user quota or the free space floor. A limit
+	 * of 0 disables the corresponding check.
+	 */
+	public void reserve(FileInfo fi, long maxStorage, long maxUserStorage, long minFreeSpace) throws TusException {
+		// read outside of the lock: the creations don't wait on each other's file system call
+		long usable = minFreeSpace > 0 ? folder.getUsableSpace() : 0L;
+		reserve(fi, maxStorage, maxUserStorage, minFreeSpace, usable);
+	}
+
+	private synchronized void reserve(FileInfo fi, long maxStorage, long maxUserStorage, long minFreeSpace, long usable)
+			throws TusException {
+		long length = Math.max(0L, fi.entityLength);
+
+		if (maxStorage > 0 && reserved + length > maxStorage) {
+			log.info("Rejecting upload {} of {} bytes: {} bytes already reserved out of {}", fi.id, length, reserved, maxStorage);
+			throw new TusException.InsufficientStorage();
+		}
+		if (maxUserStorage > 0 && fi.username != null) {
+			Usage user = users.get(fi.username);
+			long userReserved = (user == null) ? 0L : user.reserved;
+			if (userReserved + length > maxUserStorage) {
+				log.info("Rejecting upload {} of {} bytes: user {} already reserved {} bytes out of {}", fi.id, length, fi.username, userReserved, maxUserStorage);
+				throw new TusException.StorageQuotaExceeded();
+			}
+		}
+		if (minFreeSpace > 0) {
+			// bytes announced by pending uploads will still be written to the disk
+			long pending = reserved - written;
+			if (usable - pending - length < minFreeSpace) {
+				log.warn("Rejecting upload {} of {} bytes: {} bytes usable, {} pending, floor is {}", fi.id, length, usable, pending, minFreeSpace);
+				throw new TusException.InsufficientStorage();
+			}
+		}
+
+		Usage upload = new Usage(fi.username);
+		upload.reserved = length;
+		uploads.put(fi.id, upload);
+		apply(upload.username, length, 0L);
+	}
+
+	/*
+	 * Accounts bytes written to an upload.
+	 */
+	public synchronized void written(String id, long bytes) {
+		Usage upload = uploads.get(id);
+		if (upload == null || bytes <= 0) {
+			return;
+		}
+		upload.written += bytes;
+		apply(upload.username, 0L, bytes);
+	}
+
+	/*
+	 * Releases everything reserved and written by an upload.
+	 */
+	public synchronized void release(String id) {
+		Usage upload = uploads.remove(id);
+		if (upload == null) {
+			return;
+		}
+		apply(upload.username, -upload.reserved, -upload.written);
+	}
+
+	private void apply(String username, long reservedDelta, long writtenDelta) {
+		reserved += reservedDelta;
+		written += writtenDelta;
+		if (username != null) {
+			Usage user = users.computeIfAbsent(username, Usage::new);
+			user.reserved += reservedDelta;
+			user.written += writtenDelta;
+			if (user.reserved <= 0 && user.written <= 0) {
+				users.remove(username);
+			}
+		}
+	}
+
+	public synchronized long getReserved() {
+		return reserved;
+	}
+
+	public synchronized long getWritten() {
+		return written;
+	}
+
+	public synchronized int getUploadCount() {
+		return uploads.size();
+	}
+
+	/*
+	 * Returns the reserved and written bytes of username, or null if the user holds nothing.
+	 */
+	public synchronized Usage getUsage(String username) {
+		Usage user = users.get(username);
+		if (user == null) {
+			return null;
+		}
+		Usage copy = new Usage(username);
+		copy.reserved = user.reserved;
+		copy.written = user.written;
+		return copy;
+	}
+
+	/*
+	 * Returns the reserved (upload length) and written bytes of upload id, or
+	 * null if it isn't accounted.
+	 */
+	public synchronized Usage getUploadUsage(String id) {
+		Usage upload = uploads.get(id);
+		if (upload == null) {
+			return null;
+		}
+		Usage copy = new Usage(upload.username);
+		copy.reserved = upload.reserved;
+		copy.written = upload.written;
+		return copy;
+	}
+
+	/*
+	 * Returns the limit users holding the most written bytes, largest first.
+	 */
+	public synchronized List<Usage> getTopUsers(int limit) {
+		List<Usage> top = new ArrayList<>(users.size());
+		for (Usage user : users.values()) {
+			Usage copy = new Usage(user.username);
+			copy.reserved = user.reserved;
+			copy.written = user.written;
+			top.add(copy);
+		}
+		top.sort((a, b) -> Long.compare(b.written, a.written));
+		return top.size() > limit ? new ArrayList<>(top.subList(0, limit)) : top;
+	}
+
+	public File getFolder() {
+		return folder;
+	}
+}
@@ -1,15 +1,24 @@
 package com.asaoweb.vaadin.tusfileupload.data;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,6 +26,13 @@ import org.slf4j.LoggerFactory;
 import com.asaoweb.vaadin.tusfileupload.Config;
 import com.asaoweb.vaadin.tusfileupload.FileInfo;
 import com.asaoweb.vaadin.tusfileupload.Locker;
+import com.asaoweb.vaadin.tusfileupload.StallWatchdog;
+import com.asaoweb.vaadin.tusfileupload.exceptions.TusException;
+import com.asaoweb.vaadin.tusfileupload.metrics.JfrEvents;
+import com.asaoweb.vaadin.tusfileupload.metrics.Span;
+import com.asaoweb.vaadin.tusfileupload.metrics.UploadActivity;
+import com.asaoweb.vaadin.tusfileupload.metrics.UploadMetrics;
+import com.asaoweb.vaadin.tusfileupload.metrics.UploadTracer;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.vaadin.server.VaadinRequest;
 
@@ -27,10 +43,33 @@ the "protected" declarations.
 public class Store implements Datastore {
 	protected static final Logger log = LoggerFactory.getLogger(Store.class.getName());
 
+	protected static final int INFLATE_BUFFER_SIZE = 64 * 1024;
+	protected static final int MAX_RECIPE_LENGTH = 16 * 1024 * 1024;
+	// thread safe once configured: creating one per info file read dominated the allocations of a request
+	protected static final ObjectMapper MAPPER = new ObjectMapper();
+
+	public static final String DELTA_BASE_METADATA = "deltaBase";
+
 	protected String binPath;
 	protected String infoPath;
 	protected long maxRequest;
+	protected long maxStorage;
+	protected long maxUserStorage;
+	protected long minFreeSpace;
 	protected Locker locker;
+	protected DestinationResolver destinationResolver;
+	protected boolean deduplicate;
+	protected long dedupMaxAge;
+	protected transient ContentIndex contentIndex;
+	protected transient StorageAccounting accounting;
+	protected transient ResumeIndex resumeIndex;
+	protected transient SignatureCache signatures;
+	protected transient UploadMetrics metrics;
+	protected transient UploadActivity activity;
+	protected long minThroughput;
+	protected long stallGracePeriod;
+	// .bin location of the known uploads, which may be outside the upload folder
+	protected final Map<String, String> binLocations = new ConcurrentHashMap<>();
 
 	protected static String extensions = "creation,termination";
 
@@ -38,7 +77,111 @@ public class Store implements Datastore {
 		this.binPath = config.uploadFolder;
 		this.infoPath = config.uploadFolder;
 		this.maxRequest = config.maxRequest;
+		this.maxStorage = config.maxStorage;
+		this.maxUserStorage = config.maxUserStorage;
+		this.minFreeSpace = config.minFreeSpace;
 		this.locker = locker;
+		this.destinationResolver = config.destinationResolver;
+		this.deduplicate = config.deduplicate;
+		this.dedupMaxAge = config.dedupMaxAge;
+		this.minThroughput = config.minThroughput;
+		this.stallGracePeriod = config.stallGracePeriod;
+
+		StorageAccounting accounting = getStorageAccounting();
+		synchronized (accounting) {
+			if (!accounting.isRebuilt()) {
+				rebuildStorageAccounting(accounting);
+			}
+		}
+		if (deduplicate) {
+			getContentIndex().pruneOnce(dedupMaxAge);
+		}
+	}
+
+	/*
+	 * Shared by every store on the same folder, see ContentIndex.
+	 */
+	public ContentIndex getContentIndex() {
+		if (contentIndex == null) {
+			contentIndex = ContentIndex.forFolder(getBinPath());
+		}
+		return contentIndex;
+	}
+
+	/*
+	 * Shared by every store on the same folder, see ResumeIndex.
+	 */
+	public ResumeIndex getResumeIndex() {
+		if (resumeIndex == null) {
+			resumeIndex = ResumeIndex.forFolder(getBinPath());
+		}
+		return resumeIndex;
+	}
+
+	/*
+	 * Shared by every store on the same folder, see SignatureCache.
+	 */
+	public SignatureCache getSignatureCache() {
+		if (signatures == null) {
+			signatures = SignatureCache.forFolder(getBinPath());
+		}
+		return signatures;
+	}
+
+	/*
+	 * Shared by every store on the same folder, see UploadMetrics.
+	 */
+	public UploadMetrics getMetrics() {
+		if (metrics == null) {
+			metrics = UploadMetrics.forFolder(getBinPath());
+		}
+		return metrics;
+	}
+
+	/*
+	 * Shared by every store on the same folder, see UploadActivity.
+	 */
+	public UploadActivity getActivity() {
+		if (activity == null) {
+			activity = UploadActivity.forFolder(getBinPath());
+		}
+		return activity;
+	}
+
+	/*
+	 * Shared by every store on the same folder, see StorageAccounting.
+	 */
+	public StorageAccounting getStorageAccounting() {
+		if (accounting == null) {
+			accounting = StorageAccounting.forFolder(getBinPath());
+		}
+		return accounting;
+	}
+
+	/*
+	 * Rebuilds the running totals from the uploads left on disk, e.g. by a
+	 * previous run of the application. The resume index is rebuilt along.
+	 */
+	protected void rebuildStorageAccounting(StorageAccounting accounting) {
+		accounting.clear();
+		File[] files = new File(this.getInfoPath()).listFiles((dir, name) -> name.endsWith(".info"));
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			try {
+				FileInfo fi = getFileInfo(getIDFromFilename(file.getAbsolutePath()));
+				// a delta base is a file of the application, not an upload
+				if (fi != null && !fi.deltaBase) {
+					accounting.add(fi);
+					getResumeIndex().add(fi);
+				}
+			} catch (Exception e) {
+				log.warn("Ignoring {} for storage accounting: {}", file, e.getMessage());
+			}
+		}
+		log.info("Storage accounting rebuilt for {}: {} uploads, {} bytes reserved, {} bytes written", 
+				getBinPath(), accounting.getUploadCount(), accounting.getReserved(), accounting.getWritten());
 	}
 
 	public void destroy() throws Exception {
@@ -50,6 +193,29 @@ public class Store implements Datastore {
 
 	// Called for a new upload
 	public void create(FileInfo fi) throws Exception {
+		// Reserve the announced length, throws if a storage limit would be exceeded.
+		getStorageAccounting().reserve(fi, maxStorage, maxUserStorage, minFreeSpace);
+		try {
+			createFiles(fi);
+			getResumeIndex().add(fi);
+		} catch (Exception e) {
+			getStorageAccounting().release(fi.id);
+			new File(getInfoPath(fi.id)).delete();
+			binLocations.remove(fi.id);
+			throw e;
+		}
+	}
+
+	protected void createFiles(FileInfo fi) throws Exception {
+		// Let the application write the bytes straight to their final destination.
+		Path destination = destinationResolver != null ? destinationResolver.resolve(fi) : null;
+		if (destination != null) {
+			destination = destination.toAbsolutePath();
+			Files.createDirectories(destination.getParent());
+			fi.binPath = destination.toString();
+		}
+		binLocations.put(fi.id, fi.binPath != null ? fi.binPath : getDefaultBinPath(fi.id));
+
 		// Save the fileInfo on disk.
 		saveFileInfo(fi);
 
@@ -65,7 +231,69 @@ public class Store implements Datastore {
 			throw new Exception("File " + pathname + " already exists.");
 		}
 
-		log.debug("created " + file.getCanonicalPath());
+		if (log.isDebugEnabled()) {
+			log.debug("created {}", file.getCanonicalPath());
+		}
+	}
+
+	public boolean deduplicate(FileInfo fi) throws Exception {
+		if (!deduplicate || fi.decodedMetadata == null) {
+			return false;
+		}
+		String key = ContentIndex.key(fi.username, fi.decodedMetadata.get(ContentIndex.DIGEST_METADATA));
+		if (key == null) {
+			return false;
+		}
+		ContentIndex index = getContentIndex();
+		Path content = index.getContent(key);
+		if (content != null && linkContent(fi.id, content, fi.entityLength)) {
+			log.debug("Upload {} completed from {}", fi.id, content);
+			return true;
+		}
+		index.register(fi.id, key);
+		return false;
+	}
+
+	public ContentIndex.Status resolveDuplicate(String id) throws Exception {
+		if (!deduplicate) {
+			return ContentIndex.Status.NONE;
+		}
+		ContentIndex index = getContentIndex();
+		String key = index.getFollowedKey(id);
+		if (key == null) {
+			return ContentIndex.Status.NONE;
+		}
+		if (index.isWritten(key)) {
+			return ContentIndex.Status.PENDING;
+		}
+		index.unregister(id);
+		Path content = index.getContent(key);
+		FileInfo fi = getFileInfo(id);
+		if (content != null && fi != null && fi.offset == 0 && linkContent(id, content, fi.entityLength)) {
+			log.debug("Upload {} completed from {}", id, content);
+			return ContentIndex.Status.COMPLETED;
+		}
+		return ContentIndex.Status.NONE;
+	}
+
+	/*
+	 * Replaces the empty bin of id by a link to (or a copy of) content, when its
+	 * length is the expected one.
+	 */
+	protected boolean linkContent(String id, Path content, long length) throws Exception {
+		if (Files.size(content) != length) {
+			return false;
+		}
+		Path bin = Paths.get(getBinPath(id));
+		Files.delete(bin);
+		try {
+			Files.createLink(bin, content);
+		} catch (IOException | UnsupportedOperationException e) {
+			Files.copy(content, bin);
+		}
+		getContentIndex().touch(content);
+		getStorageAccounting().written(id, length);
+		return true;
 	}
 
 	/*
@@ -84,50 +312,341 @@ public class Store implements Datastore {
 		String pathname = getBinPath(id);
 		File file = new File(pathname);
 		if (!file.exists()) {
-			log.warn("File " + pathname + " doesn't exist.");
+			log.warn("File {} doesn't exist.", pathname);
 			throw new Exception("File " + pathname + " doesn't exist.");
 		}
 		if (!file.canRead() || !file.canWrite() || !file.isFile()) {
-			log.error("File " + pathname + " has permissions problem or is not a regular file.");
+			log.error("File {} has permissions problem or is not a regular file.", pathname);
 			throw new Exception("File " + pathname + " has permissions problem or is not a regular file.");
 		}
 		// TODO: check that file offset matches request offset.
 
+		if (deduplicate && getContentIndex().getFollowedKey(id) != null) {
+			// stopped waiting for the upload of the same content: writes its own bytes
+			getContentIndex().unregister(id);
+		}
+
 		long transferred = 0L;
+		String encoding = request.getHeader("Content-Encoding");
+		boolean gzip = "gzip".equalsIgnoreCase(encoding);
+		boolean deflate = "deflate".equalsIgnoreCase(encoding);
+		boolean capped = false;
+		// offsets and max are in inflated bytes: compressed bodies are inflated while streaming
+		Inflater inflater = deflate ? new Inflater() : null;
 		/*
-		 * TODO: Is the rbc source blocking or async? This will only work if it blocks until
-		 * data is available. BUT blocking isn't so great if client loses network
-		 * connectivity and we block indefnitely because he hasn't closed the tcp
-		 * connection. Is there a way to set a timeout so we can close the connection?
-		 * fyi: request.getInputStream is returning a ServletInputStream
+		 * The reads block until data is available: a client which goes silent without
+		 * closing its connection is aborted by the StallWatchdog.
 		 */
-		try (	RandomAccessFile raf = new RandomAccessFile(getBinPath(id), "rwd"); // throws if file doesn't exist
+		InputStream body = request.getInputStream();
+		StallWatchdog.Watch watch = watch(id, body);
+		UploadActivity.Upload active = getActivity().writeStarted(id);
+		Span step = UploadTracer.current().child("write");
+		Object event = JfrEvents.begin(JfrEvents.WRITE);
+		String outcome = "failed";
+		CountingChannel counter = null;
+		try (	RandomAccessFile raf = new RandomAccessFile(pathname, "rwd"); // throws if file doesn't exist
 				FileChannel dest = raf.getChannel();
-				ReadableByteChannel rbc = Channels.newChannel(request.getInputStream()); ){
+				InputStream in = gzip ? new GZIPInputStream(body, INFLATE_BUFFER_SIZE)
+						: deflate ? new InflaterInputStream(body, inflater, INFLATE_BUFFER_SIZE)
+						: body;
+				ReadableByteChannel rbc = Channels.newChannel(in); ){
+			counter = new CountingChannel(rbc, watch, active);
 
 			if (maxRequest > 0L && maxRequest < max) {
 				max = maxRequest;
+				capped = true;
 			}
 
 			log.debug("Calling FileChannel.transferFrom ...");
-			transferred = dest.transferFrom(rbc, offset, max);
+			transferred = dest.transferFrom(counter, offset, max);
 			log.debug("Transferred {} bytes.", transferred);
+			if (watch != null && watch.isAborted()) {
+				// transferFrom returns what it read before the stream was closed
+				transferred = 0L;
+				throw new TusException.Stalled();
+			}
+			// the inflated size is only known once read: nothing may remain past the upload length
+			if ((gzip || deflate) && !capped && transferred == max && in.read() != -1) {
+				log.debug("Inflated body of {} exceeds its upload length", id);
+				dest.truncate(offset);
+				transferred = 0L;
+				throw new TusException.SizeExceeded();
+			}
+			getStorageAccounting().written(id, transferred);
+			getMetrics().written(transferred, false);
+			outcome = "ok";
 			return transferred;
 		} catch (Exception e) {
+			// account what reached the disk before the failure
+			long written = file.length() - offset - transferred;
+			getStorageAccounting().written(id, written);
+			getMetrics().written(written, true);
+			if (watch != null && watch.isAborted()) {
+				// the offset is the length of the file: the client resumes after a HEAD
+				outcome = "stalled";
+				throw new TusException.Stalled();
+			}
 			log.error("write failed:", e);
+			step.setStatus(Span.STATUS_ERROR, e.toString());
 			throw e;
+		} finally {
+			if (watch != null) {
+				watch.close();
+			}
+			getActivity().writeEnded(active);
+			if (counter != null) {
+				// the file is opened "rwd": the write time includes its synchronization
+				long elapsed = System.nanoTime() - step.getStart();
+				step.setAttribute("tus.bytes", counter.getBytes())
+					.setAttribute("tus.read.duration_ns", counter.getReadTime())
+					.setAttribute("tus.write.duration_ns", elapsed - counter.getReadTime());
+			}
+			step.end();
+			JfrEvents.write(event, id, offset, counter != null ? counter.getBytes() : 0L, outcome);
+			if (inflater != null) {
+				inflater.end();
+			}
 		}
 	}
 
 	/*
-	 * Remove partial or complete upload. TODO: periodically look for bfiles w/o
-	 * corresponding ifile and delete them for any cases where we've crashed between
-	 * delete if ifile and bfile.
+	 * Returns the watch aborting the write of id if stream stalls, or null if
+	 * the StallWatchdog is disabled.
+	 */
+	protected StallWatchdog.Watch watch(String id, InputStream stream) {
+		if (minThroughput <= 0 || stallGracePeriod <= 0) {
+			return null;
+		}
+		return StallWatchdog.getShared().watch(id, minThroughput, stallGracePeriod, stream, getMetrics());
+	}
+
+	public long writeDelta(VaadinRequest request, String id, long recipeLength) throws Exception {
+		FileInfo fi = getFileInfo(id);
+		if (fi == null) {
+			throw new TusException.NotFound();
+		}
+		if (fi.offset != 0) {
+			throw new TusException.MismatchOffset();
+		}
+		if (recipeLength <= 0 || recipeLength > MAX_RECIPE_LENGTH) {
+			throw new TusException.InvalidDelta("recipe length " + recipeLength);
+		}
+
+		InputStream in = request.getInputStream();
+		StallWatchdog.Watch watch = watch(id, in);
+		UploadActivity.Upload active = getActivity().writeStarted(id);
+		Span step = UploadTracer.current().child("write.delta");
+		try {
+			long written = writeDelta(in, watch, active, fi, recipeLength);
+			step.setAttribute("tus.bytes", written);
+			return written;
+		} catch (Exception e) {
+			step.setStatus(Span.STATUS_ERROR, e.toString());
+			if (watch != null && watch.isAborted()) {
+				throw new TusException.Stalled();
+			}
+			throw e;
+		} finally {
+			if (watch != null) {
+				watch.close();
+			}
+			getActivity().writeEnded(active);
+			step.end();
+		}
+	}
+
+	protected long writeDelta(InputStream in, StallWatchdog.Watch watch, UploadActivity.Upload active, FileInfo fi,
+			long recipeLength) throws Exception {
+		String id = fi.id;
+		String baseId = fi.decodedMetadata != null ? fi.decodedMetadata.get(DELTA_BASE_METADATA) : null;
+		Path base = getDeltaBase(baseId, fi.username);
+
+		byte[] recipe = new byte[(int) recipeLength];
+		new DataInputStream(in).readFully(recipe);
+		if (watch != null) {
+			watch.progress(recipeLength);
+		}
+		active.progress(recipeLength);
+		List<long[]> operations = ChunkSignature.parseRecipe(recipe, Files.size(base), fi.entityLength);
+		long literals = 0L;
+		for (long[] operation : operations) {
+			if (operation[0] < 0) {
+				// no overflow, parseRecipe bounds the sum of the lengths by entityLength
+				literals += operation[1];
+			}
+		}
+		if (maxRequest > 0L && literals > maxRequest) {
+			// the connector falls back to a chunked upload
+			throw new TusException.SizeExceeded();
+		}
+
+		Path bin = Paths.get(getBinPath(id));
+		long position = 0L;
+		try (FileChannel dest = FileChannel.open(bin, StandardOpenOption.WRITE);
+				FileChannel src = FileChannel.open(base, StandardOpenOption.READ);
+				ReadableByteChannel rbc = new CountingChannel(Channels.newChannel(in), watch, active)) {
+			for (long[] operation : operations) {
+				long done = 0L;
+				if (operation[1] > fi.entityLength - position) {
+					throw new TusException.InvalidDelta("recipe longer than the upload of " + fi.entityLength + " bytes");
+				}
+				if (operation[0] >= 0) {
+					dest.position(position);
+					while (done < operation[1]) {
+						long copied = src.transferTo(operation[0] + done, operation[1] - done, dest);
+						if (copied <= 0) {
+							throw new IOException("Delta base " + baseId + " changed while copied");
+						}
+						done += copied;
+						position += copied;
+					}
+				} else {
+					done = dest.transferFrom(rbc, position, operation[1]);
+					position += done;
+					if (done < operation[1]) {
+						throw new TusException.InvalidDelta("body ended after " + position + " bytes");
+					}
+				}
+			}
+			log.debug("Delta upload {}: {} bytes assembled from {}, {} literal bytes", id, position, baseId, literals);
+			return position;
+		} finally {
+			// what was assembled stays, to be resumed by a plain upload
+			getStorageAccounting().written(id, position);
+			getMetrics().written(position, false);
+		}
+	}
+
+	/*
+	 * Returns the bytes of the completed upload baseId of username. Anonymous
+	 * uploads are never bases: nothing tells their clients apart, any of them
+	 * could probe or assemble the content of another.
+	 */
+	protected Path getDeltaBase(String baseId, String username) throws Exception {
+		FileInfo base = baseId != null && baseId.matches("\\w+") ? getFileInfo(baseId) : null;
+		if (base == null || base.offset != base.entityLength
+				|| base.username == null || !base.username.equals(username)) {
+			log.debug("No delta base {} for {}", baseId, username);
+			throw new TusException.NotFound();
+		}
+		return Paths.get(getBinPath(baseId));
+	}
+
+	public ChunkSignature getSignature(String baseId, String username) throws Exception {
+		return getSignatureCache().get(baseId, getDeltaBase(baseId, username));
+	}
+
+	public Map<String, String> getResumableUploads(String username) {
+		return getResumeIndex().getUploads(username);
+	}
+
+	public String addDeltaBase(Path previousVersion, String username) throws Exception {
+		previousVersion = previousVersion.toAbsolutePath();
+		FileInfo fi = new FileInfo(Files.size(previousVersion), null, username);
+		fi.binPath = previousVersion.toString();
+		fi.deltaBase = true;
+		saveFileInfo(fi);
+		binLocations.put(fi.id, fi.binPath);
+		log.debug("{} registered as delta base {}", previousVersion, fi.id);
+		return fi.id;
+	}
+
+	/*
+	 * Remove partial or complete upload. A completed upload written (or committed
+	 * by rename) outside the upload folder is left in place, and so is the file
+	 * of a delta base whatever its size. TODO: periodically
+	 * look for bfiles w/o corresponding ifile and delete them for any cases where
+	 * we've crashed between delete if ifile and bfile.
 	 */
 	public void terminate(String id) throws Exception {
 		log.debug("terminate: cleaning {}", id);
+		FileInfo fi = getFileInfo(id);
+		boolean keepBin = fi != null && (fi.deltaBase || (fi.binPath != null && fi.offset == fi.entityLength));
+		String bin = getBinPath(id);
 		new File(getInfoPath(id)).delete();
-		new File(getBinPath(id)).delete();
+		if (!keepBin) {
+			new File(bin).delete();
+		}
+		binLocations.remove(id);
+		getStorageAccounting().release(id);
+		getActivity().removed(id);
+		getResumeIndex().remove(id);
+		getSignatureCache().remove(id);
+		if (deduplicate) {
+			getContentIndex().unregister(id);
+		}
+	}
+
+	public Path commit(String id, Path target, boolean keepSource) throws Exception {
+		Path source = getInputStreamPath(id);
+		target = target.toAbsolutePath();
+		if (source.equals(target)) {
+			return target;
+		}
+		Files.createDirectories(target.getParent());
+
+		// bytes shared with the content index (or an earlier commit) are copied: editing the
+		// committed file in place would change what the later duplicates are linked to
+		boolean shared = isShared(source);
+		if (!keepSource && !shared) {
+			// read before the rename: getFileInfo needs the bin
+			FileInfo fi = getFileInfo(id);
+			try {
+				Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+				log.debug("commit: {} renamed to {}", id, target);
+				// the bytes now belong to the application: terminate will leave them in place
+				fi.binPath = target.toString();
+				saveFileInfo(fi);
+				binLocations.put(id, fi.binPath);
+				getStorageAccounting().release(id);
+				return target;
+			} catch (IOException | UnsupportedOperationException e) {
+				log.debug("commit: rename of {} to {} not possible: {}", id, target, e.toString());
+			}
+		}
+		if (!shared) {
+			try {
+				Files.createLink(target, source);
+				log.debug("commit: {} linked to {}", id, target);
+				return target;
+			} catch (IOException | UnsupportedOperationException e) {
+				log.debug("commit: link of {} to {} not possible: {}", id, target, e.toString());
+			}
+		}
+
+		// Copy to a temporary sibling so that target only ever appears complete.
+		Path tmp = target.resolveSibling(target.getFileName() + "." + id + ".tmp");
+		try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+			long size = in.size();
+			long position = 0L;
+			while (position < size) {
+				position += in.transferTo(position, size - position, out);
+			}
+		} catch (Exception e) {
+			Files.deleteIfExists(tmp);
+			throw e;
+		}
+		try {
+			Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+		log.debug("commit: {} copied to {}", id, target);
+		return target;
+	}
+
+	/*
+	 * Returns true if the bytes of path have other links, e.g. the content of a
+	 * deduplicated upload. Without link counts, every bin of a deduplicating
+	 * store may be.
+	 */
+	protected boolean isShared(Path path) {
+		try {
+			return ((Number) Files.getAttribute(path, "unix:nlink")).intValue() > 1;
+		} catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+			return deduplicate;
+		}
 	}
 
 	/*
@@ -135,14 +654,18 @@ public class Store implements Datastore {
 	 */
 	public FileInfo getFileInfo(String id) throws Exception {
 		File ifile = new File(getInfoPath(id));
-		File bfile = new File(getBinPath(id));
-
-		if (!ifile.exists() || !bfile.exists()) {
+		if (!ifile.exists()) {
 			return null;
 		}
 
-		ObjectMapper mapper = new ObjectMapper();
-		FileInfo fileInfo = mapper.readValue(ifile, FileInfo.class);
+		FileInfo fileInfo = MAPPER.readValue(ifile, FileInfo.class);
+
+		String location = fileInfo.binPath != null ? fileInfo.binPath : getDefaultBinPath(id);
+		binLocations.put(id, location);
+		File bfile = new File(location);
+		if (!bfile.exists()) {
+			return null;
+		}
 
 		fileInfo.offset = bfile.length();
 		return fileInfo;
@@ -154,13 +677,51 @@ public class Store implements Datastore {
 		fileInfo.offset = -1;
 
 		File file = new File(getInfoPath(fileInfo.id));
-		ObjectMapper mapper = new ObjectMapper();
-		mapper.writeValue(file, fileInfo);
+		MAPPER.writeValue(file, fileInfo);
 
 	}
 
 	public void finish(String id) throws Exception {
 		log.debug("finish: {}", id);
+		getResumeIndex().remove(id);
+		getActivity().removed(id);
+		if (deduplicate) {
+			publishContent(id);
+		}
+	}
+
+	/*
+	 * Publishes the content of a completed upload in the content index, once its
+	 * announced digest is verified.
+	 */
+	protected void publishContent(String id) throws Exception {
+		ContentIndex index = getContentIndex();
+		String key = index.getWritingKey(id);
+		if (key == null) {
+			return;
+		}
+		Path bin = Paths.get(getBinPath(id));
+		MessageDigest md = ContentIndex.newDigest();
+		ByteBuffer buffer = ByteBuffer.allocate(INFLATE_BUFFER_SIZE);
+		try (FileChannel channel = FileChannel.open(bin, StandardOpenOption.READ)) {
+			while (channel.read(buffer) >= 0) {
+				buffer.flip();
+				md.update(buffer);
+				buffer.clear();
+			}
+		}
+		String digest = ContentIndex.hex(md.digest(), 32);
+		if (!key.endsWith(digest)) {
+			log.warn("Upload {} doesn't match its announced digest, not deduplicated", id);
+			index.unregister(id);
+			return;
+		}
+		try {
+			index.publish(id, bin);
+		} catch (IOException e) {
+			log.warn("Unable to publish the content of {}: {}", id, e.toString());
+			index.unregister(id);
+		}
 	}
 
 	protected String getBinPath() {
@@ -172,6 +733,26 @@ public class Store implements Datastore {
 	}
 	
 	protected String getBinPath(String id) {
+		String location = binLocations.get(id);
+		if (location != null) {
+			return location;
+		}
+		// another store (e.g. the uploader's one) may have created it elsewhere
+		File ifile = new File(getInfoPath(id));
+		if (ifile.exists()) {
+			try {
+				FileInfo fileInfo = MAPPER.readValue(ifile, FileInfo.class);
+				location = fileInfo.binPath != null ? fileInfo.binPath : getDefaultBinPath(id);
+				binLocations.put(id, location);
+				return location;
+			} catch (IOException e) {
+				log.warn("Unable to read {}: {}", ifile, e.getMessage());
+			}
+		}
+		return getDefaultBinPath(id);
+	}
+
+	protected String getDefaultBinPath(String id) {
 		return this.getBinPath() + File.separator + id + ".bin";
 	}
 
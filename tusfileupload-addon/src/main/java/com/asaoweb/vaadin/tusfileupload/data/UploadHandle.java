@@ -0,0 +1,119 @@
+package com.asaoweb.vaadin.tusfileupload.data;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.asaoweb.vaadin.tusfileupload.FileInfo;
+
+/*
+Reference counted access to a completed upload. The handle is created with one
+reference, owned by whoever dispatches the upload; every consumer keeping the
+path or a stream beyond the dispatch takes its own reference. The upload is
+terminated in the datastore when the last reference is released.
+
+Streams opened by openInputStream() hold a reference until closed.
+*/
+public class UploadHandle implements Serializable {
+	private static final Logger log = LoggerFactory.getLogger(UploadHandle.class.getName());
+
+	protected final Datastore datastore;
+	protected final FileInfo fileInfo;
+	protected final AtomicInteger refs = new AtomicInteger(1);
+
+	public UploadHandle(Datastore datastore, FileInfo fileInfo) {
+		this.datastore = datastore;
+		this.fileInfo = fileInfo;
+	}
+
+	public FileInfo getFileInfo() {
+		return fileInfo;
+	}
+
+	/*
+	 * Takes a reference, to be given back with release().
+	 */
+	public UploadHandle retain() {
+		int count;
+		do {
+			count = refs.get();
+			if (count <= 0) {
+				throw new IllegalStateException("Upload " + fileInfo.id + " already released");
+			}
+		} while (!refs.compareAndSet(count, count + 1));
+		return this;
+	}
+
+	/*
+	 * Gives a reference back, terminating the upload if it was the last one.
+	 */
+	public void release() {
+		int count = refs.decrementAndGet();
+		if (count == 0) {
+			try {
+				datastore.terminate(fileInfo.id);
+			} catch (Exception e) {
+				log.warn("dataStore terminate pb for file info {}", fileInfo, e);
+			}
+		} else if (count < 0) {
+			log.warn("Upload {} released more times than retained", fileInfo.id);
+		}
+	}
+
+	public boolean isReleased() {
+		return refs.get() <= 0;
+	}
+
+	/*
+	 * Path of the uploaded bytes, valid as long as a reference is held.
+	 */
+	public Path getPath() {
+		return datastore.getInputStreamPath(fileInfo.id);
+	}
+
+	/*
+	 * Opens a stream on the uploaded bytes, holding a reference until closed.
+	 */
+	public InputStream openInputStream() throws Exception {
+		retain();
+		try {
+			return new FilterInputStream(datastore.getInputStream(fileInfo.id)) {
+				private boolean closed = false;
+
+				@Override
+				public void close() throws IOException {
+					if (!closed) {
+						closed = true;
+						try {
+							super.close();
+						} finally {
+							release();
+						}
+					}
+				}
+			};
+		} catch (Exception e) {
+			release();
+			throw e;
+		}
+	}
+
+	/*
+	 * Hands the upload off to target, see Datastore.commit(). The bytes are
+	 * renamed when this handle holds the only reference, otherwise they are
+	 * linked or copied so that the other holders keep a valid path. Bytes shared
+	 * with the content index are always copied.
+	 */
+	public synchronized Path commitTo(Path target) throws Exception {
+		if (isReleased()) {
+			throw new IllegalStateException("Upload " + fileInfo.id + " already released");
+		}
+		return datastore.commit(fileInfo.id, target, refs.get() > 1);
+	}
+}
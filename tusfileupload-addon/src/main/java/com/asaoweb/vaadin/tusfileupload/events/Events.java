@@ -1,11 +1,16 @@
 package com.asaoweb.vaadin.tusfileupload.events;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
 
 import com.asaoweb.vaadin.tusfileupload.FileInfo;
 import com.asaoweb.vaadin.tusfileupload.component.TusMultiUpload;
+import com.asaoweb.vaadin.tusfileupload.data.UploadHandle;
 import com.vaadin.ui.Component;
 
 public class Events {
@@ -229,10 +234,16 @@ public class Events {
 
     /**
      * An event describing a successful upload.
+     * <p>
+     * The uploaded bytes are only guaranteed to exist while the event is
+     * dispatched. Listeners working on them asynchronously must {@link #retain()}
+     * the upload and release the returned handle once done, or hand the bytes off
+     * with {@link #commitTo(Path)} which avoids copying them.
      */
     public static class SucceededEvent extends FinishedEvent {
 
-        final InputStream inputStream;
+        final UploadHandle handle;
+        InputStream inputStream;
         final Path inputStreamPath;
         //final int remainingQueueSize;
         boolean addFileToList = true;
@@ -248,15 +259,99 @@ public class Events {
          */
         public SucceededEvent(TusMultiUpload source, FileInfo fileInfo, InputStream inputStream, Path inputStreamPath) {
             super(source, fileInfo);
+            this.handle = null;
             this.inputStream = inputStream;
             this.inputStreamPath = inputStreamPath;
         }
 
+        /**
+         * Constructs the event on a reference counted upload.
+         *
+         * @param source   the source component
+         * @param fileInfo the completed upload
+         * @param handle   the handle of the upload, its reference is owned by the dispatcher
+         */
+        public SucceededEvent(TusMultiUpload source, FileInfo fileInfo, UploadHandle handle) {
+            super(source, fileInfo);
+            this.handle = handle;
+            this.inputStreamPath = null;
+        }
+
+        /**
+         * Returns a stream on the uploaded bytes, opened on first call and closed
+         * once the event is dispatched.
+         *
+         * @return the stream of the uploaded bytes
+         */
         public InputStream getInputStream() {
+            if (inputStream == null && handle != null) {
+                try {
+                    inputStream = handle.openInputStream();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } catch (Exception e) {
+                    throw new IllegalStateException("Unable to open upload " + getId(), e);
+                }
+            }
             return inputStream;
         }
 
-        public Path getInputStreamPath() { return inputStreamPath; }
+        public Path getInputStreamPath() { return handle != null ? handle.getPath() : inputStreamPath; }
+
+        /**
+         * Returns the reference counted handle of the upload, or null if the event
+         * wasn't built on one.
+         *
+         * @return the upload handle
+         */
+        public UploadHandle getHandle() {
+            return handle;
+        }
+
+        /**
+         * Keeps the uploaded bytes beyond the dispatch of the event: the returned
+         * handle must be released once done.
+         *
+         * @return the retained handle
+         */
+        public UploadHandle retain() {
+            if (handle == null) {
+                throw new IllegalStateException("Upload " + getId() + " isn't reference counted");
+            }
+            return handle.retain();
+        }
+
+        /**
+         * Hands the uploaded bytes off to target, by rename or link when possible.
+         * The bytes are copied when they are shared, e.g. with the content kept for
+         * deduplication (see Config "deduplicate"), so that target can be modified
+         * in place. When the handle was retained by other listeners, target may be
+         * a link to the bytes they read: copy it before modifying it in place.
+         *
+         * @param target the final path of the bytes
+         * @return the path of the committed bytes
+         * @throws Exception if the bytes can't be committed
+         */
+        public Path commitTo(Path target) throws Exception {
+            if (handle == null) {
+                throw new IllegalStateException("Upload " + getId() + " isn't reference counted");
+            }
+            return handle.commitTo(target);
+        }
+
+        /**
+         * Called by the dispatcher once every listener ran: closes the stream
+         * returned by {@link #getInputStream()}, if any.
+         */
+        public void dispose() {
+            if (inputStream != null && handle != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    // nothing more to do with it
+                }
+            }
+        }
 
         //public int getRemainingQueueSize() { return remainingQueueSize; }
 
@@ -320,6 +415,90 @@ public class Events {
         void uploadFileQueued(FileQueuedEvent evt);
     }
 
+    /**
+     * An event describing files added to the queue together, e.g. the content
+     * of a dropped folder. No {@link FileQueuedEvent} is fired for them; a
+     * file queued alone fires both, its batch holding only that file.
+     */
+    public static class FileQueuedBatchEvent extends Component.Event {
+        private final List<FileInfo> fileInfos;
+
+        /**
+         * Constructs the event.
+         *
+         * @param source    the source component
+         * @param fileInfos the FileInfos of the files provided by the client, in queue order
+         */
+        public FileQueuedBatchEvent(TusMultiUpload source, List<FileInfo> fileInfos) {
+            super(source);
+            this.fileInfos = Collections.unmodifiableList(fileInfos);
+        }
+
+        /**
+         * Returns the FileInfos of the queued files.
+         *
+         * @return the FileInfos, in queue order
+         */
+        public List<FileInfo> getFileInfos() {
+            return fileInfos;
+        }
+    }
+
+    /**
+     * A listener that receives the files added to the queue together.
+     */
+    public interface FileQueuedBatchListener extends Serializable {
+
+        /**
+         * Called when files are added to the queue.
+         *
+         * @param evt the event details
+         */
+        void uploadFilesQueued(FileQueuedBatchEvent evt);
+    }
+
+    /**
+     * An event carrying the preview of a queued file, rendered by the browser
+     * before the file is uploaded (see {@link TusMultiUpload#setPreviewSize(int)}).
+     */
+    public static class PreviewEvent extends AbstractTusUploadEvent {
+        private final byte[] image;
+
+        /**
+         * Constructs the event.
+         *
+         * @param source   the source component
+         * @param fileInfo the FileInfo of the queued file, with its queue id
+         * @param image    the encoded preview, as sent by the client: to be checked before use
+         */
+        public PreviewEvent(TusMultiUpload source, FileInfo fileInfo, byte[] image) {
+            super(source, fileInfo);
+            this.image = image;
+        }
+
+        /**
+         * Returns the preview, a JPEG image sent by the client.
+         *
+         * @return the encoded image
+         */
+        public byte[] getImage() {
+            return image;
+        }
+    }
+
+    /**
+     * A listener that receives the previews of the queued files.
+     */
+    public interface PreviewListener extends Serializable {
+
+        /**
+         * Called when the preview of a queued file is received.
+         *
+         * @param evt the event details
+         */
+        void uploadPreview(PreviewEvent evt);
+    }
+
     /**
      * An event describing a deleted upload.
      */
@@ -396,4 +575,11 @@ public class Events {
          */
         void fileIndexMoved(FileIndexMovedEvent evt);
     }
+
+    /**
+     * A listener receiving the events of a single upload, registered with
+     * {@link TusMultiUpload#addUploadListener(String, UploadListener)}.
+     */
+    public interface UploadListener extends StartedListener, ProgressListener, FailedListener, SucceededListener {
+    }
 }
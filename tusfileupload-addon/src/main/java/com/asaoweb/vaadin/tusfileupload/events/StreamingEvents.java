@@ -1,6 +1,9 @@
 package com.asaoweb.vaadin.tusfileupload.events;
 
+import java.util.List;
+
 import com.asaoweb.vaadin.tusfileupload.FileInfo;
+import com.vaadin.server.StreamVariable;
 import com.vaadin.server.StreamVariable.StreamingEndEvent;
 import com.vaadin.server.StreamVariable.StreamingEvent;
 import com.vaadin.server.StreamVariable.StreamingProgressEvent;
@@ -10,6 +13,19 @@ public class StreamingEvents {
 	public interface TusStreamingEvent extends StreamingEvent {
 		 public FileInfo getFileInfo();
 	}
+
+	/**
+	 * A stream variable told about the uploads created ahead of their turn by
+	 * a batch creation, which get no streamingStarted until their first PATCH.
+	 */
+	public interface TusBatchStreamVariable extends StreamVariable {
+		/**
+		 * Called once the uploads of a batch are created, before the answer is sent.
+		 *
+		 * @param fileInfos the created uploads, flagged deferredStart
+		 */
+		public void uploadsCreated(List<FileInfo> fileInfos);
+	}
 	
 	static abstract class AbstractStreamingEvent implements TusStreamingEvent {
 	    private final FileInfo fileInfo;
@@ -0,0 +1,69 @@
+package com.asaoweb.vaadin.tusfileupload.events;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.asaoweb.vaadin.tusfileupload.events.Events.AbstractTusUploadEvent;
+import com.asaoweb.vaadin.tusfileupload.events.Events.FailedEvent;
+import com.asaoweb.vaadin.tusfileupload.events.Events.ProgressEvent;
+import com.asaoweb.vaadin.tusfileupload.events.Events.StartedEvent;
+import com.asaoweb.vaadin.tusfileupload.events.Events.SucceededEvent;
+import com.asaoweb.vaadin.tusfileupload.events.Events.UploadListener;
+import com.vaadin.shared.Registration;
+
+/*
+Dispatches the events of an upload to the listeners registered for its queue id
+(or upload id) only, with plain method calls: the cost of an event doesn't
+depend on the number of uploads listened to.
+
+Routes are removed once the upload succeeded or failed.
+*/
+public class UploadEventRouter implements Serializable {
+	protected final Map<String, List<UploadListener>> routes = new ConcurrentHashMap<>();
+
+	public Registration register(String key, UploadListener listener) {
+		routes.computeIfAbsent(key, k -> new CopyOnWriteArrayList<>()).add(listener);
+		return () -> unregister(key, listener);
+	}
+
+	public void unregister(String key, UploadListener listener) {
+		routes.computeIfPresent(key, (k, listeners) -> {
+			listeners.remove(listener);
+			return listeners.isEmpty() ? null : listeners;
+		});
+	}
+
+	public int size() {
+		return routes.size();
+	}
+
+	public void route(AbstractTusUploadEvent evt) {
+		String key = evt.getQueueId();
+		List<UploadListener> listeners = key != null ? routes.get(key) : null;
+		if (listeners == null && evt.getId() != null) {
+			key = evt.getId();
+			listeners = routes.get(key);
+		}
+		if (listeners == null) {
+			return;
+		}
+		boolean completed = evt instanceof SucceededEvent || evt instanceof FailedEvent;
+		for (UploadListener listener : listeners) {
+			if (evt instanceof ProgressEvent) {
+				listener.uploadProgress((ProgressEvent) evt);
+			} else if (evt instanceof StartedEvent) {
+				listener.uploadStarted((StartedEvent) evt);
+			} else if (evt instanceof SucceededEvent) {
+				listener.uploadSucceeded((SucceededEvent) evt);
+			} else if (evt instanceof FailedEvent) {
+				listener.uploadFailed((FailedEvent) evt);
+			}
+		}
+		if (completed) {
+			routes.remove(key);
+		}
+	}
+}
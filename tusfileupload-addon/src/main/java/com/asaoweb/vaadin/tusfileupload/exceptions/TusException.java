@@ -10,8 +10,13 @@ public class TusException extends Exception
 	public int getStatus() { return this.status; }
 	public String getText() { return this.text; }
 
+	/*
+	 * TusExceptions are answers to the client rather than failures: they are
+	 * thrown on the request path without filling a stack trace.
+	 */
 	public TusException(int status, String text)
 	{
+		super(text, null, false, false);
 		this.status = status;
 		this.text = text;
 	}
@@ -46,6 +51,21 @@ public class TusException extends Exception
 			super(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "maximum size exceeded");
 		}
 	}
+	public static class StorageQuotaExceeded extends TusException
+	{
+		public StorageQuotaExceeded()
+		{
+			super(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "storage quota exceeded");
+		}
+	}
+	public static class InsufficientStorage extends TusException
+	{
+		public InsufficientStorage()
+		{
+			// 507 is INSUFFICIENT STORAGE (WebDAV rfc 4918)
+			super(507, "insufficient storage");
+		}
+	}
 	public static class InvalidContentType extends TusException
 	{
 		public InvalidContentType()
@@ -103,6 +123,34 @@ public class TusException extends Exception
 			super(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "resource's size exceeded");
 		}
 	}
+	public static class UnsupportedContentEncoding extends TusException
+	{
+		public UnsupportedContentEncoding()
+		{
+			super(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE, "unsupported Content-Encoding");
+		}
+	}
+	public static class InvalidDelta extends TusException
+	{
+		public InvalidDelta(String problem)
+		{
+			super(HttpServletResponse.SC_BAD_REQUEST, "invalid delta upload: "+problem);
+		}
+	}
+	public static class InvalidBatch extends TusException
+	{
+		public InvalidBatch(String problem)
+		{
+			super(HttpServletResponse.SC_BAD_REQUEST, "invalid batch creation: "+problem);
+		}
+	}
+	public static class Stalled extends TusException
+	{
+		public Stalled()
+		{
+			super(HttpServletResponse.SC_REQUEST_TIMEOUT, "request body stalled");
+		}
+	}
 	public static class NotImplemented extends TusException
 	{
 		public NotImplemented()
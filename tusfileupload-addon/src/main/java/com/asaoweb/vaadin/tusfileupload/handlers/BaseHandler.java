@@ -1,18 +1,21 @@
 package com.asaoweb.vaadin.tusfileupload.handlers;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.asaoweb.vaadin.tusfileupload.ChunkAdvisor;
 import com.asaoweb.vaadin.tusfileupload.Composer;
 import com.asaoweb.vaadin.tusfileupload.Config;
 import com.asaoweb.vaadin.tusfileupload.FileInfo;
 import com.asaoweb.vaadin.tusfileupload.Locker;
 import com.asaoweb.vaadin.tusfileupload.TUSFileUploadHandler;
 import com.asaoweb.vaadin.tusfileupload.data.Datastore;
+import com.asaoweb.vaadin.tusfileupload.events.StreamingEvents;
 import com.asaoweb.vaadin.tusfileupload.exceptions.TusException;
+import com.asaoweb.vaadin.tusfileupload.metrics.JfrEvents;
+import com.asaoweb.vaadin.tusfileupload.metrics.Span;
+import com.asaoweb.vaadin.tusfileupload.metrics.UploadActivity;
+import com.asaoweb.vaadin.tusfileupload.metrics.UploadTracer;
 import com.vaadin.server.StreamVariable;
 import com.vaadin.server.VaadinRequest;
 
@@ -21,14 +24,34 @@ public abstract class BaseHandler {
 	
 	final Config config;
 	final Locker locker;
+	final ChunkAdvisor chunkAdvisor;
 	final Datastore datastore;
 	final VaadinRequest request;
 	final Response response;
 	final StreamVariable streamVariable;
+	final RequestContext context;
+	final UploadTracer tracer;
+	final UploadActivity activity;
+	// the span of the request, see handle
+	Span span = Span.NOOP;
+	private String clientKey;
+	private boolean completed = false;
 
 	public BaseHandler(Composer composer, VaadinRequest request, Response response, StreamVariable streamVariable) {
+		this(composer, request, response, streamVariable, RequestContext.parse(request));
+	}
+
+	/*
+	 * For requests whose URL was already parsed by the caller.
+	 */
+	public BaseHandler(Composer composer, VaadinRequest request, Response response, StreamVariable streamVariable,
+			RequestContext context) {
+		this.context = context;
 		this.config = composer.getConfig();
 		this.locker = composer.getLocker();
+		this.chunkAdvisor = composer.getChunkAdvisor();
+		this.tracer = composer.getTracer();
+		this.activity = composer.getActivity();
 		this.datastore = composer.getDatastore();
 		this.request = request;
 		this.response = response;
@@ -38,26 +61,113 @@ public abstract class BaseHandler {
 	public abstract void go() throws Exception;
 
 	/*
-	 * Returns null if header doesn't exist or isn't a long value.
+	 * Runs go() within the span of the request, see UploadTracer.
 	 */
-	public Long getLongHeader(String header) {
-		String headerValue = request.getHeader(header);
-		if (headerValue == null) {
-			return null;
+	public void handle() throws Exception {
+		span = tracer.start(getID(), context.method, context.received);
+		if (context.getSessionLockWait() > 0) {
+			span.child("session.lock", context.received).end(context.received + context.getSessionLockWait());
 		}
-		Long value = null;
+		UploadTracer.setCurrent(span);
+		activity.requestStarted();
+		int status = 0;
+		try {
+			go();
+			status = response.getStatus();
+			span.setStatus(Span.STATUS_OK, null);
+		} catch (TusException e) {
+			status = e.getStatus();
+			span.setStatus(Span.STATUS_ERROR, e.getText());
+			throw e;
+		} catch (Exception e) {
+			status = 500;
+			span.setStatus(Span.STATUS_ERROR, e.toString());
+			throw e;
+		} finally {
+			activity.requestEnded();
+			UploadTracer.setCurrent(null);
+			span.setAttribute("http.response.status_code", status);
+			span.end();
+			if (completed) {
+				tracer.exportCompleted(span.getUploadId());
+			}
+		}
+	}
+
+	/*
+	 * Tries to lock upload id, in a step of the request span: a failure is lock
+	 * contention. The holder is shown by the UploadDashboard until unlockUpload.
+	 */
+	protected boolean lockUpload(String id) throws Exception {
+		Span lock = span.child("upload.lock");
+		Object event = JfrEvents.begin(JfrEvents.LOCK);
+		boolean locked = false;
 		try {
-			value = new Long(headerValue);
-			log.debug("parsed header " + header + "=" + headerValue);
-			return value;
-		} catch (NumberFormatException ne) {
-			log.debug(ne.toString());
-			return null;
+			locked = locker.lockUpload(id);
+		} finally {
+			JfrEvents.lock(event, id, locked);
+		}
+		lock.setStatus(locked ? Span.STATUS_OK : Span.STATUS_ERROR, locked ? null : "locked by another request");
+		lock.end();
+		if (locked) {
+			activity.locked(id, context.method);
 		}
+		return locked;
+	}
+
+	protected void unlockUpload(String id) throws Exception {
+		activity.unlocked(id);
+		locker.unlockUpload(id);
+	}
+
+	/*
+	 * Notifies the completion of fileInfo, the time spent in the listeners
+	 * being a step of the request span.
+	 */
+	protected void streamingFinished(FileInfo fileInfo) {
+		Span listeners = span.child("streamingFinished");
+		try {
+			streamVariable.streamingFinished(new StreamingEvents.StreamingEndEventImpl(fileInfo));
+		} finally {
+			listeners.end();
+			completed = true;
+		}
+	}
+
+	/*
+	 * Returns RequestContext.ABSENT if header doesn't exist or isn't a non
+	 * negative long value.
+	 */
+	public long getLongHeader(String header) {
+		long value = RequestContext.parseLong(request.getHeader(header));
+		if (log.isDebugEnabled()) {
+			log.debug("parsed header {}={}", header, value);
+		}
+		return value;
 	}
 
 	public String getID() {
-		return getID(request);
+		return context.id;
+	}
+
+	/*
+	 * Returns the URL of the upload id.
+	 */
+	public String getUploadUrl(String id) {
+		String url = context.endpoint;
+		return url.endsWith("/") ? url + id : url + "/" + id;
+	}
+
+	/*
+	 * Identifies the client for the ChunkAdvisor: its user name, or its address
+	 * when anonymous.
+	 */
+	public String getClientKey() {
+		if (clientKey == null) {
+			String username = TUSFileUploadHandler.getAuthenticatedUser(request);
+			clientKey = username != null ? "user:" + username : "addr:" + request.getRemoteAddr();
+		}
+		return clientKey;
 	}
 	
 	public void checkAuthSecurity() throws TusException {
@@ -84,29 +194,8 @@ public abstract class BaseHandler {
 	 * Caller should return 404 not found or BAD_REQUEST?.
 	 */
 	public static String getID(VaadinRequest vaadinRequest) {
-		// Returns everything after the servlet path and before the query string (if
-		// any)
-		String uppUri = TUSFileUploadHandler.getUppURI(vaadinRequest);
-		log.debug("uppUri is: {}", uppUri);
-		if (uppUri == null) {
-			return null;
-		}
-		String[] parts = uppUri.split("/");
-		String idpart="";
-		if (parts.length > TUSFileUploadHandler.UPLOAD_URL_FILE_ID_POSITION) {
-			idpart = parts[TUSFileUploadHandler.UPLOAD_URL_FILE_ID_POSITION];
-		}
-			
-		// Matches file ID consisting of letters, digits and underscores with optional
-		// trailing slash
-		Pattern pattern = Pattern.compile("(\\w+)");
-		Matcher matcher = pattern.matcher(idpart);
-		if (!matcher.matches()) {
-			log.debug("URL doesn't have form of an upload endpoint.");
-			return null;
-		}
-		String id = matcher.group(1);
-		log.debug("file ID is:" + id);
+		String id = RequestContext.parse(vaadinRequest).id;
+		log.debug("file ID is: {}", id);
 		return id;
 	}
 	
@@ -0,0 +1,166 @@
+package com.asaoweb.vaadin.tusfileupload.handlers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.asaoweb.vaadin.tusfileupload.Composer;
+import com.asaoweb.vaadin.tusfileupload.FileInfo;
+import com.asaoweb.vaadin.tusfileupload.TUSFileUploadHandler;
+import com.asaoweb.vaadin.tusfileupload.events.StreamingEvents.TusBatchStreamVariable;
+import com.asaoweb.vaadin.tusfileupload.exceptions.TusException;
+import com.vaadin.server.StreamVariable;
+import com.vaadin.server.VaadinRequest;
+
+/*
+	Creates the uploads of several queued files in one request, ahead of their
+	turn, so that their transfer starts with a PATCH: a POST on the creation
+	endpoint with the number of uploads in the Upload-Batch header, and one line
+	per upload in the body, "<Upload-Length> <Upload-Metadata>".
+
+	Each upload is checked and created like by PostHandler (maxSize, storage
+	limits, owned by the authenticated user so that enforceAuthSecurity applies
+	to its requests), but the failure of one doesn't fail the others. The answer
+	lists them in order, {"location": url} or {"status": code, "error": text}.
+
+	The stream variable learns about an upload when its first PATCH comes (see
+	FileInfo.deferredStart): the component binds it to the file being sent at
+	that time. A TusBatchStreamVariable is told about the created uploads, so
+	that it can terminate the ones never sent. Batch created uploads are not
+	deduplicated.
+*/
+public class BatchPostHandler extends BaseHandler
+{
+	private static final Logger log = LoggerFactory.getLogger(BatchPostHandler.class.getName());
+
+	public static final String BATCH_HEADER = "Upload-Batch";
+
+	// Longest line of the body: the metadata of a file, mostly its name.
+	private static final int MAX_LINE_LENGTH = 8192;
+
+	public BatchPostHandler(Composer composer, VaadinRequest request, Response response, StreamVariable streamVariable)
+	{
+		super(composer, request, response, streamVariable);
+	}
+
+	public BatchPostHandler(Composer composer, VaadinRequest request, Response response, StreamVariable streamVariable,
+			RequestContext context)
+	{
+		super(composer, request, response, streamVariable, context);
+	}
+
+	@Override
+	public void go() throws Exception
+	{
+		long count = getLongHeader(BATCH_HEADER);
+		if (count <= 0 || config.maxCreateBatch <= 0 || count > config.maxCreateBatch)
+		{
+			throw new TusException.InvalidBatch("expected 1 to " + config.maxCreateBatch + " uploads");
+		}
+		List<String> lines = readLines(request.getInputStream(), (int) count * MAX_LINE_LENGTH);
+		if (lines.size() != count)
+		{
+			throw new TusException.InvalidBatch(lines.size() + " uploads in the body, " + count + " announced");
+		}
+		span.setAttribute("tus.batch.size", count);
+
+		String username = TUSFileUploadHandler.getAuthenticatedUser(request);
+		StringBuilder sb = new StringBuilder(64 * lines.size());
+		sb.append('[');
+		List<FileInfo> created = new ArrayList<>(lines.size());
+		for (String line : lines)
+		{
+			if (sb.length() > 1)
+			{
+				sb.append(',');
+			}
+			try
+			{
+				FileInfo fileInfo = create(line, username);
+				sb.append("{\"location\":\"").append(escape(getUploadUrl(fileInfo.id))).append("\"}");
+				created.add(fileInfo);
+			}
+			catch (TusException e)
+			{
+				sb.append("{\"status\":").append(e.getStatus()).append(",\"error\":\"").append(escape(e.getText())).append("\"}");
+			}
+			catch (Exception e)
+			{
+				log.error("Batch creation failed", e);
+				sb.append("{\"status\":500,\"error\":\"Server Error\"}");
+			}
+		}
+		log.debug("Created {} of {} uploads", created.size(), count);
+		if (!created.isEmpty() && streamVariable instanceof TusBatchStreamVariable)
+		{
+			((TusBatchStreamVariable) streamVariable).uploadsCreated(created);
+		}
+
+		response.setHeader("Cache-Control", "no-store");
+		response.setHeader("Content-Type", "application/json; charset=utf-8");
+		response.setText(sb.append(']').toString());
+		response.setStatus(Response.OK);
+	}
+
+	/*
+	 * Creates the upload described by line.
+	 */
+	private FileInfo create(String line, String username) throws Exception
+	{
+		int space = line.indexOf(' ');
+		long length = RequestContext.parseLong(space > 0 ? line.substring(0, space) : line);
+		if (length == RequestContext.ABSENT)
+		{
+			throw new TusException.InvalidUploadLength();
+		}
+		if (config.maxSize > 0 && (length > config.maxSize))
+		{
+			throw new TusException.MaxSizeExceeded();
+		}
+		String metadata = space > 0 ? line.substring(space + 1).trim() : null;
+
+		FileInfo fileInfo = new FileInfo(length, metadata == null || metadata.isEmpty() ? null : metadata, username);
+		fileInfo.deferredStart = true;
+		// the storage limits are checked and the length reserved like for a single creation
+		datastore.create(fileInfo);
+		return fileInfo;
+	}
+
+	/*
+	 * Reads the non empty lines of the body, up to max bytes.
+	 */
+	private static List<String> readLines(InputStream in, int max) throws Exception
+	{
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) > 0)
+		{
+			if (body.size() + read > max)
+			{
+				throw new TusException.InvalidBatch("body too long");
+			}
+			body.write(buffer, 0, read);
+		}
+		List<String> lines = new ArrayList<>();
+		for (String line : new String(body.toByteArray(), StandardCharsets.UTF_8).split("\n"))
+		{
+			line = line.trim();
+			if (!line.isEmpty())
+			{
+				lines.add(line);
+			}
+		}
+		return lines;
+	}
+
+	private static String escape(String s)
+	{
+		return s.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+}
@@ -16,6 +16,11 @@ public class DeleteHandler extends BaseHandler {
 		super(composer, request, response, streamVariable);
 	}
 
+	public DeleteHandler(Composer composer, VaadinRequest request, Response response, StreamVariable streamVariable,
+			RequestContext context) {
+		super(composer, request, response, streamVariable, context);
+	}
+
 	@Override
 	public void go() throws Exception {
 		// Get file ID from url
@@ -29,15 +34,15 @@ public class DeleteHandler extends BaseHandler {
 		
 		boolean locked = false;
 		try {
-			locked = locker.lockUpload(id);
+			locked = lockUpload(id);
 			if (!locked) {
-				log.info("Couldn't lock " + id);
+				log.info("Couldn't lock {}", id);
 				throw new TusException.FileLocked();
 			}
 			whileLocked(id);
 		} finally {
 			if (locked) {
-				locker.unlockUpload(id);
+				unlockUpload(id);
 			}
 		}
 	}
@@ -45,7 +50,7 @@ public class DeleteHandler extends BaseHandler {
 	private void whileLocked(String id) throws Exception {
 		FileInfo fileInfo = datastore.getFileInfo(id);
 		if (fileInfo == null) {
-			log.debug("fileInfo not found for '" + id + "'");
+			log.debug("fileInfo not found for '{}'", id);
 			throw new TusException.NotFound();
 		}
 		datastore.terminate(id);
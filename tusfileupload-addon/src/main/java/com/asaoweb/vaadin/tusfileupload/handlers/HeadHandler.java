@@ -5,6 +5,7 @@ import org.slf4j.LoggerFactory;
 
 import com.asaoweb.vaadin.tusfileupload.Composer;
 import com.asaoweb.vaadin.tusfileupload.FileInfo;
+import com.asaoweb.vaadin.tusfileupload.data.ContentIndex;
 import com.asaoweb.vaadin.tusfileupload.exceptions.TusException;
 import com.vaadin.server.StreamVariable;
 import com.vaadin.server.VaadinRequest;
@@ -21,6 +22,12 @@ public class HeadHandler extends BaseHandler
 		super(composer, request, response, streamVariable);
 	}
 
+	public HeadHandler(Composer composer, VaadinRequest request, Response response, StreamVariable streamVariable,
+			RequestContext context)
+	{
+		super(composer, request, response, streamVariable, context);
+	}
+
 	@Override
 	public void go() throws Exception
 	{
@@ -36,10 +43,10 @@ public class HeadHandler extends BaseHandler
 		boolean locked = false;
 		try
 		{
-			locked = locker.lockUpload(id);
+			locked = lockUpload(id);
 			if (!locked)
 			{
-				log.info("Couldn't lock " + id);
+				log.info("Couldn't lock {}", id);
 				throw new TusException.FileLocked();
 			}
 			whileLocked(id);
@@ -48,7 +55,7 @@ public class HeadHandler extends BaseHandler
 		{
 			if (locked)
 			{
-				locker.unlockUpload(id);
+				unlockUpload(id);
 			}
 		}
 
@@ -57,17 +64,30 @@ public class HeadHandler extends BaseHandler
 	private void whileLocked(String id)
 		throws Exception
 	{
+		ContentIndex.Status dedup = datastore.resolveDuplicate(id);
 		FileInfo fileInfo = datastore.getFileInfo(id);
 		if (fileInfo == null)
 		{
-			log.debug("id '" + id + "' not found");
+			log.debug("id '{}' not found", id);
 			throw new TusException.NotFound();
 		}
+		if (dedup == ContentIndex.Status.PENDING)
+		{
+			response.setHeader(PostHandler.DEDUP_HEADER, "pending");
+		}
+		else if (dedup == ContentIndex.Status.COMPLETED)
+		{
+			// the upload of the same content completed this one
+			response.setHeader(PostHandler.DEDUP_HEADER, "complete");
+			datastore.finish(id);
+			streamingFinished(fileInfo);
+		}
 
 		if (fileInfo.metadata != null && fileInfo.metadata.length() > 0)
 		{
 			response.setHeader("Upload-Metadata", fileInfo.metadata);
 		}
+		span.setAttribute("tus.upload.offset", fileInfo.offset);
 		response.setHeader("Cache-Control", "no-store");
 		response.setHeader("Upload-Length", Long.toString(fileInfo.entityLength));
 		response.setHeader("Upload-Offset", Long.toString(fileInfo.offset));
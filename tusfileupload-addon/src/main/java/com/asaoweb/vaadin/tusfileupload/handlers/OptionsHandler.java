@@ -29,6 +29,12 @@ public class OptionsHandler extends BaseHandler
 		super(composer, request, response, streamVariable);
 	}
 
+	public OptionsHandler(Composer composer, VaadinRequest request, Response response, StreamVariable streamVariable,
+			RequestContext context)
+	{
+		super(composer, request, response, streamVariable, context);
+	}
+
 
 	@Override
 	public void go() throws Exception
@@ -3,20 +3,32 @@ package com.asaoweb.vaadin.tusfileupload.handlers;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.asaoweb.vaadin.tusfileupload.ChunkAdvisor;
 import com.asaoweb.vaadin.tusfileupload.Composer;
 import com.asaoweb.vaadin.tusfileupload.FileInfo;
 import com.asaoweb.vaadin.tusfileupload.events.StreamingEvents;
 import com.asaoweb.vaadin.tusfileupload.exceptions.TusException;
+import com.asaoweb.vaadin.tusfileupload.metrics.JfrEvents;
 import com.vaadin.server.StreamVariable;
 import com.vaadin.server.VaadinRequest;
 
 public class PatchHandler extends BaseHandler {
 	private static final Logger log = LoggerFactory.getLogger(PatchHandler.class.getName());
 
+	// Length of the recipe starting the body of a delta upload, see Datastore.writeDelta.
+	public static final String DELTA_HEADER = "Upload-Delta";
+
+	private String encoding;
+
 	public PatchHandler(Composer composer, VaadinRequest request, Response response, StreamVariable streamVariable) {
 		super(composer, request, response, streamVariable);
 	}
 
+	public PatchHandler(Composer composer, VaadinRequest request, Response response, StreamVariable streamVariable,
+			RequestContext context) {
+		super(composer, request, response, streamVariable, context);
+	}
+
 	@Override
 	public void go() throws Exception {
 		
@@ -27,9 +39,17 @@ public class PatchHandler extends BaseHandler {
 			throw new TusException.InvalidContentType();
 		}
 
+		// Check content encoding header: compressed bodies are inflated by the datastore
+		encoding = request.getHeader("Content-Encoding");
+		if (encoding != null && !encoding.equalsIgnoreCase("identity")
+				&& !encoding.equalsIgnoreCase("gzip") && !encoding.equalsIgnoreCase("deflate")) {
+			log.debug("Unsupported content encoding {}", encoding);
+			throw new TusException.UnsupportedContentEncoding();
+		}
+
 		// Check offset header
-		Long offset = getLongHeader("upload-offset");
-		if (offset == null || (long) offset < 0) {
+		long offset = getLongHeader("upload-offset");
+		if (offset == RequestContext.ABSENT) {
 			log.debug("upload-offset header missing or invalid.");
 			throw new TusException.InvalidOffset();
 		}
@@ -42,56 +62,107 @@ public class PatchHandler extends BaseHandler {
 		}
 
 		checkAuthSecurity();
+		span.setAttribute("tus.upload.offset", offset);
 
 		boolean locked = false;
 		try {
-			locked = locker.lockUpload(id);
+			locked = lockUpload(id);
 			if (!locked) {
-				log.info("Couldn't lock " + id);
+				log.info("Couldn't lock {}", id);
 				throw new TusException.FileLocked();
 			}
-			whileLocked(id, offset);
+			Object event = JfrEvents.begin(JfrEvents.PATCH);
+			long newOffset = offset;
+			String outcome = "failed";
+			try {
+				newOffset = whileLocked(id, offset);
+				outcome = "ok";
+			} catch (TusException e) {
+				outcome = e.getText();
+				throw e;
+			} finally {
+				JfrEvents.patch(event, id, offset, newOffset - offset, outcome);
+			}
 		} finally {
 			if (locked) {
-				locker.unlockUpload(id);
+				unlockUpload(id);
 			}
 		}
 	}
 
-	private void whileLocked(String id, long offset) throws Exception {
+	/*
+	 * Returns the new offset.
+	 */
+	private long whileLocked(String id, long offset) throws Exception {
 		FileInfo fileInfo = datastore.getFileInfo(id);
-		if (fileInfo == null) {
-			log.debug("fileInfo not found for '" + id + "'");
+		if (fileInfo == null || fileInfo.deltaBase) {
+			// a delta base is a file of the application, even if its size changed
+			log.debug("fileInfo not found for '{}'", id);
 			throw new TusException.NotFound();
 		}
 
 		// Offset in request header must match current file length.
 		if (offset != fileInfo.offset) {
-			log.debug("current file size of " + fileInfo.offset + " doesn't match upload-offset of " + offset);
+			if (log.isDebugEnabled()) {
+				log.debug("current file size of {} doesn't match upload-offset of {}", fileInfo.offset, offset);
+			}
 			throw new TusException.MismatchOffset();
 		}
 
+		// A batch created upload starts with its first PATCH, see BatchPostHandler
+		if (fileInfo.deferredStart) {
+			fileInfo.deferredStart = false;
+			datastore.saveFileInfo(fileInfo);
+			// saveFileInfo resets the offset to -1, it is never stored but read
+			// from the size of the .bin file: restore the one checked above,
+			// which the events and the write below rely on
+			fileInfo.offset = offset;
+			streamVariable.streamingStarted(new StreamingEvents.StreamingStartEventImpl(fileInfo));
+		}
+
 		long newOffset = fileInfo.offset;
 
 		// Only write the data to store if we haven't already got the full file.
 		if (fileInfo.offset != fileInfo.entityLength) {
-			Long contentLength = getLongHeader("content-length");
-			log.debug("Content-length is " + contentLength);
+			// The length of an encoded or delta body isn't the number of bytes it holds
+			boolean encoded = encoding != null && !encoding.equalsIgnoreCase("identity");
+			// an invalid recipe length is rejected by writeDelta
+			boolean delta = request.getHeader(DELTA_HEADER) != null;
+			long recipeLength = delta ? getLongHeader(DELTA_HEADER) : RequestContext.ABSENT;
+			if (encoded && delta) {
+				throw new TusException.UnsupportedContentEncoding();
+			}
+			long contentLength = encoded || delta ? RequestContext.ABSENT : getLongHeader("content-length");
 
 			// If contentLength header present, make sure contentLength + offset <=
 			// entityLength
-			if (contentLength != null && ((long) contentLength + offset > fileInfo.entityLength)) {
-				log.debug("content-length + offset > entity-length: " + contentLength + " + " + offset + " > "
-						+ fileInfo.entityLength);
+			if (contentLength != RequestContext.ABSENT && contentLength + offset > fileInfo.entityLength) {
+				if (log.isDebugEnabled()) {
+					log.debug("content-length + offset > entity-length: {} + {} > {}", contentLength, offset,
+							fileInfo.entityLength);
+				}
 				throw new TusException.SizeExceeded();
 			}
 
 			// Don't exceed entityLength.
-			long maxToRead = contentLength != null ? (long) contentLength : fileInfo.entityLength - offset;
-
-			// Write the data.
-			long transferred = datastore.write(request, id, (long) offset, maxToRead);
-			newOffset = transferred + (long) offset;
+			long maxToRead = contentLength != RequestContext.ABSENT ? contentLength : fileInfo.entityLength - offset;
+
+			// Write the data, or assemble it from the previous version.
+			long start = System.currentTimeMillis();
+			long transferred;
+			try {
+				transferred = delta ? datastore.writeDelta(request, id, recipeLength)
+						: datastore.write(request, id, offset, maxToRead);
+			} catch (Exception e) {
+				chunkAdvisor.record(getClientKey(), 0L, 0L, true);
+				throw e;
+			}
+			span.setAttribute("tus.bytes", transferred).setAttribute("tus.delta", delta);
+			if (!delta) {
+				// delta requests mostly copy on the server: not representative of the link
+				chunkAdvisor.record(getClientKey(), transferred, System.currentTimeMillis() - start, false);
+			}
+			newOffset = transferred + offset;
 			
 			fileInfo.offset = newOffset;
 			if (streamVariable.listenProgress()) {
@@ -99,13 +170,18 @@ public class PatchHandler extends BaseHandler {
 			}
 			// If upload is complete ...
 			if (newOffset == fileInfo.entityLength) {
-				log.debug("Upload " + id + " is complete.");
+				log.debug("Upload {} is complete.", id);
 				datastore.finish(id);
-				streamVariable.streamingFinished(new StreamingEvents.StreamingEndEventImpl(fileInfo));
+				streamingFinished(fileInfo);
 
 			}
 		}
+		long chunkHint = chunkAdvisor.getChunkHint(getClientKey());
+		if (chunkHint > 0) {
+			response.setHeader(ChunkAdvisor.CHUNK_HINT_HEADER, Long.toString(chunkHint));
+		}
 		response.setHeader("Upload-Offset", Long.toString(newOffset));
 		response.setStatus(Response.NO_CONTENT);
+		return newOffset;
 	}
 }
@@ -6,6 +6,7 @@ import org.slf4j.LoggerFactory;
 import com.asaoweb.vaadin.tusfileupload.Composer;
 import com.asaoweb.vaadin.tusfileupload.FileInfo;
 import com.asaoweb.vaadin.tusfileupload.TUSFileUploadHandler;
+import com.asaoweb.vaadin.tusfileupload.data.ContentIndex;
 import com.asaoweb.vaadin.tusfileupload.events.StreamingEvents;
 import com.asaoweb.vaadin.tusfileupload.exceptions.TusException;
 import com.vaadin.server.StreamVariable;
@@ -15,53 +16,70 @@ import com.vaadin.server.communication.*;
 
 /*
 	Todo: 
-	- don't accept uploads when running out of disk space? (tusd uses a mix-in class for this)
 	- deferredLength???  
 */
 public class PostHandler extends BaseHandler 
 {
 	private static final Logger log = LoggerFactory.getLogger(PostHandler.class.getName());
 
+	// Tells the connector the upload was deduplicated, or waits for an upload of the same content.
+	public static final String DEDUP_HEADER = "Upload-Dedup";
+
 	public PostHandler(Composer composer, VaadinRequest request, Response response, StreamVariable streamVariable)
 	{
 		super(composer, request, response, streamVariable);
 	}
 
+	public PostHandler(Composer composer, VaadinRequest request, Response response, StreamVariable streamVariable,
+			RequestContext context)
+	{
+		super(composer, request, response, streamVariable, context);
+	}
+
 	@Override
 	public void go() throws Exception
 	{
-		Long length = getLongHeader("upload-length");
-		if (length == null || (long)length < 0)
+		long length = getLongHeader("upload-length");
+		if (length == RequestContext.ABSENT)
 		{
 			throw new TusException.InvalidUploadLength();
 		}
-		if (config.maxSize > 0 && ((long)length > config.maxSize))
+		if (config.maxSize > 0 && (length > config.maxSize))
 		{
 			throw new TusException.MaxSizeExceeded();
 		}
 
-		// TODO: check if we have enough storage space?
-
 		String metadata = request.getHeader("Upload-Metadata");
 
 		// Generate unique id to serve as the file ID and store optional metadata.
-		FileInfo fileInfo = new FileInfo((long)length, metadata, TUSFileUploadHandler.getAuthenticatedUser(request));
+		FileInfo fileInfo = new FileInfo(length, metadata, TUSFileUploadHandler.getAuthenticatedUser(request));
 
+		// Storage limits (maxStorage, maxUserStorage, minFreeSpace) are checked and the 
+		// length reserved atomically by the datastore: rejected before any byte is sent.
 		datastore.create(fileInfo);
+		span.setUploadId(fileInfo.id).setAttribute("tus.upload.length", length);
 
-		String url = request.getPathInfo().toString(); 
-		if (url.endsWith("/"))
-		{
-			url += fileInfo.id;
-		} else
-		{
-			url += "/" + fileInfo.id;
-		}
-		log.debug("return url in location header.  url is " + url);
+		// Content already stored for this user: nothing to send.
+		boolean deduplicated = datastore.deduplicate(fileInfo);
+
+		String url = getUploadUrl(fileInfo.id);
+		log.debug("return url in location header.  url is {}", url);
 
 		response.setHeader("Location", url);
 		response.setStatus(Response.CREATED);
 		streamVariable.streamingStarted(new StreamingEvents.StreamingStartEventImpl(fileInfo));
+		if (deduplicated)
+		{
+			fileInfo.offset = fileInfo.entityLength;
+			response.setHeader("Upload-Offset", Long.toString(fileInfo.offset));
+			response.setHeader(DEDUP_HEADER, "complete");
+			datastore.finish(fileInfo.id);
+			streamingFinished(fileInfo);
+		}
+		else if (datastore.resolveDuplicate(fileInfo.id) == ContentIndex.Status.PENDING)
+		{
+			response.setHeader(DEDUP_HEADER, "pending");
+		}
 	}
 
 
@@ -0,0 +1,129 @@
+package com.asaoweb.vaadin.tusfileupload.handlers;
+
+import com.asaoweb.vaadin.tusfileupload.TUSFileUploadHandler;
+import com.vaadin.server.VaadinRequest;
+
+/*
+What a handler needs from the URL of a request, parsed once by the entry point
+(TUSFileUploadHandler or TusUploadServlet) instead of by each handler: the
+endpoint the uploads are created on, the upload id, and for the Vaadin upload
+URLs (APP/TUS-UPLOAD/[UIID]/[CID]/[NAME]/[SECKEY]/[ID]) the parts identifying
+the stream variable.
+
+The URL is scanned with indexOf, without split or regular expressions, and
+the long headers are parsed without boxing.
+*/
+public class RequestContext {
+	// Value of the long headers which are missing or invalid, see parseLong.
+	public static final long ABSENT = -1L;
+
+	public final String method;
+	// URL of the creation endpoint, the upload URLs being <endpoint>/<id>
+	public final String endpoint;
+	// null for a creation, or if the URL isn't a valid upload URL
+	public final String id;
+	// Vaadin upload URLs only, -1 when not a number
+	public final int uiId;
+	public final String connectorId;
+	public final String variableName;
+	public final String secKey;
+	// System.nanoTime() when the request was received, for its span
+	public final long received = System.nanoTime();
+	// time waited for the Vaadin session lock, in nanoseconds
+	protected long sessionLockWait = 0L;
+
+	public RequestContext(String method, String endpoint, String id) {
+		this(method, endpoint, id, -1, null, null, null);
+	}
+
+	protected RequestContext(String method, String endpoint, String id, int uiId, String connectorId,
+			String variableName, String secKey) {
+		this.method = method;
+		this.endpoint = endpoint;
+		this.id = id;
+		this.uiId = uiId;
+		this.connectorId = connectorId;
+		this.variableName = variableName;
+		this.secKey = secKey;
+	}
+
+	/*
+	 * Parses a Vaadin upload URL (see TUSFileUploadHandler). The parts which are
+	 * missing are null.
+	 */
+	public static RequestContext parse(VaadinRequest request) {
+		String path = request.getPathInfo();
+		int start = path != null ? path.indexOf(TUSFileUploadHandler.UPLOAD_URL_PREFIX) : -1;
+		if (start < 0) {
+			return new RequestContext(request.getMethod(), path, null);
+		}
+		start += TUSFileUploadHandler.UPLOAD_URL_PREFIX.length();
+		String[] parts = new String[TUSFileUploadHandler.UPLOAD_URL_FILE_ID_POSITION + 1];
+		int end = start;
+		int endpointEnd = path.length();
+		for (int i = 0; i < parts.length && start <= path.length(); i++) {
+			end = path.indexOf('/', start);
+			if (end < 0) {
+				end = path.length();
+			}
+			parts[i] = end > start ? path.substring(start, end) : null;
+			if (i == TUSFileUploadHandler.UPLOAD_URL_FILE_ID_POSITION - 1) {
+				endpointEnd = end;
+			}
+			start = end + 1;
+		}
+		String id = parts[TUSFileUploadHandler.UPLOAD_URL_FILE_ID_POSITION];
+		return new RequestContext(request.getMethod(), path.substring(0, endpointEnd), isWord(id) ? id : null,
+				parseInt(parts[0]), parts[1], parts[2], parts[3]);
+	}
+
+	public long getSessionLockWait() {
+		return sessionLockWait;
+	}
+
+	public void setSessionLockWait(long sessionLockWait) {
+		this.sessionLockWait = sessionLockWait;
+	}
+
+	/*
+	 * Returns true if s is made of letters, digits and underscores, as matched
+	 * by \w+.
+	 */
+	public static boolean isWord(String s) {
+		if (s == null || s.isEmpty()) {
+			return false;
+		}
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Parses a non negative decimal header value without boxing nor exception.
+	 * Returns ABSENT if value is null, empty, not a number or overflows.
+	 */
+	public static long parseLong(String value) {
+		if (value == null || value.isEmpty() || value.length() > 18) {
+			// 18 digits can't overflow
+			return ABSENT;
+		}
+		long result = 0L;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c < '0' || c > '9') {
+				return ABSENT;
+			}
+			result = result * 10 + (c - '0');
+		}
+		return result;
+	}
+
+	protected static int parseInt(String value) {
+		long result = value != null && value.length() <= 9 ? parseLong(value) : ABSENT;
+		return (int) result;
+	}
+}
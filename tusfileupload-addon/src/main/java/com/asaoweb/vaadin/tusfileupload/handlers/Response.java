@@ -2,6 +2,7 @@ package com.asaoweb.vaadin.tusfileupload.handlers;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.Arrays;
 import java.util.Properties;
 
 import javax.servlet.http.HttpServletResponse;
@@ -21,7 +22,10 @@ public class Response
 
 	private String text = "";
 	private int status;
-	private Properties headers = new Properties();
+	// a response has a handful of headers: parallel arrays, scanned linearly
+	private String[] names = new String[8];
+	private String[] values = new String[8];
+	private int headerCount;
 	private VaadinResponse vaadinResponse;
 
 	public Response(VaadinResponse vaadinResponse)
@@ -31,7 +35,28 @@ public class Response
 
 	public String getText() { return text; }
 	public int getStatus() { return status; }
-	public Properties getHeaders() { return headers; }
+
+	/*
+	 * Returns a copy of the headers.
+	 */
+	public Properties getHeaders()
+	{
+		Properties headers = new Properties();
+		for (int i = 0; i < headerCount; i++)
+		{
+			headers.setProperty(names[i], values[i]);
+		}
+		return headers;
+	}
+
+	/*
+	 * Returns the value of header name (case insensitive), or null if not set.
+	 */
+	public String getHeader(String name)
+	{
+		int i = indexOf(name);
+		return i >= 0 ? values[i] : null;
+	}
 
 	public Response setText(String text)
 	{
@@ -47,19 +72,45 @@ public class Response
 
 	public Response setHeader(String name, String value)
 	{
-		headers.setProperty(name, value);
+		int i = indexOf(name);
+		if (i < 0)
+		{
+			if (headerCount == names.length)
+			{
+				names = Arrays.copyOf(names, headerCount * 2);
+				values = Arrays.copyOf(values, headerCount * 2);
+			}
+			i = headerCount++;
+			names[i] = name;
+		}
+		values[i] = value;
 		return this;
 	}
+
+	private int indexOf(String name)
+	{
+		for (int i = 0; i < headerCount; i++)
+		{
+			if (names[i].equalsIgnoreCase(name))
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
 	
 	public void write() throws IOException
 	{
 		vaadinResponse.setStatus(this.status);
-		for (String name : headers.stringPropertyNames())
+		for (int i = 0; i < headerCount; i++)
+		{
+			vaadinResponse.setHeader(names[i], values[i]);
+		}
+		if (this.text.length() > 0)
 		{
-			vaadinResponse.setHeader(name, headers.getProperty(name));
+			PrintWriter out = vaadinResponse.getWriter();
+			out.print(this.text);
 		}
-		PrintWriter out = vaadinResponse.getWriter();
-		out.print(this.text);
 	}
 
 }
@@ -0,0 +1,46 @@
+package com.asaoweb.vaadin.tusfileupload.handlers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.asaoweb.vaadin.tusfileupload.Composer;
+import com.asaoweb.vaadin.tusfileupload.TUSFileUploadHandler;
+import com.asaoweb.vaadin.tusfileupload.data.ChunkSignature;
+import com.asaoweb.vaadin.tusfileupload.exceptions.TusException;
+import com.vaadin.server.StreamVariable;
+import com.vaadin.server.VaadinRequest;
+
+/*
+	Send the chunk signature of a completed upload, the base of the delta
+	uploads of its modified versions (see ChunkSignature), or 404
+*/
+public class SignatureHandler extends BaseHandler {
+	private static final Logger log = LoggerFactory.getLogger(SignatureHandler.class.getName());
+
+	public SignatureHandler(Composer composer, VaadinRequest request, Response response, StreamVariable streamVariable) {
+		super(composer, request, response, streamVariable);
+	}
+
+	public SignatureHandler(Composer composer, VaadinRequest request, Response response, StreamVariable streamVariable,
+			RequestContext context) {
+		super(composer, request, response, streamVariable, context);
+	}
+
+	@Override
+	public void go() throws Exception {
+		String id = getID();
+		if (id == null) {
+			log.debug("url has no valid id part");
+			throw new TusException.NotFound();
+		}
+
+		// only the owner of the previous version gets its signature
+		ChunkSignature signature = datastore.getSignature(id, TUSFileUploadHandler.getAuthenticatedUser(request));
+		log.debug("Signature of {}: {} chunks", id, signature.getChunkCount());
+
+		response.setHeader("Cache-Control", "no-store");
+		response.setHeader("Content-Type", "application/json; charset=utf-8");
+		response.setText(signature.toJson());
+		response.setStatus(Response.OK);
+	}
+}
@@ -0,0 +1,54 @@
+package com.asaoweb.vaadin.tusfileupload.metrics;
+
+/*
+JDK Flight Recorder events of the requests, PATCH writes, upload locks and
+stream variable callbacks, to profile the uploads in production at a low cost.
+
+This is the Java 8 version, which records nothing: the jar is multi-release,
+Java 11+ JVMs load the version of src/main/java11, where the events are
+defined. Usage:
+
+	Object event = JfrEvents.begin(JfrEvents.WRITE);
+	...
+	JfrEvents.write(event, id, offset, bytes, outcome);
+
+begin returns null when the event isn't enabled (or on Java 8), the end
+methods then doing nothing. Only the events longer than their threshold are
+recorded: see jfr/tusfileupload.jfc for the production settings.
+*/
+public final class JfrEvents {
+	public static final int REQUEST = 0;
+	public static final int PATCH = 1;
+	public static final int WRITE = 2;
+	public static final int LOCK = 3;
+	public static final int LISTENER = 4;
+
+	private JfrEvents() {
+	}
+
+	public static boolean isAvailable() {
+		return false;
+	}
+
+	/*
+	 * Starts an event of type, returns null if it isn't recorded.
+	 */
+	public static Object begin(int type) {
+		return null;
+	}
+
+	public static void request(Object event, String method, String uploadId, int status) {
+	}
+
+	public static void patch(Object event, String uploadId, long offset, long bytes, String outcome) {
+	}
+
+	public static void write(Object event, String uploadId, long offset, long bytes, String outcome) {
+	}
+
+	public static void lock(Object event, String uploadId, boolean acquired) {
+	}
+
+	public static void listener(Object event, String uploadId, String callback) {
+	}
+}
@@ -0,0 +1,134 @@
+package com.asaoweb.vaadin.tusfileupload.metrics;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+A timed operation of an upload: a request, or a step of a request (lock,
+write, listener...), see UploadTracer. Kinds and status codes are the ones of
+OpenTelemetry. A span is only modified by the thread which started it, until
+it is ended.
+*/
+public class Span {
+	public static final int KIND_INTERNAL = 1;
+	public static final int KIND_SERVER = 2;
+
+	public static final int STATUS_UNSET = 0;
+	public static final int STATUS_OK = 1;
+	public static final int STATUS_ERROR = 2;
+
+	// Returned when tracing is disabled: records nothing.
+	public static final Span NOOP = new Span(null, null, null, 0L, KIND_INTERNAL, 0L);
+
+	protected final UploadTracer tracer;
+	protected String uploadId;
+	protected final String name;
+	protected final long spanId;
+	protected final long parentSpanId;
+	protected final int kind;
+	protected final long start;
+	protected long end = -1L;
+	protected final Map<String, Object> attributes;
+	protected int statusCode = STATUS_UNSET;
+	protected String statusMessage;
+
+	/*
+	 * start is a System.nanoTime() value.
+	 */
+	protected Span(UploadTracer tracer, String uploadId, String name, long parentSpanId, int kind, long start) {
+		this.tracer = tracer;
+		this.uploadId = uploadId;
+		this.name = name;
+		this.parentSpanId = parentSpanId;
+		this.kind = kind;
+		this.start = start;
+		this.spanId = tracer != null ? ThreadLocalRandom.current().nextLong() : 0L;
+		this.attributes = tracer != null ? new LinkedHashMap<>() : Collections.emptyMap();
+	}
+
+	public boolean isRecording() {
+		return tracer != null;
+	}
+
+	/*
+	 * Starts a step of this span, now.
+	 */
+	public Span child(String name) {
+		return child(name, System.nanoTime());
+	}
+
+	public Span child(String name, long start) {
+		return isRecording() ? new Span(tracer, uploadId, name, spanId, KIND_INTERNAL, start) : NOOP;
+	}
+
+	/*
+	 * Sets the upload of a span started before its id was known (creation).
+	 */
+	public Span setUploadId(String uploadId) {
+		if (isRecording()) {
+			this.uploadId = uploadId;
+		}
+		return this;
+	}
+
+	/*
+	 * value is a String, a Number or a Boolean.
+	 */
+	public Span setAttribute(String key, Object value) {
+		if (isRecording() && value != null) {
+			attributes.put(key, value);
+		}
+		return this;
+	}
+
+	public Span setStatus(int code, String message) {
+		if (isRecording()) {
+			this.statusCode = code;
+			this.statusMessage = message;
+		}
+		return this;
+	}
+
+	public void end() {
+		end(System.nanoTime());
+	}
+
+	public void end(long end) {
+		if (isRecording() && this.end < 0) {
+			this.end = end;
+			tracer.record(this);
+		}
+	}
+
+	public String getUploadId() {
+		return uploadId;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/*
+	 * Returns the System.nanoTime() value of the start.
+	 */
+	public long getStart() {
+		return start;
+	}
+
+	/*
+	 * Returns the duration in nanoseconds, or -1 while not ended.
+	 */
+	public long getDuration() {
+		return end >= 0 ? end - start : -1L;
+	}
+
+	public Map<String, Object> getAttributes() {
+		return Collections.unmodifiableMap(attributes);
+	}
+
+	public int getStatusCode() {
+		return statusCode;
+	}
+}
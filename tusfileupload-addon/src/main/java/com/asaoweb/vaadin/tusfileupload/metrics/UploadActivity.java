@@ -0,0 +1,204 @@
+package com.asaoweb.vaadin.tusfileupload.metrics;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.asaoweb.vaadin.tusfileupload.data.FolderRegistry;
+
+/*
+Live state of the uploads of an upload folder, for the UploadDashboard: the
+uploads receiving bytes, the locks held by the requests and the requests in
+progress. Fed by the datastore (writes) and the handlers (locks, requests),
+the folder is never scanned.
+
+The writers only add to a counter; the throughput of the uploads is computed
+when the activity is sampled, from the bytes received since the previous
+sample. An upload is forgotten once completed or terminated, or when it
+received nothing for IDLE_TIMEOUT.
+*/
+public class UploadActivity {
+	private static final FolderRegistry<UploadActivity> folders = new FolderRegistry<>(folder -> new UploadActivity());
+
+	// uploads without any byte for this long are no longer active (10 minutes)
+	public static final long IDLE_TIMEOUT = 10L * 60 * 1000;
+
+	protected final ConcurrentHashMap<String, Upload> uploads = new ConcurrentHashMap<>();
+	protected final ConcurrentHashMap<String, LockHolder> locks = new ConcurrentHashMap<>();
+	protected final AtomicInteger requests = new AtomicInteger();
+	protected final AtomicInteger writes = new AtomicInteger();
+
+	/*
+	 * Returns the activity shared by all the stores using folder.
+	 */
+	public static UploadActivity forFolder(String folder) {
+		return folders.forFolder(folder);
+	}
+
+	/*
+	 * An upload which received bytes lately. Written by the request holding
+	 * its lock, sampled by the dashboard.
+	 */
+	public static class Upload {
+		protected final String id;
+		protected final long since = System.currentTimeMillis();
+		// bytes received by all the writes, and by the current one
+		protected volatile long received = 0L;
+		protected volatile long writing = 0L;
+		protected volatile boolean inProgress = false;
+		// the fields below are guarded by the activity
+		protected long sampledBytes = 0L;
+		protected long sampledAt = since;
+		protected long lastProgress = since;
+		protected long bytesPerSecond = 0L;
+
+		protected Upload(String id) {
+			this.id = id;
+		}
+
+		/*
+		 * Called by the writer for the bytes it read.
+		 */
+		public void progress(long n) {
+			if (n > 0) {
+				received += n;
+				writing += n;
+			}
+		}
+	}
+
+	public static class LockHolder implements Serializable {
+		protected final String id;
+		protected final String method;
+		protected final String thread;
+		protected final long since;
+
+		protected LockHolder(String id, String method, String thread, long since) {
+			this.id = id;
+			this.method = method;
+			this.thread = thread;
+			this.since = since;
+		}
+
+		public String getId() { return id; }
+		public String getMethod() { return method; }
+		public String getThread() { return thread; }
+		public long getSince() { return since; }
+	}
+
+	/*
+	 * The state of an upload when sampled.
+	 */
+	public static class ActiveUpload implements Serializable {
+		protected final String id;
+		protected final long since;
+		protected final long bytesPerSecond;
+		protected final long lastProgress;
+		protected final boolean writing;
+		protected final long writingBytes;
+
+		protected ActiveUpload(Upload upload) {
+			this.id = upload.id;
+			this.since = upload.since;
+			this.bytesPerSecond = upload.bytesPerSecond;
+			this.lastProgress = upload.lastProgress;
+			this.writing = upload.inProgress;
+			this.writingBytes = upload.inProgress ? upload.writing : 0L;
+		}
+
+		public String getId() { return id; }
+		public long getSince() { return since; }
+		public long getBytesPerSecond() { return bytesPerSecond; }
+		public long getLastProgress() { return lastProgress; }
+		public boolean isWriting() { return writing; }
+		// bytes received by the current write, not accounted yet
+		public long getWritingBytes() { return writingBytes; }
+	}
+
+	/*
+	 * Registers a write to upload id by the current request, which must end it
+	 * with writeEnded.
+	 */
+	public Upload writeStarted(String id) {
+		// atomic with the eviction of sample
+		Upload upload = uploads.compute(id, (k, u) -> {
+			u = u != null ? u : new Upload(k);
+			u.writing = 0L;
+			u.inProgress = true;
+			return u;
+		});
+		writes.incrementAndGet();
+		return upload;
+	}
+
+	public void writeEnded(Upload upload) {
+		upload.inProgress = false;
+		upload.writing = 0L;
+		writes.decrementAndGet();
+	}
+
+	/*
+	 * Forgets a completed or terminated upload.
+	 */
+	public void removed(String id) {
+		uploads.remove(id);
+	}
+
+	public void locked(String id, String method) {
+		locks.put(id, new LockHolder(id, method, Thread.currentThread().getName(), System.currentTimeMillis()));
+	}
+
+	public void unlocked(String id) {
+		locks.remove(id);
+	}
+
+	public void requestStarted() {
+		requests.incrementAndGet();
+	}
+
+	public void requestEnded() {
+		requests.decrementAndGet();
+	}
+
+	public int getRequestsInProgress() {
+		return requests.get();
+	}
+
+	public int getWritesInProgress() {
+		return writes.get();
+	}
+
+	public List<LockHolder> getLockHolders() {
+		return new ArrayList<>(locks.values());
+	}
+
+	/*
+	 * Computes the throughput of every upload since the previous sample, and
+	 * returns the active ones. Meant to be called periodically, e.g. every
+	 * second.
+	 */
+	public synchronized List<ActiveUpload> sample() {
+		long now = System.currentTimeMillis();
+		List<ActiveUpload> active = new ArrayList<>(uploads.size());
+		for (Upload upload : uploads.values()) {
+			long received = upload.received;
+			long elapsed = now - upload.sampledAt;
+			if (received != upload.sampledBytes) {
+				upload.lastProgress = now;
+			}
+			if (elapsed > 0) {
+				upload.bytesPerSecond = (received - upload.sampledBytes) * 1000L / elapsed;
+				upload.sampledBytes = received;
+				upload.sampledAt = now;
+			}
+			if (now - upload.lastProgress > IDLE_TIMEOUT
+					&& uploads.computeIfPresent(upload.id, (k, u) -> u.inProgress ? u : null) == null) {
+				continue;
+			}
+			active.add(new ActiveUpload(upload));
+		}
+		return active;
+	}
+}
@@ -0,0 +1,75 @@
+package com.asaoweb.vaadin.tusfileupload.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.asaoweb.vaadin.tusfileupload.data.FolderRegistry;
+
+/*
+Counters of the upload activity of an upload folder, to be polled by the
+application (e.g. exported to its monitoring). Counters start at 0 with the
+JVM.
+*/
+public class UploadMetrics {
+	private static final FolderRegistry<UploadMetrics> folders = new FolderRegistry<>(folder -> new UploadMetrics());
+
+	protected final LongAdder writes = new LongAdder();
+	protected final LongAdder bytesWritten = new LongAdder();
+	protected final LongAdder failedWrites = new LongAdder();
+	protected final LongAdder stalledWrites = new LongAdder();
+
+	/*
+	 * Returns the metrics shared by all the stores using folder.
+	 */
+	public static UploadMetrics forFolder(String folder) {
+		return folders.forFolder(folder);
+	}
+
+	/*
+	 * Records a PATCH request which wrote bytes, or failed (bytes being what
+	 * reached the disk before the failure).
+	 */
+	public void written(long bytes, boolean failed) {
+		writes.increment();
+		bytesWritten.add(bytes);
+		if (failed) {
+			failedWrites.increment();
+		}
+	}
+
+	/*
+	 * Records a write aborted by the StallWatchdog.
+	 */
+	public void stalled() {
+		stalledWrites.increment();
+	}
+
+	public long getWrites() {
+		return writes.sum();
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten.sum();
+	}
+
+	public long getFailedWrites() {
+		return failedWrites.sum();
+	}
+
+	public long getStalledWrites() {
+		return stalledWrites.sum();
+	}
+
+	/*
+	 * Returns the current value of every counter, by name.
+	 */
+	public Map<String, Long> snapshot() {
+		Map<String, Long> values = new LinkedHashMap<>();
+		values.put("writes", getWrites());
+		values.put("bytesWritten", getBytesWritten());
+		values.put("failedWrites", getFailedWrites());
+		values.put("stalledWrites", getStalledWrites());
+		return values;
+	}
+}
@@ -0,0 +1,236 @@
+package com.asaoweb.vaadin.tusfileupload.metrics;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.asaoweb.vaadin.tusfileupload.data.FolderRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/*
+Timeline of each upload, to tell where the time of a slow upload went: the
+requests (POST, PATCH, HEAD...) are spans keyed by the upload id, with steps
+for the session lock wait, the upload lock, the write (time spent waiting for
+the client vs writing to the disk) and the streamingFinished listeners. Failed
+requests, e.g. lock contention (423) or retries after a mismatched offset
+(409), are kept with their status.
+
+The spans are kept in a bounded ring buffer (traceBufferSize, 0 disables
+tracing), the oldest being overwritten, and can be exported in the
+OpenTelemetry (OTLP/JSON) format: the trace of an upload is retrieved with
+toJson, and written to traceExportFolder, if set, when the upload completes.
+The trace id is the upload id.
+
+The handlers make their request span current for their thread, so that the
+datastore adds its steps to it.
+*/
+public class UploadTracer {
+	private static final Logger log = LoggerFactory.getLogger(UploadTracer.class.getName());
+
+	private static final FolderRegistry<UploadTracer> folders = new FolderRegistry<>(folder -> new UploadTracer());
+	private static final ThreadLocal<Span> current = new ThreadLocal<>();
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	protected static final String SCOPE = "com.asaoweb.vaadin.tusfileupload";
+
+	// System.currentTimeMillis() in nanoseconds minus System.nanoTime()
+	protected final long epochOffset = System.currentTimeMillis() * 1000000L - System.nanoTime();
+	// guarded by this
+	protected Span[] buffer = new Span[0];
+	protected int next = 0;
+	protected boolean wrapped = false;
+	protected volatile Path exportFolder;
+
+	/*
+	 * Returns the tracer shared by all the stores using folder.
+	 */
+	public static UploadTracer forFolder(String folder) {
+		return folders.forFolder(folder);
+	}
+
+	/*
+	 * Sets the number of spans kept, and the folder where the traces of the
+	 * completed uploads are written (null for none). Changing the size drops
+	 * the spans kept.
+	 */
+	public synchronized void configure(int bufferSize, String exportFolder) {
+		if (bufferSize != buffer.length) {
+			buffer = new Span[Math.max(0, bufferSize)];
+			next = 0;
+			wrapped = false;
+		}
+		this.exportFolder = exportFolder != null ? Paths.get(exportFolder) : null;
+	}
+
+	public synchronized boolean isEnabled() {
+		return buffer.length > 0;
+	}
+
+	/*
+	 * Starts a request span of uploadId (null if not known yet) at start, a
+	 * System.nanoTime() value.
+	 */
+	public Span start(String uploadId, String name, long start) {
+		return isEnabled() ? new Span(this, uploadId, name, 0L, Span.KIND_SERVER, start) : Span.NOOP;
+	}
+
+	/*
+	 * Returns the span of the request handled by this thread, or Span.NOOP.
+	 */
+	public static Span current() {
+		Span span = current.get();
+		return span != null ? span : Span.NOOP;
+	}
+
+	public static void setCurrent(Span span) {
+		if (span != null && span.isRecording()) {
+			current.set(span);
+		} else {
+			current.remove();
+		}
+	}
+
+	protected synchronized void record(Span span) {
+		if (span.uploadId == null || buffer.length == 0) {
+			return;
+		}
+		buffer[next] = span;
+		next = (next + 1) % buffer.length;
+		wrapped |= next == 0;
+	}
+
+	/*
+	 * Returns the spans kept for uploadId, oldest first.
+	 */
+	public synchronized List<Span> getSpans(String uploadId) {
+		List<Span> spans = new ArrayList<>();
+		int count = wrapped ? buffer.length : next;
+		int first = wrapped ? next : 0;
+		for (int i = 0; i < count; i++) {
+			Span span = buffer[(first + i) % buffer.length];
+			if (span.uploadId.equals(uploadId)) {
+				spans.add(span);
+			}
+		}
+		return spans;
+	}
+
+	/*
+	 * Returns the trace of uploadId as an OTLP/JSON ExportTraceServiceRequest.
+	 */
+	public String toJson(String uploadId) throws IOException {
+		List<Object> spans = new ArrayList<>();
+		for (Span span : getSpans(uploadId)) {
+			spans.add(toOtlp(span));
+		}
+		Map<String, Object> scopeSpans = new LinkedHashMap<>();
+		scopeSpans.put("scope", Collections.singletonMap("name", SCOPE));
+		scopeSpans.put("spans", spans);
+		Map<String, Object> resourceSpans = new LinkedHashMap<>();
+		resourceSpans.put("resource", Collections.singletonMap("attributes",
+				Collections.singletonList(attribute("service.name", "tusfileupload"))));
+		resourceSpans.put("scopeSpans", Collections.singletonList(scopeSpans));
+		return MAPPER.writeValueAsString(Collections.singletonMap("resourceSpans",
+				Collections.singletonList(resourceSpans)));
+	}
+
+	/*
+	 * Writes the trace of uploadId to file.
+	 */
+	public void export(String uploadId, Path file) throws IOException {
+		Files.write(file, toJson(uploadId).getBytes(StandardCharsets.UTF_8));
+	}
+
+	/*
+	 * Writes the trace of a completed upload to <traceExportFolder>/<id>.trace.json,
+	 * if an export folder is set.
+	 */
+	public void exportCompleted(String uploadId) {
+		Path folder = exportFolder;
+		if (folder == null || uploadId == null) {
+			return;
+		}
+		try {
+			Files.createDirectories(folder);
+			export(uploadId, folder.resolve(uploadId + ".trace.json"));
+		} catch (IOException e) {
+			log.warn("Unable to export the trace of {}: {}", uploadId, e.toString());
+		}
+	}
+
+	protected Map<String, Object> toOtlp(Span span) {
+		Map<String, Object> otlp = new LinkedHashMap<>();
+		otlp.put("traceId", traceId(span.uploadId));
+		otlp.put("spanId", hex(span.spanId));
+		if (span.parentSpanId != 0L) {
+			otlp.put("parentSpanId", hex(span.parentSpanId));
+		}
+		otlp.put("name", span.name);
+		otlp.put("kind", span.kind);
+		// 64 bits integers are strings in OTLP/JSON
+		otlp.put("startTimeUnixNano", Long.toString(epochOffset + span.start));
+		otlp.put("endTimeUnixNano", Long.toString(epochOffset + span.end));
+		List<Object> attributes = new ArrayList<>();
+		for (Map.Entry<String, Object> attribute : span.attributes.entrySet()) {
+			attributes.add(attribute(attribute.getKey(), attribute.getValue()));
+		}
+		otlp.put("attributes", attributes);
+		Map<String, Object> status = new LinkedHashMap<>();
+		status.put("code", span.statusCode);
+		if (span.statusMessage != null) {
+			status.put("message", span.statusMessage);
+		}
+		otlp.put("status", status);
+		return otlp;
+	}
+
+	protected static Map<String, Object> attribute(String key, Object value) {
+		Map<String, Object> typed = new LinkedHashMap<>();
+		if (value instanceof Boolean) {
+			typed.put("boolValue", value);
+		} else if (value instanceof Double || value instanceof Float) {
+			typed.put("doubleValue", value);
+		} else if (value instanceof Number) {
+			typed.put("intValue", value.toString());
+		} else {
+			typed.put("stringValue", value.toString());
+		}
+		Map<String, Object> attribute = new LinkedHashMap<>();
+		attribute.put("key", key);
+		attribute.put("value", typed);
+		return attribute;
+	}
+
+	/*
+	 * The upload ids are UUIDs, i.e. 32 hexadecimal digits once the separators
+	 * removed: the trace id. Other ids are hashed.
+	 */
+	protected static String traceId(String uploadId) {
+		String digits = uploadId.replace("_", "").replace("-", "").toLowerCase();
+		if (digits.length() == 32 && digits.chars().allMatch(c -> Character.digit(c, 16) >= 0)) {
+			return digits;
+		}
+		long h1 = 1125899906842597L;
+		long h2 = 0x9E3779B97F4A7C15L;
+		for (int i = 0; i < uploadId.length(); i++) {
+			h1 = 31 * h1 + uploadId.charAt(i);
+			h2 = (h2 ^ uploadId.charAt(i)) * 0x100000001B3L;
+		}
+		return hex(h1) + hex(h2);
+	}
+
+	protected static String hex(long value) {
+		String digits = Long.toHexString(value);
+		return "0000000000000000".substring(digits.length()) + digits;
+	}
+}
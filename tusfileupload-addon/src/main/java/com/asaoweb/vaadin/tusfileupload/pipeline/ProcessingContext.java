@@ -0,0 +1,55 @@
+package com.asaoweb.vaadin.tusfileupload.pipeline;
+
+import java.io.InputStream;
+import java.nio.file.Path;
+
+import com.asaoweb.vaadin.tusfileupload.FileInfo;
+import com.asaoweb.vaadin.tusfileupload.data.Datastore;
+
+/*
+What a ProcessingStage gets to work on: the completed upload and its datastore.
+*/
+public class ProcessingContext {
+	protected final FileInfo fileInfo;
+	protected final Datastore datastore;
+	protected final int attempt;
+
+	public ProcessingContext(FileInfo fileInfo, Datastore datastore, int attempt) {
+		this.fileInfo = fileInfo;
+		this.datastore = datastore;
+		this.attempt = attempt;
+	}
+
+	public FileInfo getFileInfo() {
+		return fileInfo;
+	}
+
+	public String getId() {
+		return fileInfo.id;
+	}
+
+	public Datastore getDatastore() {
+		return datastore;
+	}
+
+	/*
+	 * Path of the uploaded bytes in the datastore.
+	 */
+	public Path getPath() {
+		return datastore.getInputStreamPath(fileInfo.id);
+	}
+
+	/*
+	 * Opens a new stream on the uploaded bytes, to be closed by the caller.
+	 */
+	public InputStream openInputStream() throws Exception {
+		return datastore.getInputStream(fileInfo.id);
+	}
+
+	/*
+	 * 0 for the first run of the stage, incremented on each retry.
+	 */
+	public int getAttempt() {
+		return attempt;
+	}
+}
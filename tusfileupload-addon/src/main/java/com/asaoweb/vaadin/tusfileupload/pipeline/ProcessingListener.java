@@ -0,0 +1,17 @@
+package com.asaoweb.vaadin.tusfileupload.pipeline;
+
+import java.io.Serializable;
+
+import com.asaoweb.vaadin.tusfileupload.FileInfo;
+
+/*
+Notified, on a pipeline thread, once every stage has run for an upload.
+*/
+@FunctionalInterface
+public interface ProcessingListener extends Serializable {
+	/*
+	 * failure is null if every stage succeeded, or the last exception of the
+	 * stage that exhausted its retries.
+	 */
+	public void processingFinished(FileInfo fileInfo, Exception failure);
+}
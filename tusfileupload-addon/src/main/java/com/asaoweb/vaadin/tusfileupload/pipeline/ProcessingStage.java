@@ -0,0 +1,16 @@
+package com.asaoweb.vaadin.tusfileupload.pipeline;
+
+import java.io.Serializable;
+
+/*
+A unit of post-upload work (move, scan, index...) run by the UploadPipeline,
+off the UI thread. A stage may be run again after a failure or a restart, so it
+should be idempotent.
+*/
+@FunctionalInterface
+public interface ProcessingStage extends Serializable {
+	/*
+	 * Processes the completed upload. Throwing makes the pipeline retry the stage.
+	 */
+	public void process(ProcessingContext context) throws Exception;
+}
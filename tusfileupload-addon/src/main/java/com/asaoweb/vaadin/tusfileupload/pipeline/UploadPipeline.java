@@ -0,0 +1,379 @@
+package com.asaoweb.vaadin.tusfileupload.pipeline;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.asaoweb.vaadin.tusfileupload.FileInfo;
+import com.asaoweb.vaadin.tusfileupload.data.Datastore;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/*
+Server side processing of completed uploads, independent of any UI.
+
+Steps run in the order they were added; the stages of a parallel step run
+concurrently and the next step starts once all of them succeeded. A failing
+stage is retried with an exponential delay, up to maxRetries times.
+
+Work runs on a bounded executor. A stage run rejected by its full queue is
+parked, never run by the thread submitting it (a request thread, the retry
+scheduler or a pipeline thread): it is queued again once a stage ends.
+The index of the next step of every upload is persisted in a .pending file,
+so that start() resumes the uploads left unfinished by a previous run (the
+stages of an interrupted step are run again).
+
+A single pipeline is meant to be shared by the application: create it, add the
+steps, then call start() once before any upload completes.
+*/
+public class UploadPipeline implements Serializable {
+	private static final Logger log = LoggerFactory.getLogger(UploadPipeline.class.getName());
+
+	protected static final String PENDING_EXTENSION = ".pending";
+
+	protected final Datastore datastore;
+	protected final File stateFolder;
+	protected final int threads;
+	protected final int queueCapacity;
+	protected final List<Step> steps = new CopyOnWriteArrayList<>();
+	// stage runs rejected by the full queue, the state of their uploads is on disk
+	protected final ConcurrentLinkedDeque<Runnable> parked = new ConcurrentLinkedDeque<>();
+
+	protected int maxRetries = 3;
+	protected long retryDelayMs = 1000L;
+	protected ProcessingListener defaultListener;
+
+	protected transient ThreadPoolExecutor executor;
+	protected transient ScheduledExecutorService scheduler;
+	protected volatile boolean shutdown = false;
+
+	public static class Step implements Serializable {
+		protected final String name;
+		protected final List<ProcessingStage> stages;
+
+		Step(String name, List<ProcessingStage> stages) {
+			this.name = name;
+			this.stages = Collections.unmodifiableList(new ArrayList<>(stages));
+		}
+
+		public String getName() { return name; }
+		public List<ProcessingStage> getStages() { return stages; }
+	}
+
+	/*
+	 * Persisted state of an upload being processed.
+	 */
+	public static class PendingState {
+		public String id;
+		public int step;
+	}
+
+	protected class Task {
+		final FileInfo fileInfo;
+		final ProcessingListener listener;
+		volatile int step;
+
+		Task(FileInfo fileInfo, ProcessingListener listener, int step) {
+			this.fileInfo = fileInfo;
+			this.listener = listener;
+			this.step = step;
+		}
+	}
+
+	/*
+	 * stateFolder holds the .pending files, threads and queueCapacity bound the executor.
+	 */
+	public UploadPipeline(Datastore datastore, File stateFolder, int threads, int queueCapacity) {
+		this.datastore = datastore;
+		this.stateFolder = stateFolder;
+		this.threads = Math.max(1, threads);
+		this.queueCapacity = Math.max(1, queueCapacity);
+		if (!stateFolder.isDirectory() && !stateFolder.mkdirs()) {
+			log.error("Unable to find or create pipeline state directory {}", stateFolder);
+		}
+	}
+
+	/*
+	 * Adds a step running a single stage.
+	 */
+	public UploadPipeline addStage(String name, ProcessingStage stage) {
+		steps.add(new Step(name, Collections.singletonList(stage)));
+		return this;
+	}
+
+	/*
+	 * Adds a step whose stages run concurrently.
+	 */
+	public UploadPipeline addParallelStages(String name, ProcessingStage... stages) {
+		steps.add(new Step(name, Arrays.asList(stages)));
+		return this;
+	}
+
+	public List<Step> getSteps() {
+		return Collections.unmodifiableList(steps);
+	}
+
+	public void setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	/*
+	 * Delay before the first retry of a stage, doubled on each following one.
+	 */
+	public void setRetryDelayMs(long retryDelayMs) {
+		this.retryDelayMs = retryDelayMs;
+	}
+
+	public long getRetryDelayMs() {
+		return retryDelayMs;
+	}
+
+	/*
+	 * Listener of the uploads submitted without one, like the ones resumed by
+	 * start(), and of the uploads of a TusMultiUpload whose UI detached during
+	 * their processing. Without any listener, the upload is terminated once
+	 * processed (kept if the processing failed).
+	 */
+	public void setDefaultListener(ProcessingListener defaultListener) {
+		this.defaultListener = defaultListener;
+	}
+
+	public ProcessingListener getDefaultListener() {
+		return defaultListener;
+	}
+
+	public Datastore getDatastore() {
+		return datastore;
+	}
+
+	/*
+	 * Resumes the uploads left pending by a previous run.
+	 */
+	public void start() {
+		File[] files = stateFolder.listFiles((dir, name) -> name.endsWith(PENDING_EXTENSION));
+		if (files == null) {
+			return;
+		}
+		ObjectMapper mapper = new ObjectMapper();
+		for (File file : files) {
+			try {
+				PendingState state = mapper.readValue(file, PendingState.class);
+				FileInfo fileInfo = datastore.getFileInfo(state.id);
+				if (fileInfo == null) {
+					log.warn("Dropping pending processing of {}: upload not found", state.id);
+					file.delete();
+					continue;
+				}
+				log.info("Resuming processing of {} at step {}", state.id, state.step);
+				runStep(new Task(fileInfo, null, state.step));
+			} catch (Exception e) {
+				log.error("Unable to resume pending processing {}", file, e);
+			}
+		}
+	}
+
+	/*
+	 * Queues the processing of a completed upload, listener is notified once done.
+	 */
+	public void submit(FileInfo fileInfo, ProcessingListener listener) {
+		Task task = new Task(fileInfo, listener, 0);
+		try {
+			savePendingState(task);
+		} catch (Exception e) {
+			log.error("Unable to persist pending processing of {}", fileInfo.id, e);
+		}
+		runStep(task);
+	}
+
+	public void shutdown() {
+		shutdown = true;
+		if (executor != null) {
+			executor.shutdown();
+		}
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+	}
+
+	/*
+	 * Number of stage runs waiting for a thread.
+	 */
+	public int getQueueDepth() {
+		return executor == null ? 0 : executor.getQueue().size();
+	}
+
+	/*
+	 * Number of stage runs waiting for room in the queue.
+	 */
+	public int getParkedCount() {
+		return parked.size();
+	}
+
+	public int getActiveCount() {
+		return executor == null ? 0 : executor.getActiveCount();
+	}
+
+	protected void runStep(Task task) {
+		if (task.step >= steps.size()) {
+			complete(task, null);
+			return;
+		}
+		Step step = steps.get(task.step);
+		AtomicInteger remaining = new AtomicInteger(step.stages.size());
+		AtomicReference<Exception> failure = new AtomicReference<>();
+		for (ProcessingStage stage : step.stages) {
+			runStage(task, step, stage, 0, e -> {
+				if (e != null) {
+					failure.compareAndSet(null, e);
+				}
+				if (remaining.decrementAndGet() == 0) {
+					if (failure.get() != null) {
+						complete(task, failure.get());
+					} else {
+						task.step++;
+						try {
+							savePendingState(task);
+						} catch (Exception pe) {
+							log.error("Unable to persist pending processing of {}", task.fileInfo.id, pe);
+						}
+						runStep(task);
+					}
+				}
+			});
+		}
+	}
+
+	protected void runStage(Task task, Step step, ProcessingStage stage, int attempt, Consumer<Exception> done) {
+		execute(() -> {
+			try {
+				stage.process(new ProcessingContext(task.fileInfo, datastore, attempt));
+			} catch (Exception e) {
+				if (attempt < maxRetries && !shutdown) {
+					long delay = retryDelayMs << attempt;
+					log.warn("Step {} failed for {} (attempt {}), retrying in {} ms: {}", step.name, task.fileInfo.id, attempt, delay, e.toString());
+					scheduler().schedule(() -> runStage(task, step, stage, attempt + 1, done), delay, TimeUnit.MILLISECONDS);
+				} else {
+					log.error("Step {} failed for {} after {} attempts", step.name, task.fileInfo.id, attempt + 1, e);
+					done.accept(e);
+				}
+				resumeParked();
+				return;
+			}
+			done.accept(null);
+			resumeParked();
+		});
+	}
+
+	/*
+	 * Queues the parked stage runs, in order, while the queue accepts them.
+	 */
+	protected void resumeParked() {
+		Runnable runnable;
+		while (!shutdown && (runnable = parked.pollFirst()) != null) {
+			try {
+				executor().execute(runnable);
+			} catch (RejectedExecutionException e) {
+				// the stages queued meanwhile resume it when they end
+				parked.addFirst(runnable);
+				return;
+			}
+		}
+	}
+
+	protected void execute(Runnable runnable) {
+		if (shutdown) {
+			return;
+		}
+		if (parked.isEmpty()) {
+			try {
+				executor().execute(runnable);
+				return;
+			} catch (RejectedExecutionException e) {
+				log.debug("Pipeline queue full, parking a stage run");
+			}
+		}
+		parked.addLast(runnable);
+		// the queue may have room again if every stage ended since
+		resumeParked();
+	}
+
+	protected void complete(Task task, Exception failure) {
+		getPendingFile(task.fileInfo.id).delete();
+		ProcessingListener listener = task.listener != null ? task.listener : defaultListener;
+		try {
+			if (listener != null) {
+				listener.processingFinished(task.fileInfo, failure);
+			} else if (failure == null) {
+				datastore.terminate(task.fileInfo.id);
+			} else {
+				log.error("Processing of {} failed, upload kept in the datastore", task.fileInfo.id);
+			}
+		} catch (Exception e) {
+			log.error("Processing listener failed for {}", task.fileInfo.id, e);
+		}
+	}
+
+	protected void savePendingState(Task task) throws Exception {
+		PendingState state = new PendingState();
+		state.id = task.fileInfo.id;
+		state.step = task.step;
+		new ObjectMapper().writeValue(getPendingFile(task.fileInfo.id), state);
+	}
+
+	protected File getPendingFile(String id) {
+		return new File(stateFolder, id + PENDING_EXTENSION);
+	}
+
+	protected synchronized ThreadPoolExecutor executor() {
+		if (executor == null) {
+			executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<>(queueCapacity), new NamedThreadFactory("tus-pipeline"));
+			executor.allowCoreThreadTimeOut(true);
+		}
+		return executor;
+	}
+
+	protected synchronized ScheduledExecutorService scheduler() {
+		if (scheduler == null) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("tus-pipeline-retry"));
+		}
+		return scheduler;
+	}
+
+	protected static class NamedThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+		private final String prefix;
+
+		NamedThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
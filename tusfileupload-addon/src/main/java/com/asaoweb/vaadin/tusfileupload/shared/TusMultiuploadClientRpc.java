@@ -12,4 +12,10 @@ public interface TusMultiuploadClientRpc extends ClientRpc {
 	  void abortAllUploads();
 
 	  void removeFromQueue(String queueId);
+
+	  void restoreQueue(String[] queueIds, String[] uploadIds);
+
+	  void progressAck();
+
+	  void queuedFilesAck();
 }
@@ -7,10 +7,20 @@ import elemental.json.JsonArray;
 public interface TusMultiuploadServerRpc extends ServerRpc {
 	  void onQueuedFile(String queueId, String name, String contentType, long contentLength);
 
+	  void onQueuedFiles(String[] queueIds, String[] names, String[] contentTypes, long[] contentLengths);
+
 	  void setNextQueuedFileIdAndStart(String queueId);
 
+	  void onPreview(String queueId, String image);
+
+	  void onUploadResumed(String queueId, String uploadId);
+
+	  void onPersistedQueue(String[] queueIds, String[] names, String[] contentTypes, long[] contentLengths, String[] uploadIds);
+
 	  void onProgress(String id, String name, long uploadedBytes, long totalBytes);
 
+	  void onProgressBatch(String[] queueIds, long[] uploadedBytes, long[] totalBytes);
+
 	  void onFileUploaded(String id, String name, String contentType);
 	  
 	  void onError(String id, String name, String contentType, String errorReason);
@@ -18,5 +28,7 @@ public interface TusMultiuploadServerRpc extends ServerRpc {
 	  void onFileCountError(int newlyAddedFiles);
 	  
 	  void onFileSizeError(JsonArray fileArray);
+
+	  void refreshEndpoint();
 	  
 }
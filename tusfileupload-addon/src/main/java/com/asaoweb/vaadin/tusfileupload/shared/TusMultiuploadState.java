@@ -1,28 +1,67 @@
 package com.asaoweb.vaadin.tusfileupload.shared;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import com.vaadin.shared.ui.JavaScriptComponentState;
 
 public class TusMultiuploadState extends JavaScriptComponentState {
 	//public TusMultiuploadTusConfig config;
 	public boolean debug = false;
 	public boolean clientSideProgress = true;
+	// progress rendered by the connector in the rows' elements, never sent to the server
+	public boolean clientRenderedProgress = false;
 	
 	public String 	endpoint;
+	// milliseconds between two refreshEndpoint calls of the connector, 0 when the endpoint doesn't expire (see UploadTokens)
+	public long		tokenRefreshInterval = 0;
 	public String 	fingerprint;
 	public boolean 	resume = true;
 	public long		chunkSize = 1024*1024*5; // 5 MB default chunks
+	// chunks resized as advertised by the server (Upload-Chunk-Hint), see Config "chunkTargetDuration"
+	public boolean	adaptiveChunkSize = true;
 	// retries 11 times each time waiting the respective ms
 	public int[]	retryDelays = { 2000, 4000, 10000, 10000, 10000, 10000, 10000, 10000, 20000, 20000, 30000 };
 	public boolean  removeFingerprintOnSuccess = true;
 	public boolean  retryOnNetworkLoss = false;
 	public boolean  withCredentials = false;
+	// chunks compressed by the browser (gzip or deflate) when it supports CompressionStream
+	public boolean	compressChunks = false;
+	// tus uploads run in a Web Worker instead of the UI thread, when the browser supports it
+	public boolean	uploadInWorker = false;
+	// uploads of the next queued files created in one request while a file is sent, 0 to create each one in turn
+	public int		precreateUploads = 0;
+	public String	compressionFormat = "gzip";
+	// files hashed by the browser before the upload, see Config "deduplicate"
+	public boolean	deduplicate = false;
+	// images downscaled by the browser to fit in this many pixels before the upload, 0 to upload them as is
+	public int		imageMaxSize = 0;
+	// previews of the images and videos rendered by the browser and sent when they are queued, fitting in this many pixels, 0 for none
+	public int		previewSize = 0;
+	// type of the downscaled images, null to keep the type of the image when the browsers can encode it
+	public String	imageFormat;
+	// quality of the downscaled JPEG and WebP images
+	public double	imageQuality = 0.85;
+	// file name -> id of the previous version the file is uploaded as a delta of
+	public Map<String, String> deltaBases = new HashMap<>();
+	// client fingerprint -> id of a partial upload of the user, left by a previous session
+	public Map<String, String> resumableUploads = new HashMap<>();
+	// key of the queue persisted by the browser (IndexedDB) across reloads, null when not persisted
+	public String	persistentQueue;
 	
 	public boolean 	rebuild = false;
 	public String 	buttonCaption;
 	public String 	mimeAccept = "*/*";
 	public boolean 	multiple = true;
+	// files and folders dropped on the button are queued
+	public boolean	dropEnabled = false;
 	public long 	maxFileSize = 0;
 	public int 		maxFileCount = 0;
 	public int 		remainingQueueSeats = 0;
 
+	// client side progress: minimal interval between two batches, stretched with the server round trip time
+	public int		progressIntervalMs = 1000;
+	// client side progress: moves smaller than this fraction of the file size aren't reported
+	public double	progressMinDelta = 0.01;
+
 }
\ No newline at end of file
@@ -0,0 +1,641 @@
+package com.asaoweb.vaadin.tusfileupload.ui;
+
+import java.lang.reflect.Method;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.asaoweb.vaadin.tusfileupload.Config;
+import com.asaoweb.vaadin.tusfileupload.FileInfo;
+import com.asaoweb.vaadin.tusfileupload.component.TusMultiUpload;
+import com.asaoweb.vaadin.tusfileupload.data.AsyncThumbProvider;
+import com.asaoweb.vaadin.tusfileupload.data.FileInfoPageProvider;
+import com.asaoweb.vaadin.tusfileupload.data.FileInfoThumbProvider;
+import com.asaoweb.vaadin.tusfileupload.events.Events.FailedEvent;
+import com.asaoweb.vaadin.tusfileupload.events.Events.FileDeletedClickEvent;
+import com.asaoweb.vaadin.tusfileupload.events.Events.FileDeletedClickListener;
+import com.asaoweb.vaadin.tusfileupload.events.Events.FileQueuedBatchEvent;
+import com.asaoweb.vaadin.tusfileupload.events.Events.PreviewEvent;
+import com.asaoweb.vaadin.tusfileupload.events.Events.ProgressEvent;
+import com.asaoweb.vaadin.tusfileupload.events.Events.StartedEvent;
+import com.asaoweb.vaadin.tusfileupload.events.Events.SucceededEvent;
+import com.asaoweb.vaadin.tusfileupload.events.Events.SucceededListener;
+import com.asaoweb.vaadin.tusfileupload.exceptions.TusException.ConfigError;
+import com.vaadin.data.provider.CallbackDataProvider;
+import com.vaadin.data.provider.Query;
+import com.vaadin.icons.VaadinIcons;
+import com.vaadin.server.Resource;
+import com.vaadin.shared.Registration;
+import com.vaadin.ui.Alignment;
+import com.vaadin.ui.Grid;
+import com.vaadin.ui.Grid.SelectionMode;
+import com.vaadin.ui.HorizontalLayout;
+import com.vaadin.ui.Image;
+import com.vaadin.ui.Label;
+import com.vaadin.ui.Notification;
+import com.vaadin.ui.Notification.Type;
+import com.vaadin.ui.UI;
+import com.vaadin.ui.VerticalLayout;
+import com.vaadin.ui.renderers.ButtonRenderer;
+import com.vaadin.ui.renderers.ProgressBarRenderer;
+
+/**
+ * File list backed by a lazily loaded Grid, for attachments counted in thousands.
+ *
+ * Unlike {@link TusMultiUploadLayout}, which builds a row of components for every
+ * file, only the visible rows are rendered, and the existing files are read page
+ * by page from a {@link FileInfoPageProvider}. The aggregates displayed in the
+ * info label are kept up to date incrementally.
+ *
+ * Rows are ordered as the existing files, then the files uploaded since the
+ * layout was created, then the queued files (the reverse with
+ * {@link #setReverseOrder(boolean)}). Reordering and the compact layout are not
+ * available in this mode.
+ */
+public class TusMultiUploadGridLayout extends VerticalLayout {
+	private final static Method FILE_DELETED_METHOD;
+
+	static {
+		try {
+			FILE_DELETED_METHOD = FileDeletedClickListener.class.getMethod(
+					"fileDeletedClick", FileDeletedClickEvent.class);
+		}
+		catch (NoSuchMethodException | SecurityException ex) {
+			throw new RuntimeException("Unable to find listener event method.", ex);
+		}
+	}
+
+	private static final Logger logger = LoggerFactory.getLogger(TusMultiUploadGridLayout.class.getName());
+
+	protected final TusMultiUpload uploadButton;
+	protected final Label infoLabel;
+	protected final Grid<FileInfo> grid;
+	protected final CallbackDataProvider<FileInfo, Void> dataProvider;
+
+	protected FileInfoPageProvider existingFiles;
+	// files uploaded since the layout was created, not returned by existingFiles
+	protected final List<FileInfo> addedFiles = new ArrayList<>();
+	// queued files, by queue id
+	protected final Map<String, FileInfo> queuedFiles = new LinkedHashMap<>();
+	// error messages of the failed queued files, by queue id
+	protected final Map<String, String> errors = new HashMap<>();
+
+	// aggregates, updated incrementally
+	protected int 		existingCount = 0;
+	protected long 		existingSize = 0L;
+	protected long 		addedSize = 0L;
+
+	protected boolean 	reverseOrder = false;
+	protected boolean 	allowDelete = true;
+	protected int		minFileCount = 0;
+	protected FileInfoThumbProvider provider;
+	protected String 	infoLabelMessagePattern = "{0,,filenb} uploaded files / {2,,totalSize} (+{1,,queueSize} queued)";
+	protected String	fileMinCountErrorMessagePattern = "Can't delete any file: {0,,minCount} files must be attached. Upload new files first.";
+	protected String 	noFilesUploaded = "No files uploaded yet.";
+
+	protected Lock		updateLock = new ReentrantLock();
+
+	protected final AtomicBoolean thumbUpdateScheduled = new AtomicBoolean(false);
+	protected Registration thumbReadyRegistration;
+
+	public TusMultiUploadGridLayout() throws ConfigError {
+		this(null, new Config(), FileInfoPageProvider.ofList(new ArrayList<FileInfo>()), null);
+	}
+
+	public TusMultiUploadGridLayout(String buttonCaption, Config config, FileInfoPageProvider existingFiles, FileInfoThumbProvider provider) throws ConfigError {
+		super();
+		uploadButton = new TusMultiUpload(buttonCaption, config);
+		infoLabel = new Label();
+		dataProvider = new CallbackDataProvider<>(this::fetch, q -> getRowCount(), TusMultiUploadGridLayout::getRowId);
+		grid = new Grid<>(dataProvider);
+		grid.setSelectionMode(SelectionMode.NONE);
+		grid.setSizeFull();
+		grid.addStyleName("tusmultiuploadgridlayout-grid");
+		grid.addComponentColumn(this::createThumb).setId("thumb").setWidth(56).setSortable(false);
+		grid.addColumn(fi -> fi.suggestedFilename).setId("filename").setExpandRatio(1).setSortable(false);
+		grid.addColumn(fi -> fi.suggestedFiletype).setId("filetype").setSortable(false);
+		grid.addColumn(fi -> fi.entityLength > 0 ? TusMultiUpload.readableFileSize(fi.entityLength) : "").setId("filesize").setSortable(false);
+		grid.addColumn(this::getProgress, new ProgressBarRenderer()).setId("progress").setSortable(false);
+		grid.addColumn(this::getStatus).setId("status").setSortable(false);
+		ButtonRenderer<FileInfo> actionRenderer = new ButtonRenderer<>(e -> actionClicked(e.getItem()));
+		actionRenderer.setHtmlContentAllowed(true);
+		grid.addColumn(this::getActionHtml, actionRenderer).setId("action").setWidth(64).setSortable(false);
+		grid.setHeaderVisible(false);
+
+		HorizontalLayout infobar = new HorizontalLayout(uploadButton, infoLabel);
+		infobar.setDefaultComponentAlignment(Alignment.MIDDLE_LEFT);
+		infobar.setExpandRatio(infoLabel, 1f);
+
+		this.setHeight(300, Unit.PIXELS);
+		this.setWidth(100, Unit.PERCENTAGE);
+		this.addComponents(grid, infobar);
+		this.setExpandRatio(grid, 1f);
+		this.addStyleName("tusmultiuploadgridlayout");
+
+		this.existingFiles = existingFiles;
+		uploadButton.addFileQueuedBatchListener(this::filesQueued);
+		uploadButton.addPreviewListener(this::previewReceived);
+		uploadButton.addStartedListener(this::uploadStarted);
+		uploadButton.addProgressListener(this::uploadProgress);
+		uploadButton.addFailedListener(this::uploadFailed);
+		uploadButton.addSucceededListener(this::uploadSucceeded);
+		setThumbProvider(provider);
+	}
+
+	@Override
+	public void attach() {
+		refreshFileList();
+		super.attach();
+		if (provider instanceof AsyncThumbProvider && thumbReadyRegistration == null) {
+			thumbReadyRegistration = ((AsyncThumbProvider) provider).addThumbnailReadyListener(this::thumbnailReady);
+		}
+	}
+
+	@Override
+	public void detach() {
+		super.detach();
+		if (thumbReadyRegistration != null) {
+			thumbReadyRegistration.remove();
+			thumbReadyRegistration = null;
+		}
+	}
+
+	public void setThumbProvider(FileInfoThumbProvider provider) {
+		if (thumbReadyRegistration != null) {
+			thumbReadyRegistration.remove();
+			thumbReadyRegistration = null;
+		}
+		this.provider = provider;
+		if (provider instanceof AsyncThumbProvider && isAttached()) {
+			thumbReadyRegistration = ((AsyncThumbProvider) provider).addThumbnailReadyListener(this::thumbnailReady);
+		}
+	}
+
+	/**
+	 * Replaces the existing files, e.g. when the layout is reused for another entity.
+	 * The files uploaded since the layout was created are forgotten.
+	 */
+	public void setExistingFiles(FileInfoPageProvider existingFiles) {
+		this.existingFiles = existingFiles;
+		updateLock.lock();
+		try {
+			addedFiles.clear();
+			addedSize = 0L;
+		} finally {
+			updateLock.unlock();
+		}
+		refreshFileList();
+	}
+
+	/**
+	 * The preview of a queued file, shown once checked by the thumbnail provider.
+	 */
+	protected void previewReceived(PreviewEvent evt) {
+		if (provider instanceof AsyncThumbProvider) {
+			((AsyncThumbProvider) provider).setPreview(evt.getFileInfo(), evt.getImage());
+		}
+	}
+
+	/**
+	 * Called from a thumbnail worker: the visible rows are fetched again by a
+	 * single UI access for all the thumbnails which became available in the meantime.
+	 */
+	protected void thumbnailReady(FileInfo fileInfo) {
+		UI ui = getUI();
+		if (ui != null && thumbUpdateScheduled.compareAndSet(false, true)) {
+			ui.access(() -> {
+				thumbUpdateScheduled.set(false);
+				dataProvider.refreshAll();
+			});
+		}
+	}
+
+	public Registration addSucceededListener(SucceededListener listener) {
+		return uploadButton.addSucceededListener(listener);
+	}
+
+	/**
+	 * Listeners are expected to delete the file from the backend of the
+	 * {@link FileInfoPageProvider}: the layout only updates its aggregates.
+	 */
+	public Registration addFileDeletedClickListener(FileDeletedClickListener listener) {
+		return addListener(FileDeletedClickEvent.class, listener, FILE_DELETED_METHOD);
+	}
+
+	/**
+	 * Reads the count and size of the existing files again and refreshes the grid.
+	 */
+	public void refreshFileList() {
+		existingCount = existingFiles != null ? existingFiles.count() : 0;
+		existingSize = existingFiles != null ? existingFiles.totalSize() : 0L;
+		dataProvider.refreshAll();
+		refreshFilesInfos();
+	}
+
+	public void refreshFilesInfos() {
+		int fileNB = getFileCount();
+		int queueNB;
+		updateLock.lock();
+		try {
+			queueNB = queuedFiles.size();
+		} finally {
+			updateLock.unlock();
+		}
+		uploadButton.setRemainingQueueSeats(uploadButton.getMaxFileCount()-fileNB);
+		if (fileNB == 0 && queueNB == 0) {
+			infoLabel.setValue(noFilesUploaded);
+		} else {
+			infoLabel.setValue( MessageFormat.format(infoLabelMessagePattern, fileNB, queueNB, TusMultiUpload.readableFileSize(getTotalSize()) ));
+		}
+	}
+
+	/**
+	 * Number of uploaded files, existing ones included.
+	 */
+	public int getFileCount() {
+		updateLock.lock();
+		try {
+			return existingCount + addedFiles.size();
+		} finally {
+			updateLock.unlock();
+		}
+	}
+
+	/**
+	 * Total size of the uploaded files, existing ones included.
+	 */
+	public long getTotalSize() {
+		updateLock.lock();
+		try {
+			return existingSize + addedSize;
+		} finally {
+			updateLock.unlock();
+		}
+	}
+
+	public boolean hasUploadInProgress() {
+		return this.getUploader().hasUploadInProgress();
+	}
+
+	public int getQueueCount() {
+		int queueNB = this.getUploader().getQueueCount();
+		logger.debug("getQueueCount: {}", queueNB);
+		return queueNB;
+	}
+
+	public boolean hasRemainingQueue() {
+		return getQueueCount() > 0;
+	}
+
+	/**
+	 * To replace with final files wrapper after upload succeeded
+	 * @param originalFi
+	 * @param newFi
+	 */
+	public void replaceFileInfoItem(FileInfo originalFi, FileInfo newFi) {
+		if (originalFi == null || newFi == null) {
+			return;
+		}
+		updateLock.lock();
+		try {
+			for (int i = 0; i < addedFiles.size(); i++) {
+				FileInfo fi = addedFiles.get(i);
+				if (fi.id != null && fi.id.equals(originalFi.id)) {
+					addedSize += Math.max(0, newFi.entityLength) - Math.max(0, fi.entityLength);
+					addedFiles.set(i, newFi);
+				}
+			}
+		} finally {
+			updateLock.unlock();
+		}
+		dataProvider.refreshAll();
+		refreshFilesInfos();
+	}
+
+	/**
+	 * Removes an uploaded or queued file from the list. Existing files are only
+	 * removed from the aggregates: they must be deleted from the backend of the
+	 * {@link FileInfoPageProvider}.
+	 */
+	public void removeFileInfoItem(FileInfo fi) {
+		if (fi.isUploading()) {
+			logger.info("Won't delete {}: is uploading. Wait finish.", fi);
+			return;
+		}
+		updateLock.lock();
+		try {
+			if (fi.queueId != null && queuedFiles.remove(fi.queueId) != null) {
+				errors.remove(fi.queueId);
+				uploadButton.removeFromQueue(fi.queueId);
+			} else if (addedFiles.remove(fi)) {
+				addedSize -= Math.max(0, fi.entityLength);
+			} else if (existingCount > 0) {
+				existingCount--;
+				existingSize -= Math.max(0, fi.entityLength);
+			}
+		} finally {
+			updateLock.unlock();
+		}
+		dataProvider.refreshAll();
+		refreshFilesInfos();
+	}
+
+	public void cancelSucceededEvent(SucceededEvent event) {
+		updateLock.lock();
+		try {
+			addedFiles.removeIf(f -> {
+				if (f.id != null && f.id.equals(event.getId())) {
+					addedSize -= Math.max(0, f.entityLength);
+					return true;
+				}
+				return false;
+			});
+		} finally {
+			updateLock.unlock();
+		}
+		dataProvider.refreshAll();
+		refreshFilesInfos();
+	}
+
+	/**
+	 * Default: "{0,,filenb} uploaded files / {2,,totalSize} (+{1,,queueSize} queued)"
+	 *
+	 * @param pattern used in MessageFormat.format
+	 */
+	public void setInfoPanelMessagePattern(String pattern) {
+		infoLabelMessagePattern = pattern;
+	}
+
+	public void setFileMinCountErrorMessagePattern(String pattern) {
+		fileMinCountErrorMessagePattern = pattern;
+	}
+
+	public void setMinFileCount(int minFileCount) {
+		this.minFileCount = minFileCount;
+	}
+
+	public int getMaxFileCount() {
+		return uploadButton.getMaxFileCount();
+	}
+
+	public int getMinFileCount() {
+		return minFileCount;
+	}
+
+	public void setChunkSize(long chunkSize) {
+		uploadButton.setChunkSize(chunkSize);
+	}
+
+	public void setWithCredentials(boolean withCredentials) {
+		uploadButton.setWithCredentials(withCredentials);
+	}
+
+	public TusMultiUpload getUploader() {
+		return uploadButton;
+	}
+
+	public Grid<FileInfo> getGrid() {
+		return grid;
+	}
+
+	/**
+	 * Display file list in reverse order (last as first row)
+	 *
+	 */
+	public void setReverseOrder(boolean reverseOrder) {
+		this.reverseOrder = reverseOrder;
+		dataProvider.refreshAll();
+	}
+
+	public void setAllowDelete(boolean allowDelete) {
+		this.allowDelete = allowDelete;
+		dataProvider.refreshAll();
+	}
+
+	protected static Object getRowId(FileInfo fi) {
+		return fi.queueId != null ? fi.queueId : fi.id;
+	}
+
+	protected int getRowCount() {
+		updateLock.lock();
+		try {
+			return existingCount + addedFiles.size() + queuedFiles.size();
+		} finally {
+			updateLock.unlock();
+		}
+	}
+
+	/*
+	 * Rows are the concatenation of the existing, added and queued segments: only
+	 * the existing segment is read from the page provider.
+	 */
+	protected Stream<FileInfo> fetch(Query<FileInfo, Void> query) {
+		int offset = query.getOffset();
+		int limit = query.getLimit();
+		int existing;
+		List<FileInfo> added;
+		List<FileInfo> queued;
+		updateLock.lock();
+		try {
+			existing = existingCount;
+			added = new ArrayList<>(addedFiles);
+			queued = new ArrayList<>(queuedFiles.values());
+		} finally {
+			updateLock.unlock();
+		}
+		List<FileInfo> rows = new ArrayList<>(limit);
+		if (reverseOrder) {
+			Collections.reverse(added);
+			Collections.reverse(queued);
+			offset = addFromList(rows, queued, offset, limit);
+			offset = addFromList(rows, added, offset, limit);
+			addFromExisting(rows, existing, offset, limit);
+		} else {
+			offset = addFromExisting(rows, existing, offset, limit);
+			offset = addFromList(rows, added, offset, limit);
+			addFromList(rows, queued, offset, limit);
+		}
+		return rows.stream();
+	}
+
+	/*
+	 * Adds the rows of the segment from offset to rows while limit isn't reached,
+	 * returns the offset relative to the next segment.
+	 */
+	protected int addFromList(List<FileInfo> rows, List<FileInfo> segment, int offset, int limit) {
+		for (int i = offset; i < segment.size() && rows.size() < limit; i++) {
+			rows.add(segment.get(i));
+		}
+		return Math.max(0, offset - segment.size());
+	}
+
+	protected int addFromExisting(List<FileInfo> rows, int existing, int offset, int limit) {
+		int count = Math.min(existing - offset, limit - rows.size());
+		if (count > 0 && existingFiles != null) {
+			if (reverseOrder) {
+				List<FileInfo> page = new ArrayList<>(count);
+				existingFiles.fetch(existing - offset - count, count).forEach(page::add);
+				Collections.reverse(page);
+				rows.addAll(page);
+			} else {
+				existingFiles.fetch(offset, count).forEach(rows::add);
+			}
+		}
+		return Math.max(0, offset - existing);
+	}
+
+	protected Image createThumb(FileInfo fi) {
+		Image thumb = new Image();
+		thumb.addStyleName("thumb");
+		Resource thumbRsc;
+		// the queued files not uploading yet only have their preview
+		if ( provider != null && (!fi.isQueued() || fi.id == null) && (thumbRsc = provider.getThumb(fi)) != null ) {
+			thumb.setSource(thumbRsc);
+		} else if ( fi.suggestedFiletype != null && fi.suggestedFiletype.toLowerCase().contains("image") ) {
+			thumb.setIcon(VaadinIcons.FILE_PICTURE);
+		} else if ( fi.suggestedFiletype != null && fi.suggestedFiletype.toLowerCase().contains("video") ) {
+			thumb.setIcon(VaadinIcons.FILE_MOVIE);
+		} else {
+			thumb.setIcon(VaadinIcons.FILE_O);
+		}
+		return thumb;
+	}
+
+	protected Double getProgress(FileInfo fi) {
+		if (!fi.isQueued() || (fi.queueId != null && errors.containsKey(fi.queueId))) {
+			return null;
+		}
+		return Math.max(0, fi.offset) / (double) fi.entityLength;
+	}
+
+	protected String getStatus(FileInfo fi) {
+		String error = fi.queueId != null ? errors.get(fi.queueId) : null;
+		if (error != null) {
+			return error;
+		} else if (fi.isQueued()) {
+			long value = Math.max(0, fi.offset);
+			int pct = (int) ((float) value / (float) fi.entityLength * 100);
+			return TusMultiUpload.readableFileSize(value) + " / " + TusMultiUpload.readableFileSize(fi.entityLength) + " (" + pct + "%)";
+		}
+		return "";
+	}
+
+	protected String getActionHtml(FileInfo fi) {
+		if (isQueuedRow(fi)) {
+			return VaadinIcons.CLOSE.getHtml();
+		}
+		return allowDelete ? VaadinIcons.TRASH.getHtml() : "";
+	}
+
+	protected boolean isQueuedRow(FileInfo fi) {
+		updateLock.lock();
+		try {
+			return fi.queueId != null && queuedFiles.containsKey(fi.queueId);
+		} finally {
+			updateLock.unlock();
+		}
+	}
+
+	protected void actionClicked(FileInfo fi) {
+		if (isQueuedRow(fi)) {
+			removeFileInfoItem(fi);
+			return;
+		}
+		if (!allowDelete) {
+			return;
+		}
+		if (minFileCount <= getFileCount() - 1) {
+			fireEvent(new FileDeletedClickEvent(uploadButton, fi));
+			removeFileInfoItem(fi);
+		} else {
+			Notification.show(MessageFormat.format(fileMinCountErrorMessagePattern, minFileCount), Type.ERROR_MESSAGE);
+		}
+	}
+
+	protected FileInfo getQueued(String queueId) {
+		updateLock.lock();
+		try {
+			return queueId != null ? queuedFiles.get(queueId) : null;
+		} finally {
+			updateLock.unlock();
+		}
+	}
+
+	protected void filesQueued(FileQueuedBatchEvent evt) {
+		updateLock.lock();
+		try {
+			evt.getFileInfos().forEach(fi -> queuedFiles.put(fi.queueId, fi));
+		} finally {
+			updateLock.unlock();
+		}
+		dataProvider.refreshAll();
+		refreshFilesInfos();
+	}
+
+	protected void uploadStarted(StartedEvent evt) {
+		uploadProgressed(evt.getQueueId(), evt.getFileInfo().offset);
+	}
+
+	protected void uploadProgress(ProgressEvent evt) {
+		uploadProgressed(evt.getQueueId(), evt.getFileInfo().offset);
+	}
+
+	protected void uploadProgressed(String queueId, long offset) {
+		FileInfo fi = getQueued(queueId);
+		if (fi != null) {
+			fi.offset = offset;
+			errors.remove(queueId);
+			// only this row is sent again
+			dataProvider.refreshItem(fi);
+		}
+	}
+
+	protected void uploadFailed(FailedEvent evt) {
+		FileInfo fi = getQueued(evt.getQueueId());
+		if (fi != null) {
+			errors.put(fi.queueId, evt.getReason().getMessage());
+			dataProvider.refreshItem(fi);
+		}
+	}
+
+	protected void uploadSucceeded(SucceededEvent evt) {
+		logger.debug("uploadSucceeded for evt {}", evt);
+		FileInfo fi;
+		updateLock.lock();
+		try {
+			fi = evt.getQueueId() != null ? queuedFiles.remove(evt.getQueueId()) : null;
+			if (fi == null) {
+				return;
+			}
+			errors.remove(fi.queueId);
+			if (evt.getFinalFileInfo() != null) {
+				fi = evt.getFinalFileInfo();
+			} else if (evt.getId() != null && !evt.getId().isEmpty()) {
+				fi.id = evt.getId();
+				fi.offset = evt.getFileInfo().offset;
+			}
+			if (evt.shouldAddFileToList()) {
+				addedFiles.add(fi);
+				addedSize += Math.max(0, fi.entityLength);
+			}
+		} finally {
+			updateLock.unlock();
+		}
+		if (provider instanceof AsyncThumbProvider && evt.getHandle() != null) {
+			((AsyncThumbProvider) provider).generate(fi, evt.retain());
+		}
+		dataProvider.refreshAll();
+		refreshFilesInfos();
+	}
+}
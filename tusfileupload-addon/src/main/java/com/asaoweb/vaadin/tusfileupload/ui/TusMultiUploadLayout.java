@@ -4,9 +4,13 @@ import java.lang.reflect.Method;
 import java.text.DecimalFormat;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -17,20 +21,20 @@ import org.slf4j.LoggerFactory;
 import com.asaoweb.vaadin.tusfileupload.Config;
 import com.asaoweb.vaadin.tusfileupload.FileInfo;
 import com.asaoweb.vaadin.tusfileupload.component.TusMultiUpload;
+import com.asaoweb.vaadin.tusfileupload.data.AsyncThumbProvider;
 import com.asaoweb.vaadin.tusfileupload.data.FileInfoThumbProvider;
 import com.asaoweb.vaadin.tusfileupload.events.Events.AbstractTusUploadEvent;
 import com.asaoweb.vaadin.tusfileupload.events.Events.FailedEvent;
-import com.asaoweb.vaadin.tusfileupload.events.Events.FailedListener;
 import com.asaoweb.vaadin.tusfileupload.events.Events.FileDeletedClickEvent;
 import com.asaoweb.vaadin.tusfileupload.events.Events.FileDeletedClickListener;
 import com.asaoweb.vaadin.tusfileupload.events.Events.FileIndexMovedEvent;
 import com.asaoweb.vaadin.tusfileupload.events.Events.FileIndexMovedListener;
+import com.asaoweb.vaadin.tusfileupload.events.Events.PreviewEvent;
 import com.asaoweb.vaadin.tusfileupload.events.Events.ProgressEvent;
-import com.asaoweb.vaadin.tusfileupload.events.Events.ProgressListener;
 import com.asaoweb.vaadin.tusfileupload.events.Events.StartedEvent;
-import com.asaoweb.vaadin.tusfileupload.events.Events.StartedListener;
 import com.asaoweb.vaadin.tusfileupload.events.Events.SucceededEvent;
 import com.asaoweb.vaadin.tusfileupload.events.Events.SucceededListener;
+import com.asaoweb.vaadin.tusfileupload.events.Events.UploadListener;
 import com.asaoweb.vaadin.tusfileupload.exceptions.TusException.ConfigError;
 import com.vaadin.icons.VaadinIcons;
 import com.vaadin.server.Resource;
@@ -80,6 +84,11 @@ public class TusMultiUploadLayout extends VerticalLayout {
 	protected boolean   cachedHTML5DnD = false;
 
 	protected Lock		updateLock = new ReentrantLock();
+
+	// ids of the rows whose thumbnail became available, updated by a single UI access
+	protected final Set<String> thumbUpdates = ConcurrentHashMap.newKeySet();
+	protected final AtomicBoolean thumbUpdateScheduled = new AtomicBoolean(false);
+	protected Registration thumbReadyRegistration;
 	
 	public TusMultiUploadLayout() throws ConfigError {
 		this(null, new Config(), new ArrayList<FileInfo>(), null, false);
@@ -105,10 +114,11 @@ public class TusMultiUploadLayout extends VerticalLayout {
 		this.addStyleName("tusmultiuploadlayout");
 
 		files = existingFiles;
-		uploadButton.addFileQueuedListener(e -> {
-			addFileInfoItem(e.getFileInfo());
+		uploadButton.addFileQueuedBatchListener(e -> {
+			addFileInfoItems(e.getFileInfos());
 			refreshFilesInfos();
 		});
+		uploadButton.addPreviewListener(this::previewReceived);
 		setThumbProvider(provider);
 		allowReorder(allowReorder);
 				
@@ -118,6 +128,9 @@ public class TusMultiUploadLayout extends VerticalLayout {
 	public void attach() {
 		refreshFileList();
 		super.attach();
+		if (provider instanceof AsyncThumbProvider && thumbReadyRegistration == null) {
+			thumbReadyRegistration = ((AsyncThumbProvider) provider).addThumbnailReadyListener(this::thumbnailReady);
+		}
         if (allowReorder && getUI() != null) {
             cachedHTML5DnD = getUI().isMobileHtml5DndEnabled();
             // loads external polyfill: https://vaadin.com/docs/v8/framework/advanced/advanced-dragndrop.html
@@ -129,13 +142,58 @@ public class TusMultiUploadLayout extends VerticalLayout {
     @Override
     public void detach() {
 	    super.detach();
+		if (thumbReadyRegistration != null) {
+			thumbReadyRegistration.remove();
+			thumbReadyRegistration = null;
+		}
         if (allowReorder && getUI() != null) {
             getUI().setMobileHtml5DndEnabled(cachedHTML5DnD);
         }
     }
 	
 	public void setThumbProvider(FileInfoThumbProvider provider) {
+		if (thumbReadyRegistration != null) {
+			thumbReadyRegistration.remove();
+			thumbReadyRegistration = null;
+		}
 		this.provider = provider;
+		if (provider instanceof AsyncThumbProvider && isAttached()) {
+			thumbReadyRegistration = ((AsyncThumbProvider) provider).addThumbnailReadyListener(this::thumbnailReady);
+		}
+	}
+
+	/**
+	 * The preview of a queued file, shown once checked by the thumbnail provider.
+	 */
+	protected void previewReceived(PreviewEvent evt) {
+		if (provider instanceof AsyncThumbProvider) {
+			((AsyncThumbProvider) provider).setPreview(evt.getFileInfo(), evt.getImage());
+		}
+	}
+
+	/**
+	 * Called from a thumbnail worker: the rows are updated by a single UI access
+	 * for all the thumbnails which became available in the meantime. The rows
+	 * of the previews of queued files are found by queue id.
+	 */
+	protected void thumbnailReady(FileInfo fileInfo) {
+		thumbUpdates.add(fileInfo.id != null ? fileInfo.id : fileInfo.queueId);
+		UI ui = getUI();
+		if (ui != null && thumbUpdateScheduled.compareAndSet(false, true)) {
+			ui.access(() -> {
+				thumbUpdateScheduled.set(false);
+				Set<String> ids = new HashSet<>(thumbUpdates);
+				thumbUpdates.removeAll(ids);
+				fileListLayout.forEach(c -> {
+					if (c instanceof FileListComponent) {
+						FileListComponent flc = (FileListComponent) c;
+						if (flc.fileInfo != null && (ids.contains(flc.fileInfo.id) || ids.contains(flc.fileInfo.queueId))) {
+							flc.updateThumb();
+						}
+					}
+				});
+			});
+		}
 	}
 	
 	public Registration addSucceededListener(SucceededListener listener) {
@@ -259,6 +317,28 @@ public class TusMultiUploadLayout extends VerticalLayout {
 		}
 	}
 
+	/**
+	 * Adds the rows of files queued together, in a single pass over the list.
+	 */
+	protected void addFileInfoItems(List<FileInfo> fis) {
+		if (fis.size() == 1) {
+			addFileInfoItem(fis.get(0));
+			return;
+		}
+		Component[] rows = new Component[fis.size()];
+		for (int i = 0; i < rows.length; i++) {
+			rows[i] = new FileListComponent(fis.get(i), uploadButton);
+		}
+		if (reverseOrder) {
+			// the last queued first, like one by one
+			for (Component row : rows) {
+				fileListLayout.addComponentAsFirst(row);
+			}
+		} else {
+			fileListLayout.addComponents(rows);
+		}
+	}
+
 	public void cancelSucceededEvent(SucceededEvent event) {
 		updateLock.lock();
 		try {
@@ -341,9 +421,11 @@ public class TusMultiUploadLayout extends VerticalLayout {
 		}
 	}
 	
-	protected class FileListComponent extends HorizontalLayout implements FailedListener, ProgressListener, SucceededListener, StartedListener {
+	protected class FileListComponent extends HorizontalLayout implements UploadListener {
 		protected static final String PROGRESS_STYLE = "progress";
 		protected static final String FAILED_STYLE = "failed";
+		protected static final String CLIENT_PROGRESS_HTML = "<div class=\"tus-client-progress-bar\"><div class=\"tus-client-progress-indicator\"></div></div>"
+				+ "<span class=\"tus-client-progress-infos\"></span>";
 
 		protected final Image thumb = new Image();
 		protected final Label filename = new Label();
@@ -353,13 +435,15 @@ public class TusMultiUploadLayout extends VerticalLayout {
 		protected final ProgressBar progress = new ProgressBar();
 		protected final VerticalLayout statusWrapper;
 		protected final Label progressInfos = new Label();
+		// host of the progress rendered by the connector, when client rendered
+		protected Label clientProgress;
 		protected final AbstractOrderedLayout progressBarWrapper;
 		protected final Button action = new Button();
 
 		protected final Lock flcUpdateLock = new ReentrantLock();
 
         protected FileInfo fileInfo;
-        protected Registration rFailed, rStarted, rProgress, rSucceeded;
+        protected Registration rUpload;
 						
 		public FileListComponent(FileInfo fileInfo, TusMultiUpload uploader) {
 			super();
@@ -383,12 +467,20 @@ public class TusMultiUploadLayout extends VerticalLayout {
 			progressInfos.addStyleName("progress-infos");
 
             progressBarWrapper = TusMultiUploadLayout.this.compactLayout ? new VerticalLayout() : new HorizontalLayout();
-			progressBarWrapper.addComponents(progress, progressInfos);
+			if (fileInfo.isQueued() && uploader.isClientRenderedProgress()) {
+				clientProgress = new Label(CLIENT_PROGRESS_HTML, ContentMode.HTML);
+				clientProgress.setId(uploader.getProgressElementId(fileInfo.queueId));
+				clientProgress.setWidth("100%");
+				clientProgress.addStyleName("tus-client-progress");
+				progressBarWrapper.addComponent(clientProgress);
+			} else {
+				progressBarWrapper.addComponents(progress, progressInfos);
+			}
 			progressBarWrapper.setVisible(false);
             progressBarWrapper.setMargin(false);
             progressBarWrapper.setSpacing(false);
 			progressBarWrapper.setWidth("100%");
-			progressBarWrapper.setExpandRatio(progress, 1.0f);
+			progressBarWrapper.setExpandRatio(clientProgress != null ? clientProgress : progress, 1.0f);
 
 			statusWrapper = new VerticalLayout(errorMessage, progressBarWrapper);
 			statusWrapper.setWidth("100%");
@@ -459,10 +551,7 @@ public class TusMultiUploadLayout extends VerticalLayout {
 			}
 			
 			if (fileInfo.isQueued()) {
-				rFailed = uploader.addFailedListener(this);
-				rStarted = uploader.addStartedListener(this);
-				rProgress = uploader.addProgressListener(this);
-				rSucceeded = uploader.addSucceededListener(this);
+				rUpload = uploader.addUploadListener(fileInfo.queueId, this);
 			}
 			
 			if (TusMultiUploadLayout.this.allowReorder) {
@@ -523,10 +612,9 @@ public class TusMultiUploadLayout extends VerticalLayout {
 		}
 		
 		public void unregisterListeners() {
-			if (rFailed != null) {
-				rFailed.remove();
-				rProgress.remove();
-				rSucceeded.remove();
+			if (rUpload != null) {
+				rUpload.remove();
+				rUpload = null;
 			}
 		}
 		
@@ -553,6 +641,10 @@ public class TusMultiUploadLayout extends VerticalLayout {
 				action.setVisible(TusMultiUploadLayout.this.allowDelete);
 			}
 			statusWrapper.setVisible(progressBarWrapper.isVisible() || errorMessage.isVisible());
+			updateThumb();
+		}
+
+		public void updateThumb() {
 			Resource thumbRsc;
 			
 			if ( provider != null && (thumbRsc = provider.getThumb(fileInfo)) != null ) {
@@ -624,6 +716,9 @@ public class TusMultiUploadLayout extends VerticalLayout {
 						fileInfo.id = evt.getId();
 						fileInfo.offset = evt.getFileInfo().offset;
 					}
+					if (provider instanceof AsyncThumbProvider && evt.getHandle() != null) {
+						((AsyncThumbProvider) provider).generate(fileInfo, evt.retain());
+					}
 					if (evt.shouldAddFileToList()) {
 						TusMultiUploadLayout.this.updateLock.lock();
 						try {
@@ -655,6 +750,10 @@ public class TusMultiUploadLayout extends VerticalLayout {
 		public void uploadStarted(StartedEvent evt) {
 			if ( isEventOwner(evt) ) {
 				setProgress(evt.getFileInfo().offset, evt.getFileInfo().entityLength);
+				if (clientProgress != null) {
+					// no progress event will follow
+					this.addStyleName(PROGRESS_STYLE);
+				}
 			}
 		}
 		
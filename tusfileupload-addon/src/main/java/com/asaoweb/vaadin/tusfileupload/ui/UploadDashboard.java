@@ -0,0 +1,482 @@
+package com.asaoweb.vaadin.tusfileupload.ui;
+
+import java.io.File;
+import java.io.Serializable;
+import java.text.MessageFormat;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.asaoweb.vaadin.tusfileupload.Config;
+import com.asaoweb.vaadin.tusfileupload.component.TusMultiUpload;
+import com.asaoweb.vaadin.tusfileupload.data.StorageAccounting;
+import com.asaoweb.vaadin.tusfileupload.metrics.UploadActivity;
+import com.asaoweb.vaadin.tusfileupload.metrics.UploadActivity.ActiveUpload;
+import com.asaoweb.vaadin.tusfileupload.metrics.UploadActivity.LockHolder;
+import com.asaoweb.vaadin.tusfileupload.metrics.UploadMetrics;
+import com.vaadin.data.provider.ListDataProvider;
+import com.vaadin.server.SerializableSupplier;
+import com.vaadin.shared.communication.PushMode;
+import com.vaadin.ui.Grid;
+import com.vaadin.ui.Grid.SelectionMode;
+import com.vaadin.ui.HorizontalLayout;
+import com.vaadin.ui.Label;
+import com.vaadin.ui.UI;
+import com.vaadin.ui.VerticalLayout;
+import com.vaadin.ui.renderers.ProgressBarRenderer;
+
+/**
+ * Live view of the uploads of a node, for operators: the active uploads with
+ * their throughput and ETA, the users holding the most bytes, the upload locks
+ * held, the queue depths and the disk usage of the upload folder.
+ *
+ * The data comes from the instrumentation of the datastore and the handlers
+ * ({@link UploadActivity}, {@link StorageAccounting}, {@link UploadMetrics}),
+ * the upload folder is never scanned. A single thread samples it once per
+ * second for all the dashboards of a folder, and each dashboard is updated by
+ * one UI access per second at most: when its UI is slower, the samples are
+ * coalesced and only the latest one is shown. The UI should have push enabled;
+ * otherwise the dashboard polls every second while attached.
+ */
+public class UploadDashboard extends VerticalLayout {
+	private static final Logger logger = LoggerFactory.getLogger(UploadDashboard.class.getName());
+
+	protected static final long REFRESH_INTERVAL = 1000L;
+
+	private static final Map<UploadActivity, Set<UploadDashboard>> dashboards = new ConcurrentHashMap<>();
+	private static ScheduledExecutorService scheduler;
+	private static ScheduledFuture<?> refresh;
+
+	protected final String uploadFolder;
+	protected transient UploadActivity activity;
+	protected transient StorageAccounting accounting;
+	protected transient UploadMetrics metrics;
+
+	protected final Label summaryLabel = new Label();
+	protected final Grid<UploadRow> uploadGrid = new Grid<>();
+	protected final Grid<UserRow> userGrid = new Grid<>();
+	protected final Grid<LockHolder> lockGrid = new Grid<>();
+	protected final Grid<Map.Entry<String, Integer>> queueGrid = new Grid<>();
+	protected final ListDataProvider<UploadRow> uploads = new ListDataProvider<>(new ArrayList<>());
+	protected final ListDataProvider<UserRow> users = new ListDataProvider<>(new ArrayList<>());
+	protected final ListDataProvider<LockHolder> locks = new ListDataProvider<>(new ArrayList<>());
+	protected final ListDataProvider<Map.Entry<String, Integer>> queues = new ListDataProvider<>(new ArrayList<>());
+
+	// queue depths shown besides the built-in ones, by name
+	protected final Map<String, SerializableSupplier<Integer>> queueDepths = new LinkedHashMap<>();
+
+	protected final AtomicReference<Snapshot> latest = new AtomicReference<>();
+	protected final AtomicBoolean updateScheduled = new AtomicBoolean(false);
+	protected int cachedPollInterval = -1;
+	protected boolean polling = false;
+
+	protected int topUsers = 10;
+	protected long stuckAfter = 30000L;
+	protected String summaryPattern = "{0} written / {1} reserved, {2} free of {3} - {4} active uploads at {5}/s - {6} stalled, {7} failed writes";
+
+	/**
+	 * Shows the uploads of the upload folder of config.
+	 */
+	public UploadDashboard(Config config) {
+		super();
+		this.uploadFolder = config.uploadFolder;
+
+		uploadGrid.setCaption("Active uploads");
+		uploadGrid.setDataProvider(uploads);
+		uploadGrid.addColumn(r -> r.upload.getId()).setId("id").setCaption("Upload");
+		uploadGrid.addColumn(r -> r.username).setId("user").setCaption("User");
+		uploadGrid.addColumn(UploadRow::getProgress, new ProgressBarRenderer()).setId("progress").setCaption("Progress");
+		uploadGrid.addColumn(r -> TusMultiUpload.readableFileSize(r.offset) + " / " + TusMultiUpload.readableFileSize(r.length))
+				.setId("received").setCaption("Received");
+		uploadGrid.addColumn(r -> TusMultiUpload.readableFileSize(r.upload.getBytesPerSecond()) + "/s")
+				.setId("throughput").setCaption("Throughput");
+		uploadGrid.addColumn(r -> formatDuration(r.getEta())).setId("eta").setCaption("ETA");
+		uploadGrid.addColumn(this::getState).setId("state").setCaption("State");
+		uploadGrid.setSizeFull();
+
+		userGrid.setCaption("Top users");
+		userGrid.setDataProvider(users);
+		userGrid.addColumn(r -> r.username).setId("user").setCaption("User");
+		userGrid.addColumn(r -> r.activeUploads).setId("uploads").setCaption("Active");
+		userGrid.addColumn(r -> TusMultiUpload.readableFileSize(r.bytesPerSecond) + "/s").setId("throughput").setCaption("Throughput");
+		userGrid.addColumn(r -> TusMultiUpload.readableFileSize(r.written)).setId("written").setCaption("Written");
+		userGrid.addColumn(r -> TusMultiUpload.readableFileSize(r.reserved)).setId("reserved").setCaption("Reserved");
+
+		lockGrid.setCaption("Locks held");
+		lockGrid.setDataProvider(locks);
+		lockGrid.addColumn(LockHolder::getId).setId("id").setCaption("Upload");
+		lockGrid.addColumn(LockHolder::getMethod).setId("method").setCaption("Request");
+		lockGrid.addColumn(LockHolder::getThread).setId("thread").setCaption("Thread");
+		lockGrid.addColumn(l -> formatDuration(System.currentTimeMillis() - l.getSince())).setId("held").setCaption("Held for");
+
+		queueGrid.setCaption("Queues");
+		queueGrid.setDataProvider(queues);
+		queueGrid.addColumn(Map.Entry::getKey).setId("name").setCaption("Queue");
+		queueGrid.addColumn(Map.Entry::getValue).setId("depth").setCaption("Depth");
+
+		HorizontalLayout details = new HorizontalLayout();
+		for (Grid<?> grid : new Grid<?>[] { uploadGrid, userGrid, lockGrid, queueGrid }) {
+			grid.setSelectionMode(SelectionMode.NONE);
+			grid.getColumns().forEach(c -> c.setSortable(false));
+			if (grid != uploadGrid) {
+				grid.setWidth(100, Unit.PERCENTAGE);
+				grid.setHeightByRows(5);
+				details.addComponent(grid);
+			}
+		}
+		details.setWidth(100, Unit.PERCENTAGE);
+
+		this.setSizeFull();
+		this.addComponents(summaryLabel, uploadGrid, details);
+		this.setExpandRatio(uploadGrid, 1f);
+		this.addStyleName("uploaddashboard");
+	}
+
+	/**
+	 * The state of an active upload joined with its accounting.
+	 */
+	public static class UploadRow implements Serializable {
+		protected final ActiveUpload upload;
+		protected final String username;
+		protected final long length;
+		protected final long offset;
+
+		protected UploadRow(ActiveUpload upload, StorageAccounting.Usage usage) {
+			this.upload = upload;
+			this.username = usage != null ? usage.getUsername() : null;
+			this.length = usage != null ? usage.getReserved() : 0L;
+			this.offset = (usage != null ? usage.getWritten() : 0L) + upload.getWritingBytes();
+		}
+
+		public ActiveUpload getUpload() { return upload; }
+		public String getUsername() { return username; }
+		public long getLength() { return length; }
+		public long getOffset() { return offset; }
+
+		public double getProgress() {
+			return length > 0 ? Math.min(1d, (double) offset / length) : 0d;
+		}
+
+		/**
+		 * Returns the milliseconds left at the current throughput, or -1 if unknown.
+		 */
+		public long getEta() {
+			long bytesPerSecond = upload.getBytesPerSecond();
+			return bytesPerSecond > 0 && length > offset ? (length - offset) * 1000L / bytesPerSecond : -1L;
+		}
+	}
+
+	public static class UserRow implements Serializable {
+		protected final String username;
+		protected long written;
+		protected long reserved;
+		protected int activeUploads;
+		protected long bytesPerSecond;
+
+		protected UserRow(String username) {
+			this.username = username;
+		}
+
+		public String getUsername() { return username; }
+		public long getWritten() { return written; }
+		public long getReserved() { return reserved; }
+		public int getActiveUploads() { return activeUploads; }
+		public long getBytesPerSecond() { return bytesPerSecond; }
+	}
+
+	/**
+	 * What the dashboards of a folder show, sampled once per second.
+	 */
+	public static class Snapshot implements Serializable {
+		protected final List<UploadRow> uploads = new ArrayList<>();
+		protected final List<UserRow> users = new ArrayList<>();
+		protected List<LockHolder> locks;
+		protected long reserved;
+		protected long written;
+		protected long usableSpace;
+		protected long totalSpace;
+		protected long bytesPerSecond;
+		protected int requestsInProgress;
+		protected int writesInProgress;
+		protected long stalledWrites;
+		protected long failedWrites;
+
+		public List<UploadRow> getUploads() { return uploads; }
+		public List<UserRow> getUsers() { return users; }
+		public List<LockHolder> getLocks() { return locks; }
+		public long getReserved() { return reserved; }
+		public long getWritten() { return written; }
+		public long getUsableSpace() { return usableSpace; }
+		public long getTotalSpace() { return totalSpace; }
+		public long getBytesPerSecond() { return bytesPerSecond; }
+		public int getRequestsInProgress() { return requestsInProgress; }
+		public int getWritesInProgress() { return writesInProgress; }
+		public long getStalledWrites() { return stalledWrites; }
+		public long getFailedWrites() { return failedWrites; }
+
+		/**
+		 * Samples activity; the hottest users come first, then the ones holding
+		 * the most bytes.
+		 */
+		protected static Snapshot take(UploadActivity activity, StorageAccounting accounting, UploadMetrics metrics,
+				int topUsers) {
+			Snapshot snapshot = new Snapshot();
+			Map<String, UserRow> users = new HashMap<>();
+			for (ActiveUpload upload : activity.sample()) {
+				UploadRow row = new UploadRow(upload, accounting.getUploadUsage(upload.getId()));
+				snapshot.uploads.add(row);
+				snapshot.bytesPerSecond += upload.getBytesPerSecond();
+				if (row.username != null) {
+					UserRow user = users.computeIfAbsent(row.username, UserRow::new);
+					user.activeUploads++;
+					user.bytesPerSecond += upload.getBytesPerSecond();
+				}
+			}
+			for (StorageAccounting.Usage usage : accounting.getTopUsers(topUsers)) {
+				users.computeIfAbsent(usage.getUsername(), UserRow::new);
+			}
+			for (UserRow user : users.values()) {
+				StorageAccounting.Usage usage = accounting.getUsage(user.username);
+				if (usage != null) {
+					user.written = usage.getWritten();
+					user.reserved = usage.getReserved();
+				}
+				snapshot.users.add(user);
+			}
+			snapshot.users.sort((a, b) -> a.bytesPerSecond != b.bytesPerSecond
+					? Long.compare(b.bytesPerSecond, a.bytesPerSecond) : Long.compare(b.written, a.written));
+			if (snapshot.users.size() > topUsers) {
+				snapshot.users.subList(topUsers, snapshot.users.size()).clear();
+			}
+			snapshot.locks = activity.getLockHolders();
+			snapshot.locks.sort((a, b) -> Long.compare(a.getSince(), b.getSince()));
+			snapshot.reserved = accounting.getReserved();
+			snapshot.written = accounting.getWritten();
+			File folder = accounting.getFolder();
+			snapshot.usableSpace = folder.getUsableSpace();
+			snapshot.totalSpace = folder.getTotalSpace();
+			snapshot.requestsInProgress = activity.getRequestsInProgress();
+			snapshot.writesInProgress = activity.getWritesInProgress();
+			snapshot.stalledWrites = metrics.getStalledWrites();
+			snapshot.failedWrites = metrics.getFailedWrites();
+			return snapshot;
+		}
+	}
+
+	@Override
+	public void attach() {
+		super.attach();
+		activity = UploadActivity.forFolder(uploadFolder);
+		accounting = StorageAccounting.forFolder(uploadFolder);
+		metrics = UploadMetrics.forFolder(uploadFolder);
+		UI ui = getUI();
+		if (!ui.getPushConfiguration().getPushMode().isEnabled()) {
+			cachedPollInterval = ui.getPollInterval();
+			if (cachedPollInterval < 0 || cachedPollInterval > REFRESH_INTERVAL) {
+				ui.setPollInterval((int) REFRESH_INTERVAL);
+				polling = true;
+			}
+		}
+		register(this);
+	}
+
+	@Override
+	public void detach() {
+		unregister(this);
+		if (polling) {
+			getUI().setPollInterval(cachedPollInterval);
+			polling = false;
+		}
+		super.detach();
+	}
+
+	/**
+	 * Shows the depth of an application queue, e.g. the processing pipeline:
+	 * {@code dashboard.addQueue("processing", pipeline::getQueueDepth)}. depth
+	 * is read from the UI thread once per second.
+	 */
+	public void addQueue(String name, SerializableSupplier<Integer> depth) {
+		queueDepths.put(name, depth);
+	}
+
+	public void removeQueue(String name) {
+		queueDepths.remove(name);
+	}
+
+	/**
+	 * Number of users listed, 10 by default.
+	 */
+	public void setTopUsers(int topUsers) {
+		this.topUsers = topUsers;
+	}
+
+	/**
+	 * A write receiving nothing for this long is shown as stuck, 30 seconds by
+	 * default.
+	 */
+	public void setStuckAfter(long stuckAfter) {
+		this.stuckAfter = stuckAfter;
+	}
+
+	/**
+	 * Default: "{0} written / {1} reserved, {2} free of {3} - {4} active uploads at {5}/s - {6} stalled, {7} failed writes"
+	 *
+	 * @param pattern used in MessageFormat.format
+	 */
+	public void setSummaryPattern(String pattern) {
+		this.summaryPattern = pattern;
+	}
+
+	public Grid<UploadRow> getUploadGrid() {
+		return uploadGrid;
+	}
+
+	protected String getState(UploadRow row) {
+		long idle = System.currentTimeMillis() - row.upload.getLastProgress();
+		if (!row.upload.isWriting()) {
+			return "waiting for " + formatDuration(idle);
+		}
+		return idle >= stuckAfter ? "stuck for " + formatDuration(idle) : "receiving";
+	}
+
+	protected boolean isStuck(UploadRow row) {
+		return row.upload.isWriting() && System.currentTimeMillis() - row.upload.getLastProgress() >= stuckAfter;
+	}
+
+	/**
+	 * Called by the refresh thread: schedules a single UI access for all the
+	 * samples taken until it runs.
+	 */
+	protected void offer(Snapshot snapshot) {
+		latest.set(snapshot);
+		UI ui = getUI();
+		if (ui != null && updateScheduled.compareAndSet(false, true)) {
+			ui.access(() -> {
+				updateScheduled.set(false);
+				show(latest.get());
+				if (ui.getPushConfiguration().getPushMode() == PushMode.MANUAL) {
+					ui.push();
+				}
+			});
+		}
+	}
+
+	protected void show(Snapshot snapshot) {
+		List<UploadRow> rows = new ArrayList<>(snapshot.uploads);
+		// stuck uploads first, then the fastest ones
+		rows.sort((a, b) -> isStuck(a) != isStuck(b) ? (isStuck(a) ? -1 : 1)
+				: Long.compare(b.upload.getBytesPerSecond(), a.upload.getBytesPerSecond()));
+		replace(uploads, rows);
+		replace(users, snapshot.users.subList(0, Math.min(topUsers, snapshot.users.size())));
+		replace(locks, snapshot.locks);
+
+		List<Map.Entry<String, Integer>> depths = new ArrayList<>();
+		depths.add(new AbstractMap.SimpleImmutableEntry<>("requests", snapshot.requestsInProgress));
+		depths.add(new AbstractMap.SimpleImmutableEntry<>("writes", snapshot.writesInProgress));
+		for (Map.Entry<String, SerializableSupplier<Integer>> queue : queueDepths.entrySet()) {
+			Integer depth = null;
+			try {
+				depth = queue.getValue().get();
+			} catch (RuntimeException e) {
+				logger.debug("Unable to read the depth of queue {}: {}", queue.getKey(), e.toString());
+			}
+			depths.add(new AbstractMap.SimpleImmutableEntry<>(queue.getKey(), depth));
+		}
+		replace(queues, depths);
+
+		summaryLabel.setValue(MessageFormat.format(summaryPattern,
+				TusMultiUpload.readableFileSize(snapshot.written), TusMultiUpload.readableFileSize(snapshot.reserved),
+				TusMultiUpload.readableFileSize(snapshot.usableSpace), TusMultiUpload.readableFileSize(snapshot.totalSpace),
+				snapshot.uploads.size(), TusMultiUpload.readableFileSize(snapshot.bytesPerSecond),
+				snapshot.stalledWrites, snapshot.failedWrites));
+	}
+
+	protected static <T> void replace(ListDataProvider<T> provider, List<T> items) {
+		provider.getItems().clear();
+		provider.getItems().addAll(items != null ? items : Collections.<T>emptyList());
+		provider.refreshAll();
+	}
+
+	/**
+	 * Formats milliseconds as 1:02:03 or 2:03, "-" if negative.
+	 */
+	protected static String formatDuration(long millis) {
+		if (millis < 0) {
+			return "-";
+		}
+		long seconds = millis / 1000L;
+		long hours = seconds / 3600L;
+		return hours > 0 ? String.format("%d:%02d:%02d", hours, seconds / 60L % 60L, seconds % 60L)
+				: String.format("%d:%02d", seconds / 60L, seconds % 60L);
+	}
+
+	protected static synchronized void register(UploadDashboard dashboard) {
+		dashboards.computeIfAbsent(dashboard.activity, a -> ConcurrentHashMap.newKeySet()).add(dashboard);
+		if (scheduler == null) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "tus-upload-dashboard");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		if (refresh == null) {
+			refresh = scheduler.scheduleAtFixedRate(UploadDashboard::refreshAll, REFRESH_INTERVAL, REFRESH_INTERVAL,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	protected static synchronized void unregister(UploadDashboard dashboard) {
+		Set<UploadDashboard> folder = dashboard.activity != null ? dashboards.get(dashboard.activity) : null;
+		if (folder == null) {
+			return;
+		}
+		folder.remove(dashboard);
+		if (folder.isEmpty()) {
+			dashboards.remove(dashboard.activity);
+		}
+		if (dashboards.isEmpty() && refresh != null) {
+			refresh.cancel(false);
+			refresh = null;
+		}
+	}
+
+	/*
+	 * Samples every folder once, whatever the number of dashboards showing it.
+	 */
+	protected static void refreshAll() {
+		for (Map.Entry<UploadActivity, Set<UploadDashboard>> folder : dashboards.entrySet()) {
+			try {
+				UploadDashboard first = null;
+				int topUsers = 0;
+				for (UploadDashboard dashboard : folder.getValue()) {
+					first = first != null ? first : dashboard;
+					topUsers = Math.max(topUsers, dashboard.topUsers);
+				}
+				if (first == null) {
+					continue;
+				}
+				Snapshot snapshot = Snapshot.take(folder.getKey(), first.accounting, first.metrics, topUsers);
+				for (UploadDashboard dashboard : folder.getValue()) {
+					dashboard.offer(snapshot);
+				}
+			} catch (RuntimeException e) {
+				logger.error("", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,217 @@
+package com.asaoweb.vaadin.tusfileupload.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/*
+JDK Flight Recorder events of the requests, PATCH writes, upload locks and
+stream variable callbacks. Java 11+ version of the no-op facade of
+src/main/java, loaded from META-INF/versions/11 of the multi-release jar.
+
+The default thresholds only record slow operations; jfr/tusfileupload.jfc
+holds the production settings.
+*/
+public final class JfrEvents {
+	public static final int REQUEST = 0;
+	public static final int PATCH = 1;
+	public static final int WRITE = 2;
+	public static final int LOCK = 3;
+	public static final int LISTENER = 4;
+
+	@Name("com.asaoweb.tusfileupload.Request")
+	@Label("tus Request")
+	@Category("tus")
+	@Description("A request on the tus endpoint, from its reception to its response")
+	@Threshold("100 ms")
+	@StackTrace(false)
+	static class RequestEvent extends Event {
+		@Label("Method")
+		String method;
+		@Label("Upload Id")
+		String uploadId;
+		@Label("Status")
+		int status;
+	}
+
+	@Name("com.asaoweb.tusfileupload.Patch")
+	@Label("tus PATCH")
+	@Category("tus")
+	@Description("A PATCH request, while its upload is locked")
+	@Threshold("100 ms")
+	@StackTrace(false)
+	static class PatchEvent extends Event {
+		@Label("Upload Id")
+		String uploadId;
+		@Label("Offset")
+		@DataAmount
+		long offset;
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+		@Label("Outcome")
+		String outcome;
+	}
+
+	@Name("com.asaoweb.tusfileupload.Write")
+	@Label("tus Write")
+	@Category("tus")
+	@Description("The transfer of a request body to the storage of its upload")
+	@Threshold("50 ms")
+	@StackTrace(false)
+	static class WriteEvent extends Event {
+		@Label("Upload Id")
+		String uploadId;
+		@Label("Offset")
+		@DataAmount
+		long offset;
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+		@Label("Outcome")
+		String outcome;
+	}
+
+	@Name("com.asaoweb.tusfileupload.Lock")
+	@Label("tus Upload Lock")
+	@Category("tus")
+	@Description("An attempt to lock an upload, failing when another request holds it")
+	@Threshold("1 ms")
+	@StackTrace(false)
+	static class LockEvent extends Event {
+		@Label("Upload Id")
+		String uploadId;
+		@Label("Acquired")
+		boolean acquired;
+	}
+
+	@Name("com.asaoweb.tusfileupload.Listener")
+	@Label("tus Stream Variable Callback")
+	@Category("tus")
+	@Description("A lifecycle callback of the stream variable of a TusMultiUpload")
+	@Threshold("20 ms")
+	@StackTrace(false)
+	static class ListenerEvent extends Event {
+		@Label("Upload Id")
+		String uploadId;
+		@Label("Callback")
+		String callback;
+	}
+
+	// by type, to tell whether an event is recorded before allocating it
+	private static final EventType[] TYPES = {
+			EventType.getEventType(RequestEvent.class),
+			EventType.getEventType(PatchEvent.class),
+			EventType.getEventType(WriteEvent.class),
+			EventType.getEventType(LockEvent.class),
+			EventType.getEventType(ListenerEvent.class) };
+
+	private JfrEvents() {
+	}
+
+	public static boolean isAvailable() {
+		return true;
+	}
+
+	/*
+	 * Starts an event of type, returns null if it isn't recorded.
+	 */
+	public static Object begin(int type) {
+		if (type < 0 || type >= TYPES.length || !TYPES[type].isEnabled()) {
+			return null;
+		}
+		Event event;
+		switch (type) {
+		case REQUEST:
+			event = new RequestEvent();
+			break;
+		case PATCH:
+			event = new PatchEvent();
+			break;
+		case WRITE:
+			event = new WriteEvent();
+			break;
+		case LOCK:
+			event = new LockEvent();
+			break;
+		case LISTENER:
+			event = new ListenerEvent();
+			break;
+		default:
+			return null;
+		}
+		event.begin();
+		return event;
+	}
+
+	public static void request(Object event, String method, String uploadId, int status) {
+		if (event instanceof RequestEvent) {
+			RequestEvent e = (RequestEvent) event;
+			e.end();
+			if (e.shouldCommit()) {
+				e.method = method;
+				e.uploadId = uploadId;
+				e.status = status;
+				e.commit();
+			}
+		}
+	}
+
+	public static void patch(Object event, String uploadId, long offset, long bytes, String outcome) {
+		if (event instanceof PatchEvent) {
+			PatchEvent e = (PatchEvent) event;
+			e.end();
+			if (e.shouldCommit()) {
+				e.uploadId = uploadId;
+				e.offset = offset;
+				e.bytes = bytes;
+				e.outcome = outcome;
+				e.commit();
+			}
+		}
+	}
+
+	public static void write(Object event, String uploadId, long offset, long bytes, String outcome) {
+		if (event instanceof WriteEvent) {
+			WriteEvent e = (WriteEvent) event;
+			e.end();
+			if (e.shouldCommit()) {
+				e.uploadId = uploadId;
+				e.offset = offset;
+				e.bytes = bytes;
+				e.outcome = outcome;
+				e.commit();
+			}
+		}
+	}
+
+	public static void lock(Object event, String uploadId, boolean acquired) {
+		if (event instanceof LockEvent) {
+			LockEvent e = (LockEvent) event;
+			e.end();
+			if (e.shouldCommit()) {
+				e.uploadId = uploadId;
+				e.acquired = acquired;
+				e.commit();
+			}
+		}
+	}
+
+	public static void listener(Object event, String uploadId, String callback) {
+		if (event instanceof ListenerEvent) {
+			ListenerEvent e = (ListenerEvent) event;
+			e.end();
+			if (e.shouldCommit()) {
+				e.uploadId = uploadId;
+				e.callback = callback;
+				e.commit();
+			}
+		}
+	}
+}
@@ -5,6 +5,34 @@ com_asaoweb_vaadin_tusfileupload_component_TusMultiUpload = function () {
 	var BROWSE_BUTTON_CLASSNAME = "tusmultiupload-browse " + BUTTON_CLASSNAME;
 	var SUBMIT_BUTTON_CLASSNAME = "tusmultiupload-submit " + BUTTON_CLASSNAME;
 	var DEFAULT_STREAMING_PROGRESS_EVENT_INTERVAL_MS = 1000;
+	var MAX_STREAMING_PROGRESS_EVENT_INTERVAL_MS = 10000;
+	/* the interval is kept above this many server round trips */
+	var PROGRESS_RTT_FACTOR = 4;
+	/* types not worth compressing again, see compressChunks */
+	var COMPRESSED_TYPES = /^(image\/(jpeg|png|gif|webp|heic|heif|avif)|video\/|audio\/|application\/(zip|gzip|x-gzip|x-bzip2|x-xz|x-7z-compressed|x-rar-compressed|vnd\.rar|zstd|pdf|vnd\.openxmlformats-officedocument\..*|vnd\.oasis\.opendocument\..*))/;
+	var HASH_WORKER_URL = "vaadin://addons/tusfileupload/tusmultiupload-hash-worker.js";
+	var IMAGE_WORKER_URL = "vaadin://addons/tusfileupload/tusmultiupload-image-worker.js";
+	var UPLOAD_WORKER_URL = "vaadin://addons/tusfileupload/tusmultiupload-upload-worker.js";
+	/* images decoded by the browsers, see imageMaxSize; animated GIFs are left alone */
+	var RESIZABLE_TYPES = /^image\/(jpeg|png|webp|bmp|heic|heif|avif)$/;
+	/* images encoded by all the browsers, the others are encoded as JPEG */
+	var ENCODABLE_TYPES = /^image\/(jpeg|png|webp)$/;
+	/* see previewSize */
+	var PREVIEW_QUALITY = 0.7;
+	var VIDEO_TYPES = /^video\//;
+	/* the poster frame of a video is taken this far in, or in its middle if shorter */
+	var VIDEO_FRAME_SECONDS = 1;
+	/* a video not giving its frame by then has no preview */
+	var VIDEO_FRAME_TIMEOUT_MS = 5000;
+	var DEDUP_HEADER = "Upload-Dedup";
+	var BATCH_HEADER = "Upload-Batch";
+	var DELTA_HEADER = "Upload-Delta";
+	/* the persisted queues, see persistentQueue */
+	var QUEUE_DB_NAME = "tusmultiupload";
+	var QUEUE_DB_STORE = "queue";
+	/* the queued files are announced to the server by batches of this size */
+	var QUEUED_BATCH_SIZE = 200;
+	var DRAGOVER_CLASSNAME = "tusmultiupload-dragover";
 	  
 	var t = this;
     var e = t.getElement();
@@ -58,14 +86,100 @@ com_asaoweb_vaadin_tusfileupload_component_TusMultiUpload = function () {
      * Store current uploader status.
      */
     var isUploading = false;
+
+    /**
+     * Whether an upload was built but didn't report any progress yet.
+     */
+    var uploadStarting = false;
+
+    /**
+     * The queued files not announced to the server yet, and whether a batch
+     * waits for its acknowledgement. Batches are sent one at a time, so that
+     * the UI is updated between them when a large folder is dropped.
+     */
+    var queuedBatch = [];
+    var queuedBatchInFlight = false;
+
+    /**
+     * The position of the last queued file, increasing with time.
+     */
+    var lastPosition = 0;
     
     /**
-     * The last time a progress RPC call was sent to the server side. This is 
-     * used to throttle the progress calls to prevent flooding the server side.
-     * 
-     * @type Number
+     * The progress of the active uploads not reported yet, by queue id. All of
+     * them are sent by a single batched RPC call, throttled to prevent flooding
+     * the server side.
      */
-    var lastProgressRpc = 0;
+    var pendingProgress = {};
+
+    /**
+     * The timer of the next progress batch, the time the last batch was sent
+     * (0 once acknowledged by the server) and the smoothed round trip time.
+     */
+    var progressTimer = null;
+    var progressBatchSentAt = 0;
+    var progressRtt = 0;
+
+    /**
+     * The state of the progress rendered client side, by queue id, and whether
+     * a repaint is already requested.
+     */
+    var renderedProgress = {};
+    var renderScheduled = false;
+
+    /**
+     * The worker preparing the file to upload: downscaling an image, hashing
+     * the file when deduplicating or computing the delta against its previous
+     * version.
+     */
+    var fileWorker = null;
+
+    /**
+     * The queued files waiting for their preview, the worker rendering them,
+     * whether one is being rendered, and whether the browser can't render them.
+     */
+    var previewQueue = [];
+    var previewWorker = null;
+    var previewBusy = false;
+    var previewUnsupported = false;
+
+    /**
+     * The worker running the uploads off the UI thread (see uploadInWorker),
+     * the upload it runs and the number of the last run, telling the
+     * messages of an aborted upload apart.
+     */
+    var uploadWorker = null;
+    var workerUpload = null;
+    var workerRuns = 0;
+
+    /**
+     * The endpoint the upload URLs are built on, and the timer asking the
+     * server to renew its token (see tokenRefreshInterval) with its interval.
+     */
+    var currentEndpoint = null;
+    var tokenRefreshTimer = null;
+    var tokenRefreshInterval = 0;
+
+    /**
+     * Whether a batch creation of the next uploads is in flight (see
+     * precreateUploads), and whether the server refused one.
+     */
+    var precreating = false;
+    var precreateUnsupported = false;
+
+    /**
+     * The chunk size last recommended by the server, used by the next uploads.
+     */
+    var chunkHint = 0;
+
+    /**
+     * The IndexedDB database holding the persisted queues (a promise, opened
+     * on first use), the persisted entries waiting for the server to reconcile
+     * them, by queue id, and whether the persisted queue was restored.
+     */
+    var queueDb = null;
+    var restoringQueue = {};
+    var queueRestored = false;
     
     console_log('Creating component');
     dumpState();
@@ -79,7 +193,7 @@ com_asaoweb_vaadin_tusfileupload_component_TusMultiUpload = function () {
         console_log('Endpoint: ' + s.endpoint);
         console_log('Fingerprint: ' + s.fingerprint);
         console_log('Resume: ' + s.resume);
-        console_log('chunkSize: ' + s.chunkSize);
+        console_log('chunkSize: ' + s.chunkSize + (s.adaptiveChunkSize ? ' (adaptive)' : ''));
         console_log('retryDelays: ' + s.retryDelays);
         console_log('removeFingerprintOnSuccess: ' + s.removeFingerprintOnSuccess);
         console_log('retryOnNetworkLoss: ' + s.retryOnNetworkLoss);
@@ -89,9 +203,22 @@ com_asaoweb_vaadin_tusfileupload_component_TusMultiUpload = function () {
         console_log('buttonCaption: ' + s.buttonCaption);
         console_log('mimeAccept: ' + s.mimeAccept);
         console_log('multiple: ' + s.multiple);
+        console_log('dropEnabled: ' + s.dropEnabled);
         console_log('maxFileSize: ' + s.maxFileSize);
         console_log('maxFileCount: ' + s.maxFileCount);
         console_log('remainingQueueSeats: ' + s.remainingQueueSeats);
+        console_log('progressIntervalMs: ' + s.progressIntervalMs);
+        console_log('progressMinDelta: ' + s.progressMinDelta);
+        console_log('clientRenderedProgress: ' + s.clientRenderedProgress);
+        console_log('compressChunks: ' + s.compressChunks + ' (' + s.compressionFormat + ')');
+        console_log('deduplicate: ' + s.deduplicate);
+        console_log('previewSize: ' + s.previewSize);
+        console_log('uploadInWorker: ' + s.uploadInWorker);
+        console_log('precreateUploads: ' + s.precreateUploads);
+        console_log('imageMaxSize: ' + s.imageMaxSize + ' (' + s.imageFormat + ', ' + s.imageQuality + ')');
+        console_log('deltaBases: ' + JSON.stringify(s.deltaBases));
+        console_log('resumableUploads: ' + JSON.stringify(s.resumableUploads));
+        console_log('persistentQueue: ' + s.persistentQueue);
         
     }
     
@@ -131,6 +258,9 @@ com_asaoweb_vaadin_tusfileupload_component_TusMultiUpload = function () {
     	});
       
       container.appendChild(fileInput);
+      if (state.dropEnabled) {
+    	  this._buildDropTarget(container);
+      }
       
       // Browse button.
       browseBtn = this._createPseudoVaadinButton();
@@ -173,51 +303,210 @@ com_asaoweb_vaadin_tusfileupload_component_TusMultiUpload = function () {
       
     this._buildTusUploadQueue = function(files) {
     	fileInputQueuePosition = 0;     
-    	if (s.maxFileCount > 0 && s.remainingQueueSeats < files.length ) {
-    		rpcProxy.onFileCountError(files.length);
+    	t._queueFiles(files, t._newSelection());
+    };
+
+    /**
+     * A set of files selected or dropped together, possibly queued in several
+     * parts.
+     */
+    this._newSelection = function() {
+    	return {now: new Date().getTime(), count: 0, stopped: false};
+    };
+
+    /**
+     * Queues files of a selection, and starts uploading them unless an upload
+     * is in progress. The whole selection is refused once it exceeds the
+     * remaining seats, the parts of a dropped folder already queued stay.
+     */
+    this._queueFiles = function(files, selection) {
+    	if (selection.stopped || files.length == 0) {
+    		return;
+    	}
+    	if (s.maxFileCount > 0 && s.remainingQueueSeats < selection.count + files.length ) {
+    		selection.stopped = true;
+    		rpcProxy.onFileCountError(selection.count + files.length);
     		return;
     	}
-        var now = new Date().getTime();
         fileInputQueueIgnored = [];
-    	for (i = 0; i < files.length; i++) {
-    		var queueId = "queue-"+now+"-"+i;
+    	for (var i = 0; i < files.length; i++) {
+    		var queueId = "queue-" + selection.now + "-" + (selection.count++);
     		if (s.maxFileSize > 0 && s.maxFileSize < files[i].size ) {
     			fileInputQueueIgnored.push({filename: files[i].name, filesize: files[i].size});
         	} else {
-        		fileInputQueue.push({id: queueId, file: files[i]});
-        		rpcProxy.onQueuedFile( queueId, files[i].name, files[i].type, files[i].size);
+        		lastPosition = Math.max(selection.now * 1000, lastPosition + 1);
+        		var entry = {id: queueId, file: files[i], position: lastPosition, uploadId: null};
+        		fileInputQueue.push(entry);
+        		queuedBatch.push(entry);
+        		t._persistEntry(entry);
+        		t._queuePreview(entry);
         	}
     	}
+    	t._sendQueuedBatch(false);
+    	t._nextPreview();
     	if (fileInputQueueIgnored.length > 0) {
     		rpcProxy.onFileSizeError(fileInputQueueIgnored);
     	}
     	// Create a new tus upload
-    	if (!isUploading) {
+    	if (!isUploading && !uploadStarting) {
     		var nextElement = fileInputQueue.shift();
-    		t._buildTusUpload(nextElement);
+    		if (nextElement) {
+    			t._buildTusUpload(nextElement);
+    		}
+    	}
+    };
+
+    /**
+     * Announces the next batch of queued files to the server, once the
+     * previous one is acknowledged unless force is set.
+     */
+    this._sendQueuedBatch = function(force) {
+    	if (queuedBatch.length == 0 || (queuedBatchInFlight && !force)) {
+    		return;
+    	}
+    	var batch = queuedBatch.splice(0, QUEUED_BATCH_SIZE);
+    	var queueIds = [], names = [], types = [], sizes = [];
+    	for (var i = 0; i < batch.length; i++) {
+    		queueIds.push(batch[i].id);
+    		names.push(batch[i].file.name);
+    		types.push(batch[i].file.type);
+    		sizes.push(batch[i].file.size);
     	}
+    	queuedBatchInFlight = true;
+    	rpcProxy.onQueuedFiles(queueIds, names, types, sizes);
+    };
+
+    this.queuedFilesAck = function() {
+    	queuedBatchInFlight = false;
+    	t._sendQueuedBatch(false);
+    };
+
+    /**
+     * Accepts files and folders dropped on the given element.
+     */
+    this._buildDropTarget = function(target) {
+    	target.addEventListener("dragover", function(event) {
+    		event.preventDefault();
+    		event.dataTransfer.dropEffect = "copy";
+    		target.classList.add(DRAGOVER_CLASSNAME);
+    	});
+    	target.addEventListener("dragleave", function(event) {
+    		target.classList.remove(DRAGOVER_CLASSNAME);
+    	});
+    	target.addEventListener("drop", function(event) {
+    		event.preventDefault();
+    		target.classList.remove(DRAGOVER_CLASSNAME);
+    		var items = event.dataTransfer.items;
+    		var entries = [];
+    		for (var i = 0; items && i < items.length; i++) {
+    			var entry = items[i].webkitGetAsEntry ? items[i].webkitGetAsEntry() : null;
+    			if (entry) {
+    				entries.push(entry);
+    			}
+    		}
+    		if (entries.length > 0) {
+    			t._queueEntries(entries);
+    		} else {
+    			t._buildTusUploadQueue(event.dataTransfer.files);
+    		}
+    	});
+    };
+
+    /**
+     * Queues the dropped files and the content of the dropped folders, depth
+     * first. Each part of a directory listing is queued as soon as it is read,
+     * so the first files upload while the rest of the tree is being listed.
+     */
+    this._queueEntries = function(roots) {
+    	var selection = t._newSelection();
+    	var directories = [];
+    	// queues the files among entries, then gives the directories to found
+    	var queueEntries = function(entries, found) {
+    		var files = [], subdirectories = [], pending = entries.length + 1;
+    		var resolved = function() {
+    			if (--pending > 0) {
+    				return;
+    			}
+    			t._queueFiles(files.filter(function(file) { return file; }), selection);
+    			found(subdirectories);
+    		};
+    		entries.forEach(function(entry, i) {
+    			if (entry.isFile) {
+    				entry.file(function(file) {
+    					files[i] = file;
+    					resolved();
+    				}, function(error) {
+    					console_log("Unable to read " + entry.fullPath + ": " + error);
+    					resolved();
+    				});
+    			} else {
+    				if (entry.isDirectory) {
+    					subdirectories.push(entry);
+    				}
+    				resolved();
+    			}
+    		});
+    		resolved();
+    	};
+    	// readEntries returns the content of a directory in parts (100 entries in Chrome)
+    	var listNext = function() {
+    		var directory = directories.shift();
+    		if (!directory || selection.stopped) {
+    			console_log("Dropped files queued: " + selection.count);
+    			return;
+    		}
+    		var reader = directory.createReader();
+    		var subdirectories = [];
+    		var listed = function() {
+    			directories = subdirectories.concat(directories);
+    			listNext();
+    		};
+    		var read = function() {
+    			reader.readEntries(function(entries) {
+    				if (entries.length == 0) {
+    					listed();
+    					return;
+    				}
+    				queueEntries(entries, function(found) {
+    					subdirectories = subdirectories.concat(found);
+    					read();
+    				});
+    			}, function(error) {
+    				console_log("Unable to list " + directory.fullPath + ": " + error);
+    				listed();
+    			});
+    		};
+    		read();
+    	};
+    	queueEntries(roots, function(found) {
+    		directories = found;
+    		listNext();
+    	});
     };
     
     this._buildTusUpload = function(fileQueue) {
         
-    	uploader = new tus.Upload(fileQueue.file, {
+    	var inWorker = s.uploadInWorker && t._uploadWorker() != null;
+    	uploader = new (inWorker ? WorkerUpload : tus.Upload)(fileQueue.file, {
 	        endpoint: this.translateVaadinUri(s.endpoint),
 	        fingerprint: s.fingerprint,
 	        resume: s.resume,
 	        retryDelays: s.retryDelays,
 	        retryOnNetworkLoss: s.retryOnNetworkLoss,
-	        chunkSize: s.chunkSize <= 0 ? Infinity : s.chunkSize,
+	        chunkSize: s.chunkSize <= 0 ? Infinity : (s.adaptiveChunkSize && chunkHint > 0 ? chunkHint : s.chunkSize),
 	        removeFingerprintOnSuccess: s.removeFingerprintOnSuccess,
 	        withCredentials: s.withCredentials,
-	        metadata: {
-	            filename: fileQueue.file.name,
-	            filetype: fileQueue.file.type,
-	            queueId: fileQueue.id
+	        metadata: uploadMetadata(fileQueue),
+	        onChunkComplete: function(chunkSize, bytesAccepted, bytesTotal) {
+	        	t._persistUploadUrl(fileQueue);
 	        },
 	        onError: function(error) {
 	            console_log("Failed because: " + error);
 	            isUploading = false;
-	            lastProgressRpc = 0;
+	            uploadStarting = false;
+	            t._removePersistedEntry(this.metadata.queueId);
+	            delete pendingProgress[this.metadata.queueId];
+	            delete renderedProgress[this.metadata.queueId];
 	            try {
 		            rpcProxy.onError( this.metadata.queueId, this.metadata.filename, this.metadata.filetype, error);
             	} catch(error) {
@@ -225,25 +514,21 @@ com_asaoweb_vaadin_tusfileupload_component_TusMultiUpload = function () {
             	}
 	        },
 	        onProgress: function(bytesUploaded, bytesTotal) {
-	        	if (s.clientSideProgress) {
-		            var now = new Date().getTime();
-		            if (lastProgressRpc + DEFAULT_STREAMING_PROGRESS_EVENT_INTERVAL_MS <= now) {
-		            	var percentage = (bytesUploaded / bytesTotal * 100).toFixed(2);
-			            console_log("onProgress "+bytesUploaded +"/"+ bytesTotal +": "+ percentage + "%");
-			            isUploading = true;
-			            lastProgressRpc = now;
-			            try {
-				            rpcProxy.onProgress( this.metadata.queueId, this.metadata.filename, bytesUploaded, bytesTotal);
-		            	} catch(error) {
-		            		console_log("RPC Failed because: " + error);
-		            	}
-		            }
+	        	isUploading = true;
+	        	uploadStarting = false;
+	        	if (s.clientRenderedProgress) {
+	        		t._renderProgress(this.metadata.queueId, bytesUploaded, bytesTotal);
+	        	} else if (s.clientSideProgress) {
+	        		t._queueProgress(this.metadata.queueId, bytesUploaded, bytesTotal);
 	        	}
 	        },
 	        onSuccess: function() {
 	            console_log("Upload success "+ this.metadata.filename +" to "+ this.endpoint);
 	            isUploading = false;
-	            lastProgressRpc = 0;
+	            uploadStarting = false;
+	            t._removePersistedEntry(this.metadata.queueId);
+	            delete pendingProgress[this.metadata.queueId];
+	            delete renderedProgress[this.metadata.queueId];
 	            try {
 		            rpcProxy.onFileUploaded( this.metadata.queueId, this.metadata.filename, this.metadata.filetype);
             	} catch(error) {
@@ -256,10 +541,933 @@ com_asaoweb_vaadin_tusfileupload_component_TusMultiUpload = function () {
 	            }
 	        }
 	    });
+    	fileQueue.upload = uploader;
+    	uploader._restoredUploadId = fileQueue.uploadId;
+    	if (inWorker) {
+    		// hooked by the worker
+    		uploader.adaptiveChunkSize = s.adaptiveChunkSize && s.chunkSize > 0;
+    		uploader.compressionFormat = s.compressChunks && t._isCompressible(fileQueue.file) ? s.compressionFormat : null;
+    	} else {
+    		if (s.adaptiveChunkSize && s.chunkSize > 0) {
+    			t._adaptChunks(uploader);
+    		}
+    		if (s.compressChunks && t._isCompressible(fileQueue.file)) {
+    			t._compressChunks(uploader);
+    		}
+    	}
+    	if (fileQueue.uploadUrl) {
+    		console_log("Uploading " + fileQueue.file.name + " to " + fileQueue.uploadUrl + ", created ahead");
+    		uploader.options.uploadUrl = fileQueue.uploadUrl;
+    		if (inWorker) {
+    			uploader.created = true;
+    		} else {
+    			TusMultiUploadXhrHooks.startCreated(uploader);
+    		}
+    	}
+    	t._precreateUploads();
+    	uploadStarting = true;
+    	if (queuedBatch.indexOf(fileQueue) >= 0) {
+    		// the server must know the file before it starts
+    		t._sendQueuedBatch(true);
+    	}
     	
         rpcProxy.setNextQueuedFileIdAndStart( fileQueue.id);
     };
     
+    /**
+     * Records the progress of an upload rendered client side, painted on the
+     * next animation frame. The speed is smoothed over the recent samples.
+     */
+    this._renderProgress = function(queueId, uploaded, total) {
+    	var now = new Date().getTime();
+    	var p = renderedProgress[queueId];
+    	if (!p) {
+    		p = renderedProgress[queueId] = {time: now, bytes: uploaded, speed: 0};
+    	} else if (now - p.time >= 500) {
+    		var speed = (uploaded - p.bytes) * 1000 / (now - p.time);
+    		p.speed = p.speed > 0 ? p.speed * 0.7 + speed * 0.3 : speed;
+    		p.time = now;
+    		p.bytes = uploaded;
+    	}
+    	p.uploaded = uploaded;
+    	p.total = total;
+    	p.dirty = true;
+    	if (!renderScheduled) {
+    		renderScheduled = true;
+    		(window.requestAnimationFrame || setTimeout)(t._paintProgress);
+    	}
+    };
+
+    this._paintProgress = function() {
+    	renderScheduled = false;
+    	for (var queueId in renderedProgress) {
+    		var p = renderedProgress[queueId];
+    		if (!p.dirty) {
+    			continue;
+    		}
+    		var el = document.getElementById("tusprogress-" + connectorId + "-" + queueId);
+    		if (!el) {
+    			continue;
+    		}
+    		p.dirty = false;
+    		var ratio = p.total > 0 ? Math.min(1, p.uploaded / p.total) : 0;
+    		var indicator = el.querySelector(".tus-client-progress-indicator");
+    		if (indicator) {
+    			indicator.style.width = (ratio * 100).toFixed(1) + "%";
+    		}
+    		var infos = el.querySelector(".tus-client-progress-infos");
+    		if (infos) {
+    			var text = readableFileSize(p.uploaded) + " / " + readableFileSize(p.total) + " (" + Math.floor(ratio * 100) + "%)";
+    			if (p.speed > 0) {
+    				text += " - " + readableFileSize(p.speed) + "/s, " + readableDuration((p.total - p.uploaded) / p.speed);
+    			}
+    			infos.textContent = text;
+    		}
+    	}
+    };
+
+    function readableFileSize(size) {
+    	if (size <= 0) return "0";
+    	var units = ["B", "kB", "MB", "GB", "TB"];
+    	var digitGroups = Math.min(units.length - 1, Math.floor(Math.log(size) / Math.log(1024)));
+    	return (size / Math.pow(1024, digitGroups)).toFixed(digitGroups > 0 ? 1 : 0) + " " + units[digitGroups];
+    }
+
+    function readableDuration(seconds) {
+    	seconds = Math.ceil(seconds);
+    	if (seconds < 60) return seconds + "s";
+    	if (seconds < 3600) return Math.floor(seconds / 60) + "m" + (seconds % 60) + "s";
+    	return Math.floor(seconds / 3600) + "h" + Math.floor((seconds % 3600) / 60) + "m";
+    }
+
+    /**
+     * Records the progress of an upload, reported with the next batch.
+     */
+    this._queueProgress = function(queueId, uploaded, total) {
+    	var p = pendingProgress[queueId];
+    	if (!p) {
+    		p = pendingProgress[queueId] = {sent: -1};
+    	}
+    	p.uploaded = uploaded;
+    	p.total = total;
+    	if (!progressTimer) {
+    		progressTimer = setTimeout(t._sendProgressBatch, t._progressInterval());
+    	}
+    };
+
+    /**
+     * The configured interval, stretched when the server is slow to answer.
+     */
+    this._progressInterval = function() {
+    	var interval = s.progressIntervalMs > 0 ? s.progressIntervalMs : DEFAULT_STREAMING_PROGRESS_EVENT_INTERVAL_MS;
+    	return Math.min(Math.max(interval, progressRtt * PROGRESS_RTT_FACTOR), Math.max(interval, MAX_STREAMING_PROGRESS_EVENT_INTERVAL_MS));
+    };
+
+    /**
+     * Sends the progress of all the active uploads that moved by more than
+     * progressMinDelta since last reported, as a single RPC call. Only one batch
+     * is in flight at a time: the next one waits for the server acknowledgement.
+     */
+    this._sendProgressBatch = function() {
+    	progressTimer = null;
+    	var now = new Date().getTime();
+    	if (progressBatchSentAt > 0 && now - progressBatchSentAt < MAX_STREAMING_PROGRESS_EVENT_INTERVAL_MS) {
+    		progressTimer = setTimeout(t._sendProgressBatch, t._progressInterval());
+    		return;
+    	}
+    	var queueIds = [], uploaded = [], total = [], remaining = false;
+    	for (var queueId in pendingProgress) {
+    		var p = pendingProgress[queueId];
+    		if (p.uploaded == p.sent) {
+    			continue;
+    		}
+    		if (p.sent >= 0 && p.uploaded < p.total && (p.uploaded - p.sent) < p.total * s.progressMinDelta) {
+    			remaining = true;
+    			continue;
+    		}
+    		queueIds.push(queueId);
+    		uploaded.push(p.uploaded);
+    		total.push(p.total);
+    		p.sent = p.uploaded;
+    	}
+    	if (queueIds.length > 0) {
+    		console_log("onProgressBatch " + queueIds.length + " uploads");
+    		progressBatchSentAt = now;
+    		try {
+    			rpcProxy.onProgressBatch(queueIds, uploaded, total);
+    		} catch(error) {
+    			console_log("RPC Failed because: " + error);
+    			progressBatchSentAt = 0;
+    		}
+    	}
+    	if (remaining) {
+    		progressTimer = setTimeout(t._sendProgressBatch, t._progressInterval());
+    	}
+    };
+
+    /**
+     * Called by the server once a progress batch was handled.
+     */
+    this.progressAck = function() {
+    	if (progressBatchSentAt > 0) {
+    		var rtt = new Date().getTime() - progressBatchSentAt;
+    		progressRtt = progressRtt > 0 ? (progressRtt * 3 + rtt) / 4 : rtt;
+    		progressBatchSentAt = 0;
+    	}
+    };
+
+    this._adaptChunks = function(upload) {
+    	TusMultiUploadXhrHooks.adaptChunks(upload, function(hint) {
+    		console_log("Chunk size of " + upload.options.metadata.filename + ": " + hint);
+    		chunkHint = hint;
+    	});
+    };
+
+    /**
+     * Returns the upload worker, started on first use, or null if the browser
+     * can't start it: the uploads then run on the UI thread.
+     */
+    this._uploadWorker = function() {
+    	if (uploadWorker === null && window.Worker) {
+    		try {
+    			uploadWorker = new Worker(t.translateVaadinUri(UPLOAD_WORKER_URL));
+    			uploadWorker.onmessage = t._onUploadWorkerMessage;
+    		} catch (error) {
+    			console_log("Unable to start upload worker: " + error);
+    			uploadWorker = false;
+    		}
+    	}
+    	return uploadWorker || null;
+    };
+
+    /**
+     * Calls the callbacks of the upload run by the worker, like tus does:
+     * with its options as this.
+     */
+    this._onUploadWorkerMessage = function(e) {
+    	var message = e.data;
+    	var upload = workerUpload;
+    	if (!upload || upload._run !== message.run || upload._aborted) {
+    		return;
+    	}
+    	var options = upload.options;
+    	if (message.log) {
+    		console_log(message.log);
+    	} else if (message.progress) {
+    		options.onProgress.call(options, message.progress[0], message.progress[1]);
+    	} else if (message.chunk) {
+    		upload.url = message.url;
+    		if (upload.adaptiveChunkSize && message.chunkSize != options.chunkSize) {
+    			chunkHint = options.chunkSize = message.chunkSize;
+    		}
+    		options.onChunkComplete.call(options, message.chunk[0], message.chunk[1], message.chunk[2]);
+    	} else if (message.success) {
+    		upload.url = message.url;
+    		workerUpload = null;
+    		options.onSuccess.call(options);
+    	} else if (message.error) {
+    		workerUpload = null;
+    		options.onError.call(options, new Error(message.error));
+    	}
+    };
+
+    /**
+     * Stands for a tus.Upload run by the upload worker, with the fields and
+     * methods the connector uses. The file is only sliced by the worker.
+     */
+    function WorkerUpload(file, options) {
+    	this.file = file;
+    	this.options = options;
+    	this.url = null;
+    	this._aborted = false;
+    	this._run = 0;
+    }
+
+    WorkerUpload.prototype.start = function() {
+    	var options = this.options;
+    	this._aborted = false;
+    	this._run = ++workerRuns;
+    	workerUpload = this;
+    	uploadWorker.postMessage({run: this._run, file: this.file,
+    		options: {endpoint: options.endpoint, uploadUrl: options.uploadUrl, chunkSize: options.chunkSize,
+    			retryDelays: options.retryDelays, retryOnNetworkLoss: options.retryOnNetworkLoss, withCredentials: options.withCredentials,
+    			removeFingerprintOnSuccess: options.removeFingerprintOnSuccess, metadata: options.metadata},
+    		adaptiveChunkSize: this.adaptiveChunkSize, compressionFormat: this.compressionFormat, created: this.created});
+    	this.created = false;
+    };
+
+    WorkerUpload.prototype.abort = function() {
+    	this._aborted = true;
+    	if (workerUpload === this) {
+    		workerUpload = null;
+    		uploadWorker.postMessage({run: this._run, abort: true});
+    	}
+    };
+
+    this._isCompressible = function(file) {
+    	return window.CompressionStream && window.Response && file.size > 0 && !COMPRESSED_TYPES.test(file.type || "");
+    };
+
+    this._compressChunks = function(upload) {
+    	TusMultiUploadXhrHooks.compressChunks(upload, s.compressionFormat, console_log);
+    };
+
+    /**
+     * Posts message to a new hash worker, then calls onResult with its answer
+     * unless the upload was aborted in the meantime. Falls back to a plain
+     * upload if the worker can't be started or fails.
+     */
+    this._hashInWorker = function(upload, message, onResult) {
+    	var worker;
+    	try {
+    		worker = fileWorker = new Worker(t.translateVaadinUri(HASH_WORKER_URL));
+    	} catch (error) {
+    		console_log("Unable to start hash worker: " + error);
+    		upload.start();
+    		return;
+    	}
+    	worker.onmessage = function(e) {
+    		if (e.data.progress !== undefined) {
+    			return;
+    		}
+    		worker.terminate();
+    		if (fileWorker === worker) {
+    			fileWorker = null;
+    		}
+    		if (upload._aborted || uploader !== upload) {
+    			return;
+    		}
+    		if (e.data.error) {
+    			console_log("Hash failed because: " + e.data.error);
+    			upload.start();
+    		} else {
+    			onResult(e.data);
+    		}
+    	};
+    	worker.postMessage(message);
+    };
+
+    /**
+     * Hashes the file of the upload in a worker, then creates the upload with
+     * its digest: the server completes it right away if it already has the
+     * content. Falls back to a plain upload if the file can't be hashed.
+     */
+    this._deduplicate = function(upload) {
+    	t._hashInWorker(upload, {file: upload.file}, function(result) {
+    		console_log("SHA-256 of " + upload.file.name + ": " + result.digest);
+    		upload.options.metadata.sha256 = result.digest;
+    		t._createUpload(upload);
+    	});
+    };
+
+    /**
+     * Uploads the file as a new version of the completed upload baseId: the
+     * signature of the previous version is fetched, the file is cut in chunks
+     * and hashed in a worker, and only the chunks the server doesn't have are
+     * sent, along with the recipe assembling the file. The tus client then
+     * resumes the upload: it completes right away, or sends what the delta
+     * upload didn't write if it failed. Without any common chunk, the file is
+     * simply uploaded.
+     */
+    this._deltaUpload = function(upload, baseId) {
+    	var xhr = new XMLHttpRequest();
+    	xhr.open("GET", t._endpointUrl() + "/" + encodeURIComponent(baseId), true);
+    	xhr.withCredentials = s.withCredentials;
+    	xhr.setRequestHeader("Tus-Resumable", "1.0.0");
+    	xhr.onload = function() {
+    		if (upload._aborted || uploader !== upload) {
+    			return;
+    		}
+    		if (xhr.status != 200) {
+    			console_log("No signature for " + baseId + ", status " + xhr.status);
+    			upload.start();
+    			return;
+    		}
+    		t._hashInWorker(upload, {file: upload.file, signature: JSON.parse(xhr.responseText)}, function(result) {
+    			var delta = result.delta;
+    			console_log("Delta of " + upload.file.name + " against " + baseId + ": " + delta.copied + " of " + upload.file.size + " bytes unchanged");
+    			if (delta.copied == 0) {
+    				upload.start();
+    				return;
+    			}
+    			upload.options.metadata.deltaBase = baseId;
+    			t._createUpload(upload, function() {
+    				t._sendDelta(upload, delta);
+    			});
+    		});
+    	};
+    	xhr.onerror = function() {
+    		upload.start();
+    	};
+    	xhr.send(null);
+    };
+
+    /**
+     * Sends the recipe followed by the literal bytes, sliced from the file, as
+     * a single PATCH request.
+     */
+    this._sendDelta = function(upload, delta) {
+    	var parts = [delta.recipe];
+    	for (var i = 0; i < delta.literals.length; i++) {
+    		parts.push(upload.file.slice(delta.literals[i][0], delta.literals[i][0] + delta.literals[i][1]));
+    	}
+    	var body = new Blob(parts);
+    	var xhr = new XMLHttpRequest();
+    	xhr.open("PATCH", upload.options.uploadUrl, true);
+    	xhr.withCredentials = s.withCredentials;
+    	xhr.setRequestHeader("Tus-Resumable", "1.0.0");
+    	xhr.setRequestHeader("Upload-Offset", 0);
+    	xhr.setRequestHeader("Content-Type", "application/offset+octet-stream");
+    	xhr.setRequestHeader(DELTA_HEADER, delta.recipe.length);
+    	xhr.upload.onprogress = function(e) {
+    		upload.options.onProgress.call(upload.options, Math.floor(upload.file.size * e.loaded / body.size), upload.file.size);
+    	};
+    	xhr.onload = function() {
+    		console_log("Delta upload of " + upload.file.name + ": status " + xhr.status + ", offset " + xhr.getResponseHeader("Upload-Offset"));
+    		if (!upload._aborted && uploader === upload) {
+    			upload.start();
+    		}
+    	};
+    	xhr.onerror = function() {
+    		if (!upload._aborted && uploader === upload) {
+    			upload.start();
+    		}
+    	};
+    	xhr.send(body);
+    };
+
+    /**
+     * Creates the upload with a POST of our own, so that the tus client resumes
+     * it from its URL (it would otherwise PATCH from offset 0 right away): a
+     * deduplicated upload is then reported complete by the HEAD request. An
+     * upload waiting for another upload of the same content is only started
+     * once that one completed or failed. The created upload is handed to
+     * onCreated, if any.
+     */
+    this._createUpload = function(upload, onCreated) {
+    	var endpoint = t._endpointUrl();
+    	var xhr = new XMLHttpRequest();
+    	xhr.open("POST", endpoint, true);
+    	xhr.withCredentials = s.withCredentials;
+    	xhr.setRequestHeader("Tus-Resumable", "1.0.0");
+    	xhr.setRequestHeader("Upload-Length", upload.file.size);
+    	xhr.setRequestHeader("Upload-Metadata", encodeMetadata(upload.options.metadata));
+    	xhr.onload = function() {
+    		if (xhr.status < 200 || xhr.status >= 300) {
+    			upload.options.onError(new Error("tus: unexpected response while creating upload, status " + xhr.status));
+    			return;
+    		}
+    		upload.options.uploadUrl = new URL(xhr.getResponseHeader("Location"), endpoint).href;
+    		console_log("Upload created at " + upload.options.uploadUrl + (xhr.getResponseHeader(DEDUP_HEADER) ? ", " + xhr.getResponseHeader(DEDUP_HEADER) : ""));
+    		if (onCreated) {
+    			onCreated();
+    		} else if (xhr.getResponseHeader(DEDUP_HEADER) === "pending") {
+    			t._awaitDuplicate(upload, 0);
+    		} else {
+    			upload.start();
+    		}
+    	};
+    	xhr.onerror = function(error) {
+    		upload.options.onError(new Error("tus: failed to create upload"));
+    	};
+    	xhr.send(null);
+    };
+
+    /**
+     * Polls the upload until the upload of the same content it waits for is
+     * over, at the pace of the retry delays, then starts it.
+     */
+    this._awaitDuplicate = function(upload, attempt) {
+    	var delays = s.retryDelays && s.retryDelays.length > 0 ? s.retryDelays : [2000];
+    	setTimeout(function() {
+    		if (upload._aborted || uploader !== upload) {
+    			return;
+    		}
+    		var xhr = new XMLHttpRequest();
+    		xhr.open("HEAD", upload.options.uploadUrl, true);
+    		xhr.withCredentials = s.withCredentials;
+    		xhr.setRequestHeader("Tus-Resumable", "1.0.0");
+    		xhr.onload = function() {
+    			if (xhr.getResponseHeader(DEDUP_HEADER) === "pending" && attempt + 1 < delays.length) {
+    				t._awaitDuplicate(upload, attempt + 1);
+    			} else {
+    				upload.start();
+    			}
+    		};
+    		xhr.onerror = function() {
+    			upload.start();
+    		};
+    		xhr.send(null);
+    	}, delays[Math.min(attempt, delays.length - 1)]);
+    };
+
+    /**
+     * Resumes the upload from the partial upload of the same file left by a
+     * previous session, restored from the persisted queue or offered by the
+     * server: tus then only sends the missing bytes. The endpoint of this
+     * session is used, the upload id stays the same.
+     */
+    this._resumePreviousSession = function(upload) {
+    	var fingerprint = upload.options.metadata.fingerprint;
+    	var uploadId = upload._restoredUploadId || (s.resumableUploads ? s.resumableUploads[fingerprint] : null);
+    	if (!uploadId || upload.options.uploadUrl) {
+    		return;
+    	}
+    	if (s.resumableUploads) {
+    		delete s.resumableUploads[fingerprint];
+    	}
+    	upload.options.uploadUrl = t._endpointUrl() + "/" + encodeURIComponent(uploadId);
+    	console_log("Resuming " + upload.file.name + " from upload " + uploadId);
+    	try {
+    		rpcProxy.onUploadResumed(upload.options.metadata.queueId, uploadId);
+    	} catch(error) {
+    		console_log("RPC Failed because: " + error);
+    	}
+    };
+
+    /**
+     * Opens the database of the persisted queues, once. Resolves to null if
+     * the browser has no IndexedDB, or refuses it (e.g. private browsing).
+     */
+    this._openQueueDb = function() {
+    	if (!queueDb) {
+    		queueDb = new Promise(function(resolve) {
+    			try {
+    				var request = window.indexedDB.open(QUEUE_DB_NAME, 1);
+    				request.onupgradeneeded = function() {
+    					request.result.createObjectStore(QUEUE_DB_STORE, {keyPath: ["queue", "id"]});
+    				};
+    				request.onsuccess = function() {
+    					resolve(request.result);
+    				};
+    				request.onerror = function() {
+    					console_log("Unable to open the persisted queue: " + request.error);
+    					resolve(null);
+    				};
+    			} catch (error) {
+    				console_log("Unable to open the persisted queue: " + error);
+    				resolve(null);
+    			}
+    		});
+    	}
+    	return queueDb;
+    };
+
+    /**
+     * Runs action(store, queue) in a transaction on the persisted queue, if
+     * the queue is persisted.
+     */
+    this._withQueueStore = function(mode, action) {
+    	if (!s.persistentQueue || !window.indexedDB) {
+    		return;
+    	}
+    	var queue = s.persistentQueue;
+    	t._openQueueDb().then(function(db) {
+    		if (!db) {
+    			return;
+    		}
+    		try {
+    			action(db.transaction(QUEUE_DB_STORE, mode).objectStore(QUEUE_DB_STORE), queue);
+    		} catch (error) {
+    			console_log("Persisted queue failed because: " + error);
+    		}
+    	});
+    };
+
+    /**
+     * The range of the keys of the entries of a queue.
+     */
+    function queueRange(queue) {
+    	return IDBKeyRange.bound([queue, ""], [queue, "\uffff"]);
+    }
+
+    /**
+     * Persists an entry of the queue with its file, which the browser may
+     * refuse to store: the entry is then lost on reload, and resumes like the
+     * uploads of a previous session if the file is selected again.
+     */
+    this._persistEntry = function(entry) {
+    	t._withQueueStore("readwrite", function(store, queue) {
+    		store.put({queue: queue, id: entry.id, position: entry.position, file: entry.file,
+    			uploadId: entry.uploadId});
+    	});
+    };
+
+    /**
+     * Records the id of the upload created for an entry, once its first chunk
+     * is accepted.
+     */
+    /**
+     * Queues the rendering of the preview of an image or a video. The
+     * previews are rendered in queue order, one at a time, so that a dropped
+     * folder of photos isn't decoded all at once.
+     */
+    this._queuePreview = function(entry) {
+    	if (s.previewSize > 0 && !previewUnsupported && window.Worker
+    			&& (RESIZABLE_TYPES.test(entry.file.type) || VIDEO_TYPES.test(entry.file.type))) {
+    		previewQueue.push(entry);
+    	}
+    };
+
+    this._nextPreview = function() {
+    	if (previewBusy || previewQueue.length == 0) {
+    		return;
+    	}
+    	var entry = previewQueue.shift();
+    	var done = function() {
+    		previewBusy = false;
+    		t._nextPreview();
+    	};
+    	previewBusy = true;
+    	if (VIDEO_TYPES.test(entry.file.type)) {
+    		t._videoFrame(entry.file, function(bitmap) {
+    			if (bitmap) {
+    				t._renderPreview(entry, {bitmap: bitmap}, done);
+    			} else {
+    				done();
+    			}
+    		});
+    	} else {
+    		t._renderPreview(entry, {file: entry.file}, done);
+    	}
+    };
+
+    /**
+     * Renders the preview of an entry from its image file or a decoded frame
+     * in the worker, and sends it to the server.
+     */
+    this._renderPreview = function(entry, message, done) {
+    	if (!previewWorker) {
+    		try {
+    			previewWorker = new Worker(t.translateVaadinUri(IMAGE_WORKER_URL));
+    		} catch (error) {
+    			console_log("Unable to start preview worker: " + error);
+    			previewUnsupported = true;
+    			previewQueue = [];
+    			done();
+    			return;
+    		}
+    	}
+    	previewWorker.onmessage = function(e) {
+    		if (e.data.preview) {
+    			rpcProxy.onPreview(entry.id, e.data.preview);
+    		} else {
+    			console_log("No preview for " + entry.file.name + ": " + e.data.error);
+    			if (e.data.unsupported) {
+    				previewUnsupported = true;
+    				previewQueue = [];
+    			}
+    		}
+    		done();
+    	};
+    	message.maxSize = s.previewSize;
+    	message.type = "image/jpeg";
+    	message.quality = PREVIEW_QUALITY;
+    	message.preview = true;
+    	previewWorker.postMessage(message, message.bitmap ? [message.bitmap] : []);
+    };
+
+    /**
+     * Decodes the poster frame of a video with a detached video element,
+     * calling back with the frame or null if the browser can't play it.
+     */
+    this._videoFrame = function(file, callback) {
+    	if (!window.createImageBitmap) {
+    		callback(null);
+    		return;
+    	}
+    	var video = document.createElement("video");
+    	var url = URL.createObjectURL(file);
+    	var timer = null;
+    	var done = function(bitmap) {
+    		if (!url) {
+    			return;
+    		}
+    		clearTimeout(timer);
+    		URL.revokeObjectURL(url);
+    		url = null;
+    		video.removeAttribute("src");
+    		video.load();
+    		callback(bitmap);
+    	};
+    	timer = setTimeout(function() {
+    		done(null);
+    	}, VIDEO_FRAME_TIMEOUT_MS);
+    	video.muted = true;
+    	video.preload = "auto";
+    	video.onloadedmetadata = function() {
+    		video.currentTime = Math.min(VIDEO_FRAME_SECONDS, (video.duration || 0) / 2);
+    	};
+    	video.onseeked = function() {
+    		window.createImageBitmap(video).then(done, function() {
+    			done(null);
+    		});
+    	};
+    	video.onerror = function() {
+    		done(null);
+    	};
+    	video.src = url;
+    };
+
+    this._persistUploadUrl = function(entry) {
+    	if (entry.upload && entry.upload._resized) {
+    		// resized again on reload
+    		return;
+    	}
+    	var url = entry.upload ? (entry.upload.url || entry.upload.options.uploadUrl) : null;
+    	var uploadId = url ? decodeURIComponent(url.substring(url.lastIndexOf("/") + 1)) : null;
+    	if (uploadId && uploadId !== entry.uploadId) {
+    		entry.uploadId = uploadId;
+    		t._persistEntry(entry);
+    	}
+    };
+
+    this._removePersistedEntry = function(queueId) {
+    	delete restoringQueue[queueId];
+    	t._withQueueStore("readwrite", function(store, queue) {
+    		store["delete"]([queue, queueId]);
+    	});
+    };
+
+    /**
+     * Reads the persisted queue back on the first attach of the page, and
+     * sends it to the server: it answers with the entries to queue again
+     * (restoreQueue), the others being completed or gone. Entries whose file
+     * couldn't be stored are dropped.
+     */
+    this._restorePersistedQueue = function() {
+    	queueRestored = true;
+    	t._withQueueStore("readonly", function(store, queue) {
+    		var request = store.getAll(queueRange(queue));
+    		request.onsuccess = function() {
+    			var entries = request.result.sort(function(a, b) { return a.position - b.position; });
+    			var queueIds = [], names = [], types = [], sizes = [], uploadIds = [];
+    			for (var i = 0; i < entries.length; i++) {
+    				var entry = entries[i];
+    				if (!(entry.file instanceof Blob)) {
+    					t._removePersistedEntry(entry.id);
+    					continue;
+    				}
+    				restoringQueue[entry.id] = {id: entry.id, file: entry.file, position: entry.position, uploadId: entry.uploadId};
+    				queueIds.push(entry.id);
+    				names.push(entry.file.name);
+    				types.push(entry.file.type);
+    				sizes.push(entry.file.size);
+    				uploadIds.push(entry.uploadId || "");
+    			}
+    			if (queueIds.length > 0) {
+    				console_log("Reconciling " + queueIds.length + " persisted files");
+    				rpcProxy.onPersistedQueue(queueIds, names, types, sizes, uploadIds);
+    			}
+    		};
+    	});
+    };
+
+    /**
+     * Called by the server with the persisted entries to queue again, in
+     * order, and the upload each one resumes ("" to start from scratch).
+     */
+    this.restoreQueue = function(queueIds, uploadIds) {
+    	for (var i = 0; i < queueIds.length; i++) {
+    		var entry = restoringQueue[queueIds[i]];
+    		if (!entry) {
+    			continue;
+    		}
+    		delete restoringQueue[queueIds[i]];
+    		if ((entry.uploadId || "") !== uploadIds[i]) {
+    			entry.uploadId = uploadIds[i] || null;
+    			t._persistEntry(entry);
+    		}
+    		fileInputQueue.push(entry);
+    		t._queuePreview(entry);
+    	}
+    	t._nextPreview();
+    	for (var queueId in restoringQueue) {
+    		console_log("Persisted file " + queueId + " completed or gone");
+    		t._removePersistedEntry(queueId);
+    	}
+    	if (!isUploading && !uploader) {
+    		var nextElement = fileInputQueue.shift();
+    		if (nextElement) {
+    			t._buildTusUpload(nextElement);
+    		}
+    	}
+    };
+
+    /**
+     * Identifies a file across sessions, unlike the tus fingerprint which
+     * includes the endpoint.
+     */
+    function fileFingerprint(file) {
+    	return [file.name, file.type, file.size, file.lastModified].join("/");
+    }
+
+    /**
+     * Creates the uploads of the next queued files in one request while the
+     * current file is sent, so that each one starts with a PATCH when its turn
+     * comes. Only the files uploaded as they are qualify: not the ones hashed
+     * first, resized, sent as a delta or resumed. If the server refuses the
+     * batch, the files create their upload in turn.
+     */
+    this._precreateUploads = function() {
+    	if (!(s.precreateUploads > 0) || precreating || precreateUnsupported) {
+    		return;
+    	}
+    	var batch = [];
+    	for (var i = 0; i < fileInputQueue.length && i < s.precreateUploads; i++) {
+    		var entry = fileInputQueue[i];
+    		if (!entry.uploadUrl && !entry.uploadId && t._isUploadedAsIs(entry.file)) {
+    			batch.push(entry);
+    		}
+    	}
+    	if (batch.length == 0) {
+    		return;
+    	}
+    	var endpoint = t._endpointUrl();
+    	var lines = [];
+    	for (i = 0; i < batch.length; i++) {
+    		lines.push(batch[i].file.size + " " + encodeMetadata(uploadMetadata(batch[i])));
+    	}
+    	precreating = true;
+    	var xhr = new XMLHttpRequest();
+    	xhr.open("POST", endpoint, true);
+    	xhr.withCredentials = s.withCredentials;
+    	xhr.setRequestHeader("Tus-Resumable", "1.0.0");
+    	xhr.setRequestHeader(BATCH_HEADER, batch.length);
+    	xhr.setRequestHeader("Content-Type", "text/plain; charset=utf-8");
+    	xhr.onload = function() {
+    		precreating = false;
+    		var results = null;
+    		try {
+    			results = xhr.status == 200 ? JSON.parse(xhr.responseText) : null;
+    		} catch (error) {
+    			// handled below
+    		}
+    		if (!results || results.length != batch.length) {
+    			console_log("Batch creation refused, status " + xhr.status);
+    			precreateUnsupported = true;
+    			return;
+    		}
+    		for (var i = 0; i < batch.length; i++) {
+    			if (!results[i].location) {
+    				console_log("Unable to create the upload of " + batch[i].file.name + " ahead: " + results[i].error);
+    				continue;
+    			}
+    			var url = new URL(results[i].location, endpoint).href;
+    			if (fileInputQueue.indexOf(batch[i]) >= 0) {
+    				batch[i].uploadUrl = url;
+    			} else {
+    				// removed or started meanwhile
+    				t._terminateUpload(url);
+    			}
+    		}
+    		console_log("Created " + batch.length + " uploads ahead");
+    	};
+    	xhr.onerror = function() {
+    		precreating = false;
+    		console_log("Batch creation failed");
+    	};
+    	xhr.send(lines.join("\n"));
+    };
+
+    /**
+     * Whether the file is uploaded by the tus client as it is, without being
+     * hashed, resized, sent as a delta or resumed first.
+     */
+    this._isUploadedAsIs = function(file) {
+    	return !s.deduplicate
+    		&& !(s.deltaBases && s.deltaBases[file.name])
+    		&& !(s.imageMaxSize > 0 && RESIZABLE_TYPES.test(file.type))
+    		&& !(s.resumableUploads && s.resumableUploads[fileFingerprint(file)]);
+    };
+
+    /**
+     * Deletes an upload created ahead for a file which won't use it.
+     */
+    this._terminateUpload = function(url) {
+    	var xhr = new XMLHttpRequest();
+    	xhr.open("DELETE", url, true);
+    	xhr.withCredentials = s.withCredentials;
+    	xhr.setRequestHeader("Tus-Resumable", "1.0.0");
+    	xhr.send(null);
+    };
+
+    /**
+     * The metadata of the upload of a queue entry.
+     */
+    function uploadMetadata(entry) {
+    	return {
+    		filename: entry.file.name,
+    		filetype: entry.file.type,
+    		queueId: entry.id,
+    		fingerprint: fileFingerprint(entry.file)
+    	};
+    }
+
+    this._endpointUrl = function() {
+    	return new URL(t.translateVaadinUri(s.endpoint), window.location.href).href;
+    };
+
+    /**
+     * Follows a renewed endpoint: the token of the TusUploadServlet stands for
+     * the same stream variable, the upload in progress and the ones created
+     * ahead go on under the new one.
+     */
+    this._endpointChanged = function() {
+    	var endpoint = t._endpointUrl();
+    	var previous = currentEndpoint;
+    	currentEndpoint = endpoint;
+    	t._scheduleTokenRefresh();
+    	if (previous === null || previous === endpoint) {
+    		return;
+    	}
+    	var rewrite = function(url) {
+    		return url && url.indexOf(previous + "/") === 0 ? endpoint + url.substring(previous.length) : url;
+    	};
+    	if (uploader) {
+    		uploader.options.endpoint = endpoint;
+    		uploader.options.uploadUrl = rewrite(uploader.options.uploadUrl);
+    		uploader.url = rewrite(uploader.url);
+    		if (uploader === workerUpload) {
+    			uploadWorker.postMessage({run: uploader._run, rewrite: [previous, endpoint]});
+    		}
+    	}
+    	for (var i = 0; i < fileInputQueue.length; i++) {
+    		fileInputQueue[i].uploadUrl = rewrite(fileInputQueue[i].uploadUrl);
+    	}
+    	console_log("Endpoint renewed: " + endpoint);
+    };
+
+    /**
+     * Asks the server to renew the token of the endpoint every
+     * tokenRefreshInterval, while the component is registered.
+     */
+    this._scheduleTokenRefresh = function() {
+    	if (tokenRefreshTimer !== null && tokenRefreshInterval === s.tokenRefreshInterval) {
+    		return;
+    	}
+    	if (tokenRefreshTimer !== null) {
+    		clearTimeout(tokenRefreshTimer);
+    		tokenRefreshTimer = null;
+    	}
+    	tokenRefreshInterval = s.tokenRefreshInterval;
+    	if (tokenRefreshInterval > 0) {
+    		tokenRefreshTimer = setTimeout(function() {
+    			tokenRefreshTimer = null;
+    			rpcProxy.refreshEndpoint();
+    			t._scheduleTokenRefresh();
+    		}, Math.min(tokenRefreshInterval, 0x7FFFFFFF));
+    	}
+    };
+
+    function encodeMetadata(metadata) {
+    	var encoded = [];
+    	for (var key in metadata) {
+    		encoded.push(key + " " + btoa(unescape(encodeURIComponent(metadata[key]))));
+    	}
+    	return encoded.join(",");
+    }
+
     /**
      * Called when the component is being unregistered (i.e. removed) from the UI. 
      * Cancel an in-progress uploads and destroy the uploader.
@@ -267,6 +1475,10 @@ com_asaoweb_vaadin_tusfileupload_component_TusMultiUpload = function () {
      * @returns {undefined}
      */
     this.onUnregister = function() {
+      if (tokenRefreshTimer !== null) {
+        clearTimeout(tokenRefreshTimer);
+        tokenRefreshTimer = null;
+      }
       if (uploader && !isUploading) {
         console_log("Stopping and cleaning up component.");
 
@@ -295,6 +1507,7 @@ com_asaoweb_vaadin_tusfileupload_component_TusMultiUpload = function () {
         d = s.debug;
         
         console_log("State change!");
+        this._endpointChanged();
 
         if ( !uploader || s.rebuild) {
           console_log("Building component for connector " + connectorId);
@@ -309,6 +1522,9 @@ com_asaoweb_vaadin_tusfileupload_component_TusMultiUpload = function () {
           } catch (ex) {
             console_log(ex);
           }
+          if (s.persistentQueue && !queueRestored) {
+            this._restorePersistedQueue();
+          }
         } else {
             console_log("State changed without rebuild for connector " + connectorId);
         }
@@ -332,7 +1548,70 @@ com_asaoweb_vaadin_tusfileupload_component_TusMultiUpload = function () {
      */
     this.submitUpload = function() {
         console_log("Starting upload due to server side submit."); 
-        if (uploader) uploader.start();
+        if (uploader) {
+        	if (s.imageMaxSize > 0 && window.Worker && RESIZABLE_TYPES.test(uploader.file.type)) {
+        		t._resizeImage(uploader);
+        	} else {
+        		t._startUpload(uploader);
+        	}
+        }
+    };
+
+    this._startUpload = function(upload) {
+    	if (!upload._resized) {
+    		t._resumePreviousSession(upload);
+    	}
+    	var baseId = s.deltaBases ? s.deltaBases[upload.options.metadata.filename] : null;
+    	if (baseId && window.Worker && !upload.options.uploadUrl) {
+    		t._deltaUpload(upload, baseId);
+    	} else if (s.deduplicate && window.Worker && !upload.options.uploadUrl) {
+    		t._deduplicate(upload);
+    	} else {
+    		upload.start();
+    	}
+    };
+
+    /**
+     * Downscales and re-encodes an image in a worker before uploading it in
+     * place of the file, which is uploaded as is if the worker fails or
+     * doesn't make it smaller. The metadata keep the name and type of the
+     * file. A resized image can't be resumed by a later session, its bytes
+     * may differ from one encoding to the next: it is then resized and
+     * uploaded again.
+     */
+    this._resizeImage = function(upload) {
+    	var file = upload.file;
+    	var worker;
+    	try {
+    		worker = fileWorker = new Worker(t.translateVaadinUri(IMAGE_WORKER_URL));
+    	} catch (error) {
+    		console_log("Unable to start image worker: " + error);
+    		t._startUpload(upload);
+    		return;
+    	}
+    	worker.onmessage = function(e) {
+    		worker.terminate();
+    		if (fileWorker === worker) {
+    			fileWorker = null;
+    		}
+    		if (upload._aborted || uploader !== upload) {
+    			return;
+    		}
+    		if (e.data.blob) {
+    			console_log("Resized " + file.name + " to " + e.data.width + "x" + e.data.height + ": " + file.size + " -> " + e.data.blob.size + " bytes");
+    			upload.file = e.data.blob;
+    			upload._resized = true;
+    			upload.options.resume = false;
+    			upload.options.metadata.originalLength = "" + file.size;
+    			delete upload.options.metadata.fingerprint;
+    		} else {
+    			console_log("Image " + file.name + " sent as is: " + (e.data.error || e.data.skipped));
+    		}
+    		t._startUpload(upload);
+    	};
+    	worker.postMessage({file: file, maxSize: s.imageMaxSize,
+    		type: s.imageFormat || (ENCODABLE_TYPES.test(file.type) ? file.type : "image/jpeg"),
+    		quality: s.imageQuality});
     };
     
     /**
@@ -352,6 +1631,7 @@ com_asaoweb_vaadin_tusfileupload_component_TusMultiUpload = function () {
     this.pauseUpload = function() {
     	if (uploader) uploader.abort();
     	isUploading = false;
+    	uploadStarting = false;
     };
     
     /**
@@ -360,17 +1640,45 @@ com_asaoweb_vaadin_tusfileupload_component_TusMultiUpload = function () {
      * @returns {undefined}
      */
     this.abortUpload = function() {
-    	if (uploader) uploader.abort();
+    	t._stopFileWorker();
+    	if (uploader) {
+    		uploader.abort();
+    		delete pendingProgress[uploader.options.metadata.queueId];
+    		t._removePersistedEntry(uploader.options.metadata.queueId);
+    	}
     	uploader = null;
     	isUploading = false;
+    	uploadStarting = false;
     };
     
+    this._stopFileWorker = function() {
+    	if (fileWorker) {
+    		fileWorker.terminate();
+    		fileWorker = null;
+    	}
+    };
+
     this.abortAllUploads = function() {
+    	t._stopFileWorker();
     	if (uploader) uploader.abort();
     	uploader = null;
+    	for (var i = 0; i < fileInputQueue.length; i++) {
+    		if (fileInputQueue[i].uploadUrl) {
+    			t._terminateUpload(fileInputQueue[i].uploadUrl);
+    		}
+    	}
     	fileInputQueue = [];
+    	queuedBatch = [];
+    	previewQueue = [];
+    	pendingProgress = {};
+    	renderedProgress = {};
+    	restoringQueue = {};
+    	t._withQueueStore("readwrite", function(store, queue) {
+    		store["delete"](queueRange(queue));
+    	});
     	
     	isUploading = false;
+    	uploadStarting = false;
     };
     
     /**
@@ -382,8 +1690,24 @@ com_asaoweb_vaadin_tusfileupload_component_TusMultiUpload = function () {
     	if (uploader && uploader.options.metadata.queueId == queueId) {
     		uploader.abort();
     	}
+    	delete pendingProgress[queueId];
+    	delete renderedProgress[queueId];
+    	t._removePersistedEntry(queueId);
+    	for (i = 0; i < queuedBatch.length; i++) {
+    		if (queuedBatch[i].id == queueId) {
+    			queuedBatch.splice(i, 1);
+    		}
+    	}
+    	for (i = 0; i < previewQueue.length; i++) {
+    		if (previewQueue[i].id == queueId) {
+    			previewQueue.splice(i, 1);
+    		}
+    	}
     	for (i = 0; i < fileInputQueue.length; i++) {
     		if (fileInputQueue[i].id == queueId) {
+    			if (fileInputQueue[i].uploadUrl) {
+    				t._terminateUpload(fileInputQueue[i].uploadUrl);
+    			}
     			fileInputQueue.splice(i,1);
     		}
     	}
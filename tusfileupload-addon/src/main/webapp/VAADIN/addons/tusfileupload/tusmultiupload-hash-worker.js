@@ -0,0 +1,188 @@
+/*
+ * Computes the SHA-256 of a file off the UI thread, for the deduplication of
+ * the TusMultiUpload connector. The file is read and hashed incrementally, by
+ * slices, so that memory use doesn't depend on its size.
+ *
+ * Message in:  {file: File}
+ * Messages out: {progress: bytesHashed}, then {digest: lowercase hex} or {error: message}
+ *
+ * Also computes the delta of a file against the signature of its previous
+ * version, cutting it in content defined chunks exactly like ChunkSignature.java
+ * does on the server side.
+ *
+ * Message in:  {file: File, signature: {seed, minSize, maskBits, maxSize, chunks: [[length, hash]]}}
+ * Messages out: {progress: bytesHashed}, then {delta: {recipe: text, literals: [[offset, length]], copied: bytes}} or {error: message}
+ */
+var SLICE_SIZE = 4 * 1024 * 1024;
+
+var K = new Uint32Array([
+	0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+	0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+	0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+	0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+	0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+	0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+	0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+	0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+]);
+
+function Sha256() {
+	this.h = new Uint32Array([0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19]);
+	this.w = new Uint32Array(64);
+	this.block = new Uint8Array(64);
+	this.blockLength = 0;
+	this.length = 0;
+}
+
+Sha256.prototype._compress = function(bytes, offset) {
+	var w = this.w, h = this.h, i, t1, t2;
+	for (i = 0; i < 16; i++) {
+		w[i] = (bytes[offset + i * 4] << 24) | (bytes[offset + i * 4 + 1] << 16) | (bytes[offset + i * 4 + 2] << 8) | bytes[offset + i * 4 + 3];
+	}
+	for (i = 16; i < 64; i++) {
+		var x = w[i - 15], y = w[i - 2];
+		var s0 = ((x >>> 7) | (x << 25)) ^ ((x >>> 18) | (x << 14)) ^ (x >>> 3);
+		var s1 = ((y >>> 17) | (y << 15)) ^ ((y >>> 19) | (y << 13)) ^ (y >>> 10);
+		w[i] = (w[i - 16] + s0 + w[i - 7] + s1) | 0;
+	}
+	var a = h[0], b = h[1], c = h[2], d = h[3], e = h[4], f = h[5], g = h[6], k = h[7];
+	for (i = 0; i < 64; i++) {
+		t1 = (k + (((e >>> 6) | (e << 26)) ^ ((e >>> 11) | (e << 21)) ^ ((e >>> 25) | (e << 7))) + ((e & f) ^ (~e & g)) + K[i] + w[i]) | 0;
+		t2 = ((((a >>> 2) | (a << 30)) ^ ((a >>> 13) | (a << 19)) ^ ((a >>> 22) | (a << 10))) + ((a & b) ^ (a & c) ^ (b & c))) | 0;
+		k = g; g = f; f = e; e = (d + t1) | 0; d = c; c = b; b = a; a = (t1 + t2) | 0;
+	}
+	h[0] += a; h[1] += b; h[2] += c; h[3] += d; h[4] += e; h[5] += f; h[6] += g; h[7] += k;
+};
+
+Sha256.prototype.update = function(bytes) {
+	var i = 0;
+	this.length += bytes.length;
+	if (this.blockLength > 0) {
+		while (this.blockLength < 64 && i < bytes.length) {
+			this.block[this.blockLength++] = bytes[i++];
+		}
+		if (this.blockLength < 64) {
+			return;
+		}
+		this._compress(this.block, 0);
+		this.blockLength = 0;
+	}
+	for (; i + 64 <= bytes.length; i += 64) {
+		this._compress(bytes, i);
+	}
+	while (i < bytes.length) {
+		this.block[this.blockLength++] = bytes[i++];
+	}
+};
+
+Sha256.prototype.digest = function() {
+	var bits = this.length * 8;
+	var padding = new Uint8Array((this.blockLength < 56 ? 56 : 120) - this.blockLength + 8);
+	padding[0] = 0x80;
+	for (var i = 0; i < 8; i++) {
+		padding[padding.length - 1 - i] = Math.floor(bits / Math.pow(2, 8 * i)) & 0xff;
+	}
+	this.length -= padding.length;
+	this.update(padding);
+	var hex = "";
+	for (var j = 0; j < 8; j++) {
+		hex += ("00000000" + this.h[j].toString(16)).slice(-8);
+	}
+	return hex;
+};
+
+function gearTable(seed) {
+	var gear = new Int32Array(256);
+	var x = seed | 0;
+	for (var i = 0; i < 256; i++) {
+		x ^= x << 13;
+		x ^= x >>> 17;
+		x ^= x << 5;
+		gear[i] = x;
+	}
+	return gear;
+}
+
+function delta(file, signature) {
+	var gear = gearTable(signature.seed);
+	var mask = -1 << (32 - signature.maskBits);
+	var known = {};
+	var baseOffset = 0;
+	for (var c = 0; c < signature.chunks.length; c++) {
+		if (!known.hasOwnProperty(signature.chunks[c][1])) {
+			known[signature.chunks[c][1]] = baseOffset;
+		}
+		baseOffset += signature.chunks[c][0];
+	}
+
+	var operations = [], literals = [], copied = 0;
+	function chunk(offset, length, hash) {
+		var last = operations.length > 0 ? operations[operations.length - 1] : null;
+		var base = known.hasOwnProperty(hash) ? known[hash] : -1;
+		if (base >= 0) {
+			copied += length;
+			if (last && last.base >= 0 && last.base + last.length == base) {
+				last.length += length;
+			} else {
+				operations.push({base: base, length: length});
+			}
+		} else if (last && last.base < 0) {
+			last.length += length;
+			literals[literals.length - 1][1] += length;
+		} else {
+			operations.push({base: -1, length: length});
+			literals.push([offset, length]);
+		}
+	}
+
+	var reader = new FileReaderSync();
+	var sha = new Sha256();
+	var h = 0, chunkStart = 0, chunkLength = 0;
+	for (var offset = 0; offset < file.size; offset += SLICE_SIZE) {
+		var bytes = new Uint8Array(reader.readAsArrayBuffer(file.slice(offset, Math.min(file.size, offset + SLICE_SIZE))));
+		var start = 0;
+		for (var i = 0; i < bytes.length; i++) {
+			h = ((h << 1) + gear[bytes[i]]) | 0;
+			chunkLength++;
+			if (chunkLength >= signature.maxSize || (chunkLength >= signature.minSize && (h & mask) == 0)) {
+				sha.update(bytes.subarray(start, i + 1));
+				chunk(chunkStart, chunkLength, sha.digest().slice(0, 32));
+				sha = new Sha256();
+				start = i + 1;
+				chunkStart += chunkLength;
+				h = 0;
+				chunkLength = 0;
+			}
+		}
+		sha.update(bytes.subarray(start));
+		self.postMessage({progress: Math.min(file.size, offset + SLICE_SIZE)});
+	}
+	if (chunkLength > 0) {
+		chunk(chunkStart, chunkLength, sha.digest().slice(0, 32));
+	}
+
+	var recipe = "";
+	for (var o = 0; o < operations.length; o++) {
+		recipe += operations[o].base >= 0 ? "C " + operations[o].base + " " + operations[o].length + "\n" : "L " + operations[o].length + "\n";
+	}
+	return {recipe: recipe, literals: literals, copied: copied};
+}
+
+self.onmessage = function(e) {
+	try {
+		var file = e.data.file;
+		if (e.data.signature) {
+			self.postMessage({delta: delta(file, e.data.signature)});
+			return;
+		}
+		var reader = new FileReaderSync();
+		var sha = new Sha256();
+		for (var offset = 0; offset < file.size; offset += SLICE_SIZE) {
+			sha.update(new Uint8Array(reader.readAsArrayBuffer(file.slice(offset, Math.min(file.size, offset + SLICE_SIZE)))));
+			self.postMessage({progress: Math.min(file.size, offset + SLICE_SIZE)});
+		}
+		self.postMessage({digest: sha.digest()});
+	} catch (error) {
+		self.postMessage({error: "" + error});
+	}
+};
@@ -0,0 +1,66 @@
+/*
+ * Downscales and re-encodes an image off the UI thread, before its upload by
+ * the TusMultiUpload connector. The image is decoded with createImageBitmap
+ * (honouring its EXIF orientation), drawn on an OffscreenCanvas fitting in a
+ * maxSize x maxSize square and encoded again. The EXIF metadata is not kept.
+ *
+ * Message in:  {file: File, maxSize: pixels, type: mime type, quality: 0..1}
+ * Messages out: {blob: Blob, width, height}, {skipped: reason} when the image
+ *               is left as is, or {error: message}
+ *
+ * Also renders the previews sent to the server ahead of the files, from an
+ * image file or from a frame already decoded (e.g. the poster frame of a
+ * video), always encoded.
+ *
+ * Message in:  {file: File or bitmap: ImageBitmap, maxSize: pixels, type: mime type, quality: 0..1, preview: true}
+ * Messages out: {preview: base64 of the encoded image} or {error: message, unsupported: true if the browser can never render one}
+ */
+function encode(bitmap, maxSize, type, quality) {
+	var scale = Math.min(1, maxSize / Math.max(bitmap.width, bitmap.height));
+	var width = Math.max(1, Math.round(bitmap.width * scale));
+	var height = Math.max(1, Math.round(bitmap.height * scale));
+	var canvas = new OffscreenCanvas(width, height);
+	var context = canvas.getContext("2d");
+	if (type == "image/jpeg") {
+		// no alpha channel: transparent pixels would turn black
+		context.fillStyle = "#FFFFFF";
+		context.fillRect(0, 0, width, height);
+	}
+	context.imageSmoothingQuality = "high";
+	context.drawImage(bitmap, 0, 0, width, height);
+	bitmap.close();
+	return canvas.convertToBlob({type: type, quality: quality}).then(function(blob) {
+		return {blob: blob, width: width, height: height};
+	});
+}
+
+self.onmessage = function(e) {
+	var file = e.data.file;
+	if (typeof OffscreenCanvas === "undefined" || typeof createImageBitmap === "undefined") {
+		self.postMessage({error: "OffscreenCanvas not supported", unsupported: true});
+		return;
+	}
+	var decoded = e.data.bitmap ? Promise.resolve(e.data.bitmap) : createImageBitmap(file, {imageOrientation: "from-image"});
+	decoded.then(function(bitmap) {
+		if (e.data.preview) {
+			return encode(bitmap, e.data.maxSize, e.data.type, e.data.quality).then(function(result) {
+				var url = new FileReaderSync().readAsDataURL(result.blob);
+				self.postMessage({preview: url.substring(url.indexOf(",") + 1)});
+			});
+		}
+		if (Math.max(bitmap.width, bitmap.height) <= e.data.maxSize && e.data.type == file.type) {
+			self.postMessage({skipped: bitmap.width + "x" + bitmap.height + " already fits"});
+			bitmap.close();
+			return;
+		}
+		return encode(bitmap, e.data.maxSize, e.data.type, e.data.quality).then(function(result) {
+			if (result.blob.size >= file.size) {
+				self.postMessage({skipped: "re-encoded image isn't smaller"});
+			} else {
+				self.postMessage(result);
+			}
+		});
+	})["catch"](function(error) {
+		self.postMessage({error: "" + error});
+	});
+};
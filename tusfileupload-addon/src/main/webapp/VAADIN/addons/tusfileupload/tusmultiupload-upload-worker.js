@@ -0,0 +1,92 @@
+/*
+ * Runs the tus upload of a file off the UI thread, for the TusMultiUpload
+ * connector (see uploadInWorker): slicing the file, compressing the chunks and
+ * the PATCH requests all happen here, the connector only gets the outcome.
+ * One upload at a time, a new one aborts the previous one.
+ *
+ * Message in:  {run: id, file: File, options: tus options without callbacks,
+ *               adaptiveChunkSize: boolean, compressionFormat: format or null,
+ *               created: true if the upload was created ahead}
+ *              {run: id, abort: true}
+ *              {run: id, rewrite: [old endpoint, new endpoint]}, its token renewed
+ * Messages out: {run, progress: [bytesSent, bytesTotal]}
+ *               {run, chunk: [chunkSize, bytesAccepted, bytesTotal], url, chunkSize}
+ *               {run, log: message}
+ *               {run, success: true, url} or {run, error: message}
+ */
+// tus-js-client looks for the XMLHttpRequest, Blob and btoa of window
+self.window = self;
+importScripts("tus.min.js", "tusmultiupload-xhr-hooks.js");
+
+var upload = null;
+var run = 0;
+
+self.onmessage = function(e) {
+	var message = e.data;
+	if (message.abort) {
+		if (upload && run === message.run) {
+			upload.abort();
+			upload = null;
+		}
+		return;
+	}
+	if (message.rewrite) {
+		if (upload && run === message.run) {
+			var previous = message.rewrite[0];
+			var endpoint = message.rewrite[1];
+			var rewrite = function(url) {
+				return url && url.indexOf(previous + "/") === 0 ? endpoint + url.substring(previous.length) : url;
+			};
+			upload.options.endpoint = endpoint;
+			upload.options.uploadUrl = rewrite(upload.options.uploadUrl);
+			upload.url = rewrite(upload.url);
+		}
+		return;
+	}
+	if (upload) {
+		upload.abort();
+	}
+	run = message.run;
+	var current = message.run;
+	var post = function(data) {
+		data.run = current;
+		self.postMessage(data);
+	};
+	var options = message.options;
+	// the URLs are resumed by the connector, the worker has no localStorage
+	options.resume = false;
+	options.onProgress = function(bytesSent, bytesTotal) {
+		post({progress: [bytesSent, bytesTotal]});
+	};
+	options.onChunkComplete = function(chunkSize, bytesAccepted, bytesTotal) {
+		post({chunk: [chunkSize, bytesAccepted, bytesTotal], url: tusUpload.url, chunkSize: options.chunkSize});
+	};
+	options.onSuccess = function() {
+		post({success: true, url: tusUpload.url});
+		done();
+	};
+	options.onError = function(error) {
+		post({error: "" + error});
+		done();
+	};
+	var tusUpload = upload = new tus.Upload(message.file, options);
+	var done = function() {
+		if (upload === tusUpload) {
+			upload = null;
+		}
+	};
+	if (message.adaptiveChunkSize) {
+		TusMultiUploadXhrHooks.adaptChunks(tusUpload, function(hint) {
+			post({log: "Chunk size of " + options.metadata.filename + ": " + hint});
+		});
+	}
+	if (message.compressionFormat) {
+		TusMultiUploadXhrHooks.compressChunks(tusUpload, message.compressionFormat, function(log) {
+			post({log: log});
+		});
+	}
+	if (message.created) {
+		TusMultiUploadXhrHooks.startCreated(tusUpload);
+	}
+	tusUpload.start();
+};
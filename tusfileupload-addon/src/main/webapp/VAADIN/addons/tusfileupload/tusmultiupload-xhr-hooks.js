@@ -0,0 +1,98 @@
+/*
+ * Hooks on the XHRs of a tus.Upload, shared by the TusMultiUpload connector and
+ * its upload worker (see uploadInWorker), which runs the uploads off the UI
+ * thread.
+ */
+var TusMultiUploadXhrHooks = {
+	CHUNK_HINT_HEADER: "Upload-Chunk-Hint",
+	/* a chunk is sent compressed only if it shrinks below this ratio */
+	MIN_COMPRESSION_RATIO: 0.9,
+
+	/**
+	 * Resizes the next chunks of the given upload as recommended by the server
+	 * in its PATCH responses: tus reads the chunk size of each chunk from the
+	 * options, so the hint is applied before its response handler sends the
+	 * next one. onHint is called with each new chunk size.
+	 */
+	adaptChunks: function(upload, onHint) {
+		var setupXHR = upload._setupXHR;
+		upload._setupXHR = function(xhr) {
+			setupXHR.call(upload, xhr);
+			var onload = xhr.onload;
+			xhr.onload = function() {
+				var hint = parseInt(xhr.getResponseHeader(TusMultiUploadXhrHooks.CHUNK_HINT_HEADER), 10);
+				if (hint > 0 && hint != upload.options.chunkSize) {
+					upload.options.chunkSize = hint;
+					onHint(hint);
+				}
+				if (onload) {
+					return onload.apply(this, arguments);
+				}
+			};
+		};
+	},
+
+	/**
+	 * Starts an upload created ahead of its turn (see precreateUploads) with
+	 * its first PATCH: its offset is known to be 0, the HEAD tus sends before
+	 * resuming an upload URL is skipped. The retries send it.
+	 */
+	startCreated: function(upload) {
+		upload._resumeUpload = function() {
+			delete upload._resumeUpload;
+			upload._offset = 0;
+			upload._startUpload();
+		};
+	},
+
+	/**
+	 * Compresses the PATCH bodies of the given upload with format: the XHR
+	 * send of each chunk is deferred until the chunk is compressed, and the
+	 * upload progress is scaled back to uncompressed bytes. Chunks which don't
+	 * shrink are sent as is; if the first one doesn't, compression is given up
+	 * for the file.
+	 */
+	compressChunks: function(upload, format, log) {
+		var sampled = false;
+		var enabled = true;
+		var setupXHR = upload._setupXHR;
+		upload._setupXHR = function(xhr) {
+			setupXHR.call(upload, xhr);
+			var send = xhr.send;
+			xhr.send = function(body) {
+				if (!enabled || !(body instanceof Blob) || body.size == 0) {
+					return send.call(xhr, body);
+				}
+				new Response(body.stream().pipeThrough(new CompressionStream(format))).blob().then(function(compressed) {
+					if (upload._aborted) {
+						return;
+					}
+					var shrunk = compressed.size < body.size * TusMultiUploadXhrHooks.MIN_COMPRESSION_RATIO;
+					if (!sampled) {
+						sampled = true;
+						enabled = shrunk;
+						log("Compression of " + upload.options.metadata.filename + ": " + body.size + " -> " + compressed.size + (shrunk ? "" : ", disabled"));
+					}
+					if (!shrunk) {
+						send.call(xhr, body);
+						return;
+					}
+					xhr.setRequestHeader("Content-Encoding", format);
+					var onprogress = xhr.upload ? xhr.upload.onprogress : null;
+					if (onprogress) {
+						xhr.upload.onprogress = function(e) {
+							onprogress({lengthComputable: e.lengthComputable, loaded: Math.floor(e.loaded * body.size / compressed.size)});
+						};
+					}
+					send.call(xhr, compressed);
+				}, function(error) {
+					log("Compression failed because: " + error);
+					enabled = false;
+					if (!upload._aborted) {
+						send.call(xhr, body);
+					}
+				});
+			};
+		};
+	}
+};
@@ -0,0 +1,141 @@
+package com.asaoweb.vaadin.tusfileupload;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the chunk sizes recommended from the throughput and failures of the
+ * clients, and how the advisor forgets them.
+ */
+public class ChunkAdvisorTest extends TestCase
+{
+	private static final long MB = 1024L * 1024;
+
+	private File folder;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		folder = Files.createTempDirectory("tus-chunks").toFile();
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		folder.delete();
+	}
+
+	public void testHintFollowsThroughput() throws Exception
+	{
+		ChunkAdvisor advisor = advisor(2000L, 0L);
+		assertEquals(0L, advisor.getChunkHint("user:alice"));
+
+		// too small to be a throughput sample
+		advisor.record("user:alice", 1024L, 1L, false);
+		assertEquals(0L, advisor.getChunkHint("user:alice"));
+
+		// 1 MB in 100 ms: 20 MB in the target 2 s
+		advisor.record("user:alice", MB, 100L, false);
+		assertEquals(20 * MB, advisor.getChunkHint("user:alice"));
+
+		// 64 KB in 10 s: the smallest chunk
+		advisor.record("addr:10.0.0.1", 64 * 1024L, 10000L, false);
+		assertEquals(ChunkAdvisor.MIN_CHUNK_SIZE, advisor.getChunkHint("addr:10.0.0.1"));
+		assertEquals(0L, advisor.getChunkHint(null));
+	}
+
+	public void testFailuresShrinkTheHint() throws Exception
+	{
+		ChunkAdvisor advisor = advisor(2000L, 0L);
+		advisor.record("user:alice", MB, 100L, false);
+		advisor.record("user:alice", 0L, 0L, true);
+		// a failure rate of 0.3 quarters the chunks
+		assertEquals(5 * MB, advisor.getChunkHint("user:alice"));
+
+		// the throughput is still known, the failure fades away
+		for (int i = 0; i < 20; i++)
+		{
+			advisor.record("user:alice", MB, 100L, false);
+		}
+		long hint = advisor.getChunkHint("user:alice");
+		assertTrue(hint + " bytes", hint >= 19 * MB && hint <= 20 * MB);
+	}
+
+	public void testHintBoundedByMaxRequest() throws Exception
+	{
+		ChunkAdvisor advisor = advisor(2000L, 4 * MB);
+		advisor.record("user:alice", MB, 100L, false);
+		assertEquals(4 * MB, advisor.getChunkHint("user:alice"));
+	}
+
+	public void testDisabled() throws Exception
+	{
+		ChunkAdvisor advisor = advisor(0L, 0L);
+		assertFalse(advisor.isEnabled());
+		advisor.record("user:alice", MB, 100L, false);
+		assertEquals(0L, advisor.getChunkHint("user:alice"));
+		assertTrue(advisor.clients.isEmpty());
+	}
+
+	public void testExpiredClientsPruned() throws Exception
+	{
+		ChunkAdvisor advisor = advisor(2000L, 0L);
+		fill(advisor);
+		long expired = System.currentTimeMillis() - ChunkAdvisor.CLIENT_EXPIRY - 1000L;
+		for (int i = 0; i < ChunkAdvisor.MAX_CLIENTS; i += 2)
+		{
+			advisor.clients.get("client" + i).lastSeen = expired;
+		}
+
+		advisor.record("newcomer", MB, 100L, false);
+		assertEquals(ChunkAdvisor.MAX_CLIENTS / 2 + 1, advisor.clients.size());
+		assertNull(advisor.clients.get("client0"));
+		assertNotNull(advisor.clients.get("client1"));
+		assertNotNull(advisor.clients.get("newcomer"));
+	}
+
+	public void testLeastRecentlySeenPruned() throws Exception
+	{
+		ChunkAdvisor advisor = advisor(2000L, 0L);
+		fill(advisor);
+		// client0 is the most recently seen, the last one the least
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < ChunkAdvisor.MAX_CLIENTS; i++)
+		{
+			advisor.clients.get("client" + i).lastSeen = now - 1000L - i;
+		}
+
+		advisor.record("newcomer", MB, 100L, false);
+		assertEquals(ChunkAdvisor.PRUNED_CLIENTS, advisor.clients.size());
+		assertNotNull(advisor.clients.get("client0"));
+		assertNotNull(advisor.clients.get("client" + (ChunkAdvisor.PRUNED_CLIENTS - 2)));
+		assertNull(advisor.clients.get("client" + (ChunkAdvisor.PRUNED_CLIENTS - 1)));
+		assertNull(advisor.clients.get("client" + (ChunkAdvisor.MAX_CLIENTS - 1)));
+		assertNotNull(advisor.clients.get("newcomer"));
+		assertEquals(20 * MB, advisor.getChunkHint("newcomer"));
+	}
+
+	private ChunkAdvisor advisor(long targetDuration, long maxRequest) throws Exception
+	{
+		Properties properties = new Properties();
+		properties.setProperty("uploadFolder", folder.getAbsolutePath());
+		properties.setProperty("chunkTargetDuration", Long.toString(targetDuration));
+		properties.setProperty("maxRequest", Long.toString(maxRequest));
+		return new ChunkAdvisor(new Config(properties));
+	}
+
+	/*
+	 * Records MAX_CLIENTS clients, the most the advisor keeps without pruning.
+	 */
+	private static void fill(ChunkAdvisor advisor)
+	{
+		for (int i = 0; i < ChunkAdvisor.MAX_CLIENTS; i++)
+		{
+			advisor.record("client" + i, MB, 100L, false);
+		}
+		assertEquals(ChunkAdvisor.MAX_CLIENTS, advisor.clients.size());
+	}
+}
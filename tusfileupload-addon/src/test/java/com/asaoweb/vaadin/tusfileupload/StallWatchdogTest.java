@@ -0,0 +1,203 @@
+package com.asaoweb.vaadin.tusfileupload;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.asaoweb.vaadin.tusfileupload.data.Store;
+import com.asaoweb.vaadin.tusfileupload.exceptions.TusException;
+import com.asaoweb.vaadin.tusfileupload.metrics.UploadMetrics;
+import com.vaadin.server.VaadinRequest;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the writes whose body stops coming are aborted once below the
+ * minimum throughput for the grace period, and only them.
+ */
+public class StallWatchdogTest extends TestCase
+{
+	public void testSlowForTheGracePeriod() throws Exception
+	{
+		StallWatchdog watchdog = new StallWatchdog();
+		StallWatchdog.Watch watch = watchdog.new Watch("upload", 100L, 4000L, () -> {}, null);
+		long start = watch.checkedAt;
+
+		// 200 bytes in a second: fast enough
+		watch.progress(200L);
+		assertFalse(watch.isStalled(start + 1000L));
+		// slow from then on
+		watch.progress(50L);
+		assertFalse(watch.isStalled(start + 2000L));
+		assertFalse(watch.isStalled(start + 4000L));
+		assertTrue(watch.isStalled(start + 5000L));
+	}
+
+	public void testRecovers() throws Exception
+	{
+		StallWatchdog watchdog = new StallWatchdog();
+		StallWatchdog.Watch watch = watchdog.new Watch("upload", 100L, 4000L, () -> {}, null);
+		long start = watch.checkedAt;
+
+		assertFalse(watch.isStalled(start + 3000L));
+		// the body comes again before the end of the grace period
+		watch.progress(1000L);
+		assertFalse(watch.isStalled(start + 4000L));
+		assertFalse(watch.isStalled(start + 6000L));
+		assertTrue(watch.isStalled(start + 10000L));
+	}
+
+	public void testAbortedByTick() throws Exception
+	{
+		StallWatchdog watchdog = new StallWatchdog();
+		AtomicBoolean closed = new AtomicBoolean();
+		UploadMetrics metrics = new UploadMetrics();
+		StallWatchdog.Watch watch = watchdog.new Watch("upload", 100L, 1000L, () -> closed.set(true), metrics);
+		synchronized (watchdog)
+		{
+			watchdog.schedule(watch, watch.getInterval());
+		}
+
+		long now = watch.checkedAt;
+		watchdog.tick(now + 500L);
+		assertFalse(watch.isAborted());
+		watchdog.tick(now + 1000L);
+		assertTrue(watch.isAborted());
+		assertTrue(closed.get());
+		assertEquals(1L, metrics.getStalledWrites());
+		// the writer is the current thread: closing the watch clears its interrupt status
+		watch.close();
+		assertFalse(Thread.currentThread().isInterrupted());
+
+		// an aborted watch isn't rescheduled
+		for (int i = 2; i < 2 + StallWatchdog.WHEEL_SIZE; i++)
+		{
+			watchdog.tick(now + i * 1000L);
+		}
+		assertEquals(1L, metrics.getStalledWrites());
+	}
+
+	public void testClosedWatchNotAborted() throws Exception
+	{
+		StallWatchdog watchdog = new StallWatchdog();
+		StallWatchdog.Watch watch = watchdog.new Watch("upload", 100L, 1000L, () -> fail("closed"), null);
+		synchronized (watchdog)
+		{
+			watchdog.schedule(watch, watch.getInterval());
+		}
+		watch.close();
+		long now = watch.checkedAt;
+		for (int i = 1; i < 10; i++)
+		{
+			watchdog.tick(now + i * 1000L);
+		}
+		assertFalse(watch.isAborted());
+	}
+
+	public void testStalledWriteAborted() throws Exception
+	{
+		File folder = Files.createTempDirectory("tus-stall").toFile();
+		Properties properties = new Properties();
+		properties.setProperty("uploadFolder", folder.getAbsolutePath());
+		properties.setProperty("minThroughput", "100");
+		properties.setProperty("stallGracePeriod", "1000");
+		Store store = (Store) new Composer(new Config(properties)).getDatastore();
+		try
+		{
+			FileInfo fi = new FileInfo(10000L, null, "alice");
+			store.create(fi);
+			StalledBody body = new StalledBody(1000);
+			long start = System.currentTimeMillis();
+			try
+			{
+				store.write(request(body), fi.id, 0L, fi.entityLength);
+				fail("the body stalled");
+			}
+			catch (TusException.Stalled e)
+			{
+				assertEquals(408, e.getStatus());
+			}
+			long elapsed = System.currentTimeMillis() - start;
+			assertTrue(elapsed + " ms", elapsed >= 1000L && elapsed < 10000L);
+			assertTrue(body.closed);
+			assertFalse(Thread.currentThread().isInterrupted());
+
+			// the bytes received before the stall stay, to be resumed
+			assertEquals(1000L, store.getFileInfo(fi.id).offset);
+			assertEquals(1000L, store.getStorageAccounting().getUploadUsage(fi.id).getWritten());
+			assertEquals(1L, store.getMetrics().getStalledWrites());
+		}
+		finally
+		{
+			store.destroy();
+			for (File file : folder.listFiles())
+			{
+				file.delete();
+			}
+			folder.delete();
+		}
+	}
+
+	/*
+	 * Sends some bytes, then nothing until closed or interrupted, like a client
+	 * gone silent without closing its connection.
+	 */
+	private static class StalledBody extends InputStream
+	{
+		private final CountDownLatch closing = new CountDownLatch(1);
+		private int remaining;
+		volatile boolean closed;
+
+		StalledBody(int bytes)
+		{
+			this.remaining = bytes;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			if (remaining > 0)
+			{
+				int n = Math.min(len, remaining);
+				remaining -= n;
+				return n;
+			}
+			try
+			{
+				closing.await();
+			}
+			catch (InterruptedException e)
+			{
+				throw new InterruptedIOException();
+			}
+			throw new IOException("stream closed");
+		}
+
+		@Override
+		public void close()
+		{
+			closed = true;
+			closing.countDown();
+		}
+	}
+
+	private static VaadinRequest request(InputStream body)
+	{
+		return (VaadinRequest) Proxy.newProxyInstance(VaadinRequest.class.getClassLoader(),
+				new Class<?>[] { VaadinRequest.class },
+				(proxy, method, args) -> "getInputStream".equals(method.getName()) ? body : null);
+	}
+}
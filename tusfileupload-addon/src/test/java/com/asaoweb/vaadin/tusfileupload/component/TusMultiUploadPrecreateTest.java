@@ -0,0 +1,116 @@
+package com.asaoweb.vaadin.tusfileupload.component;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Properties;
+
+import com.asaoweb.vaadin.tusfileupload.Config;
+import com.asaoweb.vaadin.tusfileupload.FileInfo;
+import com.asaoweb.vaadin.tusfileupload.data.Store;
+import com.asaoweb.vaadin.tusfileupload.events.StreamingEvents.StreamingStartEventImpl;
+import com.asaoweb.vaadin.tusfileupload.events.StreamingEvents.TusBatchStreamVariable;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the uploads created ahead for queued files are terminated,
+ * releasing their storage, when the files are removed from the queue before
+ * being sent.
+ */
+public class TusMultiUploadPrecreateTest extends TestCase
+{
+	private File folder;
+	private TusMultiUpload upload;
+	private Store store;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		folder = Files.createTempDirectory("tus-precreate").toFile();
+		Properties properties = new Properties();
+		properties.setProperty("uploadFolder", folder.getAbsolutePath());
+		upload = new TusMultiUpload(null, new Config(properties));
+		store = (Store) upload.getReceiverDataStore();
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		store.destroy();
+		File[] files = folder.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				file.delete();
+			}
+		}
+		folder.delete();
+	}
+
+	public void testRemovedFromQueue() throws Exception
+	{
+		FileInfo first = create("q1");
+		FileInfo second = create("q2");
+		created(first, second);
+
+		upload.removeFromQueue("q2");
+		assertNull(store.getFileInfo(second.id));
+		assertNotNull(store.getFileInfo(first.id));
+		assertEquals(10L, store.getStorageAccounting().getReserved());
+	}
+
+	public void testAbortAll() throws Exception
+	{
+		FileInfo first = create("q1");
+		FileInfo second = create("q2");
+		created(first, second);
+
+		upload.abortAll();
+		assertNull(store.getFileInfo(first.id));
+		assertNull(store.getFileInfo(second.id));
+		assertEquals(0L, store.getStorageAccounting().getReserved());
+		assertEquals(0, store.getStorageAccounting().getUploadCount());
+	}
+
+	public void testStartedUploadKept() throws Exception
+	{
+		FileInfo started = create("q1");
+		FileInfo patched = create("q2");
+		FileInfo waiting = create("q3");
+		created(started, patched, waiting);
+
+		// sent: the component forgets it
+		upload.getStreamVariable().streamingStarted(new StreamingStartEventImpl(started));
+		// its first PATCH came, the component isn't told yet
+		patched.deferredStart = false;
+		store.saveFileInfo(patched);
+
+		upload.abortAll();
+		assertNotNull(store.getFileInfo(started.id));
+		assertNotNull(store.getFileInfo(patched.id));
+		assertNull(store.getFileInfo(waiting.id));
+	}
+
+	private FileInfo create(String queueId) throws Exception
+	{
+		String metadata = "filename " + encode(queueId + ".txt") + ",queueId " + encode(queueId);
+		FileInfo fi = new FileInfo(10L, metadata, "alice");
+		fi.deferredStart = true;
+		store.create(fi);
+		return fi;
+	}
+
+	private void created(FileInfo... fileInfos)
+	{
+		((TusBatchStreamVariable) upload.getStreamVariable()).uploadsCreated(Arrays.asList(fileInfos));
+	}
+
+	private static String encode(String value)
+	{
+		return Base64.getEncoder().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,94 @@
+package com.asaoweb.vaadin.tusfileupload.component;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import com.asaoweb.vaadin.tusfileupload.Config;
+import com.asaoweb.vaadin.tusfileupload.FileInfo;
+import com.asaoweb.vaadin.tusfileupload.shared.TusMultiuploadServerRpc;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the queued events fired for the files registered by the client: a
+ * file queued alone fires a FileQueuedEvent and a batch of one, the files
+ * queued together a single FileQueuedBatchEvent.
+ */
+public class TusMultiUploadQueueTest extends TestCase
+{
+	private File folder;
+	private TusMultiUpload upload;
+	private TusMultiuploadServerRpc rpc;
+	private final List<String> events = new ArrayList<>();
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		folder = Files.createTempDirectory("tus-queue").toFile();
+		Properties properties = new Properties();
+		properties.setProperty("uploadFolder", folder.getAbsolutePath());
+		upload = new TusMultiUpload(null, new Config(properties));
+		Field field = TusMultiUpload.class.getDeclaredField("serverRpc");
+		field.setAccessible(true);
+		rpc = (TusMultiuploadServerRpc) field.get(upload);
+
+		upload.addFileQueuedListener(e -> events.add("file " + e.getQueueId()));
+		upload.addFileQueuedBatchListener(e -> {
+			StringBuilder sb = new StringBuilder("batch");
+			for (FileInfo fi : e.getFileInfos())
+			{
+				sb.append(' ').append(fi.queueId);
+			}
+			events.add(sb.toString());
+		});
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		upload.getReceiverDataStore().destroy();
+		File[] files = folder.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				file.delete();
+			}
+		}
+		folder.delete();
+	}
+
+	public void testFileQueuedAlone()
+	{
+		rpc.onQueuedFile("q1", "a.txt", "text/plain", 1L);
+
+		assertEquals(2, events.size());
+		assertEquals("file q1", events.get(0));
+		assertEquals("batch q1", events.get(1));
+		assertEquals(1, upload.getQueueCount());
+	}
+
+	public void testFilesQueuedTogether()
+	{
+		rpc.onQueuedFiles(new String[] { "q1", "q2", "q3" }, new String[] { "a.txt", "b.txt", "c.txt" },
+				new String[] { "text/plain", "text/plain", "text/plain" }, new long[] { 1L, 2L, 3L });
+
+		assertEquals(1, events.size());
+		assertEquals("batch q1 q2 q3", events.get(0));
+		assertEquals(3, upload.getQueueCount());
+	}
+
+	public void testPersistedQueueRestored()
+	{
+		rpc.onPersistedQueue(new String[] { "q1", "q2" }, new String[] { "a.txt", "b.txt" },
+				new String[] { "text/plain", "text/plain" }, new long[] { 1L, 2L }, new String[] { "", "" });
+
+		assertEquals(1, events.size());
+		assertEquals("batch q1 q2", events.get(0));
+		assertEquals(2, upload.getQueueCount());
+	}
+}
@@ -0,0 +1,197 @@
+package com.asaoweb.vaadin.tusfileupload.data;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import javax.imageio.ImageIO;
+
+import com.asaoweb.vaadin.tusfileupload.FileInfo;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the thumbnails: rendered within their square, cached on disk by
+ * version of the source, bounded in memory and on disk, and the sources
+ * without a thumbnail tried again after a while only.
+ */
+public class AsyncThumbProviderTest extends TestCase
+{
+	private static final int THUMB_SIZE = 64;
+
+	private File folder;
+	private File cache;
+	private AsyncThumbProvider provider;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		folder = Files.createTempDirectory("tus-thumbs").toFile();
+		cache = new File(folder, "cache");
+		provider = new AsyncThumbProvider(cache, 1024L * 1024, THUMB_SIZE);
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		provider.shutdown();
+		delete(folder);
+	}
+
+	public void testRenderedAndCached() throws Exception
+	{
+		Path source = image("a.png", 400, 300);
+		FileInfo fi = fileInfo();
+
+		AsyncThumbProvider.Thumb thumb = provider.load(fi, source);
+		assertNotNull(thumb);
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(thumb.bytes));
+		assertEquals(THUMB_SIZE, image.getWidth());
+		assertEquals(THUMB_SIZE * 3 / 4, image.getHeight());
+		assertNotNull(provider.getThumb(fi));
+		assertEquals(1, cache.list().length);
+
+		// found on disk after a restart, without the source
+		AsyncThumbProvider restarted = new AsyncThumbProvider(cache, 1024L * 1024, THUMB_SIZE);
+		assertNotNull(restarted.load(fi, null));
+		restarted.shutdown();
+	}
+
+	public void testNewVersionReplacesTheCachedOne() throws Exception
+	{
+		Path source = image("a.png", 400, 300);
+		FileInfo fi = fileInfo();
+		provider.load(fi, source);
+		String first = cache.list()[0];
+
+		image("a.png", 300, 400);
+		source.toFile().setLastModified(source.toFile().lastModified() + 2000L);
+		AsyncThumbProvider.Thumb thumb = provider.load(fi, source);
+		assertEquals(THUMB_SIZE, ImageIO.read(new ByteArrayInputStream(thumb.bytes)).getHeight());
+		assertEquals(1, cache.list().length);
+		assertFalse(first.equals(cache.list()[0]));
+	}
+
+	public void testMemoryBounded() throws Exception
+	{
+		Path source = image("a.png", 400, 300);
+		provider.shutdown();
+		AsyncThumbProvider small = new AsyncThumbProvider(cache, 1L, THUMB_SIZE);
+		FileInfo first = fileInfo();
+		FileInfo second = fileInfo();
+		small.load(first, source);
+		small.load(second, source);
+		// the most recent one is kept, even beyond the bound
+		assertNull(small.getFromMemory(first.id));
+		assertNotNull(small.getFromMemory(second.id));
+		assertEquals(small.getFromMemory(second.id).bytes.length, small.memoryBytes);
+		small.shutdown();
+	}
+
+	public void testDiskBounded() throws Exception
+	{
+		Path source = image("a.png", 400, 300);
+		FileInfo[] fis = new FileInfo[5];
+		fis[0] = fileInfo();
+		long size = provider.load(fis[0], source).bytes.length;
+		// room for three and a half thumbnails: pruned down to three
+		provider.setMaxDiskBytes(size * 7 / 2);
+		for (int i = 1; i < fis.length; i++)
+		{
+			// the evictions follow the modification times
+			Thread.sleep(20L);
+			fis[i] = fileInfo();
+			provider.load(fis[i], source);
+		}
+		assertEquals(3, cache.list().length);
+		assertEquals(3 * size, provider.diskBytes.get());
+		assertEquals(provider.diskBytes.get(), sizeOf(cache));
+		assertFalse(provider.digests.containsKey(fis[0].id));
+		assertFalse(provider.digests.containsKey(fis[1].id));
+		for (int i = 2; i < fis.length; i++)
+		{
+			assertTrue(provider.digests.containsKey(fis[i].id));
+		}
+	}
+
+	public void testUnavailableTriedAgainLater() throws Exception
+	{
+		Path source = new File(folder, "not-an-image.png").toPath();
+		Files.write(source, new byte[] { 1, 2, 3 });
+		FileInfo fi = fileInfo();
+		provider.setSourceResolver(f -> source);
+
+		assertNull(provider.getThumb(fi));
+		long deadline = System.currentTimeMillis() + 10000L;
+		while (!provider.isUnavailable(fi.id) && System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(10L);
+		}
+		assertTrue(provider.isUnavailable(fi.id));
+		assertNull(provider.getThumb(fi));
+		assertEquals(0, provider.getPendingCount());
+
+		// once the delay is over
+		provider.unavailable.put(fi.id, System.currentTimeMillis() - AsyncThumbProvider.UNAVAILABLE_DELAY - 1L);
+		assertFalse(provider.isUnavailable(fi.id));
+		assertFalse(provider.unavailable.containsKey(fi.id));
+	}
+
+	public void testUnavailableBounded() throws Exception
+	{
+		long expired = System.currentTimeMillis() - AsyncThumbProvider.UNAVAILABLE_DELAY - 1L;
+		for (int i = 0; i < AsyncThumbProvider.MAX_UNAVAILABLE; i++)
+		{
+			provider.unavailable.put("expired" + i, i % 2 == 0 ? expired : System.currentTimeMillis());
+		}
+		provider.setUnavailable("new");
+		assertEquals(AsyncThumbProvider.MAX_UNAVAILABLE / 2 + 1, provider.unavailable.size());
+
+		for (int i = 0; i < AsyncThumbProvider.MAX_UNAVAILABLE; i++)
+		{
+			provider.unavailable.put("recent" + i, System.currentTimeMillis());
+		}
+		provider.setUnavailable("newer");
+		assertEquals(1, provider.unavailable.size());
+		assertTrue(provider.isUnavailable("newer"));
+	}
+
+	private Path image(String name, int width, int height) throws Exception
+	{
+		File file = new File(folder, name);
+		ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "png", file);
+		return file.toPath();
+	}
+
+	private static FileInfo fileInfo()
+	{
+		FileInfo fi = new FileInfo(1L, null, null);
+		fi.suggestedFiletype = "image/png";
+		return fi;
+	}
+
+	private static long sizeOf(File folder)
+	{
+		long size = 0L;
+		for (File file : folder.listFiles())
+		{
+			size += file.length();
+		}
+		return size;
+	}
+
+	private static void delete(File file)
+	{
+		File[] files = file.listFiles();
+		if (files != null)
+		{
+			for (File child : files)
+			{
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
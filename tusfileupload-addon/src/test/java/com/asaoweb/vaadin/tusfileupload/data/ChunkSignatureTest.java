@@ -0,0 +1,94 @@
+package com.asaoweb.vaadin.tusfileupload.data;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import com.asaoweb.vaadin.tusfileupload.exceptions.TusException;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the validation of the delta recipes sent by the clients, lengths near
+ * Long.MAX_VALUE included.
+ */
+public class ChunkSignatureTest extends TestCase
+{
+	private static final long BASE_LENGTH = 100;
+	private static final long ENTITY_LENGTH = 10;
+
+	public void testValidRecipe() throws Exception
+	{
+		List<long[]> operations = parse("C 0 4\nL 3\n\nC 97 3\n");
+		assertEquals(3, operations.size());
+		assertEquals(0L, operations.get(0)[0]);
+		assertEquals(4L, operations.get(0)[1]);
+		assertEquals(-1L, operations.get(1)[0]);
+		assertEquals(3L, operations.get(1)[1]);
+		assertEquals(97L, operations.get(2)[0]);
+		assertEquals(3L, operations.get(2)[1]);
+	}
+
+	public void testCopyOverflowingTheBase()
+	{
+		assertInvalid("C 1 9223372036854775807");
+	}
+
+	public void testCopyLongerThanTheBase()
+	{
+		assertInvalid("C 0 9223372036854775807");
+		assertInvalid("C 95 10");
+	}
+
+	public void testCopyOutsideTheBase()
+	{
+		assertInvalid("C -1 5");
+		assertInvalid("C 9223372036854775807 1");
+	}
+
+	public void testLiteralLongerThanTheUpload()
+	{
+		assertInvalid("L 12");
+	}
+
+	public void testTotalOverflow()
+	{
+		// the sum wraps to a negative total, then back to ENTITY_LENGTH
+		assertInvalid("L 9223372036854775807\nL 9223372036854775807\nL 12");
+	}
+
+	public void testTotalShorterThanTheUpload()
+	{
+		assertInvalid("C 0 4\nL 3");
+	}
+
+	public void testInvalidOperations()
+	{
+		assertInvalid("L 0\nL 10");
+		assertInvalid("L -2\nL 12");
+		assertInvalid("X 10");
+		assertInvalid("L ten");
+		assertInvalid("L 99999999999999999999");
+	}
+
+	private static List<long[]> parse(String recipe) throws TusException
+	{
+		return ChunkSignature.parseRecipe(recipe.getBytes(StandardCharsets.US_ASCII), BASE_LENGTH, ENTITY_LENGTH);
+	}
+
+	private static void assertInvalid(String recipe)
+	{
+		try
+		{
+			parse(recipe);
+			fail("accepted " + recipe);
+		}
+		catch (TusException.InvalidDelta e)
+		{
+			// expected
+		}
+		catch (TusException e)
+		{
+			fail(e.toString());
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package com.asaoweb.vaadin.tusfileupload.data;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Properties;
+
+import com.asaoweb.vaadin.tusfileupload.Composer;
+import com.asaoweb.vaadin.tusfileupload.Config;
+import com.asaoweb.vaadin.tusfileupload.FileInfo;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks how deduplicated uploads are accounted: each upload is charged its
+ * length, the content kept under cas/ is exempt and outlives them.
+ */
+public class DeduplicationAccountingTest extends TestCase
+{
+	private static final byte[] CONTENT = "the same content, uploaded twice".getBytes(StandardCharsets.US_ASCII);
+
+	private File folder;
+	private Store store;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		folder = Files.createTempDirectory("tus-dedup").toFile();
+		Properties properties = new Properties();
+		properties.setProperty("uploadFolder", folder.getAbsolutePath());
+		properties.setProperty("deduplicate", "true");
+		store = (Store) new Composer(new Config(properties)).getDatastore();
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		store.destroy();
+		delete(folder);
+	}
+
+	public void testContentIsExempt() throws Exception
+	{
+		StorageAccounting accounting = store.getStorageAccounting();
+		String metadata = "filename " + encode("a.txt") + ",sha256 " + encode(sha256(CONTENT));
+
+		FileInfo first = new FileInfo(CONTENT.length, metadata, "alice");
+		store.create(first);
+		assertFalse(store.deduplicate(first));
+		Files.write(new File(store.getBinPath(first.id)).toPath(), CONTENT);
+		accounting.written(first.id, CONTENT.length);
+		store.finish(first.id);
+		Path content = store.getContentIndex().getContent(ContentIndex.key("alice", sha256(CONTENT)));
+		assertNotNull(content);
+
+		FileInfo second = new FileInfo(CONTENT.length, metadata, "alice");
+		store.create(second);
+		assertTrue(store.deduplicate(second));
+		assertEquals(CONTENT.length, store.getFileInfo(second.id).offset);
+
+		// both uploads are charged in full, the cas copy isn't
+		assertEquals(2L * CONTENT.length, accounting.getReserved());
+		assertEquals(2L * CONTENT.length, accounting.getWritten());
+		assertEquals(2L * CONTENT.length, accounting.getUsage("alice").getWritten());
+		assertEquals(2, accounting.getUploadCount());
+
+		store.terminate(first.id);
+		store.terminate(second.id);
+		assertEquals(0L, accounting.getReserved());
+		assertEquals(0L, accounting.getWritten());
+		assertNull(accounting.getUsage("alice"));
+		// kept for the next duplicate until pruned
+		assertTrue(Files.exists(content));
+	}
+
+	private static String encode(String value)
+	{
+		return Base64.getUrlEncoder().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String sha256(byte[] bytes)
+	{
+		return ContentIndex.hex(ContentIndex.newDigest().digest(bytes), 32);
+	}
+
+	private static void delete(File file)
+	{
+		File[] files = file.listFiles();
+		if (files != null)
+		{
+			for (File child : files)
+			{
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,128 @@
+package com.asaoweb.vaadin.tusfileupload.data;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Properties;
+
+import com.asaoweb.vaadin.tusfileupload.Composer;
+import com.asaoweb.vaadin.tusfileupload.Config;
+import com.asaoweb.vaadin.tusfileupload.FileInfo;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that a partial upload is only offered for resumption to its owner,
+ * and only while it is partial.
+ */
+public class ResumeIndexTest extends TestCase
+{
+	private static final String FINGERPRINT = "a.txt/text/plain/4/1700000000000";
+
+	public void testOfferedToItsOwnerOnly()
+	{
+		ResumeIndex index = new ResumeIndex();
+		FileInfo upload = upload("alice", FINGERPRINT, 4L);
+		index.add(upload);
+
+		assertEquals(upload.id, index.getUploads("alice").get(FINGERPRINT));
+		assertTrue(index.getUploads("bob").isEmpty());
+		assertTrue(index.getUploads(null).isEmpty());
+		assertTrue(index.isOwner(upload.id, "alice"));
+		assertFalse(index.isOwner(upload.id, "bob"));
+		assertFalse(index.isOwner(upload.id, null));
+	}
+
+	public void testNotIndexed()
+	{
+		ResumeIndex index = new ResumeIndex();
+		FileInfo anonymous = upload(null, FINGERPRINT, 4L);
+		FileInfo unknown = upload("alice", null, 4L);
+		FileInfo complete = upload("alice", FINGERPRINT, 4L);
+		complete.offset = 4L;
+		index.add(anonymous);
+		index.add(unknown);
+		index.add(complete);
+
+		assertTrue(index.getUploads("alice").isEmpty());
+		assertFalse(index.isOwner(anonymous.id, null));
+		assertFalse(index.isOwner(complete.id, "alice"));
+	}
+
+	public void testLatestUploadOfAFile()
+	{
+		ResumeIndex index = new ResumeIndex();
+		FileInfo first = upload("alice", FINGERPRINT, 4L);
+		FileInfo second = upload("alice", FINGERPRINT, 4L);
+		index.add(first);
+		index.add(second);
+
+		assertEquals(second.id, index.getUploads("alice").get(FINGERPRINT));
+		assertFalse(index.isOwner(first.id, "alice"));
+		// forgetting the replaced upload keeps the latest
+		index.remove(first.id);
+		assertEquals(second.id, index.getUploads("alice").get(FINGERPRINT));
+
+		index.remove(second.id);
+		assertTrue(index.getUploads("alice").isEmpty());
+		assertFalse(index.isOwner(second.id, "alice"));
+		assertTrue(index.users.isEmpty());
+	}
+
+	public void testForgottenOnceCompletedOrTerminated() throws Exception
+	{
+		File folder = Files.createTempDirectory("tus-resume").toFile();
+		Properties properties = new Properties();
+		properties.setProperty("uploadFolder", folder.getAbsolutePath());
+		Store store = (Store) new Composer(new Config(properties)).getDatastore();
+		try
+		{
+			FileInfo completed = create(store, "a.txt/text/plain/4/1");
+			FileInfo terminated = create(store, "b.txt/text/plain/4/1");
+			Map<String, String> uploads = store.getResumableUploads("alice");
+			assertEquals(2, uploads.size());
+			assertEquals(completed.id, uploads.get("a.txt/text/plain/4/1"));
+			assertTrue(store.getResumableUploads("bob").isEmpty());
+
+			store.finish(completed.id);
+			assertEquals(terminated.id, store.getResumableUploads("alice").get("b.txt/text/plain/4/1"));
+			store.terminate(terminated.id);
+			assertTrue(store.getResumableUploads("alice").isEmpty());
+		}
+		finally
+		{
+			store.destroy();
+			for (File file : folder.listFiles())
+			{
+				file.delete();
+			}
+			folder.delete();
+		}
+	}
+
+	private static FileInfo create(Store store, String fingerprint) throws Exception
+	{
+		FileInfo fi = upload("alice", fingerprint, 4L);
+		store.create(fi);
+		return fi;
+	}
+
+	private static FileInfo upload(String username, String fingerprint, long length)
+	{
+		String metadata = "filename " + encode("a.txt");
+		if (fingerprint != null)
+		{
+			metadata += "," + ResumeIndex.FINGERPRINT_METADATA + " " + encode(fingerprint);
+		}
+		FileInfo fi = new FileInfo(length, metadata, username);
+		fi.offset = 0L;
+		return fi;
+	}
+
+	private static String encode(String value)
+	{
+		return Base64.getEncoder().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,65 @@
+package com.asaoweb.vaadin.tusfileupload.data;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that a signature is computed once per version of its base.
+ */
+public class SignatureCacheTest extends TestCase
+{
+	private Path base;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		base = Files.createTempFile("base", ".bin");
+		byte[] bytes = new byte[200 * 1024];
+		new Random(1).nextBytes(bytes);
+		Files.write(base, bytes);
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		Files.deleteIfExists(base);
+	}
+
+	public void testCachedUntilChanged() throws Exception
+	{
+		SignatureCache cache = new SignatureCache();
+		ChunkSignature first = cache.get("a", base);
+		assertSame(first, cache.get("a", base));
+
+		Files.setLastModifiedTime(base, FileTime.fromMillis(Files.getLastModifiedTime(base).toMillis() - 10000));
+		ChunkSignature second = cache.get("a", base);
+		assertNotSame(first, second);
+		assertEquals(first.toJson(), second.toJson());
+
+		Files.write(base, new byte[] { 1, 2, 3 });
+		assertEquals(3L, cache.get("a", base).getLength());
+	}
+
+	public void testRemove() throws Exception
+	{
+		SignatureCache cache = new SignatureCache();
+		ChunkSignature first = cache.get("a", base);
+		cache.remove("a");
+		assertEquals(0, cache.size());
+		assertNotSame(first, cache.get("a", base));
+	}
+
+	public void testBounded() throws Exception
+	{
+		SignatureCache cache = new SignatureCache();
+		for (int i = 0; i <= SignatureCache.MAX_ENTRIES; i++)
+		{
+			cache.get("id" + i, base);
+		}
+		assertEquals(SignatureCache.MAX_ENTRIES, cache.size());
+	}
+}
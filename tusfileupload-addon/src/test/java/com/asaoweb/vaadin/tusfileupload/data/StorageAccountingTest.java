@@ -0,0 +1,171 @@
+package com.asaoweb.vaadin.tusfileupload.data;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Properties;
+
+import com.asaoweb.vaadin.tusfileupload.Composer;
+import com.asaoweb.vaadin.tusfileupload.Config;
+import com.asaoweb.vaadin.tusfileupload.FileInfo;
+import com.asaoweb.vaadin.tusfileupload.exceptions.TusException;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the admission of new uploads against maxStorage, maxUserStorage and
+ * minFreeSpace, and that terminated uploads give their bytes back.
+ */
+public class StorageAccountingTest extends TestCase
+{
+	private File folder;
+	private Store store;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		folder = Files.createTempDirectory("tus-quota").toFile();
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		if (store != null)
+		{
+			store.destroy();
+		}
+		delete(folder);
+	}
+
+	public void testMaxStorage() throws Exception
+	{
+		open("maxStorage", "100");
+		FileInfo first = create(60, "alice");
+		try
+		{
+			create(50, "bob");
+			fail("100 bytes at most");
+		}
+		catch (TusException.InsufficientStorage e)
+		{
+			assertEquals(507, e.getStatus());
+		}
+		// the refused upload left nothing behind
+		assertEquals(1, store.getStorageAccounting().getUploadCount());
+		assertEquals(60L, store.getStorageAccounting().getReserved());
+
+		create(40, "bob");
+		store.terminate(first.id);
+		assertEquals(40L, store.getStorageAccounting().getReserved());
+		create(60, "alice");
+		assertEquals(100L, store.getStorageAccounting().getReserved());
+	}
+
+	public void testMaxUserStorage() throws Exception
+	{
+		open("maxUserStorage", "100");
+		create(80, "alice");
+		try
+		{
+			create(30, "alice");
+			fail("100 bytes at most for alice");
+		}
+		catch (TusException.StorageQuotaExceeded e)
+		{
+			assertEquals(413, e.getStatus());
+		}
+		// the other users and the anonymous uploads have their own room
+		create(100, "bob");
+		create(500, null);
+		assertEquals(80L, store.getStorageAccounting().getUsage("alice").getReserved());
+		assertEquals(100L, store.getStorageAccounting().getUsage("bob").getReserved());
+		assertEquals(680L, store.getStorageAccounting().getReserved());
+	}
+
+	public void testMinFreeSpace() throws Exception
+	{
+		open("minFreeSpace", Long.toString(Long.MAX_VALUE / 2));
+		try
+		{
+			create(1, "alice");
+			fail("no disk is that large");
+		}
+		catch (TusException.InsufficientStorage e)
+		{
+			assertEquals(507, e.getStatus());
+		}
+		assertEquals(0, store.getStorageAccounting().getUploadCount());
+	}
+
+	public void testWrittenAndReleased() throws Exception
+	{
+		open("maxStorage", "0");
+		StorageAccounting accounting = store.getStorageAccounting();
+		FileInfo first = create(100, "alice");
+		FileInfo second = create(50, "alice");
+		accounting.written(first.id, 30);
+		accounting.written(second.id, 50);
+		accounting.written("unknown", 10);
+
+		assertEquals(150L, accounting.getReserved());
+		assertEquals(80L, accounting.getWritten());
+		assertEquals(30L, accounting.getUploadUsage(first.id).getWritten());
+		List<StorageAccounting.Usage> top = accounting.getTopUsers(10);
+		assertEquals(1, top.size());
+		assertEquals("alice", top.get(0).getUsername());
+		assertEquals(80L, top.get(0).getWritten());
+
+		store.terminate(first.id);
+		store.terminate(second.id);
+		assertEquals(0L, accounting.getReserved());
+		assertEquals(0L, accounting.getWritten());
+		assertNull(accounting.getUsage("alice"));
+		assertNull(accounting.getUploadUsage(first.id));
+	}
+
+	public void testRebuild() throws Exception
+	{
+		StorageAccounting accounting = new StorageAccounting(folder);
+		FileInfo partial = new FileInfo(100, null, "alice");
+		partial.offset = 40;
+		accounting.add(partial);
+		accounting.add(partial);
+		accounting.add(new FileInfo(10, null, null));
+		assertEquals(110L, accounting.getReserved());
+		assertEquals(40L, accounting.getWritten());
+		assertEquals(2, accounting.getUploadCount());
+
+		accounting.clear();
+		assertTrue(accounting.isRebuilt());
+		assertEquals(0L, accounting.getReserved());
+		assertNull(accounting.getUsage("alice"));
+	}
+
+	private void open(String limit, String value) throws Exception
+	{
+		Properties properties = new Properties();
+		properties.setProperty("uploadFolder", folder.getAbsolutePath());
+		properties.setProperty(limit, value);
+		store = (Store) new Composer(new Config(properties)).getDatastore();
+	}
+
+	private FileInfo create(long length, String username) throws Exception
+	{
+		FileInfo fi = new FileInfo(length, null, username);
+		store.create(fi);
+		return fi;
+	}
+
+	private static void delete(File file)
+	{
+		File[] files = file.listFiles();
+		if (files != null)
+		{
+			for (File child : files)
+			{
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
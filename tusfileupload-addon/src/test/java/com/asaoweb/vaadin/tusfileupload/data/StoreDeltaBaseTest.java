@@ -0,0 +1,117 @@
+package com.asaoweb.vaadin.tusfileupload.data;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+import com.asaoweb.vaadin.tusfileupload.Composer;
+import com.asaoweb.vaadin.tusfileupload.Config;
+import com.asaoweb.vaadin.tusfileupload.FileInfo;
+import com.asaoweb.vaadin.tusfileupload.exceptions.TusException;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the file of a delta base, which belongs to the application, is
+ * never deleted by the termination of the base, and that a base only serves
+ * its owner.
+ */
+public class StoreDeltaBaseTest extends TestCase
+{
+	private File folder;
+	private Path previousVersion;
+	private Datastore datastore;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		folder = Files.createTempDirectory("tus-delta").toFile();
+		previousVersion = Files.createTempFile("previous", ".txt");
+		Files.write(previousVersion, "previous version".getBytes("US-ASCII"));
+		Properties properties = new Properties();
+		properties.setProperty("uploadFolder", folder.getAbsolutePath());
+		datastore = new Composer(new Config(properties)).getDatastore();
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		datastore.destroy();
+		File[] files = folder.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				file.delete();
+			}
+		}
+		folder.delete();
+		Files.deleteIfExists(previousVersion);
+	}
+
+	public void testTerminateKeepsTheFile() throws Exception
+	{
+		String id = datastore.addDeltaBase(previousVersion, "alice");
+		FileInfo fi = datastore.getFileInfo(id);
+		assertTrue(fi.deltaBase);
+		assertEquals(fi.entityLength, fi.offset);
+
+		datastore.terminate(id);
+		assertNull(datastore.getFileInfo(id));
+		assertTrue(Files.exists(previousVersion));
+	}
+
+	public void testTerminateKeepsTheFileOnceChanged() throws Exception
+	{
+		String id = datastore.addDeltaBase(previousVersion, "alice");
+		// the application edits its file: the size no longer matches the recorded length
+		Files.write(previousVersion, " and more".getBytes("US-ASCII"), StandardOpenOption.APPEND);
+		FileInfo fi = datastore.getFileInfo(id);
+		assertTrue(fi.offset != fi.entityLength);
+
+		datastore.terminate(id);
+		assertTrue(Files.exists(previousVersion));
+		assertEquals("previous version and more", new String(Files.readAllBytes(previousVersion), "US-ASCII"));
+	}
+
+	public void testTerminateDeletesAPartialUpload() throws Exception
+	{
+		FileInfo fi = new FileInfo(10, null, "alice");
+		datastore.create(fi);
+		File bin = new File(folder, fi.id + ".bin");
+		assertTrue(bin.exists());
+
+		datastore.terminate(fi.id);
+		assertFalse(bin.exists());
+	}
+
+	public void testSignatureOfTheOwnerOnly() throws Exception
+	{
+		String id = datastore.addDeltaBase(previousVersion, "alice");
+		assertEquals(Files.size(previousVersion), datastore.getSignature(id, "alice").getLength());
+		assertNoSignature(id, "bob");
+		assertNoSignature(id, null);
+	}
+
+	public void testNoAnonymousBase() throws Exception
+	{
+		String id = datastore.addDeltaBase(previousVersion, null);
+		assertNoSignature(id, null);
+		assertNoSignature(id, "alice");
+	}
+
+	private void assertNoSignature(String id, String username) throws Exception
+	{
+		try
+		{
+			datastore.getSignature(id, username);
+			fail("signature of " + id + " served to " + username);
+		}
+		catch (TusException.NotFound e)
+		{
+			// expected
+		}
+	}
+}
@@ -0,0 +1,158 @@
+package com.asaoweb.vaadin.tusfileupload.events;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import com.asaoweb.vaadin.tusfileupload.Config;
+import com.asaoweb.vaadin.tusfileupload.FileInfo;
+import com.asaoweb.vaadin.tusfileupload.component.TusMultiUpload;
+import com.asaoweb.vaadin.tusfileupload.events.Events.FailedEvent;
+import com.asaoweb.vaadin.tusfileupload.events.Events.ProgressEvent;
+import com.asaoweb.vaadin.tusfileupload.events.Events.StartedEvent;
+import com.asaoweb.vaadin.tusfileupload.events.Events.SucceededEvent;
+import com.asaoweb.vaadin.tusfileupload.events.Events.UploadListener;
+import com.vaadin.shared.Registration;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the events of an upload reach the listeners of its queue id (or
+ * upload id) only, and that the routes are dropped once it is over.
+ */
+public class UploadEventRouterTest extends TestCase
+{
+	private File folder;
+	private TusMultiUpload source;
+	private final UploadEventRouter router = new UploadEventRouter();
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		folder = Files.createTempDirectory("tus-router").toFile();
+		Properties properties = new Properties();
+		properties.setProperty("uploadFolder", folder.getAbsolutePath());
+		source = new TusMultiUpload(null, new Config(properties));
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		source.getReceiverDataStore().destroy();
+		File[] files = folder.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				file.delete();
+			}
+		}
+		folder.delete();
+	}
+
+	public void testRoutedByQueueId()
+	{
+		List<String> first = new ArrayList<>();
+		List<String> second = new ArrayList<>();
+		router.register("q1", listener(first));
+		router.register("q2", listener(second));
+
+		FileInfo fi = fileInfo("q1", "u1");
+		router.route(new StartedEvent(source, fi));
+		router.route(new ProgressEvent(source, fi));
+		assertEquals(2, first.size());
+		assertEquals("started q1", first.get(0));
+		assertEquals("progress q1", first.get(1));
+		assertTrue(second.isEmpty());
+
+		// unknown upload: nobody is called
+		router.route(new ProgressEvent(source, fileInfo("q3", "u3")));
+		assertEquals(2, first.size());
+		assertTrue(second.isEmpty());
+	}
+
+	public void testRoutedByUploadId()
+	{
+		List<String> calls = new ArrayList<>();
+		router.register("u1", listener(calls));
+		router.route(new ProgressEvent(source, fileInfo(null, "u1")));
+		router.route(new ProgressEvent(source, fileInfo("q1", "u1")));
+		assertEquals(2, calls.size());
+	}
+
+	public void testRouteDroppedOnceOver()
+	{
+		List<String> calls = new ArrayList<>();
+		router.register("q1", listener(calls));
+		router.register("q2", listener(calls));
+		assertEquals(2, router.size());
+
+		router.route(new SucceededEvent(source, fileInfo("q1", "u1"), (InputStream) null, null));
+		router.route(new FailedEvent(source, fileInfo("q2", "u2"), new Exception("failed")));
+		assertEquals(0, router.size());
+		assertEquals("succeeded q1", calls.get(0));
+		assertEquals("failed q2", calls.get(1));
+
+		router.route(new ProgressEvent(source, fileInfo("q1", "u1")));
+		assertEquals(2, calls.size());
+	}
+
+	public void testUnregistered()
+	{
+		List<String> kept = new ArrayList<>();
+		List<String> removed = new ArrayList<>();
+		UploadListener listener = listener(kept);
+		router.register("q1", listener);
+		Registration registration = router.register("q1", listener(removed));
+
+		registration.remove();
+		router.route(new ProgressEvent(source, fileInfo("q1", "u1")));
+		assertEquals(1, kept.size());
+		assertTrue(removed.isEmpty());
+
+		// the route goes with its last listener
+		router.unregister("q1", listener);
+		assertEquals(0, router.size());
+	}
+
+	private static FileInfo fileInfo(String queueId, String id)
+	{
+		FileInfo fi = new FileInfo();
+		fi.queueId = queueId;
+		fi.id = id;
+		return fi;
+	}
+
+	private static UploadListener listener(List<String> calls)
+	{
+		return new UploadListener()
+		{
+			@Override
+			public void uploadStarted(StartedEvent evt)
+			{
+				calls.add("started " + evt.getQueueId());
+			}
+
+			@Override
+			public void uploadProgress(ProgressEvent evt)
+			{
+				calls.add("progress " + evt.getQueueId());
+			}
+
+			@Override
+			public void uploadFailed(FailedEvent evt)
+			{
+				calls.add("failed " + evt.getQueueId());
+			}
+
+			@Override
+			public void uploadSucceeded(SucceededEvent evt)
+			{
+				calls.add("succeeded " + evt.getQueueId());
+			}
+		};
+	}
+}
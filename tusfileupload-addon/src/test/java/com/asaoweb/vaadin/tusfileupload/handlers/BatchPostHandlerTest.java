@@ -0,0 +1,234 @@
+package com.asaoweb.vaadin.tusfileupload.handlers;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import com.asaoweb.vaadin.tusfileupload.Composer;
+import com.asaoweb.vaadin.tusfileupload.Config;
+import com.asaoweb.vaadin.tusfileupload.FileInfo;
+import com.asaoweb.vaadin.tusfileupload.data.Store;
+import com.asaoweb.vaadin.tusfileupload.events.StreamingEvents.TusBatchStreamVariable;
+import com.asaoweb.vaadin.tusfileupload.events.StreamingEvents.TusStreamingEvent;
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinResponse;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the batch creation: the per file failures don't fail the other
+ * uploads, and the created ones start with their first PATCH.
+ */
+public class BatchPostHandlerTest extends TestCase
+{
+	private static final String ENDPOINT = "/APP/TUS-UPLOAD/1/2/files/seckey";
+
+	private File folder;
+	private Composer composer;
+	private Store store;
+	// the calls received by the stream variable, "<method> <upload id> <offset>"
+	private final List<String> calls = new ArrayList<>();
+	private final List<FileInfo> created = new ArrayList<>();
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		folder = Files.createTempDirectory("tus-batch").toFile();
+		Properties properties = new Properties();
+		properties.setProperty("uploadFolder", folder.getAbsolutePath());
+		properties.setProperty("maxFileSize", "100");
+		properties.setProperty("maxUserStorage", "150");
+		composer = new Composer(new Config(properties));
+		store = (Store) composer.getDatastore();
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		store.destroy();
+		delete(folder);
+	}
+
+	public void testFailuresDontFailTheBatch() throws Exception
+	{
+		Response response = post("60 " + metadata("a.txt", "q1"), "200 " + metadata("b.txt", "q2"),
+				"100 " + metadata("c.txt", "q3"), "abc " + metadata("d.txt", "q4"), "90 " + metadata("e.txt", "q5"));
+
+		assertEquals(Response.OK, response.getStatus());
+		String[] results = response.getText().substring(2, response.getText().length() - 2).split("\\},\\{");
+		assertEquals(5, results.length);
+		assertTrue(results[0], results[0].startsWith("\"location\":\"" + ENDPOINT + "/"));
+		assertEquals("\"status\":413,\"error\":\"maximum size exceeded\"", results[1]);
+		// 60 + 100 bytes would exceed the quota of alice
+		assertEquals("\"status\":413,\"error\":\"storage quota exceeded\"", results[2]);
+		assertEquals("\"status\":400,\"error\":\"missing or invalid Upload-Length header\"", results[3]);
+		assertTrue(results[4], results[4].startsWith("\"location\":\"" + ENDPOINT + "/"));
+
+		// only the created uploads are reserved, and reported to the stream variable
+		assertEquals(2, created.size());
+		assertEquals("q1", created.get(0).decodedMetadata.get("queueId"));
+		assertEquals("q5", created.get(1).decodedMetadata.get("queueId"));
+		assertEquals(150L, store.getStorageAccounting().getUsage("alice").getReserved());
+		assertEquals(2, store.getStorageAccounting().getUploadCount());
+		for (FileInfo fi : created)
+		{
+			assertTrue(results[0].contains(fi.id) || results[4].contains(fi.id));
+			FileInfo stored = store.getFileInfo(fi.id);
+			assertEquals("alice", stored.username);
+			assertTrue(stored.deferredStart);
+		}
+		assertTrue(calls.isEmpty());
+	}
+
+	public void testStartsWithTheFirstPatch() throws Exception
+	{
+		post("4 " + metadata("a.txt", "q1"));
+		String id = created.get(0).id;
+
+		patch(id, 0L, "ab");
+		assertEquals("streamingStarted " + id + " 0", calls.get(0));
+		assertFalse(store.getFileInfo(id).deferredStart);
+		assertEquals(2L, store.getFileInfo(id).offset);
+
+		// started once
+		patch(id, 2L, "cd");
+		assertEquals(2, calls.size());
+		assertEquals("streamingFinished " + id + " 4", calls.get(1));
+	}
+
+	public void testInvalidBatch() throws Exception
+	{
+		Map<String, String> headers = new HashMap<>();
+		headers.put(BatchPostHandler.BATCH_HEADER, "3");
+		try
+		{
+			handle(request("POST", ENDPOINT, headers, "1 " + metadata("a.txt", "q1")), new Response(response()));
+			fail("2 uploads missing");
+		}
+		catch (Exception e)
+		{
+			assertEquals("InvalidBatch", e.getClass().getSimpleName());
+		}
+		assertEquals(0, store.getStorageAccounting().getUploadCount());
+	}
+
+	private Response post(String... lines) throws Exception
+	{
+		Map<String, String> headers = new HashMap<>();
+		headers.put(BatchPostHandler.BATCH_HEADER, Integer.toString(lines.length));
+		Response response = new Response(response());
+		handle(request("POST", ENDPOINT, headers, String.join("\n", lines)), response);
+		return response;
+	}
+
+	private void patch(String id, long offset, String body) throws Exception
+	{
+		Map<String, String> headers = new HashMap<>();
+		headers.put("Content-Type", "application/offset+octet-stream");
+		headers.put("Content-Length", Integer.toString(body.length()));
+		headers.put("Upload-Offset", Long.toString(offset));
+		Response response = new Response(response());
+		VaadinRequest request = request("PATCH", ENDPOINT + "/" + id, headers, body);
+		new PatchHandler(composer, request, response, streamVariable(), RequestContext.parse(request)).handle();
+		assertEquals(Response.NO_CONTENT, response.getStatus());
+	}
+
+	private void handle(VaadinRequest request, Response response) throws Exception
+	{
+		new BatchPostHandler(composer, request, response, streamVariable(), RequestContext.parse(request)).handle();
+	}
+
+	private static String metadata(String filename, String queueId)
+	{
+		return "filename " + encode(filename) + ",queueId " + encode(queueId);
+	}
+
+	private static String encode(String value)
+	{
+		return Base64.getEncoder().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static VaadinRequest request(String method, String path, Map<String, String> headers, String body)
+	{
+		headers.put("Tus-Resumable", "1.0.0");
+		InputStream in = new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+		Principal alice = () -> "alice";
+		return (VaadinRequest) Proxy.newProxyInstance(VaadinRequest.class.getClassLoader(),
+				new Class<?>[] { VaadinRequest.class }, (proxy, m, args) -> {
+					switch (m.getName())
+					{
+						case "getMethod":
+							return method;
+						case "getPathInfo":
+							return path;
+						case "getHeader":
+							for (Map.Entry<String, String> header : headers.entrySet())
+							{
+								if (header.getKey().equalsIgnoreCase((String) args[0]))
+								{
+									return header.getValue();
+								}
+							}
+							return null;
+						case "getInputStream":
+							return in;
+						case "getUserPrincipal":
+							return alice;
+						case "getRemoteAddr":
+							return "127.0.0.1";
+						default:
+							return null;
+					}
+				});
+	}
+
+	private static VaadinResponse response()
+	{
+		return (VaadinResponse) Proxy.newProxyInstance(VaadinResponse.class.getClassLoader(),
+				new Class<?>[] { VaadinResponse.class }, (proxy, method, args) -> null);
+	}
+
+	@SuppressWarnings("unchecked")
+	private TusBatchStreamVariable streamVariable()
+	{
+		return (TusBatchStreamVariable) Proxy.newProxyInstance(TusBatchStreamVariable.class.getClassLoader(),
+				new Class<?>[] { TusBatchStreamVariable.class }, (proxy, method, args) -> {
+					switch (method.getName())
+					{
+						case "uploadsCreated":
+							created.addAll((List<FileInfo>) args[0]);
+							return null;
+						case "streamingStarted":
+						case "streamingFinished":
+							FileInfo fi = ((TusStreamingEvent) args[0]).getFileInfo();
+							calls.add(method.getName() + " " + fi.id + " " + fi.offset);
+							return null;
+						default:
+							return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+					}
+				});
+	}
+
+	private static void delete(File file)
+	{
+		File[] files = file.listFiles();
+		if (files != null)
+		{
+			for (File child : files)
+			{
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
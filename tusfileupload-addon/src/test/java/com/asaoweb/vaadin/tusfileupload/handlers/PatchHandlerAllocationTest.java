@@ -0,0 +1,159 @@
+package com.asaoweb.vaadin.tusfileupload.handlers;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import com.asaoweb.vaadin.tusfileupload.Composer;
+import com.asaoweb.vaadin.tusfileupload.Config;
+import com.asaoweb.vaadin.tusfileupload.FileInfo;
+import com.vaadin.server.StreamVariable;
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinResponse;
+
+import junit.framework.TestCase;
+
+/**
+ * Guards the allocations of the PATCH request path: parsing, header handling,
+ * tracing, the info file read and the write, measured with
+ * ThreadMXBean.getThreadAllocatedBytes.
+ */
+public class PatchHandlerAllocationTest extends TestCase
+{
+	private static final int CHUNK_SIZE = 1024;
+	private static final int WARMUP_REQUESTS = 2000;
+	private static final int REQUESTS = 500;
+	// Per request, including the request and response stubs and the chunk buffer
+	// of the channel reading the body (about 10 KB). It was about 80 KB when each info
+	// file read created its ObjectMapper.
+	private static final long BUDGET = 16 * 1024;
+
+	private File folder;
+	private Composer composer;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		folder = Files.createTempDirectory("tus-alloc").toFile();
+		Properties properties = new Properties();
+		properties.setProperty("uploadFolder", folder.getAbsolutePath());
+		composer = new Composer(new Config(properties));
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		composer.getDatastore().destroy();
+		File[] files = folder.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				file.delete();
+			}
+		}
+		folder.delete();
+	}
+
+	public void testPatchAllocationBudget() throws Exception
+	{
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)
+				|| !((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported())
+		{
+			// not measurable on this JVM
+			return;
+		}
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		patch(WARMUP_REQUESTS, threads);
+		long perRequest = patch(REQUESTS, threads);
+		assertTrue("PATCH allocated " + perRequest + " bytes per request, budget is " + BUDGET,
+				perRequest <= BUDGET);
+	}
+
+	/*
+	 * Sends count chunks of a new upload, returns the bytes allocated per
+	 * request.
+	 */
+	private long patch(int count, com.sun.management.ThreadMXBean threads) throws Exception
+	{
+		FileInfo fileInfo = new FileInfo((long) CHUNK_SIZE * (count + 1), null, null);
+		composer.getDatastore().create(fileInfo);
+
+		// everything the client would send is built before measuring
+		String path = "/APP/TUS-UPLOAD/1/2/files/seckey/" + fileInfo.id;
+		VaadinRequest[] requests = new VaadinRequest[count];
+		for (int i = 0; i < count; i++)
+		{
+			Map<String, String> headers = new HashMap<>();
+			headers.put("Tus-Resumable", "1.0.0");
+			headers.put("Content-Type", "application/offset+octet-stream");
+			headers.put("Content-Length", Integer.toString(CHUNK_SIZE));
+			headers.put("Upload-Offset", Long.toString((long) CHUNK_SIZE * i));
+			requests[i] = request(path, headers, new ByteArrayInputStream(new byte[CHUNK_SIZE]));
+		}
+		VaadinResponse vaadinResponse = response();
+		StreamVariable streamVariable = streamVariable();
+
+		long thread = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(thread);
+		for (int i = 0; i < count; i++)
+		{
+			Response response = new Response(vaadinResponse);
+			new PatchHandler(composer, requests[i], response, streamVariable, RequestContext.parse(requests[i])).handle();
+			response.write();
+			assertEquals(Response.NO_CONTENT, response.getStatus());
+		}
+		return (threads.getThreadAllocatedBytes(thread) - before) / count;
+	}
+
+	private static VaadinRequest request(String path, Map<String, String> headers, InputStream body)
+	{
+		return (VaadinRequest) Proxy.newProxyInstance(VaadinRequest.class.getClassLoader(),
+				new Class<?>[] { VaadinRequest.class }, (proxy, method, args) -> {
+					switch (method.getName())
+					{
+						case "getMethod":
+							return "PATCH";
+						case "getPathInfo":
+							return path;
+						case "getHeader":
+							for (Map.Entry<String, String> header : headers.entrySet())
+							{
+								if (header.getKey().equalsIgnoreCase((String) args[0]))
+								{
+									return header.getValue();
+								}
+							}
+							return null;
+						case "getInputStream":
+							return body;
+						case "getRemoteAddr":
+							return "127.0.0.1";
+						default:
+							return null;
+					}
+				});
+	}
+
+	private static VaadinResponse response()
+	{
+		return (VaadinResponse) Proxy.newProxyInstance(VaadinResponse.class.getClassLoader(),
+				new Class<?>[] { VaadinResponse.class }, (proxy, method, args) -> null);
+	}
+
+	private static StreamVariable streamVariable()
+	{
+		return (StreamVariable) Proxy.newProxyInstance(StreamVariable.class.getClassLoader(),
+				new Class<?>[] { StreamVariable.class },
+				(proxy, method, args) -> method.getReturnType() == boolean.class ? Boolean.FALSE : null);
+	}
+}
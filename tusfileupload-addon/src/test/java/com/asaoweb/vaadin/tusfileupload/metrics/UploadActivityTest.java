@@ -0,0 +1,93 @@
+package com.asaoweb.vaadin.tusfileupload.metrics;
+
+import java.util.List;
+
+import com.asaoweb.vaadin.tusfileupload.metrics.UploadActivity.ActiveUpload;
+import com.asaoweb.vaadin.tusfileupload.metrics.UploadActivity.LockHolder;
+import com.asaoweb.vaadin.tusfileupload.metrics.UploadActivity.Upload;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the live state shown by the dashboard: the throughput of the uploads
+ * between two samples, the uploads forgotten once idle or removed, the lock
+ * holders and the requests in progress.
+ */
+public class UploadActivityTest extends TestCase
+{
+	private final UploadActivity activity = new UploadActivity();
+
+	public void testThroughput() throws Exception
+	{
+		Upload upload = activity.writeStarted("u1");
+		assertEquals(1, activity.getWritesInProgress());
+		upload.sampledAt = System.currentTimeMillis() - 1000L;
+		upload.progress(500L);
+		upload.progress(-1L);
+
+		List<ActiveUpload> active = activity.sample();
+		assertEquals(1, active.size());
+		ActiveUpload sampled = active.get(0);
+		assertEquals("u1", sampled.getId());
+		assertTrue(sampled.isWriting());
+		assertEquals(500L, sampled.getWritingBytes());
+		// about 500 bytes during the second since the previous sample
+		assertTrue(sampled.getBytesPerSecond() > 400L && sampled.getBytesPerSecond() <= 500L);
+
+		activity.writeEnded(upload);
+		assertEquals(0, activity.getWritesInProgress());
+		upload.sampledAt = System.currentTimeMillis() - 1000L;
+		sampled = activity.sample().get(0);
+		assertFalse(sampled.isWriting());
+		assertEquals(0L, sampled.getWritingBytes());
+		assertEquals(0L, sampled.getBytesPerSecond());
+
+		// the next write adds to the bytes received
+		upload = activity.writeStarted("u1");
+		upload.progress(100L);
+		assertEquals(600L, upload.received);
+		assertEquals(100L, upload.writing);
+	}
+
+	public void testIdleForgotten()
+	{
+		Upload idle = activity.writeStarted("idle");
+		activity.writeEnded(idle);
+		Upload stalled = activity.writeStarted("stalled");
+		Upload removed = activity.writeStarted("removed");
+		activity.writeEnded(removed);
+		activity.removed("removed");
+
+		long past = System.currentTimeMillis() - UploadActivity.IDLE_TIMEOUT - 1L;
+		idle.lastProgress = past;
+		stalled.lastProgress = past;
+
+		// a write still in progress is shown, however long it waits for bytes
+		List<ActiveUpload> active = activity.sample();
+		assertEquals(1, active.size());
+		assertEquals("stalled", active.get(0).getId());
+		assertFalse(activity.uploads.containsKey("idle"));
+
+		activity.writeEnded(stalled);
+		assertTrue(activity.sample().isEmpty());
+		assertTrue(activity.uploads.isEmpty());
+	}
+
+	public void testLocksAndRequests()
+	{
+		activity.requestStarted();
+		activity.requestStarted();
+		activity.locked("u1", "PATCH");
+		activity.locked("u2", "DELETE");
+		assertEquals(2, activity.getRequestsInProgress());
+
+		activity.unlocked("u2");
+		activity.requestEnded();
+		List<LockHolder> holders = activity.getLockHolders();
+		assertEquals(1, holders.size());
+		assertEquals("u1", holders.get(0).getId());
+		assertEquals("PATCH", holders.get(0).getMethod());
+		assertEquals(Thread.currentThread().getName(), holders.get(0).getThread());
+		assertEquals(1, activity.getRequestsInProgress());
+	}
+}
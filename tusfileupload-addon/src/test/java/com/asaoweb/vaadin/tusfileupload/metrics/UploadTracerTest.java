@@ -0,0 +1,152 @@
+package com.asaoweb.vaadin.tusfileupload.metrics;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Properties;
+
+import com.asaoweb.vaadin.tusfileupload.Composer;
+import com.asaoweb.vaadin.tusfileupload.Config;
+import com.asaoweb.vaadin.tusfileupload.FileInfo;
+import com.asaoweb.vaadin.tusfileupload.data.Datastore;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.vaadin.server.VaadinRequest;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the spans kept for each upload, their OTLP/JSON export, and the
+ * steps the datastore adds to the request span.
+ */
+public class UploadTracerTest extends TestCase
+{
+	private static final String UPLOAD_ID = "0123456789ab_cdef_0123_456789abcdef";
+
+	public void testDisabled()
+	{
+		UploadTracer tracer = new UploadTracer();
+		assertFalse(tracer.isEnabled());
+		Span span = tracer.start(UPLOAD_ID, "PATCH", System.nanoTime());
+		assertSame(Span.NOOP, span);
+		assertSame(Span.NOOP, span.child("write"));
+		span.end();
+		assertTrue(tracer.getSpans(UPLOAD_ID).isEmpty());
+	}
+
+	public void testRingBuffer()
+	{
+		UploadTracer tracer = new UploadTracer();
+		tracer.configure(3, null);
+		for (int i = 0; i < 5; i++)
+		{
+			tracer.start(UPLOAD_ID, "PATCH " + i, System.nanoTime()).end();
+		}
+		// the span of a creation which failed before its id is known isn't kept
+		tracer.start(null, "POST", System.nanoTime()).end();
+		tracer.start("other", "HEAD", System.nanoTime()).end();
+
+		List<Span> spans = tracer.getSpans(UPLOAD_ID);
+		assertEquals(2, spans.size());
+		assertEquals("PATCH 3", spans.get(0).getName());
+		assertEquals("PATCH 4", spans.get(1).getName());
+		assertEquals(1, tracer.getSpans("other").size());
+	}
+
+	public void testOtlpExport() throws Exception
+	{
+		UploadTracer tracer = new UploadTracer();
+		tracer.configure(16, null);
+		long start = System.nanoTime();
+		Span request = tracer.start(null, "POST", start).setUploadId(UPLOAD_ID);
+		Span lock = request.child("upload.lock", start + 1000L);
+		lock.setStatus(Span.STATUS_ERROR, "locked by another request").end(start + 2000L);
+		request.setAttribute("http.response.status_code", 423).setAttribute("tus.delta", false).end(start + 3000L);
+
+		JsonNode spans = new ObjectMapper().readTree(tracer.toJson(UPLOAD_ID))
+				.get("resourceSpans").get(0).get("scopeSpans").get(0).get("spans");
+		assertEquals(2, spans.size());
+		JsonNode child = spans.get(0);
+		JsonNode parent = spans.get(1);
+		assertEquals("0123456789abcdef0123456789abcdef", parent.get("traceId").asText());
+		assertEquals(parent.get("traceId").asText(), child.get("traceId").asText());
+		assertEquals(parent.get("spanId").asText(), child.get("parentSpanId").asText());
+		assertNull(parent.get("parentSpanId"));
+		assertEquals(Span.KIND_SERVER, parent.get("kind").asInt());
+		assertEquals(Span.KIND_INTERNAL, child.get("kind").asInt());
+		assertEquals(2000L, parent.get("endTimeUnixNano").asLong() - child.get("startTimeUnixNano").asLong());
+		assertEquals(Span.STATUS_ERROR, child.get("status").get("code").asInt());
+		assertEquals("locked by another request", child.get("status").get("message").asText());
+
+		JsonNode attributes = parent.get("attributes");
+		assertEquals("http.response.status_code", attributes.get(0).get("key").asText());
+		assertEquals("423", attributes.get(0).get("value").get("intValue").asText());
+		assertFalse(attributes.get(1).get("value").get("boolValue").asBoolean());
+	}
+
+	public void testWriteStep() throws Exception
+	{
+		File folder = Files.createTempDirectory("tus-trace").toFile();
+		File export = new File(folder, "traces");
+		Properties properties = new Properties();
+		properties.setProperty("uploadFolder", folder.getAbsolutePath());
+		properties.setProperty("traceExportFolder", export.getAbsolutePath());
+		Composer composer = new Composer(new Config(properties));
+		Datastore datastore = composer.getDatastore();
+		UploadTracer tracer = composer.getTracer();
+		try
+		{
+			FileInfo fi = new FileInfo(4L, null, null);
+			datastore.create(fi);
+			Span request = tracer.start(fi.id, "PATCH", System.nanoTime());
+			UploadTracer.setCurrent(request);
+			try
+			{
+				datastore.write(request(new byte[] { 1, 2, 3, 4 }), fi.id, 0L, 4L);
+			}
+			finally
+			{
+				UploadTracer.setCurrent(null);
+			}
+			request.end();
+			assertSame(Span.NOOP, UploadTracer.current());
+
+			List<Span> spans = tracer.getSpans(fi.id);
+			assertEquals(2, spans.size());
+			assertEquals("write", spans.get(0).getName());
+			assertEquals(4L, spans.get(0).getAttributes().get("tus.bytes"));
+			assertEquals("PATCH", spans.get(1).getName());
+
+			tracer.exportCompleted(fi.id);
+			assertTrue(new File(export, fi.id + ".trace.json").isFile());
+		}
+		finally
+		{
+			datastore.destroy();
+			delete(folder);
+		}
+	}
+
+	private static VaadinRequest request(byte[] body)
+	{
+		ByteArrayInputStream in = new ByteArrayInputStream(body);
+		return (VaadinRequest) Proxy.newProxyInstance(VaadinRequest.class.getClassLoader(),
+				new Class<?>[] { VaadinRequest.class },
+				(proxy, method, args) -> "getInputStream".equals(method.getName()) ? in : null);
+	}
+
+	private static void delete(File file)
+	{
+		File[] files = file.listFiles();
+		if (files != null)
+		{
+			for (File child : files)
+			{
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,191 @@
+package com.asaoweb.vaadin.tusfileupload.ui;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.asaoweb.vaadin.tusfileupload.Config;
+import com.asaoweb.vaadin.tusfileupload.FileInfo;
+import com.asaoweb.vaadin.tusfileupload.data.FileInfoPageProvider;
+import com.asaoweb.vaadin.tusfileupload.events.Events.FileQueuedBatchEvent;
+import com.asaoweb.vaadin.tusfileupload.events.Events.SucceededEvent;
+import com.vaadin.data.provider.Query;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the grid reads only the requested page of the existing files,
+ * followed by the added and the queued ones, and that the count and size
+ * aggregates follow the queued, succeeded and removed files.
+ */
+public class TusMultiUploadGridLayoutTest extends TestCase
+{
+	private File folder;
+	private TusMultiUploadGridLayout layout;
+	private final List<String> fetches = new ArrayList<>();
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		folder = Files.createTempDirectory("tus-grid").toFile();
+		Properties properties = new Properties();
+		properties.setProperty("uploadFolder", folder.getAbsolutePath());
+		layout = new TusMultiUploadGridLayout(null, new Config(properties), existing(1000), null);
+		layout.refreshFileList();
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		layout.getUploader().getReceiverDataStore().destroy();
+		File[] files = folder.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				file.delete();
+			}
+		}
+		folder.delete();
+	}
+
+	public void testExistingPageOnly()
+	{
+		assertEquals(1000, layout.getRowCount());
+		assertEquals(1000 * 10L, layout.getTotalSize());
+
+		assertEquals(Arrays.asList("e500", "e501", "e502"), rows(500, 3));
+		assertEquals(Collections.singletonList("500+3"), fetches);
+	}
+
+	public void testSegments()
+	{
+		queue("q1", "q2");
+		succeed("q1", "u1");
+		assertEquals(1002, layout.getRowCount());
+		assertEquals(1001, layout.getFileCount());
+
+		assertEquals(Arrays.asList("e998", "e999", "u1", "q2"), rows(998, 10));
+		assertEquals(Collections.singletonList("998+2"), fetches);
+
+		fetches.clear();
+		layout.setReverseOrder(true);
+		assertEquals(Arrays.asList("q2", "u1", "e999", "e998"), rows(0, 4));
+		assertEquals(Collections.singletonList("998+2"), fetches);
+	}
+
+	public void testAggregates()
+	{
+		queue("q1", "q2", "q3");
+		assertEquals(1000, layout.getFileCount());
+		assertEquals(1003, layout.getRowCount());
+
+		FileInfo first = succeed("q1", "u1");
+		assertEquals(1001, layout.getFileCount());
+		assertEquals(1001 * 10L, layout.getTotalSize());
+
+		// a queued file goes without changing the aggregates
+		FileInfo queued = row("q2");
+		layout.removeFileInfoItem(queued);
+		assertEquals(1001, layout.getFileCount());
+		assertEquals(1002, layout.getRowCount());
+
+		layout.removeFileInfoItem(first);
+		assertEquals(1000, layout.getFileCount());
+		assertEquals(1000 * 10L, layout.getTotalSize());
+
+		layout.removeFileInfoItem(existingFile(0));
+		assertEquals(999, layout.getFileCount());
+		assertEquals(999 * 10L, layout.getTotalSize());
+	}
+
+	private void queue(String... queueIds)
+	{
+		List<FileInfo> fileInfos = new ArrayList<>();
+		for (String queueId : queueIds)
+		{
+			FileInfo fi = new FileInfo();
+			fi.queueId = queueId;
+			fi.entityLength = 10L;
+			fi.offset = 0L;
+			fileInfos.add(fi);
+		}
+		layout.filesQueued(new FileQueuedBatchEvent(layout.getUploader(), fileInfos));
+	}
+
+	private FileInfo succeed(String queueId, String id)
+	{
+		FileInfo fi = new FileInfo();
+		fi.queueId = queueId;
+		fi.id = id;
+		fi.entityLength = 10L;
+		fi.offset = 10L;
+		layout.uploadSucceeded(new SucceededEvent(layout.getUploader(), fi, (InputStream) null, null));
+		return row(id);
+	}
+
+	private FileInfo row(String name)
+	{
+		return layout.fetch(new Query<>(0, layout.getRowCount(), Collections.emptyList(), null, null))
+				.filter(fi -> name.equals(name(fi))).findFirst().get();
+	}
+
+	private List<String> rows(int offset, int limit)
+	{
+		fetches.clear();
+		return layout.fetch(new Query<>(offset, limit, Collections.emptyList(), null, null))
+				.map(TusMultiUploadGridLayoutTest::name).collect(Collectors.toList());
+	}
+
+	// the uploaded files are named by their id, the queued ones by their queue id
+	private static String name(FileInfo fi)
+	{
+		return fi.id != null ? fi.id : fi.queueId;
+	}
+
+	private FileInfoPageProvider existing(int count)
+	{
+		return new FileInfoPageProvider()
+		{
+			@Override
+			public Stream<FileInfo> fetch(int offset, int limit)
+			{
+				fetches.add(offset + "+" + limit);
+				List<FileInfo> page = new ArrayList<>();
+				for (int i = offset; i < Math.min(count, offset + limit); i++)
+				{
+					page.add(existingFile(i));
+				}
+				return page.stream();
+			}
+
+			@Override
+			public int count()
+			{
+				return count;
+			}
+
+			@Override
+			public long totalSize()
+			{
+				return count * 10L;
+			}
+		};
+	}
+
+	private static FileInfo existingFile(int i)
+	{
+		FileInfo fi = new FileInfo();
+		fi.id = "e" + i;
+		fi.entityLength = 10L;
+		fi.offset = 10L;
+		return fi;
+	}
+}